@@ -0,0 +1,123 @@
+package info.radm.scanner.hmmer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Class ParserBenchmark
+ * Parsing of whole (in-memory) hmmscan and pfamscan output files to xdom,
+ * with merging and overlap resolution (and collapsing, for pfamscan)
+ * switched on. The xdom is counted, not written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({ "10000" })
+	public int proteins;
+
+	@Param({ "5", "50" })
+	public int hitsPerProtein;
+
+	@Param({ "0.1", "0.5" })
+	public double overlapDensity;
+
+	private byte[] domtblout, pfamscan;
+	private File domtbloutFile, pfamscanFile;
+	private HmmerParser parser;
+
+	@Setup
+	public void setup() throws IOException {
+		SyntheticHits hits = new SyntheticHits(proteins, hitsPerProtein, overlapDensity, 42);
+		domtblout = hits.domtblout();
+		pfamscan = hits.pfamscan();
+		domtbloutFile = write(domtblout, ".domtblout");
+		pfamscanFile = write(pfamscan, ".pfamscan");
+
+		parser = new HmmerParser(domtbloutFile.getPath(), "/dev/null");
+		parser.setMergeMode();
+		parser.setResolveOverlapsMode();
+		parser.setCollapseMode(2);
+	}
+
+	@TearDown
+	public void tearDown() {
+		domtbloutFile.delete();
+		pfamscanFile.delete();
+	}
+
+	@Benchmark
+	public long hmmscan2xdom() throws IOException {
+		CountingWriter xdom = new CountingWriter();
+		parser.hmmscan2xdom(new ByteArrayInputStream(domtblout), xdom);
+		return xdom.count;
+	}
+
+	@Benchmark
+	public long pfamscan2xdom() throws IOException {
+		CountingWriter xdom = new CountingWriter();
+		parser.pfamscan2xdom(new ByteArrayInputStream(pfamscan), xdom);
+		return xdom.count;
+	}
+
+	@Benchmark
+	public int determineFileFormat() {
+		return HmmerParser.determineFileFormat(domtbloutFile.getPath())
+				+ HmmerParser.determineFileFormat(pfamscanFile.getPath());
+	}
+
+	private static File write(byte[] content, String suffix) throws IOException {
+		File f = File.createTempFile("pfamscanner_bench_", suffix);
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(content);
+		fos.close();
+		return f;
+	}
+
+
+	static class CountingWriter extends Writer {
+
+		long count = 0;
+
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		public void write(int c) {
+			count++;
+		}
+
+		public void write(String str, int off, int len) {
+			count += len;
+		}
+
+		public void flush() {
+		}
+
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package info.radm.scanner.hmmer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Class PostProcessingBenchmark
+ * mergeHits(), resolveOverlaps() and collapseRepeats() over all proteins
+ * of a synthetic proteome. All three work in place, so they run on a copy
+ * of each protein's hits; copyHits measures the copying alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostProcessingBenchmark {
+
+	@Param({ "1000" })
+	public int proteins;
+
+	// 2000 hits per protein: titin/nebulin-like repeat arrays
+	@Param({ "5", "50", "2000" })
+	public int hitsPerProtein;
+
+	@Param({ "0.1", "0.5", "0.9" })
+	public double overlapDensity;
+
+	private List<HitBuffer> hits;
+	private HitBuffer copy;
+
+	@Setup
+	public void setup() {
+		hits = new SyntheticHits(proteins, hitsPerProtein, overlapDensity, 42).proteins();
+		copy = hits.get(0).sibling();
+	}
+
+	@Benchmark
+	public void mergeHits(Blackhole bh) {
+		for (HitBuffer doms : hits) {
+			copy.copy(doms);
+			HmmerParser.mergeHits(copy);
+			bh.consume(copy.size);
+		}
+	}
+
+	@Benchmark
+	public void resolveOverlaps(Blackhole bh) {
+		for (HitBuffer doms : hits) {
+			copy.copy(doms);
+			HmmerParser.resolveOverlaps(copy);
+			bh.consume(copy.size);
+		}
+	}
+
+	@Benchmark
+	public void collapseRepeats(Blackhole bh) {
+		for (HitBuffer doms : hits) {
+			copy.copy(doms);
+			HmmerParser.collapseRepeats(copy, 2);
+			bh.consume(copy.size);
+		}
+	}
+
+	@Benchmark
+	public void copyHits(Blackhole bh) {
+		for (HitBuffer doms : hits) {
+			copy.copy(doms);
+			bh.consume(copy.size);
+		}
+	}
+
+}
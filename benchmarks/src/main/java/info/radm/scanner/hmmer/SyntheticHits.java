@@ -0,0 +1,125 @@
+package info.radm.scanner.hmmer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * Class SyntheticHits
+ * Generates reproducible hmmscan (domtblout) and pfamscan output, and the
+ * corresponding per-protein hit buffers, for benchmarking. Hits are laid out
+ * along each protein one after the other; overlapDensity is the fraction
+ * of hits that start inside the previous hit. About a third of the hits
+ * repeat the family of the previous hit (repeat arrays, split hits).
+ */
+public class SyntheticHits {
+
+	private static final int FAMILIES = 500;
+
+	private int proteins, hitsPerProtein;
+	private double overlapDensity;
+	private long seed;
+
+
+	public SyntheticHits(int proteins, int hitsPerProtein, double overlapDensity, long seed) {
+		this.proteins = proteins;
+		this.hitsPerProtein = hitsPerProtein;
+		this.overlapDensity = overlapDensity;
+		this.seed = seed;
+	}
+
+	public byte[] domtblout() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("# target name  accession  tlen  query name  accession  qlen ...\n");
+		generate(new HitVisitor() {
+			public void hit(String protein, int length, int family, int aliFrom, int aliTo,
+					int hmmFrom, int hmmTo, String evalue) {
+				sb.append(String.format(Locale.ROOT,
+						"%-20s PF%05d.%d %5d %-20s - %5d %9s 50.0 0.1 1 1 %9s %9s 40.0 0.1 %5d %5d %5d %5d %5d %5d 0.90 family %d\n",
+						"Fam_" + family, family, family % 20, 250, protein, length, evalue, evalue,
+						evalue, hmmFrom, hmmTo, aliFrom, aliTo, aliFrom, aliTo, family));
+			}
+		});
+		sb.append("#\n# [ok]\n");
+		return sb.toString().getBytes();
+	}
+
+	public byte[] pfamscan() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("# pfam_scan.pl\n#\n# <seq id> <alignment start> <alignment end> ...\n\n");
+		generate(new HitVisitor() {
+			public void hit(String protein, int length, int family, int aliFrom, int aliTo,
+					int hmmFrom, int hmmTo, String evalue) {
+				sb.append(String.format(Locale.ROOT,
+						"%s %6d %6d %6d %6d PF%05d.%d %-12s %s %5d %5d 250 50.0 %9s 1 %s\n",
+						protein, aliFrom, aliTo, aliFrom, aliTo, family, family % 20, "Fam_" + family,
+						(family % 3 == 0) ? "Repeat" : "Domain", hmmFrom, hmmTo, evalue,
+						(family % 4 == 0) ? "CL" + (family / 4) : "No_clan"));
+			}
+		});
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * The hits of each protein, sorted as handed to mergeHits(),
+	 * resolveOverlaps() and collapseRepeats(). All buffers share their
+	 * domain codes.
+	 */
+	public List<HitBuffer> proteins() {
+		final List<HitBuffer> all = new ArrayList<HitBuffer>();
+		final HitBuffer codes = new HitBuffer();
+		generate(new HitVisitor() {
+			String current = null;
+			public void hit(String protein, int length, int family, int aliFrom, int aliTo,
+					int hmmFrom, int hmmTo, String evalue) {
+				if (! protein.equals(current) ) {
+					all.add(codes.sibling());
+					current = protein;
+				}
+				HitBuffer hits = all.get(all.size() - 1);
+				hits.add(hits.code("Fam_" + family), aliFrom, aliTo, hmmFrom, hmmTo,
+						Double.parseDouble(evalue));
+			}
+		});
+		for (HitBuffer hits : all)
+			hits.sort();
+		return all;
+	}
+
+	private void generate(HitVisitor visitor) {
+		Random random = new Random(seed);
+		for (int p = 0; p < proteins; p++) {
+			String protein = "sp|Q" + (100000 + p) + "|SYN" + p + "_HUMAN";
+			int length = hitsPerProtein * 120 + 50;
+			int family = random.nextInt(FAMILIES);
+			int pos = 1 + random.nextInt(30), lastTo = 0, hmmPos = 1;
+			for (int h = 0; h < hitsPerProtein; h++) {
+				boolean repeat = random.nextInt(3) == 0;
+				if (! repeat ) {
+					family = random.nextInt(FAMILIES);
+					hmmPos = 1;
+				}
+				int from = pos;
+				if (lastTo > 0 && random.nextDouble() < overlapDensity)
+					from = Math.max(1, lastTo - 1 - random.nextInt(40));
+				int to = from + 30 + random.nextInt(80);
+				int hmmTo = hmmPos + (to - from);
+				String evalue = String.format(Locale.ROOT, "%.1e",
+						(1 + random.nextInt(9)) * Math.pow(10, -random.nextInt(120)));
+				visitor.hit(protein, length, family, from, to, hmmPos, hmmTo, evalue);
+				hmmPos = repeat ? hmmTo + 1 : 1;
+				lastTo = to;
+				pos = to + 1 + random.nextInt(20);
+			}
+		}
+	}
+
+
+	private interface HitVisitor {
+		void hit(String protein, int length, int family, int aliFrom, int aliTo,
+				int hmmFrom, int hmmTo, String evalue);
+	}
+
+}
@@ -0,0 +1,422 @@
+package info.radm.scanner;
+
+import info.radm.scanner.hmmer.AnnotationSink;
+import info.radm.scanner.hmmer.BinaryXdomWriter;
+import info.radm.scanner.hmmer.DomainAnnotator;
+import info.radm.scanner.hmmer.Hmmer;
+import info.radm.scanner.hmmer.HmmerParser;
+import info.radm.scanner.hmmer.ProteinAnnotation;
+import info.radm.scanner.hmmer.ScanOptions;
+import info.radm.scanner.hmmer.XdomWriter;
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Class BatchScanner
+ * Scans many fasta files in one JVM and writes one xdom per input. The
+ * inputs are scanned by a fixed pool of workers, each running one
+ * hmmscan process (with --cpu CPUs) and then parsing its output, so that
+ * no more than the CPU budget is busy at any time however many files
+ * there are. Larger inputs are started first, so that the pool runs dry
+ * at about the same time.
+ *
+ * The status of every input (OK, FAILED or PENDING, the number of
+ * proteins, the time taken and any error) is kept in batch.status in the
+ * output directory, rewritten as each input is done. A batch that is run
+ * again skips the inputs whose xdom was written before.
+ */
+public class BatchScanner {
+
+	static final String STATUS = "batch.status";
+
+	private File outputDir;
+	private String workingDir, modelFile, tempDir;
+	private int cpuBudget, CPUs = 1;
+	private Double evalue;
+	private ScanOptions options = ScanOptions.defaults();
+	private boolean binary = false;
+	private Collection<String> families;
+	private File subsetDir;
+
+	private List<Entry> entries = new ArrayList<Entry>();
+	private Map<String, Entry> byOutput = new HashMap<String, Entry>();
+	private int done = 0;
+
+
+	/**
+	 * @param outputDir directory of the xdom files (created if missing)
+	 * @param workingDir the working directory (see Hmmer)
+	 * @param cpuBudget number of CPUs the batch may keep busy
+	 */
+	public BatchScanner(File outputDir, String workingDir, int cpuBudget) {
+		this.outputDir = outputDir;
+		this.workingDir = workingDir;
+		this.cpuBudget = Math.max(1, cpuBudget);
+	}
+
+	/**
+	 * @param modelFile model file name(s) in the working directory (see Hmmer.setModelFile())
+	 */
+	public void setModelFile(String modelFile) {
+		this.modelFile = modelFile;
+	}
+
+	/**
+	 * @param CPUs hmmscan --cpu, per input (at most the CPU budget)
+	 */
+	public void setCPUs(int CPUs) {
+		this.CPUs = Math.max(1, Math.min(CPUs, cpuBudget));
+	}
+
+	public void setTempDir(String tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public void setEvalueThreshold(Double evalue) {
+		this.evalue = evalue;
+	}
+
+	/**
+	 * @param options how the hits of each protein are post-processed
+	 */
+	public void setOptions(ScanOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Write binary xdom (see BinaryXdomWriter) instead of text
+	 */
+	public void setBinaryOutput() {
+		this.binary = true;
+	}
+
+	/**
+	 * Scan against these families only (see Hmmer.useSubsets())
+	 * @param families
+	 * @param subsetDir
+	 */
+	public void setFamilies(Collection<String> families, File subsetDir) {
+		this.families = families;
+		this.subsetDir = subsetDir;
+	}
+
+	/**
+	 * @return the number of inputs scanned at once
+	 */
+	public int getWorkers() {
+		return Math.max(1, cpuBudget / CPUs);
+	}
+
+	/**
+	 * Adds the inputs given by spec: all files in a directory, the files
+	 * matching a glob (e.g. genomes/*.fa.gz), or those listed in a
+	 * manifest, one per line, optionally followed by a tab and the name
+	 * of the xdom (relative to the output directory). Without a name, the
+	 * xdom is named after the input (genome.fa.gz: genome.xdom, or
+	 * genome.bxdom if setBinaryOutput() was called before).
+	 * @param spec
+	 * @throws IOException if there are no inputs, or two inputs would be
+	 * written to the same xdom
+	 */
+	public void addInputs(String spec) throws IOException {
+
+		File file = new File(spec);
+		if ( file.isDirectory() ) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File f : files)
+				if ( f.isFile() && !f.getName().startsWith(".") )
+					add(f, null);
+		}
+		else if ( isGlob(file.getName()) ) {
+			File dir = file.getAbsoluteFile().getParentFile();
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+file.getName());
+			File[] files = dir.listFiles();
+			if (files == null)
+				throw new IOException("could not list "+dir.getPath());
+			Arrays.sort(files);
+			for (File f : files)
+				if ( f.isFile() && matcher.matches(f.toPath().getFileName()) )
+					add(f, null);
+		}
+		else if ( file.isFile() ) {
+			File base = file.getAbsoluteFile().getParentFile();
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				if (line.trim().isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\t");
+				File input = new File(fields[0].trim());
+				if (! input.isAbsolute() )
+					input = new File(base, fields[0].trim());
+				add(input, (fields.length > 1) ? fields[1].trim() : null);
+			}
+		}
+		else
+			throw new IOException(spec+" is no directory, glob or manifest");
+		if (entries.isEmpty())
+			throw new IOException("no inputs in "+spec);
+	}
+
+	/**
+	 * Scans all inputs
+	 * @return the number of inputs that failed
+	 * @throws IOException if the output directory or status can not be written
+	 * @throws InterruptedException
+	 */
+	public int run() throws IOException, InterruptedException {
+
+		if (! outputDir.isDirectory() && ! outputDir.mkdirs() )
+			throw new IOException("could not create "+outputDir.getAbsolutePath());
+		Set<String> doneBefore = readStatus();
+		List<Entry> todo = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if ( doneBefore.contains(entry.input.getPath()) && entry.output.isFile() ) {
+				entry.status = "OK";
+				entry.message = "done before";
+				done++;
+			}
+			else
+				todo.add(entry);
+		}
+		if (todo.size() < entries.size())
+			System.out.println("INFO: "+(entries.size() - todo.size())+" input(s) done before - skipping.");
+		if (todo.isEmpty())
+			return 0;
+
+		// the models (or subsets) are the same for every input
+		Hmmer models = new Hmmer(outputDir.getPath(), outputDir.getPath(), workingDir);
+		if (modelFile != null)
+			models.setModelFile(modelFile);
+		if ( families != null && !models.useSubsets(families, subsetDir) ) {
+			for (Entry entry : todo) {
+				entry.status = "FAILED";
+				entry.message = "no model subset";
+			}
+			writeStatus();
+			return todo.size();
+		}
+		final List<String> modelPaths = models.getModelPaths();
+		writeStatus();
+
+		// largest first
+		Collections.sort(todo, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return Long.compare(e2.input.length(), e1.input.length());
+			}
+		});
+		int workerNo = getWorkers();
+		System.out.println("INFO: scanning "+todo.size()+" input(s) with "+workerNo+" worker(s) of "+
+				CPUs+" CPU(s).");
+		ThreadPoolExecutor workers = new ThreadPoolExecutor(workerNo, workerNo, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, todo.size())));
+		for (final Entry entry : todo) {
+			workers.execute(new Runnable() {
+				public void run() {
+					scan(entry, modelPaths);
+				}
+			});
+		}
+		workers.shutdown();
+		while (! workers.awaitTermination(1, TimeUnit.MINUTES) );
+
+		int failed = 0;
+		for (Entry entry : entries)
+			if (! entry.status.equals("OK") )
+				failed++;
+		return failed;
+	}
+
+	// scans one input into its xdom, and records how it went
+	private void scan(Entry entry, List<String> modelPaths) {
+
+		long start = System.currentTimeMillis();
+		Hmmer hmmer = new Hmmer(entry.input.getPath(), entry.output.getPath(), workingDir);
+		hmmer.setModelPaths(modelPaths);
+		hmmer.setCPUs(String.valueOf(CPUs));
+		if (tempDir != null)
+			hmmer.setTempDir(tempDir);
+		if (evalue != null)
+			hmmer.setEvalueThreshold(evalue);
+		File hmmout = null;
+		String error = null;
+		try {
+			File dir = entry.output.getParentFile();
+			if (! entry.input.isFile() )
+				error = "no such file";
+			else if (dir != null && ! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory() )
+				error = "could not create "+dir.getPath();
+			else if (! hmmer.checkParams() )
+				error = "invalid scan parameters";
+			else {
+				hmmout = new File(hmmer.getHmmoutPath());
+				int exitValue = hmmer.doInBackground();
+				if (exitValue != 0)
+					error = "hmmscan exited with "+exitValue;
+				else
+					entry.proteins = parse(hmmout, entry.output);
+			}
+		}
+		catch (IOException ioe) {
+			error = ioe.getMessage();
+		}
+		catch (RuntimeException re) {
+			error = re.toString();
+		}
+		finally {
+			if (hmmout != null)
+				hmmout.delete();
+		}
+		if (error != null)
+			entry.output.delete();
+		finished(entry, error, System.currentTimeMillis() - start);
+	}
+
+	// parses domtblout into xdom, returns the number of proteins
+	private long parse(File domtblout, File xdom) throws IOException {
+
+		final AnnotationSink out = binary ?
+				new BinaryXdomWriter(new BufferedOutputStream(Compression.create(xdom), 1 << 16)) :
+				new XdomWriter(new BufferedWriter(new OutputStreamWriter(Compression.create(xdom))));
+		final long[] proteins = new long[1];
+		InputStream in = new FileInputStream(domtblout);
+		try {
+			new DomainAnnotator(options).annotate(in, HmmerParser.HMMSCAN, new AnnotationSink() {
+				public void accept(ProteinAnnotation annotation) throws IOException {
+					out.accept(annotation);
+					proteins[0]++;
+				}
+				public void close() throws IOException {
+					out.close();
+				}
+			});
+		}
+		finally {
+			in.close();
+		}
+		return proteins[0];
+	}
+
+	private synchronized void finished(Entry entry, String error, long millis) {
+
+		done++;
+		entry.status = (error == null) ? "OK" : "FAILED";
+		entry.message = (error == null) ? "" : error;
+		entry.seconds = millis / 1000.0;
+		if (error == null)
+			System.out.println("INFO: ["+done+"/"+entries.size()+"] "+entry.input.getPath()+": "+
+					entry.proteins+" protein(s) in "+String.format("%.1f", entry.seconds)+" s.");
+		else
+			System.err.println("ERROR: ["+done+"/"+entries.size()+"] "+entry.input.getPath()+": "+error);
+		try {
+			writeStatus();
+		}
+		catch (IOException ioe) {
+			System.err.println("INFO: could not write "+STATUS+" - "+ioe.getMessage());
+		}
+	}
+
+	// input, xdom, status, proteins, seconds, message
+	private synchronized void writeStatus() throws IOException {
+
+		File status = new File(outputDir, STATUS);
+		File tmp = new File(outputDir, "."+STATUS+".tmp");
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+		try {
+			w.write("# input\txdom\tstatus\tproteins\tseconds\tmessage\n");
+			for (Entry entry : entries)
+				w.write(entry.input.getPath()+"\t"+entry.output.getPath()+"\t"+entry.status+"\t"+
+						entry.proteins+"\t"+String.format("%.1f", entry.seconds)+"\t"+
+						entry.message.replace('\t', ' ').replace('\n', ' ')+"\n");
+		}
+		finally {
+			w.close();
+		}
+		Files.move(tmp.toPath(), status.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// the inputs that were done in a previous run of the batch
+	private Set<String> readStatus() throws IOException {
+		Set<String> ok = new HashSet<String>();
+		File status = new File(outputDir, STATUS);
+		if (! status.isFile() )
+			return ok;
+		for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+			String[] fields = line.split("\t");
+			if (fields.length > 2 && fields[2].equals("OK"))
+				ok.add(fields[0]);
+		}
+		return ok;
+	}
+
+	private void add(File input, String output) throws IOException {
+		if (output == null)
+			output = baseName(input)+(binary ? ".bxdom" : ".xdom");
+		File xdom = new File(outputDir, output);
+		Entry other = byOutput.get(xdom.getPath());
+		if (other != null)
+			throw new IOException(input.getPath()+" and "+other.input.getPath()+" would both be written to "+
+					xdom.getPath());
+		Entry entry = new Entry(input, xdom);
+		byOutput.put(xdom.getPath(), entry);
+		entries.add(entry);
+	}
+
+	// genome.fa.gz: genome
+	private static String baseName(File input) {
+		String name = input.getName();
+		name = name.substring(0, name.length() - Compression.suffix(input).length());
+		int dot = name.lastIndexOf('.');
+		return (dot > 0) ? name.substring(0, dot) : name;
+	}
+
+	private static boolean isGlob(String name) {
+		for (char c : "*?[{".toCharArray())
+			if (name.indexOf(c) >= 0)
+				return true;
+		return false;
+	}
+
+
+	// one input of the batch
+	private static class Entry {
+
+		File input, output;
+		String status = "PENDING", message = "";
+		long proteins = 0;
+		double seconds = 0;
+
+		Entry(File input, File output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+}
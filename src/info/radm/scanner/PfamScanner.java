@@ -1,8 +1,36 @@
 package info.radm.scanner;
 
 
+import info.radm.scanner.hmmer.Checkpoint;
+import info.radm.scanner.hmmer.ClanIndex;
+import info.radm.scanner.hmmer.FastaSegmenter;
+import info.radm.scanner.hmmer.HmmpgmdDaemon;
 import info.radm.scanner.hmmer.Hmmer;
 import info.radm.scanner.hmmer.HmmerParser;
+import info.radm.scanner.hmmer.ModelSubsets;
+import info.radm.scanner.hmmer.ScanOptions;
+import info.radm.scanner.hmmer.XdomConverter;
+import info.radm.scanner.hmmer.XdomIndex;
+import info.radm.scanner.metrics.Metrics;
+import info.radm.scanner.metrics.ScanProgress;
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
@@ -26,18 +54,25 @@ import org.apache.commons.cli.UnrecognizedOptionException;
  */
 public class PfamScanner {
 	
+	private static final int DEFAULT_SEGMENT = 10000;
+	private static final int DEFAULT_UNIT = 1000;
+	private static final int DEFAULT_CLAIM_TIMEOUT = 600;
+	// options of a distributed scan that the workers take from the coordinator
+	private static final String[] QUEUE_SETTINGS = { "m", "r", "acc", "ne", "C", "cm", "cr", "e", "M" };
+	// options of a single scan that a batch does not support
+	private static final String[] BATCH_UNSUPPORTED = { "p", "st", "S", "D", "K", "KS", "s", "ck", "R",
+		"hs", "pg", "pr", "pf", "ix", "qd" };
+	
 	@SuppressWarnings("static-access")
 	static Option inputFile = OptionBuilder.withArgName( "file" )
 			.hasArg()
-            .withDescription("Fasta || hmmout input file (see option parse-only)")
-            .isRequired()
+            .withDescription("Fasta || hmmout input file (see option parse-only), may be gzip or zstd compressed")
             .create("in");
 	
 	@SuppressWarnings("static-access")
 	static Option outputFile = OptionBuilder.withArgName( "file" )
 			.hasArg()
-            .withDescription("XDOM output file")
-            .isRequired()
+            .withDescription("XDOM output file, gzip or zstd compressed if named *.gz or *.zst")
             .create("out");
 	
 	@SuppressWarnings("static-access")
@@ -65,7 +100,8 @@ public class PfamScanner {
 	@SuppressWarnings("static-access")
 	static Option keepAnn = OptionBuilder.withArgName( "file" )
 			.hasArg()
-            .withDescription("Save hmmscan output (full path required)")
+            .withDescription("Save hmmscan output (full path required), gzip or zstd compressed " +
+            		"if named *.gz or *.zst")
             .withLongOpt("save")
             .create("s");
 	
@@ -73,7 +109,7 @@ public class PfamScanner {
 	static Option parseOnly = OptionBuilder.withArgName( "file" )
             .withDescription("Parse previous run of hmmscan/pfamscan (save to file). " +
             		"If set, <in> file must be pfamscan format or hmmscan (version 3)" +
-            		" domtblout format, and <out> the name of the xdom that should be written to. " +
+            		" domtblout format (or a hit store, see --hit-store), and <out> the name of the xdom that should be written to. " +
             		"The file format of <in> will be determined automatically. If the file" +
             		" type cannot be determined, HMMSCAN format will be tried.")
             .withLongOpt("parse-only")
@@ -95,11 +131,202 @@ public class PfamScanner {
 	
 	@SuppressWarnings("static-access")
 	static Option modelFile = OptionBuilder.withArgName( "models" )
-            .withDescription("File containing HMMs for scan (must be indexed)")
+            .withDescription("File containing HMMs for scan (must be indexed). Several files " +
+            		"separated by commas are scanned against concurrently and their hits " +
+            		"merged per protein (e.g. Pfam-A.hmm,inhouse.hmm)")
             .hasArg()
             .withLongOpt("model")
             .create("M");
 	
+	@SuppressWarnings("static-access")
+	static Option shards = OptionBuilder.withArgName( "int" )
+            .withDescription("Split the input into <int> shards of similar residue count and run " +
+            		"one hmmscan process per shard, concurrently (each using --cpu workers)")
+            .hasArg()
+            .withLongOpt("shards")
+            .create("S");
+	
+	@SuppressWarnings("static-access")
+	static Option families = OptionBuilder.withArgName( "families" )
+            .withDescription("Scan against these families only (Pfam accessions or IDs, separated " +
+            		"by commas, or a file listing one per line). The subset of the models is " +
+            		"built with hmmpress and kept for later runs (see --subset-dir)")
+            .hasArg()
+            .withLongOpt("families")
+            .create("F");
+	
+	@SuppressWarnings("static-access")
+	static Option subsetDir = OptionBuilder.withArgName( "dir" )
+            .withDescription("Directory of the model subsets built for --families, which can be " +
+            		"shared by concurrent runs [Default: subsets in the working dir]")
+            .hasArg()
+            .withLongOpt("subset-dir")
+            .create("FD");
+	
+	@SuppressWarnings("static-access")
+	static Option cache = OptionBuilder.withArgName( "dir" )
+            .withDescription("Cache hmmscan results per sequence in <dir> and only scan sequences " +
+            		"that are not cached yet (for the same models and threshold). The directory " +
+            		"can be shared by concurrent runs")
+            .hasArg()
+            .withLongOpt("cache")
+            .create("K");
+	
+	@SuppressWarnings("static-access")
+	static Option cacheSize = OptionBuilder.withArgName( "MB" )
+            .withDescription("Size limit of the result cache, least recently used results " +
+            		"are evicted [Default: 1024]")
+            .hasArg()
+            .withLongOpt("cache-size")
+            .create("KS");
+	
+	@SuppressWarnings("static-access")
+	static Option checkpoint = OptionBuilder.withArgName( "int" )
+            .withDescription("Scan the input in segments of <int> sequences and record the progress " +
+            		"after each segment in <outfile>.ckpt, so that an interrupted scan can be " +
+            		"resumed (see --resume) [Default: "+DEFAULT_SEGMENT+"]")
+            .hasArg()
+            .withLongOpt("checkpoint")
+            .create("ck");
+	
+	@SuppressWarnings("static-access")
+	static Option server = OptionBuilder.withArgName( "port" )
+            .withDescription("Run as scan server on local port <port> instead of scanning <infile> " +
+            		"(see README for the protocol). -dir, -M, -c and -t apply to all jobs")
+            .hasArg()
+            .withLongOpt("server")
+            .create("srv");
+	
+	@SuppressWarnings("static-access")
+	static Option workers = OptionBuilder.withArgName( "int" )
+            .withDescription("Number of jobs the server scans concurrently [Default: 1]")
+            .hasArg()
+            .withLongOpt("workers")
+            .create("W");
+	
+	@SuppressWarnings("static-access")
+	static Option queue = OptionBuilder.withArgName( "int" )
+            .withDescription("Number of jobs the server queues before turning jobs away [Default: 16]")
+            .hasArg()
+            .withLongOpt("queue")
+            .create("Q");
+	
+	@SuppressWarnings("static-access")
+	static Option pgmd = OptionBuilder.withArgName( "port" )
+            .withDescription("Search with a hmmpgmd daemon on local port <port>, which keeps the models " +
+            		"in memory, instead of running hmmscan. The daemon (and its worker, on <port>+1) is " +
+            		"started from the working directory and supervised, unless one is already running " +
+            		"on <port>")
+            .hasArg()
+            .withLongOpt("pgmd")
+            .create("pg");
+	
+	@SuppressWarnings("static-access")
+	static Option threads = OptionBuilder.withArgName( "int" )
+            .withDescription("Number of threads to parse with. Uncompressed hmmscan output is " +
+            		"split at protein boundaries and the chunks are parsed in parallel, streamed " +
+            		"or compressed output is read on one thread and post-processed on the others. " +
+            		"Also the number of threads to compress output with [Default: 1 to parse, number of CPUs to compress]")
+            .hasArg()
+            .withLongOpt("threads")
+            .create("T");
+	
+	@SuppressWarnings("static-access")
+	static Option metrics = OptionBuilder.withArgName( "file" )
+            .withDescription("Write a JSON summary of where the time went (hmmscan, parsing, " +
+            		"merging, overlap resolution, collapsing) and the peak heap to <file> " +
+            		"at the end of the run")
+            .hasArg()
+            .withLongOpt("metrics")
+            .create("mx");
+	
+	@SuppressWarnings("static-access")
+	static Option progress = OptionBuilder.withArgName( "seconds" )
+            .withDescription("Report the progress of the scan (queries searched, residues " +
+            		"per second, estimated time left) every <seconds> to stderr, or to the " +
+            		"file given with --progress-file")
+            .hasArg()
+            .withLongOpt("progress")
+            .create("pr");
+	
+	@SuppressWarnings("static-access")
+	static Option progressFile = OptionBuilder.withArgName( "file" )
+            .withDescription("Write the progress reports to <file>, replacing it at every " +
+            		"report [Default interval: 60 seconds]")
+            .hasArg()
+            .withLongOpt("progress-file")
+            .create("pf");
+	
+	@SuppressWarnings("static-access")
+	static Option queueDir = OptionBuilder.withArgName( "dir" )
+            .withDescription("Distribute the scan over several machines through a work queue in " +
+            		"<dir> on a filesystem they share: <infile> is split into units there, which " +
+            		"are scanned by workers (see --worker), and <outfile> is assembled from their " +
+            		"results. Restart with the same arguments to carry on with an interrupted scan")
+            .hasArg()
+            .withLongOpt("queue-dir")
+            .create("qd");
+	
+	@SuppressWarnings("static-access")
+	static Option unitSize = OptionBuilder.withArgName( "int" )
+            .withDescription("Number of sequences per unit of a distributed scan (see --queue-dir) " +
+            		"[Default: "+DEFAULT_UNIT+"]")
+            .hasArg()
+            .withLongOpt("unit-size")
+            .create("U");
+	
+	@SuppressWarnings("static-access")
+	static Option claimTimeout = OptionBuilder.withArgName( "seconds" )
+            .withDescription("Requeue units of a distributed scan whose worker has not been heard " +
+            		"of for <seconds> (see --queue-dir) [Default: "+DEFAULT_CLAIM_TIMEOUT+"]")
+            .hasArg()
+            .withLongOpt("claim-timeout")
+            .create("qt");
+	
+	@SuppressWarnings("static-access")
+	static Option batch = OptionBuilder.withArgName( "inputs" )
+            .withDescription("Scan many fasta files in one run, given as a directory, a glob " +
+            		"(quoted) or a manifest listing one file per line (optionally followed by " +
+            		"a tab and the xdom name), and write one xdom per file to the directory " +
+            		"<outfile>, with the status of each file in <outfile>/batch.status")
+            .hasArg()
+            .withLongOpt("batch")
+            .create("B");
+	
+	@SuppressWarnings("static-access")
+	static Option batchCPUs = OptionBuilder.withArgName( "int" )
+            .withDescription("Number of CPUs a batch (see --batch) keeps busy: files are scanned " +
+            		"<int>/--cpu at a time [Default: all CPUs]")
+            .hasArg()
+            .withLongOpt("batch-cpus")
+            .create("BC");
+	
+	@SuppressWarnings("static-access")
+	static Option hitStore = OptionBuilder.withArgName( "file" )
+            .withDescription("Also store every hit of the hmmscan output (whatever the evalue " +
+            		"threshold) in the binary hit store <file>, which can be parsed again with " +
+            		"other options (-p -in <file>) much faster than the text")
+            .hasArg()
+            .withLongOpt("hit-store")
+            .create("hs");
+	
+	@SuppressWarnings("static-access")
+	static Option clans = OptionBuilder.withArgName( "file" )
+            .withDescription("Clans of the Pfam families (Pfam-A.clans.tsv), for --clan-mapping " +
+            		"of hmmscan output and --clan-overlaps (default: Pfam-A.clans.tsv in the " +
+            		"working dir)")
+            .hasArg()
+            .withLongOpt("clans")
+            .create("cl");
+	
+	@SuppressWarnings("static-access")
+	static Option lookup = OptionBuilder.withArgName( "IDs" )
+            .withDescription("Print the xdom of the proteins <IDs> (comma separated, or - to " +
+            		"read them from stdin, one per line) from the indexed xdom <infile> (see --index)")
+            .hasArg()
+            .withLongOpt("get")
+            .create("g");
+	
 	@SuppressWarnings("static-access")
 	static Option removeEmpties = OptionBuilder
             .withDescription("Remove proteins without domains (e.g. if all domains are " +
@@ -108,34 +335,82 @@ public class PfamScanner {
             .create("ne");
 			
 	
+	/**
+	 * @return the command line options
+	 */
+	static Options options() {
+
+		Options opt = new Options();
+		opt.addOption(inputFile);
+		opt.addOption(outputFile);
+		opt.addOption(workingDir);
+		opt.addOption(evalue);
+		opt.addOption(verbose);
+		opt.addOption(keepAnn);
+		opt.addOption(parseOnly);
+		opt.addOption(tempDir);
+		opt.addOption(modelFile);
+		opt.addOption(removeEmpties);
+		opt.addOption(collapse);
+		opt.addOption(shards);
+		opt.addOption(threads);
+		opt.addOption(families);
+		opt.addOption(subsetDir);
+		opt.addOption(cache);
+		opt.addOption(checkpoint);
+		opt.addOption(server);
+		opt.addOption(workers);
+		opt.addOption(queue);
+		opt.addOption(pgmd);
+		opt.addOption(cacheSize);
+		opt.addOption(metrics);
+		opt.addOption(progress);
+		opt.addOption(progressFile);
+		opt.addOption(queueDir);
+		opt.addOption(unitSize);
+		opt.addOption(claimTimeout);
+		opt.addOption(lookup);
+		opt.addOption(hitStore);
+		opt.addOption(batch);
+		opt.addOption(batchCPUs);
+		opt.addOption(clans);
+		opt.addOption("acc", "accession", false, "Use Pfam (PF00002) accessions instead of IDs (7tm_2)");
+		opt.addOption("m", "merge", false, "Merge split hits");
+		opt.addOption("c", "cpu", true, "Number of parallel CPU workers to use for multithreads (per hmmscan process)");
+		opt.addOption("cm", "clan-mapping", false, "Map Pfam IDs to clans where applicable (hmmscan " +
+				"output needs the clans file, see --clans)");
+		opt.addOption("r", "remove-overlaps", false, "Resolve overlaps (Best match cascade)");
+		opt.addOption("cr", "clan-overlaps", false, "Resolve overlaps between domains of the " +
+				"same clan only, as pfam_scan.pl does (needs the clans file, see --clans)");
+		opt.addOption("st", "stream", false, "Parse hmmscan output while the scan is running " +
+				"(no temporary domtblout file is written)");
+		opt.addOption("R", "resume", false, "Resume an interrupted checkpointed scan (see " +
+				"--checkpoint), appending to <outfile>");
+		opt.addOption("D", "dedup", false, "Scan identical sequences only once and copy their " +
+				"annotation to all IDs");
+		opt.addOption("b", "binary", false, "Write binary xdom (see README) instead of text");
+		opt.addOption("cv", "convert", false, "Convert <infile> from text to binary xdom or back " +
+				"(depending on the format of <infile>) and write it to <outfile>");
+		opt.addOption("wk", "worker", false, "Scan units of the distributed scan in the work " +
+				"queue given with --queue-dir until it is complete (see --queue-dir)");
+		opt.addOption("ix", "index", false, "Write an index of <outfile> for lookups by protein " +
+				"ID (see --get) to <outfile>.xdi, or, without -out, index the xdom <infile>");
+		opt.addOption("jmx", "jmx", false, "Publish the run metrics (see --metrics) through JMX " +
+				"as info.radm.scanner:type=Metrics, e.g. for a scan server");
+		opt.addOption("h", "help", false, "Print this help message");
+		return opt;
+	}
+
 	public static void main(String[] args) {
 		
-		Options opt = new Options();
+		Options opt = options();
 		HelpFormatter f = new HelpFormatter();
 		f.setSyntaxPrefix("Usage: ");
 		
 		try {
-
-			opt.addOption(inputFile);
-			opt.addOption(outputFile);
-			opt.addOption(workingDir);
-			opt.addOption(evalue);
-			opt.addOption(verbose);
-			opt.addOption(keepAnn);
-			opt.addOption(parseOnly);
-			opt.addOption(tempDir);
-			opt.addOption(modelFile);
-			opt.addOption(removeEmpties);
-			opt.addOption(collapse);
-			opt.addOption("acc", "accession", false, "Use Pfam (PF00002) accessions instead of IDs (7tm_2)");
-			opt.addOption("m", "merge", false, "Merge split hits");
-			opt.addOption("c", "cpu", true, "Number of parallel CPU workers to use for multithreads (hmmscan)");
-			opt.addOption("cm", "clan-mapping", false, "Map Pfam IDs to clans where applicable (only available from pfamscan output)");
-			opt.addOption("r", "remove-overlaps", false, "Resolve overlaps (Best match cascade)");
-            opt.addOption("h", "help", false, "Print this help message");
-            
             PosixParser parser = new PosixParser();
             CommandLine cl = parser.parse(opt, args, false);
+            enableMetrics(cl);
 
             if ( cl.hasOption('h') ) {  
                 f.printHelp("PfamScanner [OPTIONS] -in <infile> -out <outfile> -dir <workingdir>", 
@@ -143,6 +418,32 @@ public class PfamScanner {
                 System.exit(0);
             }
             
+            else if ( cl.hasOption("srv") ) {
+            	runServer(cl);
+            }
+            
+            else if ( cl.hasOption("wk") ) {
+            	runWorker(cl);
+            }
+            
+            else if ( cl.hasOption("B") ) {
+            	runBatch(cl);
+            }
+            
+            else if ( cl.hasOption("g") && cl.hasOption("in") ) {
+            	lookup(new File(cl.getOptionValue("in")), cl.getOptionValue("g"));
+            }
+            
+            else if ( cl.hasOption("ix") && cl.hasOption("in") && !cl.hasOption("out") ) {
+            	index(new File(cl.getOptionValue("in")));
+            }
+            
+            else if ( !cl.hasOption("in") || !cl.hasOption("out") ) {
+            	f.printHelp("PfamScanner [OPTIONS] -in <infile> -out <outfile> -dir <workingdir>", 
+            			"Run hmmscan against Pfam defined domains\n", opt, "");
+            	System.exit(-1);
+            }
+            
             else {
             	
             	Double evalue = null;
@@ -156,6 +457,27 @@ public class PfamScanner {
             			System.exit(-1);
             		}
             	}
+            	int threadNo = 1;
+            	if (cl.hasOption("T")) {
+            		try {
+            			threadNo = Integer.valueOf(cl.getOptionValue("T"));
+            		}
+            		catch (NumberFormatException nfe) {
+            			System.err.println("ERROR: Specified number of threads not a valid number. Exiting.");
+            			System.exit(-1);
+            		}
+            		Compression.setThreads(threadNo);
+            	}
+            	if ( cl.hasOption("hs") && Compression.forName(new File(cl.getOptionValue("hs"))) != Compression.NONE ) {
+            		System.err.println("ERROR: hit stores can not be compressed. Exiting.");
+            		System.exit(-1);
+            	}
+            	if (cl.hasOption("cv")) {
+            		convert(new File(cl.getOptionValue("in")), new File(cl.getOptionValue("out")));
+            		indexOutput(cl);
+            		System.exit(0);
+            	}
+            	
             	// go to parse only mode
             	if (cl.hasOption("p")) {
             		String domtbloutPath = cl.getOptionValue("in");
@@ -184,20 +506,41 @@ public class PfamScanner {
             			hmmoutParser.setEvalueThreshold(evalue);
             		if (cl.hasOption("ne"))
             			hmmoutParser.setRemoveEmpties();
+            		if (cl.hasOption("b"))
+            			hmmoutParser.setBinaryOutput();
+            		hmmoutParser.setThreads(threadNo);
             		
-            		if (HmmerParser.determineFileFormat(domtbloutPath) == HmmerParser.HMMSCAN) {
+            		int format = HmmerParser.determineFileFormat(domtbloutPath);
+            		if ( cl.hasOption("cr") || (cl.hasOption("cm") && format != HmmerParser.PFAMSCAN) )
+            			hmmoutParser.setClanIndex(loadClans(cl, cl.hasOption("dir") ?
+            					cl.getOptionValue("dir") : System.getProperty("user.dir")));
+            		if (cl.hasOption("cr"))
+            			hmmoutParser.setClanOverlapsMode();
+            		if (cl.hasOption("hs") && format != HmmerParser.HITSTORE)
+            			hmmoutParser.setHitStore(cl.getOptionValue("hs"));
+            		if (format == HmmerParser.HMMSCAN) {
             			hmmoutParser.hmmscan2xdom();
             		}
-            		else if (HmmerParser.determineFileFormat(domtbloutPath) == HmmerParser.PFAMSCAN) {
+            		else if (format == HmmerParser.PFAMSCAN) {
             			hmmoutParser.pfamscan2xdom();
             		}
+            		else if (format == HmmerParser.HITSTORE) {
+            			hmmoutParser.hitstore2xdom();
+            		}
             		else {
             			System.err.println("ERROR: Cannot determine file type of "+domtbloutPath);
             			System.exit(-1);
             		}
+            		indexOutput(cl);
             		System.exit(0);	
             	}
             	
+            	if ( cl.hasOption("qd") ) {
+            		coordinate(cl);
+            		indexOutput(cl);
+            		System.exit(0);
+            	}
+            	
             	// get working dir, or set to CRW if non provided
             	String wd = System.getProperty("user.dir");
             	if (cl.hasOption("dir"))
@@ -211,37 +554,137 @@ public class PfamScanner {
             		hmmer.setCPUs(cl.getOptionValue("c"));
             	if ( cl.hasOption("v") )
             		hmmer.setVerbose(true);
-            	if ( cl.hasOption("s") )
+            	if ( cl.hasOption("F") ) {
+            		Set<String> families = null;
+            		try {
+            			families = ModelSubsets.readFamilies(cl.getOptionValue("F"));
+            		}
+            		catch (IOException ioe) {
+            			System.err.println("ERROR: Could not read the families from "+cl.getOptionValue("F")+". Exiting.");
+            			System.exit(-1);
+            		}
+            		if ( families.isEmpty() ) {
+            			System.err.println("ERROR: No families given. Exiting.");
+            			System.exit(-1);
+            		}
+            		File dir = cl.hasOption("FD") ? new File(cl.getOptionValue("FD")) : new File(wd, "subsets");
+            		if (! hmmer.useSubsets(families, dir) )
+            			System.exit(-1);
+            	}
+            	boolean checkpointing = cl.hasOption("ck") || cl.hasOption("R");
+            	if ( cl.hasOption("s") && !checkpointing )
             		hmmer.setOutputFile(cl.getOptionValue("s"));
             	if ( cl.hasOption("t") )
             		hmmer.setTempDir(cl.getOptionValue("t"));
+            	if ( cl.hasOption("st") )
+            		hmmer.setStreamMode(true);
+            	if ( cl.hasOption("S") ) {
+            		try {
+            			hmmer.setShards(Integer.valueOf(cl.getOptionValue("S")));
+            		}
+            		catch (NumberFormatException nfe) {
+            			System.err.println("ERROR: Specified number of shards not a valid number. Exiting.");
+            			System.exit(-1);
+            		}
+            	}
+            	if ( cl.hasOption("D") )
+            		hmmer.setDedupMode(true);
+            	if ( cl.hasOption("K") )
+            		hmmer.setCacheDir(cl.getOptionValue("K"));
+            	if ( cl.hasOption("KS") ) {
+            		try {
+            			hmmer.setCacheSize(Long.valueOf(cl.getOptionValue("KS")));
+            		}
+            		catch (NumberFormatException nfe) {
+            			System.err.println("ERROR: Specified cache size not a valid number. Exiting.");
+            			System.exit(-1);
+            		}
+            	}
         		if (cl.hasOption("e"))
         			hmmer.setEvalueThreshold(evalue);
+        		if ( cl.hasOption("pg") && hmmer.getModelPaths().size() > 1 )
+        			System.err.println("INFO: hmmpgmd not supported with several model files - ignoring.");
+        		else if ( cl.hasOption("pg") )
+        			hmmer.setDaemon(startDaemon(cl, wd, hmmer.getModelPath()));
+        		ScanProgress scanProgress = createProgress(cl);
+        		if (scanProgress != null)
+        			hmmer.setProgress(scanProgress);
             	
             	
-            	if ( hmmer.checkParams() ) {
+            	if ( checkpointing ) {
+            		if ( cl.hasOption("hs") )
+            			System.err.println("INFO: hit store not supported for checkpointed scans - ignoring.");
+            		if ( hmmer.isStreaming() ) {
+            			System.err.println("INFO: Streaming not supported for checkpointed scans - ignoring.");
+            			hmmer.setStreamMode(false);
+            		}
+            		scanWithCheckpoints(cl, hmmer, scanProgress);
+            	}
+            	// check params failed
+            	else if (! hmmer.checkParams() ) {
+            		System.exit(-1);
+            	}
+            	else if ( hmmer.isStreaming() ) {
             		
+            		// parse while hmmscan is running
+            		InputStream domtblout = hmmer.startStreaming();
+            		if (domtblout == null)
+            			System.exit(-1);
+            		if (scanProgress != null)
+            			scanProgress.start();
+            		HmmerParser hmmoutParser = new HmmerParser(domtblout, cl.getOptionValue("out"));
+            		configureScanParser(cl, hmmoutParser);
+            		if ( cl.hasOption("hs") )
+            			hmmoutParser.setHitStore(cl.getOptionValue("hs"));
+            		if ( cl.hasOption("b") )
+            			hmmoutParser.setBinaryOutput();
+            		hmmoutParser.hmmscan2xdom();
+            		
+            		int retValue = hmmer.waitForStream();
+            		if (scanProgress != null)
+            			scanProgress.stop();
+            		if (retValue != 0) {
+            			System.err.println("ERROR: there was some problem running hmmscan (see error message above).");
+            			System.exit(-1);
+            		}
+            		if ( hmmer.saveOutfile() )
+            			System.out.println("INFO: hmmout saved to "+hmmer.getHmmoutPath());
+            	}
+            	else {
+            		
+            		if (scanProgress != null)
+            			scanProgress.start();
             		int retValue = hmmer.doInBackground();
+            		if (scanProgress != null)
+            			scanProgress.stop();
             		
             		if (retValue == 0) {
 	            		String domtblout = hmmer.getHmmoutPath();
-	            		HmmerParser hmmoutParser = new HmmerParser(domtblout, cl.getOptionValue("out"));
-	            	
-	            		// consider parsing options
-	            		if (cl.hasOption("m"))
-	            			hmmoutParser.setMergeMode();
-	            		if (cl.hasOption("C")) {
-	            			System.err.println("INFO: Collapse mode not yet supported - ignoring.");
-	            			//hmmoutParser.setCollapseMode();
-	            		}
-	            		if (cl.hasOption("acc"))
-	            			hmmoutParser.setAccMode();
-	            		
-	            		if (cl.hasOption("r"))
-	            			hmmoutParser.setResolveOverlapsMode();
-
+	            		File xdom = new File(cl.getOptionValue("out"));
+	            		// parse the distinct sequences only, then expand
+	            		if ( hmmer.needsXdomExpansion() )
+	            			xdom = new File(domtblout+".xdom");
+	            		HmmerParser hmmoutParser = new HmmerParser(domtblout, xdom.getPath());
+	            		configureScanParser(cl, hmmoutParser);
+	            		if ( cl.hasOption("hs") && !hmmer.needsXdomExpansion() )
+	            			hmmoutParser.setHitStore(cl.getOptionValue("hs"));
+	            		else if ( cl.hasOption("hs") )
+	            			System.err.println("INFO: hit store not supported for deduplicated scans - ignoring.");
+	            		if ( cl.hasOption("b") && !hmmer.needsXdomExpansion() )
+	            			hmmoutParser.setBinaryOutput();
 	            		hmmoutParser.hmmscan2xdom();
 	            		
+	            		if ( hmmer.needsXdomExpansion() ) {
+	            			boolean expanded = hmmer.expandXdom(xdom, new File(cl.getOptionValue("out")));
+	            			xdom.delete();
+	            			if (! expanded ) {
+	            				hmmoutParser.destroyHmmoutFile();
+	            				System.exit(-1);
+	            			}
+	            			if ( cl.hasOption("b") )
+	            				toBinary(new File(cl.getOptionValue("out")));
+	            		}
+	            		
 	            		if ( hmmer.saveOutfile() )
 	            			System.out.println("INFO: hmmout saved to "+hmmer.getHmmoutPath());
 	            		
@@ -255,10 +698,7 @@ public class PfamScanner {
             			System.exit(-1);
             		}
             	}
-            	// check params failed
-            	else {
-            		System.exit(-1);
-            	}
+            	indexOutput(cl);
         	}
         }
 		catch (MissingOptionException e) {
@@ -286,4 +726,633 @@ public class PfamScanner {
 		System.exit(0);
 	}
 	
+	/**
+	 * Scans the input segment by segment, appending to the xdom (and saved
+	 * hmmscan output) and recording the progress after each segment.
+	 * @param cl
+	 * @param hmmer
+	 */
+	private static void scanWithCheckpoints(CommandLine cl, Hmmer hmmer, ScanProgress scanProgress) {
+		
+		File input = new File(cl.getOptionValue("in"));
+		File xdom = new File(cl.getOptionValue("out"));
+		File saved = cl.hasOption("s") ? new File(cl.getOptionValue("s")) : null;
+		int segmentSize = DEFAULT_SEGMENT;
+		if ( cl.hasOption("ck") ) {
+			try {
+				segmentSize = Integer.valueOf(cl.getOptionValue("ck"));
+			}
+			catch (NumberFormatException nfe) {
+				segmentSize = -1;
+			}
+			if (segmentSize < 1) {
+				System.err.println("ERROR: Specified segment size not a valid number. Exiting.");
+				System.exit(-1);
+			}
+		}
+		
+		Checkpoint checkpoint = new Checkpoint(xdom, input, saved, segmentSize);
+		File scratch = checkpoint.getScratchFile();
+		// save mode makes deduplicated scans expand the hmmscan output
+		if (saved != null)
+			hmmer.setOutputFile(scratch.getPath());
+		else
+			hmmer.setScratchFile(scratch);
+		if (! hmmer.checkParams() )
+			System.exit(-1);
+		
+		File segment = new File(xdom.getPath()+".ckpt.fa");
+		File segmentXdom = new File(xdom.getPath()+".ckpt.xdom");
+		File uniqueXdom = new File(xdom.getPath()+".ckpt.unique.xdom");
+		try {
+			if ( cl.hasOption("R") && checkpoint.resume() )
+				System.out.println("INFO: resuming after "+checkpoint.getSequenceCount()+" sequence(s).");
+			else {
+				if ( cl.hasOption("R") )
+					System.out.println("INFO: no checkpoint found - starting from the beginning.");
+				checkpoint.start();
+			}
+			FastaSegmenter segmenter = new FastaSegmenter(input, checkpoint.getInputOffset());
+			if (scanProgress != null) {
+				// progress over what is left of the input, not per segment
+				scanProgress.expectAll(input, checkpoint.getInputOffset());
+				scanProgress.start();
+			}
+			hmmer.setInputFile(segment);
+			int sequences;
+			while ( (sequences = segmenter.next(checkpoint.getSegmentSize(), segment)) > 0 ) {
+				
+				if (hmmer.doInBackground() != 0) {
+					System.err.println("ERROR: there was some problem running hmmscan (see error message above).");
+					System.exit(-1);
+				}
+				File parsed = hmmer.needsXdomExpansion() ? uniqueXdom : segmentXdom;
+				HmmerParser hmmoutParser = new HmmerParser(scratch.getPath(), parsed.getPath());
+				configureScanParser(cl, hmmoutParser);
+				hmmoutParser.hmmscan2xdom();
+				if ( hmmer.needsXdomExpansion() && !hmmer.expandXdom(uniqueXdom, segmentXdom) )
+					System.exit(-1);
+				
+				append(segmentXdom, xdom);
+				if (saved != null)
+					append(scratch, saved);
+				checkpoint.commit(segmenter.getOffset(), sequences);
+			}
+			segmenter.close();
+			if (scanProgress != null)
+				scanProgress.stop();
+			// segments are appended as text
+			if ( cl.hasOption("b") )
+				XdomConverter.toBinary(xdom);
+			checkpoint.finish();
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: checkpointed scan failed: "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+		finally {
+			segment.delete();
+			segmentXdom.delete();
+			uniqueXdom.delete();
+		}
+		if (saved != null)
+			System.out.println("INFO: hmmout saved to "+saved.getAbsolutePath());
+	}
+	
+	/**
+	 * @param cl
+	 * @return the progress reporter requested, or null
+	 */
+	private static ScanProgress createProgress(CommandLine cl) {
+		
+		if ( !cl.hasOption("pr") && !cl.hasOption("pf") )
+			return null;
+		long seconds = 60;
+		if ( cl.hasOption("pr") ) {
+			try {
+				seconds = Long.valueOf(cl.getOptionValue("pr"));
+			}
+			catch (NumberFormatException nfe) {
+				seconds = -1;
+			}
+			if (seconds < 1) {
+				System.err.println("ERROR: Specified progress interval not a valid number. Exiting.");
+				System.exit(-1);
+			}
+		}
+		return new ScanProgress(seconds, cl.hasOption("pf") ? new File(cl.getOptionValue("pf")) : null);
+	}
+	
+	/**
+	 * Registers the metrics with JMX and/or has them written when the
+	 * JVM exits, as requested
+	 * @param cl
+	 */
+	private static void enableMetrics(CommandLine cl) {
+		
+		if ( cl.hasOption("jmx") ) {
+			try {
+				Metrics.registerMBean();
+			}
+			catch (Exception e) {
+				System.err.println("ERROR: could not register metrics with JMX: "+e.getMessage()+". Exiting.");
+				System.exit(-1);
+			}
+		}
+		if ( cl.hasOption("mx") ) {
+			final File summary = new File(cl.getOptionValue("mx"));
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						Metrics.writeJson(summary);
+					}
+					catch (IOException ioe) {
+						System.err.println("ERROR: could not write metrics to "+summary.getAbsolutePath()+": "+ioe.getMessage());
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Splits the input into the units of a distributed scan and assembles
+	 * the xdom once workers have scanned them all
+	 * @param cl
+	 */
+	private static void coordinate(CommandLine cl) {
+		
+		WorkQueue queue = new WorkQueue(new File(cl.getOptionValue("qd")));
+		try {
+			if ( cl.hasOption("U") ) {
+				int size = Integer.valueOf(cl.getOptionValue("U"));
+				if (size < 1)
+					throw new NumberFormatException();
+				queue.setUnitSize(size);
+			}
+			else
+				queue.setUnitSize(DEFAULT_UNIT);
+			if ( cl.hasOption("qt") )
+				queue.setClaimTimeout(Integer.valueOf(cl.getOptionValue("qt")));
+			else
+				queue.setClaimTimeout(DEFAULT_CLAIM_TIMEOUT);
+		}
+		catch (NumberFormatException nfe) {
+			System.err.println("ERROR: Specified unit size or claim timeout not a valid number. Exiting.");
+			System.exit(-1);
+		}
+		Properties settings = new Properties();
+		for (String option : QUEUE_SETTINGS)
+			if ( cl.hasOption(option) )
+				settings.setProperty(option, cl.getOptionValue(option, ""));
+		queue.setSettings(settings);
+		File xdom = new File(cl.getOptionValue("out"));
+		try {
+			int units = queue.open(new File(cl.getOptionValue("in")));
+			System.out.println("INFO: "+units+" unit(s) in "+cl.getOptionValue("qd")+".");
+			if (! queue.coordinate(units, xdom, 5000) )
+				System.exit(-1);
+			if ( cl.hasOption("b") )
+				XdomConverter.toBinary(xdom);
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: distributed scan failed: "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+		catch (InterruptedException ie) {
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Scans units of a distributed scan until it is complete
+	 * @param cl
+	 */
+	private static void runWorker(CommandLine cl) {
+		
+		if (! cl.hasOption("qd") ) {
+			System.err.println("ERROR: --worker needs --queue-dir. Exiting.");
+			System.exit(-1);
+		}
+		File dir = new File(cl.getOptionValue("qd"));
+		if (! dir.isDirectory() && ! dir.mkdirs() ) {
+			System.err.println("ERROR: could not create "+dir.getAbsolutePath()+". Exiting.");
+			System.exit(-1);
+		}
+		WorkQueue queue = new WorkQueue(dir);
+		try {
+			while (! queue.isOpen() ) {
+				if ( queue.isDone() ) {
+					System.out.println("INFO: queue done.");
+					System.exit(0);
+				}
+				Thread.sleep(5000);
+			}
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not read the queue: "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+		catch (InterruptedException ie) {
+			System.exit(-1);
+		}
+		// the scan is parsed as the coordinator was told to
+		cl = withSettings(cl, queue.getSettings());
+		QueueWorker worker = new QueueWorker(queue,
+				cl.hasOption("dir") ? cl.getOptionValue("dir") : System.getProperty("user.dir"));
+		if ( cl.hasOption("M") )
+			worker.setModelFile(cl.getOptionValue("M"));
+		if ( cl.hasOption("c") )
+			worker.setCPUs(cl.getOptionValue("c"));
+		if ( cl.hasOption("t") )
+			worker.setTempDir(cl.getOptionValue("t"));
+		try {
+			if ( cl.hasOption("e") )
+				worker.setEvalueThreshold(Double.valueOf(cl.getOptionValue("e")));
+			if ( cl.hasOption("S") )
+				worker.setShards(Integer.valueOf(cl.getOptionValue("S")));
+		}
+		catch (NumberFormatException nfe) {
+			System.err.println("ERROR: Specified evalue or number of shards not a valid number. Exiting.");
+			System.exit(-1);
+		}
+		worker.setOptions(scanOptions(cl));
+		System.out.println("INFO: worker "+worker.getId()+" on "+dir.getAbsolutePath()+".");
+		try {
+			System.out.println("INFO: "+worker.work()+" unit(s) scanned, queue done.");
+		}
+		catch (InterruptedException ie) {
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Scans all inputs of a batch into the output directory
+	 * @param cl
+	 */
+	private static void runBatch(CommandLine cl) {
+		
+		if (! cl.hasOption("out") ) {
+			System.err.println("ERROR: --batch needs the output directory (-out). Exiting.");
+			System.exit(-1);
+		}
+		// scan modes of single inputs
+		for (String option : BATCH_UNSUPPORTED) {
+			if ( cl.hasOption(option) ) {
+				System.err.println("ERROR: -"+option+" is not supported with --batch. Exiting.");
+				System.exit(-1);
+			}
+		}
+		String wd = cl.hasOption("dir") ? cl.getOptionValue("dir") : System.getProperty("user.dir");
+		int cpuBudget = Runtime.getRuntime().availableProcessors(), CPUs = 1;
+		Double evalue = null;
+		try {
+			if ( cl.hasOption("BC") )
+				cpuBudget = Integer.valueOf(cl.getOptionValue("BC"));
+			if ( cl.hasOption("c") )
+				CPUs = Integer.valueOf(cl.getOptionValue("c"));
+			if ( cl.hasOption("e") )
+				evalue = Double.valueOf(cl.getOptionValue("e"));
+		}
+		catch (NumberFormatException nfe) {
+			System.err.println("ERROR: Specified number of CPUs or evalue not a valid number. Exiting.");
+			System.exit(-1);
+		}
+		BatchScanner batch = new BatchScanner(new File(cl.getOptionValue("out")), wd, cpuBudget);
+		batch.setCPUs(CPUs);
+		if ( cl.hasOption("M") )
+			batch.setModelFile(cl.getOptionValue("M"));
+		if ( cl.hasOption("t") )
+			batch.setTempDir(cl.getOptionValue("t"));
+		if (evalue != null)
+			batch.setEvalueThreshold(evalue);
+		if ( cl.hasOption("b") )
+			batch.setBinaryOutput();
+		if ( cl.hasOption("F") ) {
+			try {
+				batch.setFamilies(ModelSubsets.readFamilies(cl.getOptionValue("F")),
+						cl.hasOption("FD") ? new File(cl.getOptionValue("FD")) : new File(wd, "subsets"));
+			}
+			catch (IOException ioe) {
+				System.err.println("ERROR: Could not read the families from "+cl.getOptionValue("F")+". Exiting.");
+				System.exit(-1);
+			}
+		}
+		batch.setOptions(scanOptions(cl));
+		// the budget is spent on hmmscan, not on compressing output
+		Compression.setThreads(1);
+		try {
+			batch.addInputs(cl.getOptionValue("B"));
+			int failed = batch.run();
+			if (failed > 0) {
+				System.err.println("ERROR: "+failed+" input(s) failed (see "+
+						new File(cl.getOptionValue("out"), BatchScanner.STATUS).getPath()+"). Exiting.");
+				System.exit(-1);
+			}
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: batch failed: "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+		catch (InterruptedException ie) {
+			System.exit(-1);
+		}
+		System.exit(0);
+	}
+	
+	/**
+	 * Runs the scan server until the JVM is terminated
+	 * @param cl
+	 */
+	private static void runServer(CommandLine cl) {
+		
+		int port = 0, workerNo = 1, queueSize = 16;
+		try {
+			port = Integer.valueOf(cl.getOptionValue("srv"));
+			if ( cl.hasOption("W") )
+				workerNo = Integer.valueOf(cl.getOptionValue("W"));
+			if ( cl.hasOption("Q") )
+				queueSize = Integer.valueOf(cl.getOptionValue("Q"));
+		}
+		catch (NumberFormatException nfe) {
+			System.err.println("ERROR: Specified port, number of workers or queue size not a valid number. Exiting.");
+			System.exit(-1);
+		}
+		if (workerNo < 1 || queueSize < 1) {
+			System.err.println("ERROR: invalid number of workers or queue size. Exiting.");
+			System.exit(-1);
+		}
+		
+		final ScanServer scanServer = new ScanServer(port, 
+				cl.hasOption("dir") ? cl.getOptionValue("dir") : System.getProperty("user.dir"));
+		scanServer.setWorkers(workerNo);
+		scanServer.setQueueSize(queueSize);
+		if ( cl.hasOption("M") )
+			scanServer.setModelFile(cl.getOptionValue("M"));
+		if ( cl.hasOption("c") )
+			scanServer.setCPUs(cl.getOptionValue("c"));
+		if ( cl.hasOption("t") )
+			scanServer.setTempDir(cl.getOptionValue("t"));
+		if ( cl.hasOption("pg") ) {
+			String wd = cl.hasOption("dir") ? cl.getOptionValue("dir") : System.getProperty("user.dir");
+			String model = wd+"/"+(cl.hasOption("M") ? cl.getOptionValue("M") : "Pfam-A.hmm");
+			scanServer.setDaemon(startDaemon(cl, wd, new File(model).getAbsolutePath()));
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				scanServer.stop();
+			}
+		});
+		try {
+			scanServer.serve();
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not run server on port "+port+": "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Starts (or attaches to) hmmpgmd, which is stopped when the JVM exits
+	 * @param cl
+	 * @param wd working directory holding hmmpgmd
+	 * @param modelPath
+	 * @return the running daemon
+	 */
+	private static HmmpgmdDaemon startDaemon(CommandLine cl, String wd, String modelPath) {
+		
+		int port = 0;
+		try {
+			port = Integer.valueOf(cl.getOptionValue("pg"));
+		}
+		catch (NumberFormatException nfe) {
+			System.err.println("ERROR: Specified hmmpgmd port not a valid number. Exiting.");
+			System.exit(-1);
+		}
+		final HmmpgmdDaemon daemon = new HmmpgmdDaemon(new File(wd), modelPath, port);
+		if ( cl.hasOption("c") )
+			daemon.setCPUs(cl.getOptionValue("c"));
+		daemon.setVerbose(cl.hasOption("v"));
+		try {
+			daemon.start();
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not start hmmpgmd: "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				daemon.stop();
+			}
+		});
+		return daemon;
+	}
+	
+	/**
+	 * Converts text xdom to binary xdom or back
+	 * @param in
+	 * @param out
+	 */
+	private static void convert(File in, File out) {
+		try {
+			if ( XdomConverter.isBinary(in) )
+				System.out.println("INFO: "+XdomConverter.toText(in, out)+" protein(s) converted to text xdom.");
+			else
+				System.out.println("INFO: "+XdomConverter.toBinary(in, out)+" protein(s) converted to binary xdom.");
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not convert "+in.getAbsolutePath()+": "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+	}
+	
+	// indexes the output if asked to, unless it can not be indexed
+	private static void indexOutput(CommandLine cl) {
+		if (! cl.hasOption("ix") )
+			return;
+		File xdom = new File(cl.getOptionValue("out"));
+		try {
+			if ( Compression.isCompressed(xdom) || XdomConverter.isBinary(xdom) ) {
+				System.err.println("INFO: only uncompressed text xdom can be indexed - not indexing "+xdom.getPath()+".");
+				return;
+			}
+		}
+		catch (IOException ioe) {
+			// reported by index()
+		}
+		index(xdom);
+	}
+	
+	private static void index(File xdom) {
+		try {
+			long proteins = XdomIndex.build(xdom);
+			System.out.println("INFO: "+proteins+" protein(s) indexed in "+XdomIndex.indexFile(xdom).getPath()+".");
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not index "+xdom.getAbsolutePath()+": "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+	}
+	
+	// prints the xdom of the proteins to stdout, exits with -1 if any is missing
+	private static void lookup(File xdom, String ids) {
+		boolean missing = false;
+		try {
+			XdomIndex index = new XdomIndex(xdom);
+			try {
+				BufferedReader stdin = null;
+				if ( ids.equals("-") )
+					stdin = new BufferedReader(new InputStreamReader(System.in));
+				Iterator<String> list = Arrays.asList(ids.split(",")).iterator();
+				Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+				String id;
+				while ( (id = (stdin != null) ? stdin.readLine() : (list.hasNext() ? list.next() : null)) != null ) {
+					id = id.trim();
+					if (id.isEmpty())
+						continue;
+					String block = index.getBlock(id);
+					if (block == null) {
+						System.err.println("INFO: "+id+" not found in "+xdom.getPath()+".");
+						missing = true;
+					}
+					else
+						out.write(block);
+				}
+				out.flush();
+			}
+			finally {
+				index.close();
+			}
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not look up proteins in "+xdom.getAbsolutePath()+": "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+		System.exit(missing ? -1 : 0);
+	}
+	
+	// replaces the text xdom by binary xdom
+	private static void toBinary(File xdom) {
+		try {
+			XdomConverter.toBinary(xdom);
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not write binary xdom "+xdom.getAbsolutePath()+": "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+		}
+	}
+	
+	// appends to compressed targets as a further gzip member or zstd frame
+	private static void append(File source, File target) throws IOException {
+		OutputStream out = Compression.create(target, true);
+		try {
+			Files.copy(source.toPath(), out);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Loads the clans file given with --clans, or Pfam-A.clans.tsv in wd.
+	 * Without --clan-overlaps a missing default file only turns clan
+	 * mapping of hmmscan output off (null), as before there were clans
+	 * files.
+	 */
+	/**
+	 * The command line of a worker, with the settings of the queue in
+	 * place of its own (which may only repeat them)
+	 * @param cl
+	 * @param settings see coordinate()
+	 * @return
+	 */
+	private static CommandLine withSettings(CommandLine cl, Properties settings) {
+		
+		for (String option : QUEUE_SETTINGS) {
+			if (! cl.hasOption(option) )
+				continue;
+			String own = cl.getOptionValue(option, "");
+			if (! own.equals(settings.getProperty(option)) ) {
+				System.err.println("ERROR: -"+option+(own.length() > 0 ? " "+own : "")+
+						" conflicts with the settings of the queue "+settings+". Exiting.");
+				System.exit(-1);
+			}
+		}
+		List<String> args = new ArrayList<String>();
+		for (Option option : cl.getOptions()) {
+			if ( Arrays.asList(QUEUE_SETTINGS).contains(option.getOpt()) )
+				continue;
+			args.add("-"+option.getOpt());
+			if ( option.hasArg() )
+				args.add(option.getValue());
+		}
+		for (String option : settings.stringPropertyNames()) {
+			args.add("-"+option);
+			if (settings.getProperty(option).length() > 0)
+				args.add(settings.getProperty(option));
+		}
+		try {
+			return new PosixParser().parse(options(), args.toArray(new String[args.size()]), false);
+		}
+		catch (ParseException pe) {
+			System.err.println("ERROR: invalid settings in the queue: "+pe.getMessage()+". Exiting.");
+			System.exit(-1);
+			return null;
+		}
+	}
+	
+	private static ClanIndex loadClans(CommandLine cl, String wd) {
+		File tsv = cl.hasOption("cl") ? new File(cl.getOptionValue("cl")) : new File(wd, "Pfam-A.clans.tsv");
+		if ( !tsv.exists() && !cl.hasOption("cl") && !cl.hasOption("cr") ) {
+			System.err.println("INFO: No clans file "+tsv.getPath()+" - hmmscan output is not mapped to clans.");
+			return null;
+		}
+		try {
+			return ClanIndex.load(tsv);
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: Could not read the clans file: "+ioe.getMessage()+". Exiting.");
+			System.exit(-1);
+			return null;
+		}
+	}
+	
+	private static void configureScanParser(CommandLine cl, HmmerParser hmmoutParser) {
+		
+		hmmoutParser.setOptions(scanOptions(cl));
+		// validated in main()
+		if (cl.hasOption("T"))
+			hmmoutParser.setThreads(Integer.valueOf(cl.getOptionValue("T")));
+	}
+	
+	/**
+	 * The options hmmscan output is parsed with in scan mode, for single
+	 * scans and batches alike
+	 * @param cl
+	 * @return
+	 */
+	private static ScanOptions scanOptions(CommandLine cl) {
+		
+		ScanOptions.Builder options = new ScanOptions.Builder();
+		if (cl.hasOption("m"))
+			options.merge();
+		if (cl.hasOption("C"))
+			System.err.println("INFO: Collapse mode not yet supported - ignoring.");
+		if (cl.hasOption("acc"))
+			options.accessions();
+		if (cl.hasOption("r"))
+			options.resolveOverlaps();
+		if (cl.hasOption("ne"))
+			options.removeEmpties();
+		if ( cl.hasOption("cm") || cl.hasOption("cr") ) {
+			ClanIndex clans = loadClans(cl, cl.hasOption("dir") ?
+					cl.getOptionValue("dir") : System.getProperty("user.dir"));
+			options.clanIndex(clans);
+			if ( cl.hasOption("cm") && clans != null )
+				options.clans();
+			if (cl.hasOption("cr"))
+				options.resolveClanOverlaps();
+		}
+		return options.build();
+	}
+	
 }
\ No newline at end of file
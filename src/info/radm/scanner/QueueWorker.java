@@ -0,0 +1,191 @@
+package info.radm.scanner;
+
+import info.radm.scanner.hmmer.DomainAnnotator;
+import info.radm.scanner.hmmer.Hmmer;
+import info.radm.scanner.hmmer.HmmerParser;
+import info.radm.scanner.hmmer.ScanOptions;
+import info.radm.scanner.hmmer.XdomWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+
+
+/**
+ * Class QueueWorker
+ * Scans the units of a WorkQueue until the scan is complete: claims a
+ * unit, runs hmmscan on it and parses the output locally (keeping the
+ * claim fresh meanwhile), and publishes the xdom of the unit. Any number
+ * of workers, on any machine sharing the queue directory, can work on
+ * the same queue.
+ */
+public class QueueWorker {
+
+	private WorkQueue queue;
+	private String workingDir, modelFile, CPUs, tempDir, id;
+	private Double evalue;
+	private ScanOptions options = ScanOptions.defaults();
+	private int shards = 1;
+	private long pollMillis = 5000;
+
+
+	public QueueWorker(WorkQueue queue, String workingDir) {
+		this.queue = queue;
+		this.workingDir = workingDir;
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		}
+		catch (IOException ioe) {
+			host = "localhost";
+		}
+		this.id = host+"-"+ProcessHandle.current().pid();
+	}
+
+	/**
+	 * @param modelFile model file name(s) in the working directory (see Hmmer.setModelFile())
+	 */
+	public void setModelFile(String modelFile) {
+		this.modelFile = modelFile;
+	}
+
+	/**
+	 * @param CPUs hmmscan --cpu
+	 */
+	public void setCPUs(String CPUs) {
+		this.CPUs = CPUs;
+	}
+
+	/**
+	 * @param tempDir local directory for the hmmscan output
+	 */
+	public void setTempDir(String tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	public void setEvalueThreshold(Double evalue) {
+		this.evalue = evalue;
+	}
+
+	/**
+	 * @param shards hmmscan processes per unit (see Hmmer.setShards())
+	 */
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	/**
+	 * @param options how the hits of each protein are post-processed
+	 */
+	public void setOptions(ScanOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * @param pollMillis how often to look for work while there is none
+	 */
+	public void setPollInterval(long pollMillis) {
+		this.pollMillis = pollMillis;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Scans units until the queue is done
+	 * @return the number of units scanned by this worker
+	 * @throws InterruptedException
+	 */
+	public int work() throws InterruptedException {
+
+		int scanned = 0;
+		while (! queue.isDone() ) {
+			File claim = null;
+			try {
+				if ( queue.isOpen() )
+					claim = queue.claim(id);
+			}
+			catch (IOException ioe) {
+				System.err.println("INFO: could not read queue ("+ioe.getMessage()+") - retrying.");
+			}
+			if (claim == null) {
+				Thread.sleep(pollMillis);
+				continue;
+			}
+			System.out.println("INFO: scanning "+claim.getName()+".");
+			if ( scan(claim) )
+				scanned++;
+			else
+				queue.fail(claim);
+		}
+		return scanned;
+	}
+
+	// scans a claimed unit and publishes its xdom, false on failure
+	private boolean scan(final File claim) {
+
+		File xdom = queue.resultFile(claim);
+		Thread heartbeat = new Thread("claim-"+claim.getName()) {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(Math.max(1000, queue.getClaimTimeout() / 4));
+						queue.touch(claim);
+					}
+				}
+				catch (InterruptedException ie) {
+					// unit done
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		Hmmer hmmer = new Hmmer(claim.getPath(), xdom.getPath(), workingDir);
+		File hmmout = null;
+		try {
+			if (modelFile != null)
+				hmmer.setModelFile(modelFile);
+			if (CPUs != null)
+				hmmer.setCPUs(CPUs);
+			if (tempDir != null)
+				hmmer.setTempDir(tempDir);
+			if (evalue != null)
+				hmmer.setEvalueThreshold(evalue);
+			hmmer.setShards(shards);
+			if (! hmmer.checkParams() )
+				return false;
+			hmmout = new File(hmmer.getHmmoutPath());
+			if (hmmer.doInBackground() != 0) {
+				System.err.println("ERROR: there was some problem running hmmscan on "+claim.getName()+
+						" (see error message above).");
+				return false;
+			}
+			InputStream domtblout = new FileInputStream(hmmout);
+			try {
+				new DomainAnnotator(options).annotate(domtblout, HmmerParser.HMMSCAN,
+						new XdomWriter(new BufferedWriter(new FileWriter(xdom))));
+			}
+			finally {
+				domtblout.close();
+			}
+			queue.publish(claim, xdom);
+			return true;
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not scan "+claim.getName()+": "+ioe.getMessage());
+			return false;
+		}
+		finally {
+			heartbeat.interrupt();
+			if (hmmout != null)
+				hmmout.delete();
+			xdom.delete();
+		}
+	}
+
+}
@@ -0,0 +1,373 @@
+package info.radm.scanner;
+
+import info.radm.scanner.hmmer.DomainAnnotator;
+import info.radm.scanner.hmmer.Hmmer;
+import info.radm.scanner.hmmer.HmmpgmdDaemon;
+import info.radm.scanner.hmmer.HmmerParser;
+import info.radm.scanner.hmmer.ProteinAnnotation;
+import info.radm.scanner.hmmer.ScanOptions;
+import info.radm.scanner.hmmer.XdomWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Class ScanServer
+ * Long-running scan service on a local TCP port. Each connection carries
+ * one job: a request line, the sequences in fasta format and an end line
+ *
+ * <pre>
+ * SCAN [-m] [-r] [-acc] [-ne] [-e &lt;float&gt;] [-C &lt;int&gt;]
+ * &gt;seq1 ...
+ * ...
+ * END
+ * </pre>
+ *
+ * and is answered with the xdom of the sequences, streamed while hmmscan
+ * is running, followed by a status line ("# OK" or "# ERROR message").
+ *
+ * Jobs run on a fixed pool of workers, each running one hmmscan process
+ * at a time; up to queueSize further jobs wait in a bounded queue, and
+ * jobs beyond that are turned away with "# ERROR busy" straight away.
+ * With a hmmpgmd daemon (see setDaemon()), the workers search with the
+ * models held by the daemon instead, and the xdom of a job is sent once
+ * it has been searched.
+ */
+public class ScanServer {
+
+	private static final String END = "END";
+
+	private int port, workerNo = 1, queueSize = 16;
+	private String workingDir, modelFile, CPUs, tempDir;
+	private ServerSocket serverSocket;
+	private ThreadPoolExecutor connections, workers;
+	private HmmpgmdDaemon pgmd;
+
+
+	public ScanServer(int port, String workingDir) {
+		this.port = port;
+		this.workingDir = workingDir;
+	}
+
+	public void setWorkers(int workerNo) {
+		this.workerNo = workerNo;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * @param modelFile model file name in the working directory (see Hmmer.setModelFile())
+	 */
+	public void setModelFile(String modelFile) {
+		this.modelFile = modelFile;
+	}
+
+	/**
+	 * @param CPUs hmmscan --cpu, per worker
+	 */
+	public void setCPUs(String CPUs) {
+		this.CPUs = CPUs;
+	}
+
+	public void setTempDir(String tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * @param pgmd running hmmpgmd to search with, instead of hmmscan
+	 */
+	public void setDaemon(HmmpgmdDaemon pgmd) {
+		this.pgmd = pgmd;
+	}
+
+	/**
+	 * Accepts jobs until the server is stopped
+	 * @throws IOException if the port cannot be bound
+	 */
+	public void serve() throws IOException {
+
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		workers = new ThreadPoolExecutor(workerNo, workerNo, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize));
+		// one thread per job that is running or queued
+		connections = new ThreadPoolExecutor(0, workerNo + queueSize, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>());
+		System.out.println("INFO: listening on "+serverSocket.getLocalSocketAddress()+
+				" ("+workerNo+" worker(s), queue of "+queueSize+").");
+
+		while (! serverSocket.isClosed() ) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			}
+			catch (IOException ioe) {
+				if (serverSocket.isClosed())
+					break;
+				throw ioe;
+			}
+			try {
+				connections.execute(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+			catch (RejectedExecutionException ree) {
+				reject(socket);
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting jobs, lets running and queued jobs finish
+	 */
+	public void stop() {
+		try {
+			if (serverSocket != null)
+				serverSocket.close();
+		}
+		catch (IOException ioe) {
+			// closing anyway
+		}
+		if (connections != null)
+			connections.shutdown();
+		if (workers != null)
+			workers.shutdown();
+	}
+
+	private void handle(Socket socket) {
+
+		File fasta = null;
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			ScanOptions.Builder options = new ScanOptions.Builder();
+			String request = in.readLine();
+
+			fasta = File.createTempFile("scan_job_", ".fa", tmpDir());
+			Writer fw = new BufferedWriter(new FileWriter(fasta));
+			try {
+				String line;
+				while ( (line = in.readLine()) != null && !line.equals(END) ) {
+					fw.write(line);
+					fw.write('\n');
+				}
+			}
+			finally {
+				fw.close();
+			}
+			// only answer once the request has been read completely
+			Double evalue = parseRequest(request, options);
+
+			Future<?> job;
+			try {
+				job = workers.submit(new ScanJob(fasta, evalue, options.build(), out));
+			}
+			catch (RejectedExecutionException ree) {
+				throw new IOException("busy");
+			}
+			job.get();
+		}
+		catch (ExecutionException ee) {
+			status(out, "ERROR "+ee.getCause().getMessage());
+		}
+		catch (InterruptedException ie) {
+			status(out, "ERROR interrupted");
+		}
+		catch (IOException ioe) {
+			status(out, "ERROR "+ioe.getMessage());
+		}
+		finally {
+			if (fasta != null)
+				fasta.delete();
+			try {
+				socket.close();
+			}
+			catch (IOException ioe) {
+				// client gone
+			}
+		}
+	}
+
+	private void reject(Socket socket) {
+		try {
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+			status(out, "ERROR busy");
+			socket.shutdownOutput();
+			socket.close();
+		}
+		catch (IOException ioe) {
+			// client gone
+		}
+	}
+
+	private static void status(Writer out, String status) {
+		if (out == null)
+			return;
+		try {
+			out.write("# "+status+"\n");
+			out.flush();
+		}
+		catch (IOException ioe) {
+			// client gone
+		}
+	}
+
+	/**
+	 * Parses the request line into options
+	 * @return the evalue threshold, or null
+	 */
+	private static Double parseRequest(String request, ScanOptions.Builder options) throws IOException {
+
+		if (request == null || !request.startsWith("SCAN"))
+			throw new IOException("expected SCAN request");
+		String[] args = request.trim().split("\\s+");
+		Double evalue = null;
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			try {
+				if (arg.equals("-m") || arg.equals("--merge"))
+					options.merge();
+				else if (arg.equals("-r") || arg.equals("--remove-overlaps"))
+					options.resolveOverlaps();
+				else if (arg.equals("-acc") || arg.equals("--accession"))
+					options.accessions();
+				else if (arg.equals("-ne") || arg.equals("--no-empties"))
+					options.removeEmpties();
+				else if ((arg.equals("-e") || arg.equals("--evalue")) && i + 1 < args.length) {
+					evalue = Double.valueOf(args[++i]);
+					options.evalueThreshold(evalue);
+				}
+				else if ((arg.equals("-C") || arg.equals("--collapse")) && i + 1 < args.length)
+					options.collapseRepeats(Integer.parseInt(args[++i]));
+				else
+					throw new IOException("unknown option "+arg);
+			}
+			catch (IllegalArgumentException iae) {
+				throw new IOException("invalid value for "+arg);
+			}
+		}
+		return evalue;
+	}
+
+	private File tmpDir() {
+		return new File((tempDir != null) ? tempDir : System.getProperty("java.io.tmpdir"));
+	}
+
+
+	/**
+	 * Scans one job and streams its xdom to the client
+	 */
+	private class ScanJob implements Runnable {
+
+		private File fasta;
+		private Double evalue;
+		private ScanOptions options;
+		private Writer out;
+
+		public ScanJob(File fasta, Double evalue, ScanOptions options, Writer out) {
+			this.fasta = fasta;
+			this.evalue = evalue;
+			this.options = options;
+			this.out = out;
+		}
+
+		public void run() {
+
+			// Hmmer only checks that its output file can be created,
+			// the xdom goes to the client
+			Hmmer hmmer = new Hmmer(fasta.getPath(), fasta.getPath(), workingDir);
+			if (modelFile != null)
+				hmmer.setModelFile(modelFile);
+			if (CPUs != null)
+				hmmer.setCPUs(CPUs);
+			if (tempDir != null)
+				hmmer.setTempDir(tempDir);
+			if (evalue != null)
+				hmmer.setEvalueThreshold(evalue);
+			if (pgmd != null)
+				hmmer.setDaemon(pgmd);
+			else
+				hmmer.setStreamMode(true);
+			if (! hmmer.checkParams() )
+				throw new IllegalStateException("invalid scan parameters");
+			InputStream domtblout = (pgmd != null) ? search(hmmer) : hmmer.startStreaming();
+			if (domtblout == null)
+				throw new IllegalStateException("could not start hmmscan");
+
+			boolean written = false;
+			try {
+				XdomWriter xdom = new XdomWriter(out);
+				Iterator<ProteinAnnotation> it = new DomainAnnotator(options).iterator(domtblout, HmmerParser.HMMSCAN);
+				while (it.hasNext()) {
+					xdom.accept(it.next());
+					out.flush();
+				}
+				written = true;
+			}
+			catch (IOException ioe) {
+				// client gone, stop scanning
+			}
+			catch (UncheckedIOException uioe) {
+				status(out, "ERROR "+uioe.getCause().getMessage());
+			}
+			finally {
+				try {
+					domtblout.close();
+				}
+				catch (IOException ioe) {
+					// hmmscan output no longer needed
+				}
+			}
+			int exitValue = 0;
+			if (pgmd != null)
+				new File(hmmer.getHmmoutPath()).delete();
+			else
+				exitValue = hmmer.waitForStream();
+			if (! written )
+				return;
+			if (exitValue != 0)
+				status(out, "ERROR hmmscan exited with "+exitValue);
+			else
+				status(out, "OK");
+		}
+
+		// searches with hmmpgmd, returns the domtblout
+		private InputStream search(Hmmer hmmer) {
+			try {
+				if (hmmer.doInBackground() == 0)
+					return new FileInputStream(hmmer.getHmmoutPath());
+			}
+			catch (IOException ioe) {
+				// reported below
+			}
+			new File(hmmer.getHmmoutPath()).delete();
+			throw new IllegalStateException("hmmpgmd search failed");
+		}
+	}
+
+}
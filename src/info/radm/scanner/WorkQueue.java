@@ -0,0 +1,378 @@
+package info.radm.scanner;
+
+import info.radm.scanner.hmmer.FastaSegmenter;
+import info.radm.scanner.utils.Compression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/**
+ * Class WorkQueue
+ * A scan distributed over several machines through a directory on a
+ * filesystem they share. The coordinator splits the input into units of
+ * a fixed number of sequences (units/unit-NNNNNN.fa), which workers on
+ * any machine claim by moving them to claimed/ under a name carrying the
+ * worker's ID. Only one worker can win that rename. A worker touches its
+ * claim while it scans the unit, and publishes the xdom of the unit by
+ * renaming it into results/, so that only complete results are ever
+ * seen there. Claims that have not been touched for the claim timeout
+ * (e.g. of a crashed node) are put back into units/ by the coordinator;
+ * the machines' clocks should therefore roughly agree. Once all units
+ * are in, the coordinator concatenates their xdom in input order, marks
+ * the queue as done and clears it. Workers leave when the queue is done.
+ * A unit whose scan fails is moved to failed/, which stops the scan.
+ *
+ * A coordinator that is restarted on the same queue and input carries on
+ * where it stopped.
+ *
+ * The coordinator stores the settings of the scan (see setSettings())
+ * with the queue, so that all workers scan it alike.
+ */
+public class WorkQueue {
+
+	private static final String PROPERTIES = "queue.properties", DONE = "DONE", SETTING = "setting.";
+	private static final String UNITS = "units", CLAIMED = "claimed", RESULTS = "results", FAILED = "failed";
+
+	private File dir;
+	private int unitSize = 1000;
+	private long claimTimeout = 600 * 1000L;
+	private Properties settings = new Properties();
+
+
+	public WorkQueue(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @param unitSize sequences per unit
+	 */
+	public void setUnitSize(int unitSize) {
+		this.unitSize = unitSize;
+	}
+
+	/**
+	 * @param seconds time after which an untouched claim is given to
+	 * another worker
+	 */
+	public void setClaimTimeout(long seconds) {
+		this.claimTimeout = seconds * 1000L;
+	}
+
+	/**
+	 * @return the claim timeout in milliseconds, as set by the coordinator
+	 */
+	public long getClaimTimeout() {
+		return claimTimeout;
+	}
+
+	/**
+	 * @param settings of the scan, stored with the queue by open()
+	 */
+	public void setSettings(Properties settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * @return the settings of the scan, as stored by the coordinator
+	 * (once isOpen())
+	 */
+	public Properties getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return true once the coordinator has set up the queue (and read
+	 * the claim timeout and settings from it)
+	 * @throws IOException
+	 */
+	public boolean isOpen() throws IOException {
+		File props = new File(dir, PROPERTIES);
+		if (! props.isFile() )
+			return false;
+		Properties p = load(props);
+		claimTimeout = Long.parseLong(p.getProperty("claim.timeout"));
+		settings = settingsOf(p);
+		return true;
+	}
+
+	/**
+	 * @return true once the scan is complete (or the queue is gone)
+	 */
+	public boolean isDone() {
+		return new File(dir, DONE).exists() || !dir.isDirectory();
+	}
+
+	/**
+	 * Splits fasta into units, unless the queue holds units of fasta
+	 * already (a restarted coordinator)
+	 * @param fasta
+	 * @return the number of units
+	 * @throws IOException if the queue is in use for another input, or
+	 * with other settings
+	 */
+	public int open(File fasta) throws IOException {
+
+		File props = new File(dir, PROPERTIES);
+		if (props.isFile()) {
+			Properties p = load(props);
+			if (! fasta.getAbsolutePath().equals(p.getProperty("input")) )
+				throw new IOException("queue "+dir.getPath()+" is in use for "+p.getProperty("input"));
+			if (! settings.equals(settingsOf(p)) )
+				throw new IOException("queue "+dir.getPath()+" is in use with the settings "+settingsOf(p));
+			return Integer.parseInt(p.getProperty("units"));
+		}
+		new File(dir, DONE).delete();
+		for (String sub : new String[] { UNITS, CLAIMED, RESULTS, FAILED }) {
+			File d = new File(dir, sub);
+			if (! d.isDirectory() && ! d.mkdirs() )
+				throw new IOException("could not create "+d.getAbsolutePath());
+		}
+		// units are written next to units/, and moved in when complete
+		FastaSegmenter segmenter = new FastaSegmenter(fasta, 0);
+		int units = 0;
+		try {
+			File tmp = new File(dir, "unit.tmp");
+			while ( segmenter.next(unitSize, tmp) > 0 )
+				move(tmp, new File(new File(dir, UNITS), unitName(units++)+".fa"));
+			tmp.delete();
+		}
+		finally {
+			segmenter.close();
+		}
+		Properties p = new Properties();
+		p.setProperty("input", fasta.getAbsolutePath());
+		p.setProperty("units", ""+units);
+		p.setProperty("claim.timeout", ""+claimTimeout);
+		for (String name : settings.stringPropertyNames())
+			p.setProperty(SETTING+name, settings.getProperty(name));
+		File tmp = new File(dir, PROPERTIES+".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			p.store(os, null);
+		}
+		finally {
+			os.close();
+		}
+		move(tmp, props);
+		return units;
+	}
+
+	/**
+	 * Waits for the units to be scanned, putting stale claims back, and
+	 * writes their xdom to xdom in input order
+	 * @param units as returned by open()
+	 * @param xdom
+	 * @param pollMillis how often to look at the queue
+	 * @return false if a unit failed
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public boolean coordinate(int units, File xdom, long pollMillis) throws IOException, InterruptedException {
+
+		File results = new File(dir, RESULTS);
+		int reported = -1;
+		while (true) {
+			String[] failed = new File(dir, FAILED).list();
+			if (failed != null && failed.length > 0) {
+				Arrays.sort(failed);
+				System.err.println("ERROR: scan of "+failed[0]+" failed (see the worker's output)");
+				return false;
+			}
+			reclaimStale();
+			int done = count(results.list());
+			if (done != reported) {
+				System.out.println("INFO: "+done+" of "+units+" unit(s) scanned.");
+				reported = done;
+			}
+			if (done == units)
+				break;
+			Thread.sleep(pollMillis);
+		}
+		assemble(units, xdom);
+		new FileOutputStream(new File(dir, DONE)).close();
+		clear();
+		return true;
+	}
+
+	/**
+	 * Claims the next unit to scan
+	 * @param worker ID of the worker, unique across machines
+	 * @return the claimed unit (to be scanned in place), or null if no
+	 * unit is left
+	 */
+	public File claim(String worker) {
+		String[] units = new File(dir, UNITS).list();
+		if (units == null)
+			return null;
+		Arrays.sort(units);
+		for (String unit : units) {
+			if (! unit.endsWith(".fa") )
+				continue;
+			File claim = new File(new File(dir, CLAIMED), unit+"."+worker);
+			try {
+				move(new File(new File(dir, UNITS), unit), claim);
+				// a requeued unit keeps the time of its stale claim
+				touch(claim);
+				return claim;
+			}
+			catch (IOException ioe) {
+				// taken by another worker
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Keeps a claim from going stale
+	 * @param claim
+	 */
+	public void touch(File claim) {
+		claim.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Publishes the xdom of a claimed unit and gives up the claim
+	 * @param claim
+	 * @param xdom written on the shared filesystem (see resultFile())
+	 * @throws IOException
+	 */
+	public void publish(File claim, File xdom) throws IOException {
+		move(xdom, new File(new File(dir, RESULTS), unitOf(claim)+".xdom"));
+		claim.delete();
+	}
+
+	/**
+	 * @return a file to write the xdom of a claimed unit to, before it is
+	 * published
+	 */
+	public File resultFile(File claim) {
+		return new File(new File(dir, RESULTS), "."+claim.getName()+".xdom.tmp");
+	}
+
+	/**
+	 * Marks a claimed unit as failed, which stops the scan
+	 * @param claim
+	 */
+	public void fail(File claim) {
+		try {
+			move(claim, new File(new File(dir, FAILED), claim.getName()));
+		}
+		catch (IOException ioe) {
+			// reclaimed meanwhile
+		}
+	}
+
+	// puts claims not touched within the timeout back into units/
+	private void reclaimStale() {
+		File[] claims = new File(dir, CLAIMED).listFiles();
+		if (claims == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (File claim : claims) {
+			if (now - claim.lastModified() < claimTimeout)
+				continue;
+			try {
+				move(claim, new File(new File(dir, UNITS), unitOf(claim)+".fa"));
+				System.err.println("INFO: claim "+claim.getName()+" went stale - unit requeued.");
+			}
+			catch (IOException ioe) {
+				// finished meanwhile
+			}
+		}
+	}
+
+	private void assemble(int units, File xdom) throws IOException {
+		OutputStream out = Compression.create(xdom);
+		try {
+			byte[] buf = new byte[1 << 16];
+			for (int i = 0; i < units; i++) {
+				InputStream in = new FileInputStream(new File(new File(dir, RESULTS), unitName(i)+".xdom"));
+				try {
+					int r;
+					while ( (r = in.read(buf)) != -1 )
+						out.write(buf, 0, r);
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// removes everything but the done marker
+	private void clear() {
+		for (String sub : new String[] { UNITS, CLAIMED, RESULTS, FAILED }) {
+			File d = new File(dir, sub);
+			File[] files = d.listFiles();
+			if (files != null)
+				for (File f : files)
+					f.delete();
+			d.delete();
+		}
+		new File(dir, PROPERTIES).delete();
+	}
+
+	// unit-000042 of unit-000042.fa.<worker>
+	private static String unitOf(File claim) {
+		String name = claim.getName();
+		return name.substring(0, name.indexOf('.'));
+	}
+
+	private static String unitName(int unit) {
+		return String.format("unit-%06d", unit);
+	}
+
+	// published results, without those being written
+	private static int count(String[] results) {
+		int n = 0;
+		if (results != null)
+			for (String r : results)
+				if (! r.startsWith(".") )
+					n++;
+		return n;
+	}
+
+	private static Properties settingsOf(Properties p) {
+		Properties settings = new Properties();
+		for (String name : p.stringPropertyNames())
+			if ( name.startsWith(SETTING) )
+				settings.setProperty(name.substring(SETTING.length()), p.getProperty(name));
+		return settings;
+	}
+
+	private static Properties load(File props) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(props);
+		try {
+			p.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return p;
+	}
+
+	// atomic rename, fails if source is gone
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException amnse) {
+			throw new IOException("filesystem of "+target.getParent()+" does not support atomic renames");
+		}
+	}
+
+}
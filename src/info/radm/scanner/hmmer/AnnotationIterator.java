@@ -0,0 +1,70 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Class AnnotationIterator
+ * Groups the hits of hmmscan (domtblout) or pfamscan output by protein
+ * (see HitGrouper), or takes them from another HitSource, and
+ * post-processes each group according to the ScanOptions (see
+ * PostProcessor), on the calling thread. The hits
+ * of a protein must be consecutive in the input. Read errors surface as
+ * UncheckedIOException. Counts and post-processing times are reported
+ * to Metrics once the input is exhausted.
+ */
+class AnnotationIterator implements Iterator<ProteinAnnotation> {
+
+	private HitSource source;
+	private PostProcessor post;
+	private boolean done = false;
+	private ProteinAnnotation next;
+
+	private Metrics.Parse parse = Metrics.startParse();
+
+
+	public AnnotationIterator(InputStream in, int format, ScanOptions options) {
+		this(new HitGrouper(in, format, options), options);
+	}
+
+	AnnotationIterator(HitSource source, ScanOptions options) {
+		this.source = source;
+		this.post = new PostProcessor(options);
+	}
+
+	public boolean hasNext() {
+		if (next == null && !done) {
+			try {
+				if ( source.next() )
+					next = post.process(source.getName(), source.getLength(), source.getHits());
+			}
+			catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			done = (next == null);
+			if (done)
+				parse.end(source.getBytesRead(), source.getLines(), post.proteins, post.domains,
+						post.mergeNanos, post.resolveNanos, post.collapseNanos);
+		}
+		return next != null;
+	}
+
+	public ProteinAnnotation next() {
+		if (! hasNext() )
+			throw new NoSuchElementException();
+		ProteinAnnotation annotation = next;
+		next = null;
+		return annotation;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,16 @@
+package info.radm.scanner.hmmer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * Interface AnnotationSink
+ * Receives the annotations of a scan, one protein at a time and in
+ * input order (see DomainAnnotator.annotate()).
+ */
+public interface AnnotationSink extends Closeable {
+
+	void accept(ProteinAnnotation annotation) throws IOException;
+
+}
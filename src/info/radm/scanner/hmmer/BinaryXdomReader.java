@@ -0,0 +1,159 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Varints;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * Class BinaryXdomReader
+ * Reads binary xdom (see BinaryXdomWriter) protein by protein. Each
+ * block is checked against its checksum before any of its proteins are
+ * returned.
+ */
+public class BinaryXdomReader implements Closeable {
+
+	private DataInputStream in;
+	private List<String> dictionary = new ArrayList<String>();
+	private ByteBuffer block;
+	private int blockProteins = 0, blockNo = 0;
+	private boolean ended = false;
+	private String previousId = "";
+	private CRC32 crc = new CRC32();
+
+
+	/**
+	 * @param in
+	 * @throws IOException if in is not binary xdom
+	 */
+	public BinaryXdomReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		byte[] magic = new byte[BinaryXdomWriter.MAGIC.length];
+		try {
+			this.in.readFully(magic);
+			if (! Arrays.equals(magic, BinaryXdomWriter.MAGIC) )
+				throw new IOException("not a binary xdom file");
+			int version = this.in.read();
+			if (version != BinaryXdomWriter.VERSION)
+				throw new IOException("unsupported binary xdom version "+version);
+		}
+		catch (EOFException eofe) {
+			throw new IOException("not a binary xdom file");
+		}
+	}
+
+	/**
+	 * @return the next protein, or null at the end of the file
+	 * @throws IOException if the file is truncated or corrupt
+	 */
+	public ProteinAnnotation next() throws IOException {
+
+		while (blockProteins == 0) {
+			if (ended || !readBlock())
+				return null;
+		}
+		try {
+			int shared = Varints.readInt(block);
+			String id = previousId.substring(0, shared) + readString(block);
+			previousId = id;
+			int length = Varints.readInt(block) - 1;
+			int domainNo = Varints.readInt(block);
+			List<Domain> domains = new ArrayList<Domain>(domainNo);
+			int aliFrom = 0;
+			for (int i = 0; i < domainNo; i++) {
+				int entry = Varints.readInt(block);
+				String ID = dictionary.get(entry >>> 1);
+				aliFrom += (int) Varints.readSigned(block);
+				int aliTo = aliFrom + (int) Varints.readSigned(block);
+				double evalue = readEvalue(block);
+				Domain dom = new Domain(ID, aliFrom, aliTo, -1, -1, evalue);
+				if ((entry & 1) != 0)
+					dom.setComment(readString(block));
+				domains.add(dom);
+			}
+			blockProteins--;
+			return new ProteinAnnotation(id, length, domains);
+		}
+		catch (RuntimeException re) {
+			// BufferUnderflowException, IllegalArgumentException, IndexOutOfBoundsException
+			throw new IOException("corrupt binary xdom in block "+blockNo+" ("+re+")");
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean readBlock() throws IOException {
+
+		int length, checksum;
+		try {
+			length = in.readInt();
+			checksum = in.readInt();
+		}
+		catch (EOFException eofe) {
+			throw new IOException("binary xdom is truncated after block "+blockNo);
+		}
+		if (length == 0) {
+			ended = true;
+			return false;
+		}
+		if (length < 0)
+			throw new IOException("corrupt binary xdom in block "+(blockNo + 1));
+		byte[] bytes = new byte[length];
+		try {
+			in.readFully(bytes);
+		}
+		catch (EOFException eofe) {
+			throw new IOException("binary xdom is truncated in block "+(blockNo + 1));
+		}
+		blockNo++;
+		crc.reset();
+		crc.update(bytes, 0, length);
+		if ((int) crc.getValue() != checksum)
+			throw new IOException("checksum mismatch in block "+blockNo+" of binary xdom");
+
+		block = ByteBuffer.wrap(bytes);
+		previousId = "";
+		try {
+			int entries = Varints.readInt(block);
+			for (int i = 0; i < entries; i++)
+				dictionary.add(readString(block));
+			blockProteins = Varints.readInt(block);
+		}
+		catch (RuntimeException re) {
+			throw new IOException("corrupt binary xdom in block "+blockNo+" ("+re+")");
+		}
+		return true;
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = Varints.readInt(buf);
+		if (length > buf.remaining())
+			throw new BufferUnderflowException();
+		String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	private static double readEvalue(ByteBuffer buf) {
+		long code = Varints.read(buf);
+		if (code == 0)
+			return buf.getDouble();
+		code--;
+		return BinaryXdomWriter.decimal(Varints.unzigzag(code >>> 8), (int) (code & 0xFF) - 128);
+	}
+
+}
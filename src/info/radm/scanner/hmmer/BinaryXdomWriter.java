@@ -0,0 +1,183 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Varints;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * Class BinaryXdomWriter
+ * Writes annotations as binary xdom, which holds the same information as
+ * text xdom (see XdomConverter) in a fraction of the space:
+ *
+ * <pre>
+ * file     := "BXDOM" version(1) block* end
+ * block    := length(u32) crc32(u32) payload    (of length bytes)
+ * end      := 0(u32) 0(u32)
+ * payload  := #entries entry* #proteins protein*
+ * entry    := string                            (appended to the dictionary)
+ * protein  := id length+1 #domains domain*   (length+1 = 0: unknown)
+ * id       := #chars shared with the previous ID of the block, rest(string)
+ * domain   := dictionary index << 1 | has comment,
+ *             signed(aliFrom - previous aliFrom), signed(aliTo - aliFrom),
+ *             evalue, [comment(string)]
+ * evalue   := 0 double(8 bytes)                 (any value)
+ *           | 1 + (zigzag(m) << 8 | e + 128)    (m * 10^e, e.g. 12, -16 for 1.2E-15)
+ * string   := byte length, UTF-8 bytes
+ * </pre>
+ *
+ * All numbers are varints (see Varints) unless stated otherwise. Domain
+ * IDs are numbered in order of first use over the whole file; the IDs
+ * first used in a block are defined at its start. Protein IDs are front
+ * coded, as consecutive IDs usually share a long prefix (sp|P12...). Blocks hold about
+ * BLOCK_SIZE bytes of proteins and are checked against their CRC32 when
+ * read (see BinaryXdomReader). E-values are stored exactly: as decimal
+ * mantissa and exponent if that reproduces the value, as a double
+ * otherwise.
+ */
+public class BinaryXdomWriter implements AnnotationSink {
+
+	static final byte[] MAGIC = { 'B', 'X', 'D', 'O', 'M' };
+	static final int VERSION = 1;
+	static final int BLOCK_SIZE = 1 << 16;
+	// largest mantissa of a decimal evalue
+	private static final int MANTISSA_BITS = 40;
+	// 10^0 ... 10^22 are exact doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private DataOutputStream out;
+	private Map<String, Integer> dictionary = new HashMap<String, Integer>();
+	private ByteArrayOutputStream entries = new ByteArrayOutputStream(),
+			proteins = new ByteArrayOutputStream(BLOCK_SIZE + (BLOCK_SIZE >> 2));
+	private int newEntries = 0, blockProteins = 0;
+	private String previousId = "";
+	private CRC32 crc = new CRC32();
+
+
+	public BinaryXdomWriter(OutputStream out) throws IOException {
+		this.out = new DataOutputStream(out);
+		this.out.write(MAGIC);
+		this.out.write(VERSION);
+	}
+
+	public void accept(ProteinAnnotation annotation) throws IOException {
+
+		String id = annotation.getID();
+		int shared = 0, max = Math.min(id.length(), previousId.length());
+		while (shared < max && id.charAt(shared) == previousId.charAt(shared))
+			shared++;
+		Varints.write(proteins, shared);
+		writeString(proteins, id.substring(shared));
+		previousId = id;
+		Varints.write(proteins, annotation.getLength() + 1);
+		Varints.write(proteins, annotation.getDomains().size());
+		int previous = 0;
+		for (Domain dom : annotation.getDomains()) {
+			Varints.write(proteins, (long) index(dom.getID()) << 1 | ((dom.getComment() != null) ? 1 : 0));
+			Varints.writeSigned(proteins, dom.getAliFrom() - previous);
+			Varints.writeSigned(proteins, dom.getAliTo() - dom.getAliFrom());
+			writeEvalue(proteins, dom.getEvalue());
+			if (dom.getComment() != null)
+				writeString(proteins, dom.getComment());
+			previous = dom.getAliFrom();
+		}
+		blockProteins++;
+		if (proteins.size() >= BLOCK_SIZE)
+			flushBlock();
+	}
+
+	/**
+	 * Writes the last block and the end marker and closes the stream
+	 */
+	public void close() throws IOException {
+		flushBlock();
+		out.writeInt(0);
+		out.writeInt(0);
+		out.close();
+	}
+
+	private void flushBlock() throws IOException {
+
+		if (blockProteins == 0)
+			return;
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(entries.size() + proteins.size() + 10);
+		Varints.write(payload, newEntries);
+		entries.writeTo(payload);
+		Varints.write(payload, blockProteins);
+		proteins.writeTo(payload);
+
+		byte[] bytes = payload.toByteArray();
+		crc.reset();
+		crc.update(bytes, 0, bytes.length);
+		out.writeInt(bytes.length);
+		out.writeInt((int) crc.getValue());
+		out.write(bytes);
+
+		entries.reset();
+		proteins.reset();
+		newEntries = blockProteins = 0;
+		previousId = "";
+	}
+
+	private int index(String ID) {
+		Integer index = dictionary.get(ID);
+		if (index == null) {
+			index = dictionary.size();
+			dictionary.put(ID, index);
+			writeString(entries, ID);
+			newEntries++;
+		}
+		return index;
+	}
+
+	private static void writeString(ByteArrayOutputStream buf, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		Varints.write(buf, bytes.length);
+		buf.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeEvalue(ByteArrayOutputStream buf, double evalue) {
+		if (! Double.isNaN(evalue) && ! Double.isInfinite(evalue) ) {
+			BigDecimal decimal = new BigDecimal(Double.toString(evalue)).stripTrailingZeros();
+			int exponent = -decimal.scale();
+			if (decimal.unscaledValue().bitLength() < MANTISSA_BITS && exponent >= -128 && exponent < 128) {
+				long mantissa = decimal.unscaledValue().longValue();
+				if (Double.doubleToLongBits(decimal(mantissa, exponent)) == Double.doubleToLongBits(evalue)) {
+					Varints.write(buf, 1 + (Varints.zigzag(mantissa) << 8 | (exponent + 128)));
+					return;
+				}
+			}
+		}
+		Varints.write(buf, 0);
+		long bits = Double.doubleToRawLongBits(evalue);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			buf.write((int) (bits >>> shift));
+	}
+
+	/**
+	 * m * 10^e, as Double.parseDouble() would read it. Mantissa and power
+	 * of ten are both exact doubles for small exponents, so a single
+	 * multiplication or division rounds correctly.
+	 */
+	static double decimal(long mantissa, int exponent) {
+		if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+			return mantissa * POWERS_OF_TEN[exponent];
+		if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+			return mantissa / POWERS_OF_TEN[-exponent];
+		return Double.parseDouble(mantissa+"E"+exponent);
+	}
+
+}
@@ -0,0 +1,191 @@
+package info.radm.scanner.hmmer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+
+/**
+ * Class Checkpoint
+ * Progress of a scan that is run in segments of the input fasta file.
+ * After each segment, its xdom (and hmmscan output, if saved) is appended
+ * to the output and the checkpoint records the input byte offset up to
+ * which the input has been scanned together with the output lengths.
+ * A resumed scan truncates the outputs to the recorded lengths (dropping
+ * a partially appended segment) and continues at the recorded offset.
+ *
+ * The checkpoint is written next to the xdom output (<out>.ckpt).
+ */
+public class Checkpoint {
+
+	private File file, input, xdom, hmmout;
+	private int segmentSize;
+	private long inputOffset = 0, xdomLength = 0, hmmoutLength = 0, sequences = 0;
+
+
+	/**
+	 * @param xdom the xdom output
+	 * @param input the fasta input
+	 * @param hmmout the saved hmmscan output, or null
+	 * @param segmentSize number of sequences per segment
+	 */
+	public Checkpoint(File xdom, File input, File hmmout, int segmentSize) {
+		this.file = new File(xdom.getPath()+".ckpt");
+		this.xdom = xdom;
+		this.input = input;
+		this.hmmout = hmmout;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return scratch file for the hmmscan output of the current segment
+	 */
+	public File getScratchFile() {
+		return new File(xdom.getPath()+".ckpt.domtblout");
+	}
+
+	/**
+	 * Loads the checkpoint of a previous run, if there is one, and
+	 * truncates the outputs to the recorded lengths.
+	 * @return false if there was no checkpoint to resume from
+	 * @throws IOException if the checkpoint does not match this run
+	 */
+	public boolean resume() throws IOException {
+
+		if (! file.isFile() )
+			return false;
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		}
+		finally {
+			in.close();
+		}
+		if (! input.getAbsolutePath().equals(p.getProperty("input")) ||
+				input.length() != Long.parseLong(p.getProperty("input.length")) ||
+				input.lastModified() != Long.parseLong(p.getProperty("input.modified")) )
+			throw new IOException("checkpoint "+file+" was written for a different (or modified) input");
+
+		segmentSize = Integer.parseInt(p.getProperty("segment.size"));
+		inputOffset = Long.parseLong(p.getProperty("input.offset"));
+		sequences = Long.parseLong(p.getProperty("sequences"));
+		xdomLength = Long.parseLong(p.getProperty("xdom.length"));
+		truncate(xdom, xdomLength);
+		if (p.getProperty("hmmout.length") != null && hmmout != null) {
+			hmmoutLength = Long.parseLong(p.getProperty("hmmout.length"));
+			truncate(hmmout, hmmoutLength);
+		}
+		return true;
+	}
+
+	/**
+	 * Starts from scratch, truncating the outputs
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		truncate(xdom, 0);
+		if (hmmout != null)
+			truncate(hmmout, 0);
+		store();
+	}
+
+	public long getInputOffset() {
+		return inputOffset;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public long getSequenceCount() {
+		return sequences;
+	}
+
+	/**
+	 * Records a completed segment. The outputs must have been appended
+	 * to (and be flushed) before.
+	 * @param inputOffset input offset after the segment
+	 * @param segmentSequences number of sequences in the segment
+	 * @throws IOException
+	 */
+	public void commit(long inputOffset, int segmentSequences) throws IOException {
+		force(xdom);
+		if (hmmout != null)
+			force(hmmout);
+		this.inputOffset = inputOffset;
+		this.sequences += segmentSequences;
+		this.xdomLength = xdom.length();
+		if (hmmout != null)
+			this.hmmoutLength = hmmout.length();
+		store();
+	}
+
+	/**
+	 * Removes the checkpoint once the scan has been completed
+	 */
+	public void finish() {
+		file.delete();
+		getScratchFile().delete();
+	}
+
+	private void store() throws IOException {
+
+		Properties p = new Properties();
+		p.setProperty("input", input.getAbsolutePath());
+		p.setProperty("input.length", ""+input.length());
+		p.setProperty("input.modified", ""+input.lastModified());
+		p.setProperty("segment.size", ""+segmentSize);
+		p.setProperty("input.offset", ""+inputOffset);
+		p.setProperty("sequences", ""+sequences);
+		p.setProperty("xdom.length", ""+xdomLength);
+		if (hmmout != null)
+			p.setProperty("hmmout.length", ""+hmmoutLength);
+
+		File tmp = new File(file.getPath()+".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			OutputStream out = new BufferedOutputStream(fos);
+			p.store(out, "PfamScanner checkpoint");
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void truncate(File f, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			if (raf.length() < length)
+				throw new IOException(f+" is shorter than recorded in the checkpoint");
+			raf.setLength(length);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static void force(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.force(true);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+}
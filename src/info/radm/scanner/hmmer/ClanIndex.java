@@ -0,0 +1,248 @@
+package info.radm.scanner.hmmer;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Class ClanIndex
+ * Maps Pfam families (by accession, with or without version, or by ID)
+ * to their clan, as listed in Pfam-A.clans.tsv, so that hmmscan output
+ * can be mapped to clans (and overlaps resolved within clans) without
+ * running pfam_scan.pl. The first load of a clans file writes a compact
+ * index next to it (file name + ".idx"):
+ *
+ * <pre>
+ * file    := "PFCL" version(u32) tsv length(u64) tsv mtime(u64) #families(u32)
+ *            clan(u16 * #families) #names(u32) (family ID(utf) clan(u16))*
+ * </pre>
+ *
+ * where the clan of PF00042 is found at position 42 (0: none, n: CL000n).
+ * Later loads map the table of accessions and read the family IDs; the
+ * index is rebuilt whenever the clans file changes, and kept in memory
+ * only if it can not be written. An index is immutable once loaded and
+ * can be shared by any number of threads.
+ */
+public final class ClanIndex {
+
+	private static final byte[] MAGIC = { 'P', 'F', 'C', 'L' };
+	private static final int VERSION = 1;
+	private static final int HEADER = 4 + 4 + 8 + 8 + 4;
+
+	// clan number by family number
+	private final ByteBuffer families;
+	private final int familyNo;
+	private final Map<String, Integer> names;
+	private final String[] clans;
+
+
+	private ClanIndex(ByteBuffer families, int familyNo, Map<String, Integer> names) {
+		this.families = families;
+		this.familyNo = familyNo;
+		this.names = names;
+		int max = 0;
+		for (int f = 0; f < familyNo; f++)
+			max = Math.max(max, families.getShort(HEADER + 2 * f) & 0xffff);
+		for (int n : names.values())
+			max = Math.max(max, n);
+		this.clans = new String[max + 1];
+		for (int c = 1; c <= max; c++)
+			clans[c] = String.format("CL%04d", c);
+	}
+
+	/**
+	 * Loads the index of a clans file (Pfam-A.clans.tsv), building it if
+	 * there is none or it is out of date
+	 * @param tsv
+	 * @return
+	 * @throws IOException if tsv can not be read
+	 */
+	public static ClanIndex load(File tsv) throws IOException {
+
+		if (! tsv.isFile() )
+			throw new IOException("clans file "+tsv.getPath()+" not found");
+		File idx = new File(tsv.getPath()+".idx");
+		if ( idx.isFile() ) {
+			try {
+				return open(idx, tsv);
+			}
+			catch (IOException ioe) {
+				// out of date or damaged: rebuilt below
+			}
+		}
+		byte[] built = build(tsv);
+		File tmp = null;
+		try {
+			// a name of its own, as concurrent runs may build the index at once
+			tmp = File.createTempFile(idx.getName(), ".tmp", idx.getAbsoluteFile().getParentFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.write(built);
+			}
+			finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), idx.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return open(idx, tsv);
+		}
+		catch (IOException ioe) {
+			// e.g. a read-only model directory
+			if (tmp != null)
+				tmp.delete();
+			return read(ByteBuffer.wrap(built), tsv);
+		}
+	}
+
+	/**
+	 * @param domain Pfam accession (PF00001, PF00001.21) or family ID
+	 * @return the clan of the family (e.g. CL0192), or null if it has none
+	 * or is not known
+	 */
+	public String getClan(String domain) {
+		int clan = clanNumber(domain);
+		return (clan > 0) ? clans[clan] : null;
+	}
+
+	/**
+	 * @return the number of the clan of domain (n of CL000n), 0 if none;
+	 * of a clan accession its own number
+	 */
+	int clanNumber(String domain) {
+		int clan = number(domain, 'C', 'L');
+		if (clan > 0)
+			return clan;
+		int family = familyNumber(domain);
+		if (family >= 0)
+			return (family < familyNo) ? families.getShort(HEADER + 2 * family) & 0xffff : 0;
+		Integer named = names.get(domain);
+		return (named != null) ? named : 0;
+	}
+
+	// 42 of PF00042(.n), -1 if domain is no Pfam accession
+	private static int familyNumber(String domain) {
+		return number(domain, 'P', 'F');
+	}
+
+	// digits after the prefix, up to an optional version
+	private static int number(String s, char c1, char c2) {
+		if (s.length() < 3 || s.charAt(0) != c1 || s.charAt(1) != c2)
+			return -1;
+		int n = 0, i = 2;
+		for (; i < s.length() && s.charAt(i) != '.'; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9' || n > 0xfffff)
+				return -1;
+			n = n * 10 + (c - '0');
+		}
+		return (i > 2) ? n : -1;
+	}
+
+	private static ClanIndex open(File idx, File tsv) throws IOException {
+		FileChannel ch = FileChannel.open(idx.toPath(), StandardOpenOption.READ);
+		try {
+			return read(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), tsv);
+		}
+		finally {
+			// the mapping stays valid
+			ch.close();
+		}
+	}
+
+	private static ClanIndex read(ByteBuffer buf, File tsv) throws IOException {
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			buf.get(magic);
+			if (! Arrays.equals(magic, MAGIC) || buf.getInt() != VERSION)
+				throw new IOException("not a clan index");
+			if (buf.getLong() != tsv.length() || buf.getLong() != tsv.lastModified())
+				throw new IOException("clan index is out of date");
+			int familyNo = buf.getInt();
+			int namesAt = HEADER + 2 * familyNo;
+			byte[] rest = new byte[buf.limit() - namesAt];
+			buf.position(namesAt);
+			buf.get(rest);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(rest));
+			int nameNo = in.readInt();
+			Map<String, Integer> names = new HashMap<String, Integer>(nameNo * 2);
+			for (int i = 0; i < nameNo; i++)
+				names.put(in.readUTF(), in.readShort() & 0xffff);
+			return new ClanIndex(buf, familyNo, names);
+		}
+		catch (EOFException eofe) {
+			throw new IOException("clan index is truncated");
+		}
+		catch (RuntimeException re) {
+			// BufferUnderflowException, IllegalArgumentException
+			throw new IOException("clan index is corrupt");
+		}
+	}
+
+	// the index of a clans file, as written to the .idx file
+	private static byte[] build(File tsv) throws IOException {
+
+		long length = tsv.length(), modified = tsv.lastModified();
+		int[] families = new int[1 << 15];
+		int familyNo = 0;
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(tsv), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ( (line = br.readLine()) != null ) {
+				// accession, clan accession, clan ID, family ID, description
+				String[] fields = line.split("\t", 5);
+				if (fields.length < 2)
+					continue;
+				int family = familyNumber(fields[0].trim());
+				int clan = number(fields[1].trim(), 'C', 'L');
+				if (family < 0 || clan <= 0 || clan > 0xffff)
+					continue;
+				if (family >= families.length)
+					families = Arrays.copyOf(families, Math.max(family + 1, families.length * 2));
+				families[family] = clan;
+				familyNo = Math.max(familyNo, family + 1);
+				if (fields.length > 3 && !fields[3].trim().isEmpty())
+					names.put(fields[3].trim(), clan);
+			}
+		}
+		finally {
+			br.close();
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER + 2 * familyNo + 16 * names.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(length);
+		out.writeLong(modified);
+		out.writeInt(familyNo);
+		for (int f = 0; f < familyNo; f++)
+			out.writeShort(families[f]);
+		out.writeInt(names.size());
+		for (Map.Entry<String, Integer> name : names.entrySet()) {
+			out.writeUTF(name.getKey());
+			out.writeShort(name.getValue());
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,307 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+import info.radm.scanner.utils.Digests;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+
+
+/**
+ * Class Deduplicator
+ * Collapses identical input sequences to a single representative before
+ * the scan, and fans the results of the representatives back out to
+ * every original ID (in input order) afterwards.
+ *
+ * Sequences are compared by a 128 bit digest of their residues, held in
+ * an open addressing table (about 40 bytes per distinct sequence); the
+ * representative of every input sequence is kept in a temporary file, so
+ * memory does not grow with the number of duplicates. Representatives are
+ * named by their ordinal (u0, u1, ...) in the fasta file that is scanned.
+ */
+public class Deduplicator {
+
+	private File fasta, uniqueFasta, representatives;
+	private int sequences = 0, uniques = 0;
+
+
+	public Deduplicator(File fasta) {
+		this.fasta = fasta;
+	}
+
+	/**
+	 * Writes the distinct sequences of the input to a temporary fasta file
+	 * @param tempDir
+	 * @return the fasta file to scan
+	 * @throws IOException
+	 */
+	public File collapse(File tempDir) throws IOException {
+
+		uniqueFasta = File.createTempFile("hmmscan_unique_", ".fa", tempDir.getAbsoluteFile());
+		representatives = File.createTempFile("hmmscan_reps_", ".bin", tempDir.getAbsoluteFile());
+		DigestTable table = new DigestTable();
+		FastaReader reader = new FastaReader(fasta);
+		BufferedWriter unique = new BufferedWriter(new FileWriter(uniqueFasta));
+		DataOutputStream reps = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(representatives)));
+		try {
+			while ( reader.next() ) {
+				int rep = table.putIfAbsent(Digests.sequence(reader.getResidues()), uniques);
+				if (rep == uniques) {
+					FastaReader.write(unique, ">"+name(rep), reader.getResidues());
+					uniques++;
+				}
+				reps.writeInt(rep);
+				sequences++;
+			}
+		}
+		finally {
+			reader.close();
+			unique.close();
+			reps.close();
+		}
+		return uniqueFasta;
+	}
+
+	public int getSequenceCount() {
+		return sequences;
+	}
+
+	public int getUniqueCount() {
+		return uniques;
+	}
+
+	/**
+	 * Expands the domtblout of the representatives to all input sequences
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public void expandDomtblout(File in, File out) throws IOException {
+		expand(in, out, false);
+	}
+
+	/**
+	 * Expands the xdom of the representatives to all input sequences.
+	 * Representatives without an xdom entry stay without one.
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	public void expandXdom(File in, File out) throws IOException {
+		expand(in, out, true);
+	}
+
+	/**
+	 * Removes the temporary files
+	 */
+	public void cleanUp() {
+		if (uniqueFasta != null)
+			uniqueFasta.delete();
+		if (representatives != null)
+			representatives.delete();
+	}
+
+	private void expand(File in, File out, boolean xdom) throws IOException {
+
+		// locate the (contiguous) entry of every representative
+		long[] start = new long[uniques];
+		int[] length = new int[uniques];
+		Arrays.fill(start, -1);
+		long[] comments = index(in, xdom, start, length);
+
+		FastaReader reader = new FastaReader(fasta);
+		DataInputStream reps = new DataInputStream(new BufferedInputStream(new FileInputStream(representatives)));
+		RandomAccessFile raf = new RandomAccessFile(in, "r");
+		Writer w = new BufferedWriter(new OutputStreamWriter(Compression.create(out)));
+		try {
+			byte[] buf = new byte[1 << 12];
+			copy(raf, 0, comments[0], w);
+			while ( reader.next() ) {
+				int rep = reps.readInt();
+				if (start[rep] < 0)
+					continue;
+				if (buf.length < length[rep])
+					buf = new byte[length[rep]];
+				raf.seek(start[rep]);
+				raf.readFully(buf, 0, length[rep]);
+				String entry = new String(buf, 0, length[rep], "UTF-8");
+				if (xdom)
+					w.write(renameXdom(entry, HmmerParser.proteinId(reader.getId())));
+				else
+					renameDomtblout(entry, reader.getId(), w);
+			}
+			copy(raf, comments[1], raf.length(), w);
+		}
+		finally {
+			reader.close();
+			reps.close();
+			raf.close();
+			w.close();
+		}
+	}
+
+	/**
+	 * Finds the start and length of the entry of every representative
+	 * @return the end of the leading and the start of the trailing comments
+	 */
+	private long[] index(File in, boolean xdom, long[] start, int[] length) throws IOException {
+
+		InputStream is = new FileInputStream(in);
+		long headerEnd = -1, tailStart = 0;
+		try {
+			LineTokenizer tok = new LineTokenizer(is, xdom ? 1 : 4);
+			int current = -1;
+			boolean inEntry = false;
+			while ( tok.nextLine() ) {
+				long offset = tok.getLineOffset();
+				if (inEntry) {
+					length[current] = (int) (offset - start[current]);
+					tailStart = offset;
+				}
+				int rep = -1;
+				if (xdom && !tok.isEmpty() && tok.byteAt(0, 0) == '>')
+					rep = ordinal(tok, 0, 2);
+				else if (!xdom && !tok.isComment() && tok.fieldCount() >= 4)
+					rep = ordinal(tok, 3, 1);
+				if (rep >= 0 && rep != current) {
+					if (headerEnd < 0)
+						headerEnd = offset;
+					start[rep] = offset;
+					current = rep;
+				}
+				// all lines of an xdom entry, only the hits of a domtblout entry
+				inEntry = (xdom) ? current >= 0 : rep >= 0;
+			}
+			if (inEntry) {
+				length[current] = (int) (tok.getBytesRead() - start[current]);
+				tailStart = tok.getBytesRead();
+			}
+			if (headerEnd < 0)
+				headerEnd = tailStart = tok.getBytesRead();
+		}
+		finally {
+			is.close();
+		}
+		return new long[] { headerEnd, tailStart };
+	}
+
+	// parses the ordinal of a representative name (u123) at offset skip of field
+	private int ordinal(LineTokenizer tok, int field, int skip) throws IOException {
+		int len = tok.fieldLength(field), rep = 0;
+		if (len <= skip)
+			throw new IOException("Unexpected sequence name in scan output: "+tok.getString(field));
+		for (int i = skip; i < len; i++) {
+			byte b = tok.byteAt(field, i);
+			if (b < '0' || b > '9')
+				throw new IOException("Unexpected sequence name in scan output: "+tok.getString(field));
+			rep = rep * 10 + (b - '0');
+		}
+		if (rep >= uniques)
+			throw new IOException("Unexpected sequence name in scan output: "+tok.getString(field));
+		return rep;
+	}
+
+	private static void copy(RandomAccessFile raf, long from, long to, Writer w) throws IOException {
+		byte[] buf = new byte[(int) (to - from)];
+		raf.seek(from);
+		raf.readFully(buf);
+		w.write(new String(buf, "UTF-8"));
+	}
+
+	private static String renameXdom(String entry, String id) {
+		int end = 1;
+		while (end < entry.length() && !Character.isWhitespace(entry.charAt(end)))
+			end++;
+		return ">" + id + entry.substring(end);
+	}
+
+	private static void renameDomtblout(String entry, String id, Writer w) throws IOException {
+		int from = 0;
+		while (from < entry.length()) {
+			int nl = entry.indexOf('\n', from);
+			int to = (nl < 0) ? entry.length() : nl + 1;
+			String line = entry.substring(from, to);
+			w.write(Domtblout.isData(line.trim()) ? Domtblout.withQuery(line, id) : line);
+			from = to;
+		}
+	}
+
+	private static String name(int rep) {
+		return "u"+rep;
+	}
+
+
+	/**
+	 * Open addressing hash table from 128 bit digests to int values
+	 */
+	private static class DigestTable {
+
+		private long[] hi = new long[1 << 16], lo = new long[1 << 16];
+		private int[] values = new int[1 << 16];
+		private boolean[] used = new boolean[1 << 16];
+		private int size = 0;
+
+		/**
+		 * @return the value stored for digest, or value if there was none
+		 */
+		public int putIfAbsent(byte[] digest, int value) {
+			if (2 * (size + 1) > used.length)
+				grow();
+			long h = toLong(digest, 0), l = toLong(digest, 8);
+			int slot = insert(h, l, value);
+			return values[slot];
+		}
+
+		private int insert(long h, long l, int value) {
+			int mask = used.length - 1;
+			int slot = (int) (h ^ (h >>> 32)) & mask;
+			while (used[slot]) {
+				if (hi[slot] == h && lo[slot] == l)
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+			used[slot] = true;
+			hi[slot] = h;
+			lo[slot] = l;
+			values[slot] = value;
+			size++;
+			return slot;
+		}
+
+		private void grow() {
+			long[] oldHi = hi, oldLo = lo;
+			int[] oldValues = values;
+			boolean[] oldUsed = used;
+			hi = new long[oldUsed.length * 2];
+			lo = new long[oldUsed.length * 2];
+			values = new int[oldUsed.length * 2];
+			used = new boolean[oldUsed.length * 2];
+			size = 0;
+			for (int i = 0; i < oldUsed.length; i++)
+				if (oldUsed[i])
+					insert(oldHi[i], oldLo[i], oldValues[i]);
+		}
+
+		private static long toLong(byte[] b, int off) {
+			long v = 0;
+			for (int i = off; i < off + 8; i++)
+				v = (v << 8) | (b[i] & 0xff);
+			return v;
+		}
+	}
+
+}
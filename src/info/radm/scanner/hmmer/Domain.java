@@ -0,0 +1,108 @@
+package info.radm.scanner.hmmer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+
+/**
+ * Class Domain
+ * A domain hit on a protein: alignment and model coordinates, the
+ * i-Evalue of the hit, and the domain ID (or accession, or clan).
+ * Merged and collapsed hits carry a comment and have no evalue (-1).
+ * Domains read from xdom without an evalue have NaN.
+ */
+public class Domain {
+	
+	private int aliFrom, aliTo, hmmFrom, hmmTo;
+	private double evalue;
+	private String ID, comment;
+	private boolean isCollapsed = false;
+	
+	public Domain(String ID, int aliFrom, int aliTo, int hmmFrom, int hmmTo, double evalue) {
+		this.aliFrom = aliFrom;
+		this.aliTo = aliTo;
+		this.hmmFrom = hmmFrom;
+		this.hmmTo = hmmTo;
+		this.evalue = evalue;
+		this.ID = ID;
+	}
+	
+	void setAliTo(int endPos) {
+		this.aliTo = endPos;
+	}
+	
+	void setComment(String comment) {
+		this.comment = comment;
+	}
+	
+	void setCollpased() {
+		this.isCollapsed = true;
+	}
+	
+	public int getAliFrom() {
+		return this.aliFrom;
+	}
+	
+	public int getAliTo() {
+		return this.aliTo;
+	}
+	
+	public int getHmmFrom() {
+		return this.hmmFrom;
+	}
+	
+	public int getHmmTo() {
+		return this.hmmTo;
+	}
+	
+	public String getID() {
+		return this.ID;
+	}
+	
+	public double getEvalue() {
+		return this.evalue;
+	}
+
+	/**
+	 * @return comment on merged or collapsed hits, or null
+	 */
+	public String getComment() {
+		return this.comment;
+	}
+	
+	public boolean isCollapsed() {
+		return this.isCollapsed;
+	}
+	
+	public void appendTo(Writer w) throws IOException {
+		w.write(Integer.toString(aliFrom));
+		w.write('\t');
+		w.write(Integer.toString(aliTo));
+		w.write('\t');
+		w.write(ID);
+		// no evalue: read from xdom without one (see XdomReader)
+		if (! Double.isNaN(evalue) ) {
+			w.write('\t');
+			w.write(Double.toString(evalue));
+		}
+		if (comment != null) {
+			w.write("\t;");
+			w.write(comment);
+		}
+	}
+	
+	public String toString() {
+		String evalueField = Double.isNaN(evalue) ? "" : "\t"+this.evalue;
+		if (comment == null)
+			return this.aliFrom+"\t"+this.aliTo+"\t"+this.ID+evalueField;
+		else
+			return this.aliFrom+"\t"+this.aliTo+"\t"+this.ID+evalueField+"\t;"+this.comment;
+	}
+	
+	public boolean overlaps(Domain nextDom) {
+		if (this.aliTo >= nextDom.aliFrom)
+			return true;
+		return false;
+	}
+	
+}
@@ -0,0 +1,161 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+/**
+ * Class DomainAnnotator
+ * Library entry point: turns hmmscan (domtblout) or pfamscan output into
+ * per-protein annotations, without files in between and without
+ * terminating the JVM on errors. An annotator only holds its (immutable)
+ * options, so one instance can serve any number of threads; each call
+ * works on its own input.
+ *
+ * <pre>
+ * DomainAnnotator annotator = new DomainAnnotator(options);
+ * try (Stream&lt;ProteinAnnotation&gt; proteins = annotator.stream(path)) {
+ *     proteins.forEach(...);
+ * }
+ * </pre>
+ */
+public class DomainAnnotator {
+
+	private final ScanOptions options;
+
+
+	public DomainAnnotator(ScanOptions options) {
+		this.options = options;
+	}
+
+	public ScanOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Annotations of the proteins in in, in input order. The stream is
+	 * not closed. Read and format errors surface as UncheckedIOException.
+	 * @param in
+	 * @param format HmmerParser.HMMSCAN or HmmerParser.PFAMSCAN
+	 * @return
+	 */
+	public Iterator<ProteinAnnotation> iterator(InputStream in, int format) {
+		if (format != HmmerParser.HMMSCAN && format != HmmerParser.PFAMSCAN)
+			throw new IllegalArgumentException("unknown format: "+format);
+		return new AnnotationIterator(in, format, options);
+	}
+
+	/**
+	 * Annotations of the proteins in in, in input order
+	 * (see iterator()). The stream is not closed.
+	 */
+	public Stream<ProteinAnnotation> stream(InputStream in, int format) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(in, format),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * Annotations of the proteins in file, whose format (hmmscan,
+	 * pfamscan output or hit store) is determined automatically; gzip or
+	 * zstd compressed output is read as well. Close the returned stream to
+	 * close the file.
+	 * @param file
+	 * @return
+	 * @throws IOException if file can not be read
+	 */
+	public Stream<ProteinAnnotation> stream(Path file) throws IOException {
+		int format = format(file);
+		if (format == HmmerParser.HITSTORE) {
+			final HitStoreReader store = new HitStoreReader(file.toFile(), options);
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new AnnotationIterator(store,
+					options), Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+				public void run() {
+					try {
+						store.close();
+					}
+					catch (IOException ioe) {
+						throw new UncheckedIOException(ioe);
+					}
+				}
+			});
+		}
+		final InputStream in = Compression.open(file.toFile());
+		return stream(in, format).onClose(new Runnable() {
+			public void run() {
+				try {
+					in.close();
+				}
+				catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}
+		});
+	}
+
+	// as the CLI: output without any hit is read as hmmscan output
+	private static int format(Path file) throws IOException {
+		int format = HmmerParser.detectFormat(file.toFile());
+		return (format == HmmerParser.UNKNOWN) ? HmmerParser.HMMSCAN : format;
+	}
+
+	/**
+	 * Passes the annotations of all proteins in in to sink, in input
+	 * order, and closes the sink.
+	 * @param in
+	 * @param format HmmerParser.HMMSCAN or HmmerParser.PFAMSCAN
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void annotate(InputStream in, int format, AnnotationSink sink) throws IOException {
+		try {
+			Iterator<ProteinAnnotation> it = iterator(in, format);
+			while (it.hasNext())
+				sink.accept(it.next());
+		}
+		catch (UncheckedIOException uioe) {
+			throw uioe.getCause();
+		}
+		finally {
+			sink.close();
+		}
+	}
+
+	/**
+	 * @see #annotate(InputStream, int, AnnotationSink)
+	 */
+	public void annotate(Path file, AnnotationSink sink) throws IOException {
+		int format = format(file);
+		if (format == HmmerParser.HITSTORE) {
+			HitStoreReader store = new HitStoreReader(file.toFile(), options);
+			try {
+				Iterator<ProteinAnnotation> it = new AnnotationIterator(store, options);
+				while (it.hasNext())
+					sink.accept(it.next());
+			}
+			catch (UncheckedIOException uioe) {
+				throw uioe.getCause();
+			}
+			finally {
+				store.close();
+				sink.close();
+			}
+			return;
+		}
+		InputStream in = Compression.open(file.toFile());
+		try {
+			annotate(in, format, sink);
+		}
+		finally {
+			in.close();
+		}
+	}
+}
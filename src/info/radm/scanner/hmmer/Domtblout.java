@@ -0,0 +1,183 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Class Domtblout
+ * Helpers for single lines of hmmscan domtblout output, and for reading
+ * and joining domtblout files.
+ */
+public class Domtblout {
+
+	private static final int QUERY = 3;
+
+	/**
+	 * @return the query name (4th column) of line, or null
+	 */
+	public static String query(String line) {
+		int[] span = field(line, QUERY);
+		return (span == null) ? null : line.substring(span[0], span[1]);
+	}
+
+	/**
+	 * @return line with the query name replaced by name
+	 */
+	public static String withQuery(String line, String name) {
+		int[] span = field(line, QUERY);
+		if (span == null)
+			return line;
+		return line.substring(0, span[0]) + name + line.substring(span[1]);
+	}
+
+	public static boolean isData(String line) {
+		return !line.isEmpty() && !line.startsWith("#");
+	}
+
+	// start and end of a whitespace delimited field
+	private static int[] field(String line, int field) {
+		int no = 0, i = 0, len = line.length();
+		while (i < len) {
+			while (i < len && Character.isWhitespace(line.charAt(i)))
+				i++;
+			if (i == len)
+				break;
+			int start = i;
+			while (i < len && !Character.isWhitespace(line.charAt(i)))
+				i++;
+			if (no++ == field)
+				return new int[] { start, i };
+		}
+		return null;
+	}
+
+
+	/**
+	 * Reads the data lines of a domtblout file, keeping track of the
+	 * query name of the current line.
+	 */
+	public static class Reader {
+
+		private BufferedReader br;
+		private String line, query;
+		private List<String> leadingComments = new ArrayList<String>();
+
+		public Reader(File domtblout) throws IOException {
+			this.br = new BufferedReader(new InputStreamReader(Compression.open(domtblout)));
+			while ( (line = br.readLine()) != null && !isData(line) )
+				if (line.startsWith("#"))
+					leadingComments.add(line);
+			query = (line == null) ? null : query(line);
+		}
+
+		/**
+		 * @return the current line, or null at the end of the file
+		 */
+		public String getLine() {
+			return line;
+		}
+
+		public String getQuery() {
+			return query;
+		}
+
+		/**
+		 * @return the comment lines preceding the first data line
+		 */
+		public List<String> getLeadingComments() {
+			return leadingComments;
+		}
+
+		public void advance() throws IOException {
+			while ( (line = br.readLine()) != null && !isData(line) )
+				;
+			query = (line == null) ? null : query(line);
+		}
+
+		public void close() throws IOException {
+			br.close();
+		}
+	}
+
+
+	/**
+	 * Joins the lines of several domtblout files (parts) into one, query
+	 * by query in an order given by the caller, e.g. the input order of
+	 * the queries. The header of the first part is kept.
+	 */
+	public static class Joiner {
+
+		private File[] parts;
+		private Reader[] readers;
+		private BufferedWriter bw;
+
+		public Joiner(File[] parts, File target) throws IOException {
+			this.parts = parts;
+			this.readers = new Reader[parts.length];
+			this.bw = new BufferedWriter(new OutputStreamWriter(Compression.create(target)));
+			try {
+				for (int i = 0; i < parts.length; i++)
+					readers[i] = new Reader(parts[i]);
+				for (String comment : readers[0].getLeadingComments()) {
+					bw.write(comment);
+					bw.newLine();
+				}
+			}
+			catch (IOException ioe) {
+				close();
+				throw ioe;
+			}
+		}
+
+		/**
+		 * Copies the lines of query at the current position of a part
+		 * @param part index of the part
+		 * @param query
+		 * @throws IOException
+		 */
+		public void copy(int part, String query) throws IOException {
+			Reader reader = readers[part];
+			while ( reader.getLine() != null && query.equals(reader.getQuery()) ) {
+				bw.write(reader.getLine());
+				bw.newLine();
+				reader.advance();
+			}
+		}
+
+		/**
+		 * Appends the lines of the parts not copied (queries not asked
+		 * for, or out of order), with a warning
+		 * @throws IOException
+		 */
+		public void finish() throws IOException {
+			for (int i = 0; i < readers.length; i++) {
+				if (readers[i].getLine() == null)
+					continue;
+				System.err.println("WARNING: unmatched hmmscan output in "+parts[i].getName()+
+						" (query "+readers[i].getQuery()+") - appending.");
+				while (readers[i].getLine() != null) {
+					bw.write(readers[i].getLine());
+					bw.newLine();
+					readers[i].advance();
+				}
+			}
+		}
+
+		public void close() throws IOException {
+			bw.close();
+			for (Reader reader : readers)
+				if (reader != null)
+					reader.close();
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Class DomtbloutMerger
+ * Merges the domtblout files of scans of the same input against
+ * different model databases into one, in which the hits of each query
+ * from all databases follow each other (in input order), so that split
+ * hits are merged and overlaps resolved across all databases when it is
+ * parsed.
+ */
+public class DomtbloutMerger {
+
+	private File fasta;
+
+
+	/**
+	 * @param fasta the input scanned
+	 */
+	public DomtbloutMerger(File fasta) {
+		this.fasta = fasta;
+	}
+
+	/**
+	 * Writes the hits of outs to target, query by query, in the order of
+	 * outs for each query
+	 *
+	 * @param outs domtblout files, one per model database
+	 * @param target
+	 * @throws IOException
+	 */
+	public void merge(File[] outs, File target) throws IOException {
+
+		FastaReader queries = new FastaReader(fasta);
+		try {
+			Domtblout.Joiner joiner = new Domtblout.Joiner(outs, target);
+			try {
+				while ( queries.next() )
+					for (int i = 0; i < outs.length; i++)
+						joiner.copy(i, queries.getId());
+				joiner.finish();
+			}
+			finally {
+				joiner.close();
+			}
+		}
+		finally {
+			queries.close();
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Class FastaSegmenter
+ * Cuts a fasta file into consecutive segments of a given number of
+ * sequences, keeping track of the byte offset at which the next segment
+ * starts (see Checkpoint). Offsets of compressed input are offsets into
+ * the decompressed data.
+ */
+public class FastaSegmenter {
+
+	private File fasta;
+	private long offset;
+	private InputStream in;
+	private int pending = -1;
+
+
+	/**
+	 * @param fasta
+	 * @param offset offset of the first segment (start of a record)
+	 * @throws IOException
+	 */
+	public FastaSegmenter(File fasta, long offset) throws IOException {
+		this.fasta = fasta;
+		this.offset = offset;
+		InputStream is = Compression.open(fasta);
+		// compressed input can only be skipped through
+		if (is instanceof FileInputStream)
+			((FileInputStream) is).getChannel().position(offset);
+		else
+			skip(is, offset);
+		this.in = new BufferedInputStream(is, 1 << 16);
+	}
+
+	/**
+	 * @return offset of the next segment
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Copies the next (up to) sequences records to out
+	 * @return the number of records copied, 0 at the end of the input
+	 * @throws IOException
+	 */
+	public int next(int sequences, File out) throws IOException {
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 1 << 16);
+		int records = 0;
+		boolean lineStart = true;
+		try {
+			int b;
+			while ( (b = read()) != -1 ) {
+				if (lineStart && b == '>') {
+					if (records == sequences) {
+						pending = b;
+						break;
+					}
+					records++;
+				}
+				os.write(b);
+				offset++;
+				lineStart = (b == '\n');
+			}
+		}
+		finally {
+			os.close();
+		}
+		return records;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public String toString() {
+		return fasta.getPath()+"@"+offset;
+	}
+
+	private static void skip(InputStream is, long n) throws IOException {
+		byte[] buf = new byte[1 << 16];
+		int r;
+		while ( n > 0 && (r = is.read(buf, 0, (int) Math.min(buf.length, n))) > 0 )
+			n -= r;
+		if (n > 0)
+			throw new IOException("input is shorter than the recorded offset");
+	}
+
+	private int read() throws IOException {
+		if (pending >= 0) {
+			int b = pending;
+			pending = -1;
+			return b;
+		}
+		return in.read();
+	}
+
+}
@@ -0,0 +1,155 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+
+/**
+ * Class FastaSharder
+ * Splits a fasta file into a number of shards of roughly equal
+ * total residue count, so that each shard can be scanned by its own
+ * hmmscan process. Sequences are distributed longest-first, each to the
+ * shard with the smallest residue count so far. Within a shard, sequences
+ * keep their relative input order, which allows the per-shard domtblout
+ * files to be stitched back together in the original input order.
+ */
+public class FastaSharder {
+
+	private File fasta;
+	private int shardNo;
+	private File[] shards;
+	private int[] shardOf;
+
+
+	public FastaSharder(File fasta, int shardNo) {
+		this.fasta = fasta;
+		this.shardNo = shardNo;
+	}
+
+	/**
+	 * Writes the shards to tempDir. The number of shards returned may be
+	 * smaller than requested if the input contains fewer sequences.
+	 *
+	 * @param tempDir
+	 * @return the shard fasta files
+	 * @throws IOException
+	 */
+	public File[] split(File tempDir) throws IOException {
+
+		long[] residues = countResidues();
+		int seqNo = residues.length;
+
+		// longest first, in input order for equal lengths: the (capped)
+		// residue count, inverted, in the high, the position in the low bits
+		long[] byLength = new long[seqNo];
+		for (int i = 0; i < seqNo; i++)
+			byLength[i] = ((Integer.MAX_VALUE - Math.min(residues[i], Integer.MAX_VALUE)) << 32) | i;
+		Arrays.sort(byLength);
+
+		int n = Math.max(1, Math.min(shardNo, seqNo));
+		long[] load = new long[n];
+		shardOf = new int[seqNo];
+		for (long key : byLength) {
+			int seq = (int) key;
+			int lightest = 0;
+			for (int s = 1; s < n; s++)
+				if (load[s] < load[lightest])
+					lightest = s;
+			shardOf[seq] = lightest;
+			load[lightest] += residues[seq];
+		}
+
+		shards = new File[n];
+		BufferedWriter[] writers = new BufferedWriter[n];
+		BufferedReader br = new BufferedReader(new InputStreamReader(Compression.open(fasta)));
+		try {
+			for (int s = 0; s < n; s++) {
+				shards[s] = File.createTempFile("hmmscan_shard_", ".fa", tempDir.getAbsoluteFile());
+				writers[s] = new BufferedWriter(new FileWriter(shards[s]));
+			}
+			String line;
+			int seq = -1;
+			while ( (line = br.readLine()) != null ) {
+				if (line.startsWith(">"))
+					seq++;
+				if (seq < 0)
+					continue;
+				writers[shardOf[seq]].write(line);
+				writers[shardOf[seq]].newLine();
+			}
+		}
+		finally {
+			br.close();
+			for (BufferedWriter bw : writers)
+				if (bw != null)
+					bw.close();
+		}
+		return shards;
+	}
+
+	/**
+	 * Concatenates the domtblout files of all shards (in the order returned
+	 * by split()) into target, restoring the input order of the queries.
+	 * The query names are read back from the shard fasta files, which must
+	 * still be there.
+	 *
+	 * @param shardOuts
+	 * @param target
+	 * @throws IOException
+	 */
+	public void stitch(File[] shardOuts, File target) throws IOException {
+
+		Domtblout.Joiner joiner = new Domtblout.Joiner(shardOuts, target);
+		FastaReader[] queries = new FastaReader[shards.length];
+		try {
+			for (int s = 0; s < shards.length; s++)
+				queries[s] = new FastaReader(shards[s]);
+			for (int seq = 0; seq < shardOf.length; seq++) {
+				FastaReader shard = queries[shardOf[seq]];
+				if (! shard.next() )
+					throw new IOException("shard "+shards[shardOf[seq]].getName()+" ends early");
+				joiner.copy(shardOf[seq], shard.getId());
+			}
+			joiner.finish();
+		}
+		finally {
+			joiner.close();
+			for (FastaReader shard : queries)
+				if (shard != null)
+					shard.close();
+		}
+	}
+
+	// residues per sequence, in input order
+	private long[] countResidues() throws IOException {
+
+		long[] residues = new long[1024];
+		int seqNo = 0;
+		BufferedReader br = new BufferedReader(new InputStreamReader(Compression.open(fasta)));
+		try {
+			String line;
+			while ( (line = br.readLine()) != null ) {
+				if (line.startsWith(">")) {
+					if (seqNo == residues.length)
+						residues = Arrays.copyOf(residues, seqNo * 2);
+					seqNo++;
+				}
+				else if (seqNo > 0)
+					residues[seqNo - 1] += line.trim().length();
+			}
+		}
+		finally {
+			br.close();
+		}
+		return Arrays.copyOf(residues, seqNo);
+	}
+
+}
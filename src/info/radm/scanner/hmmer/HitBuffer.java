@@ -0,0 +1,264 @@
+package info.radm.scanner.hmmer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Class HitBuffer
+ * The hits of one protein as parallel primitive arrays (coordinates,
+ * evalues and domain IDs coded as ints), so that collecting and
+ * post-processing hits (see HmmerParser.mergeHits(), resolveOverlaps()
+ * and collapseRepeats()) does not allocate per hit. A buffer is meant to
+ * be cleared and reused for the next protein; its arrays only grow.
+ *
+ * Hits are kept in sequence order by sort(), which is stable: hits that
+ * start at the same residue are all kept, in the order they were added.
+ * Merged and collapsed hits are marked by their kind and carry the
+ * number of hits they stand for.
+ */
+final class HitBuffer {
+
+	static final byte HIT = 0, MERGED = 1, COLLAPSED = 2;
+
+	int size = 0;
+	int[] aliFrom, aliTo, hmmFrom, hmmTo, id, count;
+	double[] evalue;
+	byte[] kind;
+
+	private Ids ids;
+	private HitBuffer scratch;
+	private long[][] keys = new long[3][];
+	private int[][] work = new int[5][];
+
+
+	public HitBuffer() {
+		this(new Ids(), 16);
+	}
+
+	private HitBuffer(Ids ids, int capacity) {
+		this.ids = ids;
+		allocate(capacity);
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the code of a domain ID, the same for equal IDs
+	 */
+	public int code(String ID) {
+		return ids.code(ID);
+	}
+
+	public String name(int code) {
+		return ids.name(code);
+	}
+
+	public void add(int id, int aliFrom, int aliTo, int hmmFrom, int hmmTo, double evalue) {
+		add(id, aliFrom, aliTo, hmmFrom, hmmTo, evalue, HIT, 1);
+	}
+
+	public void add(int id, int aliFrom, int aliTo, int hmmFrom, int hmmTo, double evalue, byte kind, int count) {
+		if (size == this.aliFrom.length)
+			grow();
+		this.id[size] = id;
+		this.aliFrom[size] = aliFrom;
+		this.aliTo[size] = aliTo;
+		this.hmmFrom[size] = hmmFrom;
+		this.hmmTo[size] = hmmTo;
+		this.evalue[size] = evalue;
+		this.kind[size] = kind;
+		this.count[size] = count;
+		size++;
+	}
+
+	/**
+	 * Appends hit i of other (which must share the domain codes, see
+	 * scratch())
+	 */
+	public void add(HitBuffer other, int i) {
+		add(other.id[i], other.aliFrom[i], other.aliTo[i], other.hmmFrom[i], other.hmmTo[i],
+				other.evalue[i], other.kind[i], other.count[i]);
+	}
+
+	/**
+	 * Moves hit from to position to (to <= from), e.g. to drop hits in place
+	 */
+	public void move(int from, int to) {
+		id[to] = id[from];
+		aliFrom[to] = aliFrom[from];
+		aliTo[to] = aliTo[from];
+		hmmFrom[to] = hmmFrom[from];
+		hmmTo[to] = hmmTo[from];
+		evalue[to] = evalue[from];
+		kind[to] = kind[from];
+		count[to] = count[from];
+	}
+
+	/**
+	 * Sorts the hits by start, stable
+	 */
+	public void sort() {
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++)
+			sorted = aliFrom[i - 1] <= aliFrom[i];
+		if (sorted)
+			return;
+		long[] keys = keys(0, size);
+		// start in the high, position in the low bits
+		for (int i = 0; i < size; i++)
+			keys[i] = ((long) aliFrom[i] << 32) | i;
+		Arrays.sort(keys, 0, size);
+		HitBuffer sortedHits = scratch();
+		for (int i = 0; i < size; i++)
+			sortedHits.add(this, (int) keys[i]);
+		swap(sortedHits);
+	}
+
+	/**
+	 * @return an empty buffer with the same domain codes, to write
+	 * processed hits to before swap()ping them in
+	 */
+	public HitBuffer scratch() {
+		if (scratch == null)
+			scratch = new HitBuffer(ids, aliFrom.length);
+		scratch.clear();
+		return scratch;
+	}
+
+	/**
+	 * @return a new, empty buffer with the same domain codes
+	 */
+	public HitBuffer sibling() {
+		return new HitBuffer(ids, 16);
+	}
+
+	/**
+	 * Replaces the hits of this buffer by those of other (which must share
+	 * the domain codes, see sibling())
+	 */
+	public void copy(HitBuffer other) {
+		clear();
+		for (int i = 0; i < other.size; i++)
+			add(other, i);
+	}
+
+	/**
+	 * Exchanges the hits of this buffer and other
+	 */
+	public void swap(HitBuffer other) {
+		int[] t;
+		t = aliFrom; aliFrom = other.aliFrom; other.aliFrom = t;
+		t = aliTo; aliTo = other.aliTo; other.aliTo = t;
+		t = hmmFrom; hmmFrom = other.hmmFrom; other.hmmFrom = t;
+		t = hmmTo; hmmTo = other.hmmTo; other.hmmTo = t;
+		t = id; id = other.id; other.id = t;
+		t = count; count = other.count; other.count = t;
+		double[] e = evalue; evalue = other.evalue; other.evalue = e;
+		byte[] k = kind; kind = other.kind; other.kind = k;
+		int s = size; size = other.size; other.size = s;
+	}
+
+	/**
+	 * @return a reusable int array of at least n elements, filled with 0
+	 * @param slot which of the work arrays
+	 */
+	public int[] work(int slot, int n) {
+		if (work[slot] == null || work[slot].length < n)
+			work[slot] = new int[Math.max(n, aliFrom.length)];
+		else
+			Arrays.fill(work[slot], 0, n, 0);
+		return work[slot];
+	}
+
+	/**
+	 * @return a reusable long array of at least n elements, for sort keys
+	 * @param slot which of the key arrays (sort() uses 0)
+	 */
+	public long[] keys(int slot, int n) {
+		if (keys[slot] == null || keys[slot].length < n)
+			keys[slot] = new long[Math.max(n, aliFrom.length)];
+		return keys[slot];
+	}
+
+	/**
+	 * @return the hits as Domains, in order
+	 */
+	public List<Domain> toDomains() {
+		List<Domain> domains = new ArrayList<Domain>(size);
+		for (int i = 0; i < size; i++) {
+			Domain dom = new Domain(name(id[i]), aliFrom[i], aliTo[i], hmmFrom[i], hmmTo[i], evalue[i]);
+			if (kind[i] == MERGED)
+				dom.setComment(count[i]+" merged hits");
+			else if (kind[i] == COLLAPSED)
+				dom.setComment("collapsed "+count[i]+" instances");
+			domains.add(dom);
+		}
+		return domains;
+	}
+
+	private void allocate(int capacity) {
+		aliFrom = new int[capacity];
+		aliTo = new int[capacity];
+		hmmFrom = new int[capacity];
+		hmmTo = new int[capacity];
+		id = new int[capacity];
+		count = new int[capacity];
+		evalue = new double[capacity];
+		kind = new byte[capacity];
+	}
+
+	private void grow() {
+		int capacity = aliFrom.length * 2;
+		aliFrom = Arrays.copyOf(aliFrom, capacity);
+		aliTo = Arrays.copyOf(aliTo, capacity);
+		hmmFrom = Arrays.copyOf(hmmFrom, capacity);
+		hmmTo = Arrays.copyOf(hmmTo, capacity);
+		id = Arrays.copyOf(id, capacity);
+		count = Arrays.copyOf(count, capacity);
+		evalue = Arrays.copyOf(evalue, capacity);
+		kind = Arrays.copyOf(kind, capacity);
+	}
+
+
+	/**
+	 * Domain IDs and their codes. Codes are handed out by one thread;
+	 * other threads may look up the names of codes handed to them (e.g.
+	 * through a queue, see ParallelAnnotationIterator).
+	 */
+	private static class Ids {
+
+		private Map<String, Integer> codes = new HashMap<String, Integer>();
+		// replaced when full, so readers never see a half copied array
+		private volatile String[] names = new String[64];
+		private int count = 0;
+
+		int code(String ID) {
+			Integer code = codes.get(ID);
+			if (code == null) {
+				code = count;
+				codes.put(ID, code);
+				String[] n = names;
+				if (count == n.length)
+					n = Arrays.copyOf(n, count * 2);
+				n[count++] = ID;
+				names = n;
+			}
+			return code;
+		}
+
+		String name(int code) {
+			return names[code];
+		}
+	}
+
+}
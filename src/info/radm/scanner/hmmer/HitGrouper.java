@@ -0,0 +1,180 @@
+package info.radm.scanner.hmmer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Class HitGrouper
+ * Reads hmmscan (domtblout) or pfamscan output and collects the hits
+ * of one protein at a time, applying the e-value threshold, without
+ * post-processing them (see PostProcessor). The hits of a protein must
+ * be consecutive in the input. Proteins without hits are left out if
+ * the ScanOptions say so. Every hit read, whatever the threshold, can be
+ * recorded in a hit store on the way (see setStore()).
+ */
+final class HitGrouper implements HitSource {
+
+	private InputStream in;
+	private LineTokenizer tok;
+	private ScanOptions options;
+	private boolean pfamscan, pending = false;
+	private int idField, didField, columns;
+	private Double evalue;
+	private ClanIndex clanIndex;
+	private long lines = 0;
+
+	private byte[] currentId;
+	private String currentName, name;
+	private int currentLength, length;
+	private HitBuffer hits = new HitBuffer();
+	private HitStoreWriter store;
+
+
+	HitGrouper(InputStream in, int format, ScanOptions options) {
+		this.options = options;
+		this.evalue = options.getEvalueThreshold();
+		this.clanIndex = options.getClanIndex();
+		this.pfamscan = (format == HmmerParser.PFAMSCAN);
+		// hmmscan:  0 domain id, 1 domain acc, 3 protein id, 5 protein length,
+		//           12 i-Evalue, 15/16 hmm coord, 17/18 ali coord, 19/20 env coord
+		// pfamscan: 0 protein id, 1/2 ali coord, 3/4 env coord, 5 domain acc,
+		//           6 domain id, 8/9 hmm coord, 12 evalue, 14 clan
+		this.columns = pfamscan ? 15 : 19;
+		this.idField = pfamscan ? 0 : 3;
+		if (pfamscan)
+			this.didField = options.isAccessions() ? 5 : 6;
+		else
+			this.didField = options.isAccessions() ? 1 : 0;
+		this.in = in;
+		this.tok = new LineTokenizer(in, columns);
+	}
+
+	/**
+	 * Records every hit read in store (which is not closed), to be called
+	 * before the first protein is read
+	 * @param store
+	 */
+	void setStore(HitStoreWriter store) {
+		this.store = store;
+		// hmmscan envelope coordinates come after the columns parsed otherwise
+		if (! pfamscan )
+			this.tok = new LineTokenizer(in, 21);
+	}
+
+	public boolean next() throws IOException {
+
+		hits.clear();
+		while ( pending || nextLine() ) {
+			pending = false;
+			if ( tok.isComment() || tok.isEmpty() )
+				continue;
+			if (tok.fieldCount() < columns)
+				throw new IOException("Unexpected number of columns in "+(pfamscan ? "pfamscan" : "hmmscan")+
+						" output: "+tok.fieldCount());
+
+			int idLength = HmmerParser.proteinIdLength(tok, idField);
+			if ( (currentId != null) && (!tok.fieldEquals(idField, idLength, currentId)) ) {
+				if ( finish() ) {
+					// the current line starts the next protein
+					pending = true;
+					return true;
+				}
+			}
+			if (currentId == null) {
+				currentId = tok.getBytes(idField, idLength);
+				currentName = tok.getString(idField, idLength);
+				currentLength = pfamscan ? -1 : tok.parseInt(5);
+				if (store != null)
+					store.protein(currentName, currentLength);
+			}
+			if (store != null)
+				storeHit();
+
+			double iEvalue = tok.parseDouble(12);
+			if (evalue != null && iEvalue > evalue)
+				continue;
+
+			// ensure that the version number is removed if we are
+			// in acc mode
+			String did = null;
+			if ( pfamscan && options.isClans() && HmmerParser.isClan(tok, 14) )
+				did = tok.intern(14, tok.fieldLength(14));
+			else if ( !pfamscan && options.isClans() && clanIndex != null )
+				did = clanIndex.getClan(tok.intern(1, HmmerParser.accessionLength(tok, 1)));
+			if (did == null)
+				did = tok.intern(didField, options.isAccessions() ?
+						HmmerParser.accessionLength(tok, didField) : tok.fieldLength(didField));
+
+			int aliFrom, aliTo, hmmFrom, hmmTo;
+			if (pfamscan) {
+				aliFrom = tok.parseInt(1);
+				aliTo = tok.parseInt(2);
+				hmmFrom = tok.parseInt(8);
+				hmmTo = tok.parseInt(9);
+			}
+			else {
+				aliFrom = tok.parseInt(17);
+				aliTo = tok.parseInt(18);
+				hmmFrom = tok.parseInt(15);
+				hmmTo = tok.parseInt(16);
+			}
+			hits.add(hits.code(did), aliFrom, aliTo, hmmFrom, hmmTo, iEvalue);
+		}
+		return (currentId != null) && finish();
+	}
+
+	public HitBuffer getHits() {
+		return hits;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public long getLines() {
+		return lines;
+	}
+
+	public long getBytesRead() {
+		return tok.getBytesRead();
+	}
+
+	// all fields of the current line the store keeps
+	private void storeHit() throws IOException {
+		if (! pfamscan && tok.fieldCount() < 21)
+			throw new IOException("Unexpected number of columns in hmmscan output: "+tok.fieldCount());
+		int nameField = pfamscan ? 6 : 0, accField = pfamscan ? 5 : 1;
+		String clan = null;
+		if ( pfamscan && HmmerParser.isClan(tok, 14) )
+			clan = tok.intern(14, tok.fieldLength(14));
+		int domain = store.domain(tok.intern(nameField, tok.fieldLength(nameField)),
+				tok.intern(accField, HmmerParser.accessionLength(tok, accField)), clan);
+		if (pfamscan)
+			store.hit(domain, tok.parseDouble(12), tok.parseDouble(11), tok.parseInt(1), tok.parseInt(2),
+					tok.parseInt(8), tok.parseInt(9), tok.parseInt(3), tok.parseInt(4));
+		else
+			store.hit(domain, tok.parseDouble(12), tok.parseDouble(13), tok.parseInt(17), tok.parseInt(18),
+					tok.parseInt(15), tok.parseInt(16), tok.parseInt(19), tok.parseInt(20));
+	}
+
+	private boolean nextLine() throws IOException {
+		if (! tok.nextLine() )
+			return false;
+		lines++;
+		return true;
+	}
+
+	// ends the current protein, false if it is left out
+	private boolean finish() {
+		currentId = null;
+		name = currentName;
+		length = currentLength;
+		return !(hits.isEmpty() && options.isRemoveEmpties());
+	}
+
+}
@@ -0,0 +1,41 @@
+package info.radm.scanner.hmmer;
+
+import java.io.IOException;
+
+
+/**
+ * Interface HitSource
+ * Hands out the hits of one protein at a time, before post-processing
+ * (see PostProcessor): read from hmmscan or pfamscan output (HitGrouper)
+ * or from a hit store (HitStoreReader).
+ */
+interface HitSource {
+
+	/**
+	 * Collects the hits of the next protein
+	 * @return false at the end of the input
+	 * @throws IOException
+	 */
+	boolean next() throws IOException;
+
+	/**
+	 * @return the hits of the current protein, in input order (the buffer
+	 * is reused for the next protein)
+	 */
+	HitBuffer getHits();
+
+	String getName();
+
+	/**
+	 * @return the length of the current protein, -1 if unknown
+	 */
+	int getLength();
+
+	/**
+	 * @return the number of records (lines, hits) read so far
+	 */
+	long getLines();
+
+	long getBytesRead();
+
+}
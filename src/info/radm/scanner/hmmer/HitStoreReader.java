@@ -0,0 +1,252 @@
+package info.radm.scanner.hmmer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * Class HitStoreReader
+ * Reads the hits of a hit store (see HitStoreWriter) protein by protein,
+ * as HitGrouper reads them from text: with the domains named according
+ * to the ScanOptions and hits above the evalue threshold left out. The
+ * threshold is applied to the evalue column first, and by the range of
+ * evalues of a group: groups whose hits all pass are copied without
+ * looking at single hits, and of groups whose hits all fail only the
+ * proteins are read (or nothing, if empty proteins are left out).
+ */
+final class HitStoreReader implements HitSource {
+
+	private static final int TRAILER = 8 + HitStoreWriter.MAGIC.length;
+
+	private FileChannel ch;
+	private ScanOptions options;
+	private Double evalue;
+	private long bytesRead = 0, hitsRead = 0;
+
+	private HitBuffer hits = new HitBuffer();
+	// hit buffer code of each domain of the store
+	private int[] codes;
+	// group directory
+	private long[] groupOffsets;
+	private int[] groupProteins, groupHits, groupNames;
+	private double[] groupMin, groupMax;
+	private int group = -1;
+
+	// the current group
+	private ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+	private String[] names = new String[HitStoreWriter.GROUP_PROTEINS];
+	private int proteins = 0, protein = 0, hit = 0, groupHitNo = 0;
+	private boolean columns, all;
+	private int lengthsAt, countsAt, evalueAt, intsAt;
+
+	private String name;
+	private int length;
+
+
+	/**
+	 * @param store
+	 * @param options as for the format of the store (see format())
+	 * @throws IOException if store is not a hit store
+	 */
+	HitStoreReader(File store, ScanOptions options) throws IOException {
+
+		this.options = options;
+		this.evalue = options.getEvalueThreshold();
+		this.ch = FileChannel.open(store.toPath(), StandardOpenOption.READ);
+		try {
+			int format = readHeader(ch);
+			long size = ch.size();
+			ByteBuffer trailer = read(size - TRAILER, TRAILER);
+			long footer = trailer.getLong();
+			byte[] magic = new byte[HitStoreWriter.MAGIC.length];
+			trailer.get(magic);
+			if (! Arrays.equals(magic, HitStoreWriter.MAGIC) || footer < 0 || footer > size - TRAILER)
+				throw new IOException("hit store "+store.getPath()+" is truncated");
+			ByteBuffer f = read(footer, (int) (size - TRAILER - footer));
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(f.array(), 0, f.limit()));
+			codes = new int[in.readInt()];
+			for (int d = 0; d < codes.length; d++) {
+				String name = in.readUTF(), accession = in.readUTF(), clan = in.readUTF();
+				String label = options.isAccessions() ? accession : name;
+				if (format == HmmerParser.PFAMSCAN && options.isClans() && !clan.isEmpty())
+					label = clan;
+				else if (format == HmmerParser.HMMSCAN && options.isClans() && options.getClanIndex() != null) {
+					clan = options.getClanIndex().getClan(accession);
+					if (clan != null)
+						label = clan;
+				}
+				codes[d] = hits.code(label);
+			}
+			int groups = in.readInt();
+			groupOffsets = new long[groups];
+			groupProteins = new int[groups];
+			groupHits = new int[groups];
+			groupNames = new int[groups];
+			groupMin = new double[groups];
+			groupMax = new double[groups];
+			for (int g = 0; g < groups; g++) {
+				groupOffsets[g] = in.readLong();
+				groupProteins[g] = in.readInt();
+				groupHits[g] = in.readInt();
+				groupNames[g] = in.readInt();
+				groupMin[g] = in.readDouble();
+				groupMax[g] = in.readDouble();
+			}
+		}
+		catch (EOFException eofe) {
+			ch.close();
+			throw new IOException("hit store "+store.getPath()+" is corrupt");
+		}
+		catch (IOException ioe) {
+			ch.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * @return HmmerParser.HMMSCAN or PFAMSCAN, as the hits were read from,
+	 * or HmmerParser.UNKNOWN if file is not a hit store
+	 */
+	static int format(File file) {
+		try {
+			FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				return readHeader(ch);
+			}
+			finally {
+				ch.close();
+			}
+		}
+		catch (IOException ioe) {
+			return HmmerParser.UNKNOWN;
+		}
+	}
+
+	public boolean next() throws IOException {
+
+		while (true) {
+			while (protein == proteins) {
+				if (! nextGroup() )
+					return false;
+			}
+			hits.clear();
+			int count = buf.getInt(countsAt + 4 * protein);
+			if (columns) {
+				for (int h = hit; h < hit + count; h++) {
+					double e = buf.getDouble(evalueAt + 8 * h);
+					if (!all && e > evalue)
+						continue;
+					hits.add(codes[buf.getInt(intsAt + 4 * h)], buf.getInt(intsAt + 4 * (groupHitNo + h)),
+							buf.getInt(intsAt + 4 * (2 * groupHitNo + h)), buf.getInt(intsAt + 4 * (3 * groupHitNo + h)),
+							buf.getInt(intsAt + 4 * (4 * groupHitNo + h)), e);
+				}
+				hitsRead += count;
+			}
+			hit += count;
+			name = names[protein];
+			length = buf.getInt(lengthsAt + 4 * protein);
+			protein++;
+			if (! (hits.isEmpty() && options.isRemoveEmpties()) )
+				return true;
+		}
+	}
+
+	public HitBuffer getHits() {
+		return hits;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of hits read so far
+	 */
+	public long getLines() {
+		return hitsRead;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	void close() throws IOException {
+		ch.close();
+	}
+
+	// loads the next group that may hold proteins to return
+	private boolean nextGroup() throws IOException {
+
+		while (++group < groupOffsets.length) {
+			int p = groupProteins[group], h = groupHits[group];
+			boolean none = (evalue != null && groupMin[group] > evalue);
+			if (none && options.isRemoveEmpties())
+				continue;
+			all = (evalue == null || groupMax[group] <= evalue);
+			columns = !none;
+			long head = groupNames[group] + 8L * p;
+			long bytes = columns ? head + (16L + 4 * HitStoreWriter.INT_COLUMNS) * h : head;
+			if (bytes > Integer.MAX_VALUE)
+				throw new IOException("hit store group "+group+" is too large");
+			buf = read(groupOffsets[group], (int) bytes);
+			bytesRead += bytes;
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array(), 0, groupNames[group]));
+			for (int i = 0; i < p; i++)
+				names[i] = in.readUTF();
+			lengthsAt = groupNames[group];
+			countsAt = lengthsAt + 4 * p;
+			evalueAt = countsAt + 4 * p;
+			// after evalue and score: domain, aliFrom, aliTo, hmmFrom, hmmTo, ...
+			intsAt = evalueAt + 16 * h;
+			groupHitNo = h;
+			proteins = p;
+			protein = hit = 0;
+			return true;
+		}
+		return false;
+	}
+
+	// reads length bytes at offset into buf (grown if needed)
+	private ByteBuffer read(long offset, int length) throws IOException {
+		ByteBuffer b = (buf != null && buf.capacity() >= length) ? buf : ByteBuffer.allocate(Math.max(length, 1 << 16));
+		b.clear();
+		b.limit(length);
+		long pos = offset;
+		int r;
+		while ( b.hasRemaining() && (r = ch.read(b, pos)) > 0 )
+			pos += r;
+		if (b.hasRemaining())
+			throw new EOFException();
+		b.flip();
+		return b;
+	}
+
+	private static int readHeader(FileChannel ch) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HitStoreWriter.MAGIC.length + 2);
+		while ( header.hasRemaining() && ch.read(header, header.position()) > 0 );
+		byte[] magic = new byte[HitStoreWriter.MAGIC.length];
+		header.flip();
+		if (header.remaining() < magic.length + 2)
+			throw new IOException("not a hit store");
+		header.get(magic);
+		if (! Arrays.equals(magic, HitStoreWriter.MAGIC) )
+			throw new IOException("not a hit store");
+		int version = header.get();
+		if (version != HitStoreWriter.VERSION)
+			throw new IOException("unsupported hit store version "+version);
+		return header.get();
+	}
+
+}
@@ -0,0 +1,222 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Class HitStoreWriter
+ * Writes every hit of hmmscan or pfamscan output, before any threshold
+ * or post-processing, to a hit store, from which the output can be
+ * parsed again with other options (see HitStoreReader) without reading
+ * the text again:
+ *
+ * <pre>
+ * file     := "BHITS" version(1) format(1) group* footer footer offset(u64) "BHITS"
+ * group    := names lengths(i32 * #proteins) hits(i32 * #proteins)
+ *             evalue(f64 * #hits) score(f64 * #hits) domain(i32 * #hits)
+ *             aliFrom aliTo hmmFrom hmmTo envFrom envTo(i32 * #hits each)
+ * names    := name(utf) * #proteins
+ * footer   := #domains(i32) (name(utf) accession(utf) clan(utf))*
+ *             #groups(i32) (offset(u64) #proteins(i32) #hits(i32) names length(i32)
+ *             min evalue(f64) max evalue(f64))*
+ * </pre>
+ *
+ * A group holds GROUP_PROTEINS proteins, stored column by column. The
+ * footer lists the domains (accession without version, clan "" if there
+ * is none) and, for each group, the range of its i-Evalues, so that
+ * a reader can skip groups and columns that an evalue threshold rules
+ * out. Proteins are named as in xdom (without version), format is
+ * HmmerParser.HMMSCAN or HmmerParser.PFAMSCAN (whose options differ).
+ *
+ * The store is written next to its target and moved in place by close().
+ */
+final class HitStoreWriter {
+
+	static final byte[] MAGIC = { 'B', 'H', 'I', 'T', 'S' };
+	static final int VERSION = 1;
+	static final int GROUP_PROTEINS = 1024;
+	// int columns of a group, after evalue and score
+	static final int INT_COLUMNS = 7;
+
+	private File target, tmp;
+	private DataOutputStream out;
+	private long offset;
+
+	private Map<String, Integer> domains = new HashMap<String, Integer>();
+	private List<String[]> domainList = new ArrayList<String[]>();
+
+	// the group being filled
+	private List<String> names = new ArrayList<String>(GROUP_PROTEINS);
+	private ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+	private DataOutputStream nameData = new DataOutputStream(nameBytes);
+	private int[] lengths = new int[GROUP_PROTEINS], counts = new int[GROUP_PROTEINS];
+	private int proteins = 0, hits = 0;
+	private double[] evalue = new double[1024], score = new double[1024];
+	private int[][] columns = new int[INT_COLUMNS][1024];
+	private double minEvalue, maxEvalue;
+
+	private DataOutputStream directory;
+	private ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+	private int groups = 0;
+
+
+	/**
+	 * @param target the store (not compressed)
+	 * @param format HmmerParser.HMMSCAN or HmmerParser.PFAMSCAN
+	 * @throws IOException
+	 */
+	HitStoreWriter(File target, int format) throws IOException {
+		if (Compression.forName(target) != Compression.NONE)
+			throw new IOException("hit stores can not be compressed");
+		this.target = target;
+		this.tmp = new File(target.getPath()+".tmp");
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		this.directory = new DataOutputStream(directoryBytes);
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.write(format);
+		offset = MAGIC.length + 2;
+	}
+
+	/**
+	 * @return the number of a domain, the same for the same name and clan
+	 */
+	int domain(String name, String accession, String clan) {
+		String key = (clan != null) ? name+"\t"+clan : name;
+		Integer domain = domains.get(key);
+		if (domain == null) {
+			domain = domainList.size();
+			domains.put(key, domain);
+			domainList.add(new String[] { name, accession, (clan != null) ? clan : "" });
+		}
+		return domain;
+	}
+
+	/**
+	 * Starts the next protein
+	 * @throws IOException
+	 */
+	void protein(String name, int length) throws IOException {
+		if (proteins == GROUP_PROTEINS)
+			flushGroup();
+		names.add(name);
+		lengths[proteins] = length;
+		counts[proteins++] = 0;
+	}
+
+	/**
+	 * Adds a hit to the current protein
+	 */
+	void hit(int domain, double evalue, double score, int aliFrom, int aliTo, int hmmFrom, int hmmTo,
+			int envFrom, int envTo) {
+		if (hits == this.evalue.length) {
+			this.evalue = Arrays.copyOf(this.evalue, hits * 2);
+			this.score = Arrays.copyOf(this.score, hits * 2);
+			for (int c = 0; c < INT_COLUMNS; c++)
+				columns[c] = Arrays.copyOf(columns[c], hits * 2);
+		}
+		if (hits == 0 || evalue < minEvalue)
+			minEvalue = evalue;
+		if (hits == 0 || evalue > maxEvalue)
+			maxEvalue = evalue;
+		this.evalue[hits] = evalue;
+		this.score[hits] = score;
+		columns[0][hits] = domain;
+		columns[1][hits] = aliFrom;
+		columns[2][hits] = aliTo;
+		columns[3][hits] = hmmFrom;
+		columns[4][hits] = hmmTo;
+		columns[5][hits] = envFrom;
+		columns[6][hits] = envTo;
+		hits++;
+		counts[proteins - 1]++;
+	}
+
+	/**
+	 * Writes the last group and the footer and moves the store in place
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		try {
+			flushGroup();
+			long footer = offset;
+			out.writeInt(domainList.size());
+			for (String[] domain : domainList) {
+				out.writeUTF(domain[0]);
+				out.writeUTF(domain[1]);
+				out.writeUTF(domain[2]);
+			}
+			out.writeInt(groups);
+			directoryBytes.writeTo(out);
+			out.writeLong(footer);
+			out.write(MAGIC);
+			out.close();
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			out.close();
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Gives up the store, e.g. if the input turned out to be malformed
+	 */
+	void discard() {
+		try {
+			out.close();
+		}
+		catch (IOException ioe) {
+			// deleted anyway
+		}
+		tmp.delete();
+	}
+
+	private void flushGroup() throws IOException {
+
+		if (proteins == 0)
+			return;
+		nameBytes.reset();
+		for (String name : names)
+			nameData.writeUTF(name);
+		int namesLength = nameBytes.size();
+		nameBytes.writeTo(out);
+		for (int p = 0; p < proteins; p++)
+			out.writeInt(lengths[p]);
+		for (int p = 0; p < proteins; p++)
+			out.writeInt(counts[p]);
+		for (int h = 0; h < hits; h++)
+			out.writeDouble(evalue[h]);
+		for (int h = 0; h < hits; h++)
+			out.writeDouble(score[h]);
+		for (int c = 0; c < INT_COLUMNS; c++)
+			for (int h = 0; h < hits; h++)
+				out.writeInt(columns[c][h]);
+
+		directory.writeLong(offset);
+		directory.writeInt(proteins);
+		directory.writeInt(hits);
+		directory.writeInt(namesLength);
+		directory.writeDouble(hits > 0 ? minEvalue : Double.NaN);
+		directory.writeDouble(hits > 0 ? maxEvalue : Double.NaN);
+		groups++;
+		offset += namesLength + 8L * proteins + (16L + 4 * INT_COLUMNS) * hits;
+		names.clear();
+		proteins = hits = 0;
+	}
+
+}
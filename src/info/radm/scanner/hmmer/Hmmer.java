@@ -1,11 +1,24 @@
 package info.radm.scanner.hmmer;
 
+import info.radm.scanner.metrics.Metrics;
+import info.radm.scanner.metrics.ScanProgress;
+import info.radm.scanner.utils.Compression;
+import info.radm.scanner.utils.StreamFeeder;
 import info.radm.scanner.utils.StreamGobbler;
+import info.radm.scanner.utils.TeeInputStream;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 
 import javax.swing.SwingWorker;
 
@@ -16,18 +29,41 @@ import javax.swing.SwingWorker;
  * Runs hmmerscan from HMMER3 against pressed Pfam-A models.
  * The Pfam-A models muss be pressed using hmmpress, and must reside
  * as a file Pfam-A.hmm in workingdir.
+ * Alternatively searches with the models held by hmmpgmd (see
+ * HmmpgmdDaemon), writing the same domtblout.
+ * Several model files can be scanned against at once: one hmmscan
+ * process runs per model file, concurrently, and their hits are merged
+ * per protein (see DomtbloutMerger) into one domtblout, and scans can be
+ * restricted to some families by subsets of the model files (see
+ * ModelSubsets).
+ * Compressed input is fed to hmmscan through its standard input, and the
+ * hmmscan output is compressed if it is saved under a compressed name
+ * (see Compression).
+ * The wall time of every hmmscan process and hmmpgmd search is recorded
+ * (see Metrics), and the progress of the scan can be reported (see
+ * ScanProgress).
  * 
  * @author Andrew D. Moore <radmoore@uni-muenster.de>
  *
  */
 public class Hmmer extends SwingWorker<Integer, Void> {
 	
-	private String modelPath, evalueString;
+	private String evalueString;
+	private List<String> modelPaths = new ArrayList<String>();
 	//private static String PFAMBNAME = "Pfam-B.hmm";
 	private String hmmerscanBin = "./hmmscan" ;
 	private String CPUs = "1";
+	private int shards = 1;
+	private File cacheDir;
+	private long cacheSize = 1024L << 20;
 	private File inputFile, outputFile, workingDir, hmmoutFile, tempDir;
-	private boolean verbose, saveOutFile = false;
+	private boolean verbose, saveOutFile = false, stream = false, dedup = false;
+	private Deduplicator deduplicator;
+	private HmmpgmdDaemon pgmd;
+	private ScanProgress progress;
+	private Process streamingProcess;
+	private InputStream domtbloutStream;
+	private static final File STDOUT = new File("/dev/stdout");
 	
 	
 	public Hmmer(String inputFilePath, String outputFilePath, String workingDirPath) {
@@ -37,7 +73,7 @@ public class Hmmer extends SwingWorker<Integer, Void> {
 			this.outputFile = new File(outputFilePath);
 			this.workingDir = new File(workingDirPath);
 			this.hmmerscanBin = workingDir.getAbsolutePath()+"/hmmscan";
-			this.modelPath = workingDir.getAbsolutePath()+"/Pfam-A.hmm";
+			this.modelPaths.add(workingDir.getAbsolutePath()+"/Pfam-A.hmm");
 			this.tempDir = new File(System.getProperty("java.io.tmpdir"));
 		}
 		catch(Exception e) {
@@ -57,10 +93,78 @@ public class Hmmer extends SwingWorker<Integer, Void> {
 	
 	/**
 	 * 
-	 * @param hmmName
+	 * @return the (first) model file
+	 */
+	public String getModelPath() {
+		return this.modelPaths.get(0);
+	}
+	
+	/**
+	 * 
+	 * @return all model files scanned against
+	 */
+	public List<String> getModelPaths() {
+		return this.modelPaths;
+	}
+	
+	/**
+	 * 
+	 * @param hmmName model file in the working directory, or several
+	 * separated by commas (e.g. Pfam-A.hmm,inhouse.hmm)
 	 */
 	public void setModelFile(String hmmName) {
-		this.modelPath = workingDir.getAbsolutePath()+"/"+hmmName;
+		this.modelPaths.clear();
+		for (String name : hmmName.split(","))
+			if (! name.trim().isEmpty() )
+				this.modelPaths.add(workingDir.getAbsolutePath()+"/"+name.trim());
+	}
+	
+	/**
+	 * 
+	 * @param modelPaths model files by path (e.g. as returned by
+	 * getModelPaths() of another scan)
+	 */
+	public void setModelPaths(List<String> modelPaths) {
+		this.modelPaths = new ArrayList<String>(modelPaths);
+	}
+	
+	/**
+	 * Scan against the subsets of the model files that hold families
+	 * (accessions or IDs) only, built with hmmpress from the working
+	 * directory and kept in subsetDir for later runs (see ModelSubsets).
+	 * Model files holding none of the families are left out.
+	 * @param families
+	 * @param subsetDir
+	 * @return false if no subset could be built
+	 */
+	public boolean useSubsets(Collection<String> families, File subsetDir) {
+		
+		List<String> subsetPaths = new ArrayList<String>();
+		try {
+			ModelSubsets subsets = new ModelSubsets(subsetDir, workingDir.getAbsolutePath()+"/hmmpress");
+			subsets.setVerbose(verbose);
+			for (String modelPath : modelPaths) {
+				File subset = subsets.get(new File(modelPath), families);
+				if (subset != null)
+					subsetPaths.add(subset.getAbsolutePath());
+			}
+			Set<String> missing = new TreeSet<String>(families);
+			missing.removeAll(subsets.getFound());
+			if (! missing.isEmpty() )
+				System.err.println("INFO: "+missing.size()+" famil"+(missing.size() == 1 ? "y" : "ies")+
+						" not found in the model file(s): "+String.join(",", missing));
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not build the model subset in "+subsetDir.getAbsolutePath());
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+		if (subsetPaths.isEmpty()) {
+			System.err.println("ERROR: none of the families found in the model file(s).");
+			return false;
+		}
+		modelPaths = subsetPaths;
+		return true;
 	}
 	
 	/**
@@ -87,6 +191,24 @@ public class Hmmer extends SwingWorker<Integer, Void> {
 		
 	}
 	
+	/**
+	 * Write the hmmscan output to domtblout, without keeping it
+	 * (instead of a temporary file, see Checkpoint)
+	 * @param domtblout
+	 */
+	public void setScratchFile(File domtblout) {
+		this.hmmoutFile = domtblout;
+	}
+	
+	/**
+	 * Scan fasta instead of the input file given to the constructor
+	 * (e.g. one segment of it)
+	 * @param fasta
+	 */
+	public void setInputFile(File fasta) {
+		this.inputFile = fasta;
+	}
+	
 	public void setTempDir(String tempDirPath) {
 		try {
 			this.tempDir = new File(tempDirPath);
@@ -113,6 +235,105 @@ public class Hmmer extends SwingWorker<Integer, Void> {
 		this.CPUs = CPUs;
 	}
 	
+	/**
+	 * Number of hmmscan processes to run concurrently, each on its own
+	 * shard of the input (see FastaSharder)
+	 * @param shards
+	 */
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+	
+	/**
+	 * Reuse the results of sequences scanned before (with the same models
+	 * and threshold), see ResultCache
+	 * @param cacheDirPath
+	 */
+	public void setCacheDir(String cacheDirPath) {
+		this.cacheDir = new File(cacheDirPath);
+	}
+	
+	/**
+	 * 
+	 * @param megabytes
+	 */
+	public void setCacheSize(long megabytes) {
+		this.cacheSize = megabytes << 20;
+	}
+	
+	/**
+	 * Scan identical sequences only once (see Deduplicator)
+	 * @param dedup
+	 */
+	public void setDedupMode(boolean dedup) {
+		this.dedup = dedup;
+	}
+	
+	/**
+	 * If true, the hmmout file only holds the distinct sequences of the
+	 * input and the xdom parsed from it needs to be expanded, see
+	 * expandXdom()
+	 * @return
+	 */
+	public boolean needsXdomExpansion() {
+		return deduplicator != null && !saveOutFile;
+	}
+	
+	/**
+	 * Expands the xdom of the distinct sequences to all input sequences
+	 * @param uniqueXdom
+	 * @param xdom
+	 * @return false on failure
+	 */
+	public boolean expandXdom(File uniqueXdom, File xdom) {
+		try {
+			deduplicator.expandXdom(uniqueXdom, xdom);
+			return true;
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not expand "+uniqueXdom.getAbsolutePath());
+			System.err.println(ioe.getMessage());
+			return false;
+		}
+		finally {
+			deduplicator.cleanUp();
+		}
+	}
+	
+	/**
+	 * Search with the models held by a running hmmpgmd instead of
+	 * running hmmscan (see HmmpgmdDaemon)
+	 * @param pgmd
+	 */
+	public void setDaemon(HmmpgmdDaemon pgmd) {
+		this.pgmd = pgmd;
+	}
+	
+	/**
+	 * Count the queries searched, for progress reports
+	 * @param progress
+	 */
+	public void setProgress(ScanProgress progress) {
+		this.progress = progress;
+	}
+	
+	/**
+	 * Have hmmscan write its domtblout to stdout, to be parsed while
+	 * the scan is running (see startStreaming())
+	 * @param stream
+	 */
+	public void setStreamMode(boolean stream) {
+		this.stream = stream;
+	}
+	
+	/**
+	 * 
+	 * @return
+	 */
+	public boolean isStreaming() {
+		return stream;
+	}
+	
 	/**
 	 * 
 	 * @param verbose
@@ -141,7 +362,7 @@ public class Hmmer extends SwingWorker<Integer, Void> {
 			} 
 			catch (IOException ioe) {
 				System.err.println("ERROR: there was a problem creating "+outputFile);
-				System.exit(-1);
+				return false;
 			}
 		}
 		
@@ -164,14 +385,62 @@ public class Hmmer extends SwingWorker<Integer, Void> {
 				return false;
 			}
 		}
+		if (shards < 1) {
+			System.err.println("ERROR: invalid number of shards: "+ shards +". Exiting.");
+			return false;
+		}
+		if (stream && shards > 1) {
+			System.err.println("INFO: Streaming not supported for sharded scans - ignoring.");
+			stream = false;
+		}
+		if (cacheSize < 1) {
+			System.err.println("ERROR: invalid cache size: "+ (cacheSize >> 20) +". Exiting.");
+			return false;
+		}
+		if (modelPaths.isEmpty()) {
+			System.err.println("ERROR: no model file given. Exiting.");
+			return false;
+		}
+		if (stream && modelPaths.size() > 1) {
+			System.err.println("INFO: Streaming not supported with several model files - ignoring.");
+			stream = false;
+		}
+		if (pgmd != null && modelPaths.size() > 1) {
+			System.err.println("INFO: hmmpgmd not supported with several model files - ignoring.");
+			pgmd = null;
+		}
+		if (stream && pgmd != null) {
+			System.err.println("INFO: Streaming not supported with hmmpgmd - ignoring.");
+			stream = false;
+		}
+		if (shards > 1 && pgmd != null) {
+			System.err.println("INFO: Sharding not supported with hmmpgmd - ignoring.");
+			shards = 1;
+		}
+		if (stream && dedup) {
+			System.err.println("INFO: Streaming not supported with deduplication - ignoring.");
+			stream = false;
+		}
+		if (stream && cacheDir != null) {
+			System.err.println("INFO: Streaming not supported with a result cache - ignoring.");
+			stream = false;
+		}
+		// hmmscan writes streamed or compressed output to stdout
+		boolean toStdout = stream || (hmmoutFile != null && shards == 1 && pgmd == null &&
+				Compression.forName(hmmoutFile) != Compression.NONE);
+		if (toStdout && !STDOUT.exists()) {
+			System.err.println("ERROR: streaming and compressed hmmscan output need "+STDOUT.getPath()+
+					", which this system does not have. Exiting.");
+			return false;
+		}
 		// domtblout file
-		if (this.hmmoutFile == null) {
+		if (this.hmmoutFile == null && !stream) {
 			try {
 				hmmoutFile = File.createTempFile("hmmscan_run_", ".domtblout", tempDir.getAbsoluteFile());
 			}
 			catch (IOException ioe){
 				System.err.println("ERROR: could not create temporary file. Exiting.");
-				System.exit(-1);
+				return false;
 			}
 		}
 		return true;
@@ -182,53 +451,429 @@ public class Hmmer extends SwingWorker<Integer, Void> {
 	 */
 	public Integer doInBackground() {
 
+		if (dedup)
+			return doDedupScan();
+		if (cacheDir != null)
+			return doCachedScan(inputFile, hmmoutFile);
+		return scan(inputFile, hmmoutFile);
+	}
+	
+	/**
+	 * Scans each distinct sequence of the input once. The hmmout file is
+	 * expanded to all input sequences only if it is to be saved, otherwise
+	 * the xdom is expanded after parsing (see expandXdom()).
+	 * @return
+	 */
+	private int doDedupScan() {
+		
+		int exitValue = -1;
+		deduplicator = new Deduplicator(inputFile);
+		File uniqueOut = null;
+		try {
+			File uniqueFasta = deduplicator.collapse(tempDir);
+			if (verbose)
+				System.out.println("INFO: "+deduplicator.getUniqueCount()+" distinct of "+
+						deduplicator.getSequenceCount()+" sequence(s).");
+			uniqueOut = (saveOutFile) ? 
+					File.createTempFile("hmmscan_unique_", ".domtblout", tempDir.getAbsoluteFile()) : hmmoutFile;
+			exitValue = (cacheDir != null) ? doCachedScan(uniqueFasta, uniqueOut) : scan(uniqueFasta, uniqueOut);
+			if (exitValue == 0 && saveOutFile)
+				deduplicator.expandDomtblout(uniqueOut, hmmoutFile);
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not deduplicate "+inputFile.getAbsolutePath());
+			System.err.println(ioe.getMessage());
+			exitValue = -1;
+		}
+		finally {
+			if (saveOutFile && uniqueOut != null)
+				uniqueOut.delete();
+			// otherwise still needed by expandXdom()
+			if (saveOutFile || exitValue != 0)
+				deduplicator.cleanUp();
+		}
+		return exitValue;
+	}
+	
+	/**
+	 * Scans only the sequences that are not in the result cache, and
+	 * merges their results with the cached ones into domtblout.
+	 * @return
+	 */
+	private int doCachedScan(File fasta, File domtblout) {
+		
+		int exitValue = 0;
+		ScanPlan plan = null;
+		File missOut = null;
+		try {
+			List<File> modelFiles = new ArrayList<File>();
+			for (String modelPath : modelPaths)
+				modelFiles.add(new File(modelPath));
+			ResultCache cache = new ResultCache(cacheDir, modelFiles, thresholdArgs(), cacheSize);
+			plan = new ScanPlan(fasta, cache);
+			int misses = plan.prepare(tempDir);
+			if (verbose)
+				System.out.println("INFO: "+misses+" sequence(s) not in cache.");
+			if (misses > 0) {
+				missOut = File.createTempFile("hmmscan_misses_", ".domtblout", tempDir.getAbsoluteFile());
+				exitValue = scan(plan.getMissFasta(), missOut);
+			}
+			if (exitValue == 0)
+				plan.assemble(missOut, domtblout);
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not use result cache "+cacheDir.getAbsolutePath());
+			System.err.println(ioe.getMessage());
+			exitValue = -1;
+		}
+		finally {
+			if (plan != null)
+				plan.cleanUp();
+			if (missOut != null)
+				missOut.delete();
+		}
+		return exitValue;
+	}
+	
+	/**
+	 * Scans fasta into domtblout (against all model files, sharded, if
+	 * requested)
+	 * @return hmmscan exit value
+	 */
+	private int scan(File fasta, File domtblout) {
+
+		if (pgmd != null)
+			return pgmdScan(fasta, domtblout);
+		if (modelPaths.size() > 1)
+			return doMultiModelScan(fasta, domtblout);
+		return scan(fasta, domtblout, modelPaths.get(0));
+	}
+	
+	/**
+	 * Scans fasta against one model file into domtblout (sharded, if
+	 * requested)
+	 * @return hmmscan exit value
+	 */
+	private int scan(File fasta, File domtblout, String model) {
+		
+		if (shards > 1)
+			return doShardedScan(fasta, domtblout, model);
+		
+		int exitValue = -1;
+		// hmmscan writes compressed output through Java
+		boolean compress = Compression.forName(domtblout) != Compression.NONE;
+		Process process = startHmmscan(prepareArgs(fasta, compress ? STDOUT : domtblout, model), fasta, !compress);
+		if (process == null)
+			return exitValue;
+		try {
+			if (compress)
+				copy(follow(process.getInputStream(), fasta), domtblout);
+			exitValue = process.waitFor();
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not write "+domtblout.getAbsolutePath());
+			System.err.println(ioe.getMessage());
+			process.destroy();
+		}
+		catch (InterruptedException ire) {
+			ire.printStackTrace();
+		}
+		return exitValue;
+	}
+	
+	/**
+	 * Searches fasta with hmmpgmd into domtblout. If the search fails,
+	 * it is repeated once the daemon is back (see HmmpgmdDaemon).
+	 * @return 0 on success
+	 */
+	private int pgmdScan(File fasta, File domtblout) {
+		
+		for (int attempt = 0; ; attempt++) {
+			Metrics.Scan scan = Metrics.startScan("hmmpgmd", fasta);
+			try {
+				HmmpgmdClient client = new HmmpgmdClient(pgmd.getPort());
+				if (attempt == 0)
+					expect(fasta);
+				client.setProgress(progress);
+				try {
+					int sequences = client.scan(fasta, domtblout, thresholdArgs());
+					scan.end(0);
+					if (verbose)
+						System.out.println("INFO: "+sequences+" sequence(s) searched with hmmpgmd.");
+					return 0;
+				}
+				finally {
+					client.close();
+				}
+			}
+			catch (IOException ioe) {
+				scan.end(-1);
+				if (attempt == 0 && pgmd.awaitReady()) {
+					System.err.println("INFO: hmmpgmd search failed ("+ioe.getMessage()+") - retrying.");
+					continue;
+				}
+				System.err.println("ERROR: hmmpgmd search failed: "+ioe.getMessage());
+				return -1;
+			}
+		}
+	}
+	
+	/**
+	 * Scans fasta against all model files concurrently and merges their
+	 * hits per query into domtblout, so the slowest model file takes
+	 * the time, not all of them.
+	 * @return 0 if all scans succeeded
+	 */
+	private int doMultiModelScan(final File fasta, File domtblout) {
+		
+		int exitValue = 0;
+		final File[] modelOuts = new File[modelPaths.size()];
+		final int[] exitValues = new int[modelOuts.length];
+		Arrays.fill(exitValues, -1);
+		try {
+			for (int i = 0; i < modelOuts.length; i++)
+				modelOuts[i] = File.createTempFile("hmmscan_model_", ".domtblout", tempDir.getAbsoluteFile());
+			Thread[] scans = new Thread[modelOuts.length];
+			for (int i = 1; i < modelOuts.length; i++) {
+				final int model = i;
+				scans[i] = new Thread("hmmscan-"+i) {
+					public void run() {
+						exitValues[model] = scan(fasta, modelOuts[model], modelPaths.get(model));
+					}
+				};
+				scans[i].start();
+			}
+			exitValues[0] = scan(fasta, modelOuts[0], modelPaths.get(0));
+			for (int i = 1; i < scans.length; i++)
+				scans[i].join();
+			for (int i = 0; i < exitValues.length; i++) {
+				if (exitValues[i] != 0) {
+					System.err.println("ERROR: scan against "+modelPaths.get(i)+" failed.");
+					exitValue = exitValues[i];
+				}
+			}
+			if (exitValue == 0)
+				new DomtbloutMerger(fasta).merge(modelOuts, domtblout);
+		}
+		catch (InterruptedException ire) {
+			ire.printStackTrace();
+			exitValue = -1;
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not merge the hits of all model files in "+tempDir.getAbsolutePath());
+			System.err.println(ioe.getMessage());
+			exitValue = -1;
+		}
+		finally {
+			deleteAll(modelOuts);
+		}
+		return exitValue;
+	}
+	
+	/**
+	 * Splits the input into shards balanced by residue count, scans all
+	 * shards concurrently and stitches the results back together
+	 * (in input order) into domtblout.
+	 * @return
+	 */
+	private int doShardedScan(File fasta, File domtblout, String model) {
+		
+		int exitValue = 0;
+		FastaSharder sharder = new FastaSharder(fasta, shards);
+		File[] shardFastas = null, shardOuts = null;
+		try {
+			shardFastas = sharder.split(tempDir);
+			shardOuts = new File[shardFastas.length];
+			Process[] processes = new Process[shardFastas.length];
+			for (int i = 0; i < shardFastas.length; i++) {
+				shardOuts[i] = File.createTempFile("hmmscan_shard_", ".domtblout", tempDir.getAbsoluteFile());
+				processes[i] = startHmmscan(prepareArgs(shardFastas[i], shardOuts[i], model), shardFastas[i], true);
+			}
+			for (Process process : processes) {
+				int shardExit = (process == null) ? -1 : process.waitFor();
+				if (shardExit != 0)
+					exitValue = shardExit;
+			}
+			if (exitValue == 0)
+				sharder.stitch(shardOuts, domtblout);
+		}
+		catch (InterruptedException ire) {
+			ire.printStackTrace();
+			exitValue = -1;
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not prepare or merge shards in "+tempDir.getAbsolutePath());
+			System.err.println(ioe.getMessage());
+			exitValue = -1;
+		}
+		finally {
+			deleteAll(shardFastas);
+			deleteAll(shardOuts);
+		}
+		return exitValue;
+	}
+	
+	/**
+	 * Starts hmmscan in streaming mode and returns its domtblout output.
+	 * The output is copied to the hmmout file on the fly if it is to be
+	 * saved. Call waitForStream() once the stream has been consumed.
+	 * @return the domtblout stream, or null if hmmscan could not be started
+	 */
+	public InputStream startStreaming() {
+		
+		streamingProcess = startHmmscan(prepareArgs(inputFile, STDOUT, getModelPath()), inputFile, false);
+		if (streamingProcess == null)
+			return null;
+		domtbloutStream = follow(streamingProcess.getInputStream(), inputFile);
+		if (saveOutFile) {
+			try {
+				domtbloutStream = new TeeInputStream(domtbloutStream,
+						new BufferedOutputStream(Compression.create(hmmoutFile), 1 << 16));
+			}
+			catch (IOException ioe) {
+				System.err.println("ERROR: could not write to "+hmmoutFile.getAbsolutePath()+". Exiting.");
+				System.exit(-1);
+			}
+		}
+		return domtbloutStream;
+	}
+	
+	/**
+	 * Drains whatever is left of the stream returned by startStreaming()
+	 * and waits for hmmscan to finish.
+	 * @return hmmscan exit value
+	 */
+	public int waitForStream() {
+		
 		int exitValue = -1;
-		List<String> command = prepareArgs();
+		if (streamingProcess == null)
+			return exitValue;
+		try {
+			byte[] buf = new byte[8192];
+			while (domtbloutStream.read(buf) != -1)
+				;
+		}
+		catch (IOException ioe) {
+			// already closed by the consumer
+		}
+		try {
+			domtbloutStream.close();
+			exitValue = streamingProcess.waitFor();
+		}
+		catch (IOException ioe) {
+			System.err.println(ioe.getMessage());
+		}
+		catch (InterruptedException ire) {
+			ire.printStackTrace();
+		}
+		return exitValue;
+	}
+	
+	// returns null if hmmscan could not be started
+	private Process startHmmscan(List<String> command, File fasta, boolean gobbleStdout) {
+		
+		Process process = null;
 		try {
       		ProcessBuilder pb = new ProcessBuilder(command);
       		//pb.redirectErrorStream(true);
-      		Process process = pb.start();
-      		StreamGobbler stdoutStg = new StreamGobbler(process.getInputStream(), verbose);
+      		expect(fasta);
+      		final Metrics.Scan scan = Metrics.startScan("hmmscan", fasta);
+      		process = pb.start();
+      		process.onExit().thenAccept(new Consumer<Process>() {
+      			public void accept(Process p) {
+      				scan.end(p.exitValue());
+      			}
+      		});
+      		if (gobbleStdout) {
+      			StreamGobbler stdoutStg = new StreamGobbler(process.getInputStream(), verbose, progress);
+      			stdoutStg.start();
+      		}
       		StreamGobbler stderrStg = new StreamGobbler(process.getErrorStream(), true);
-      		stdoutStg.start();
       		stderrStg.start();
-      		
-      		exitValue = process.waitFor();
-
+      		if (Compression.isCompressed(fasta))
+      			new StreamFeeder(fasta, process).start();
 		}
-  		catch (InterruptedException ire) {
-  			ire.printStackTrace();
-  		}
 		catch (IOException ioe) {
 			String commandString = "";
 			for (String s: command)
 					commandString += " "+s;
 			System.err.println("ERROR: there were problems running the command:\n\n\t"+commandString+"\n");
 			System.err.println(ioe.getMessage());
-			System.exit(-1);
 		}
-		return exitValue;
+		return process;
+	}
+	
+	private void expect(File fasta) {
+		if (progress == null)
+			return;
+		try {
+			progress.expect(fasta);
+		}
+		catch (IOException ioe) {
+			System.err.println("INFO: could not count the queries of "+fasta.getPath()+" - "+ioe.getMessage());
+		}
+	}
+	
+	// counts the queries of hmmscan's domtblout output, as it is read
+	private InputStream follow(InputStream domtblout, File fasta) {
+		if (progress == null)
+			return domtblout;
+		try {
+			return progress.follow(domtblout, fasta);
+		}
+		catch (IOException ioe) {
+			System.err.println("INFO: could not follow the progress of "+fasta.getPath()+" - "+ioe.getMessage());
+			return domtblout;
+		}
+	}
+	
+	private static void copy(InputStream in, File target) throws IOException {
+		OutputStream out = Compression.create(target);
+		try {
+			byte[] buf = new byte[1 << 16];
+			int r;
+			while ( (r = in.read(buf)) != -1 )
+				out.write(buf, 0, r);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private static void deleteAll(File[] files) {
+		if (files == null)
+			return;
+		for (File f : files)
+			if (f != null)
+				f.delete();
+	}
+	
+	// --cut_ga or -E <evalue>
+	private String thresholdArgs() {
+		return (evalueString == null) ? "--cut_ga" : "-E "+evalueString;
 	}
 	
 	/**
 	 * 
 	 * @return
 	 */
-	private List<String> prepareArgs() {
+	private List<String> prepareArgs(File fasta, File domtblout, String model) {
 		List<String> command = new ArrayList<String>();
    		command.add(hmmerscanBin);
-   		command.add("--domtblout");
-   		command.add(hmmoutFile.getAbsolutePath());
-   		if (evalueString == null)
-   			command.add("--cut_ga");
-   		else {
-   			command.add("-E");
-   			command.add(evalueString);
+   		// keep stdout free for the domtblout
+   		if (domtblout == STDOUT) {
+   			command.add("-o");
+   			command.add("/dev/null");
    		}
+   		command.add("--domtblout");
+   		command.add(domtblout.getAbsolutePath());
+   		for (String arg : thresholdArgs().split(" "))
+   			command.add(arg);
    		command.add("--cpu");	
    		command.add(CPUs);
-   		command.add(modelPath);
-   		command.add(inputFile.getAbsolutePath());
+   		command.add(model);
+   		// compressed input is fed through stdin (see startHmmscan())
+   		command.add(Compression.isCompressed(fasta) ? "-" : fasta.getAbsolutePath());
 		return command;
 	}
 
@@ -1,16 +1,19 @@
 package info.radm.scanner.hmmer;
 
+import info.radm.scanner.utils.Compression;
 
-
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.TreeMap;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,18 +22,24 @@ import java.util.regex.Pattern;
  * Class HmmerParser
  * 
  * Parses the output obtained from running hmmscan to xdom.
+ * (File to file front end of DomainAnnotator, which can be used
+ * directly when embedding the parser.)
  * 
  * @author Andrew D. Moore <radmoore@uni-muenster.de>
  */
 public class HmmerParser {
 	
-	private File domtblout, outfile;
+	private File domtblout, outfile, hitStore;
+	private InputStream domtbloutStream;
 	private boolean merge = false, resolveOverlaps = false, collapse = false, accMode = false,
-			removeEmpties = false, clanMode = false;
+			removeEmpties = false, clanMode = false, clanOverlaps = false, binary = false;
 	private Double evalue = null;
-	private int repNo = 0;
+	private ClanIndex clanIndex;
+	private int repNo = 0, threads = 1;
+	private long minChunk = ParallelParser.MIN_CHUNK;
 	public static int HMMSCAN = 0;
 	public static int PFAMSCAN = 1;
+	public static int HITSTORE = 2;
 	public static int UNKNOWN = -1;
 	
 	
@@ -45,14 +54,49 @@ public class HmmerParser {
 		}
 	}
 	
+	/**
+	 * Parses hmmscan output from a stream, e.g. while hmmscan is still
+	 * writing it (see Hmmer.startStreaming()).
+	 * @param domtbloutStream
+	 * @param outfilePath
+	 */
+	public HmmerParser(InputStream domtbloutStream, String outfilePath) {
+		this.domtbloutStream = domtbloutStream;
+		this.outfile = new File(outfilePath);
+	}
+	
 	public static int determineFileFormat(String domtbloutPath) {
 		
-		String line = null;
 		int type = -1;
 		try {
-			FileInputStream fis = new FileInputStream(new File(domtbloutPath));
-			DataInputStream dis = new DataInputStream(fis);
-			BufferedReader br = new BufferedReader(new InputStreamReader(dis));
+			type = detectFormat(new File(domtbloutPath));
+			if (type == UNKNOWN) {
+				System.err.println("Could not determine file type of "+domtbloutPath +". Trying HMMSCAN but that may not work.");
+				type = HMMSCAN;
+			}
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+		return type;
+	}
+	
+	/**
+	 * As determineFileFormat(), but quiet, for the library (see
+	 * DomainAnnotator)
+	 * @param file
+	 * @return HMMSCAN, PFAMSCAN, HITSTORE, or UNKNOWN if there is no hit
+	 * to tell by
+	 * @throws IOException if file can not be read
+	 */
+	static int detectFormat(File file) throws IOException {
+		
+		if (HitStoreReader.format(file) != UNKNOWN)
+			return HITSTORE;
+		String line = null;
+		int type = UNKNOWN;
+		BufferedReader br = new BufferedReader(new InputStreamReader(Compression.open(file)));
+		try {
 			Pattern comment = Pattern.compile("^#.*");
 			Pattern empty = Pattern.compile("^$");
 			Pattern pfamId = Pattern.compile("PF\\d+.\\d+");
@@ -81,21 +125,30 @@ public class HmmerParser {
 					}
 				}
 			}
-			br.close();
-			dis.close();
-			fis.close();
-			
-			if (type == -1) {
-				System.err.println("Could not determine file type of "+domtbloutPath +". Trying HMMSCAN but that may not work.");
-				type = HMMSCAN;
-			}
 		}
-		catch (IOException ioe) {
-			ioe.printStackTrace();
+		finally {
+			br.close();
 		}
 		return type;
 	}
 	
+	/**
+	 * Sets all options at once, as a DomainAnnotator takes them
+	 * @param options
+	 */
+	public void setOptions(ScanOptions options) {
+		this.merge = options.isMerge();
+		this.resolveOverlaps = options.isResolveOverlaps();
+		this.clanOverlaps = options.isResolveClanOverlaps();
+		this.clanIndex = options.getClanIndex();
+		this.accMode = options.isAccessions();
+		this.clanMode = options.isClans();
+		this.removeEmpties = options.isRemoveEmpties();
+		this.collapse = options.getCollapseRepeats() > 0;
+		this.repNo = options.getCollapseRepeats();
+		this.evalue = options.getEvalueThreshold();
+	}
+	
 	public void setMergeMode() {
 		this.merge = true;
 	}
@@ -117,10 +170,65 @@ public class HmmerParser {
 		this.resolveOverlaps = true;
 	}
 	
+	/**
+	 * Clans of Pfam families, with which hmmscan output can be mapped to
+	 * clans (setClanMode()) and overlaps resolved within clans
+	 * @param clanIndex
+	 */
+	public void setClanIndex(ClanIndex clanIndex) {
+		this.clanIndex = clanIndex;
+	}
+	
+	/**
+	 * Resolve overlaps between domains of the same clan, as pfam_scan.pl
+	 * does (needs a clan index)
+	 */
+	public void setClanOverlapsMode() {
+		this.clanOverlaps = true;
+	}
+	
+	/**
+	 * Parse with this many threads. Uncompressed files are split into
+	 * chunks parsed in parallel (see ParallelParser), other input is read
+	 * on one thread and post-processed on the others (see
+	 * ParallelAnnotationIterator).
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * Smallest chunk the parallel parser splits a file into (1 MB by
+	 * default), e.g. to split small files
+	 * @param bytes
+	 */
+	void setMinChunk(long bytes) {
+		this.minChunk = bytes;
+	}
+	
+	/**
+	 * Also write every hit read (whatever the threshold) to a hit store,
+	 * which can be parsed with other options much faster than the text
+	 * (see hitstore2xdom()). Output is then parsed on one thread, and
+	 * post-processed on the others.
+	 * @param path
+	 */
+	public void setHitStore(String path) {
+		this.hitStore = new File(path);
+	}
+	
 	public void setRemoveEmpties() {
 		this.removeEmpties = true;
 	}
 	
+	/**
+	 * Write binary xdom (see BinaryXdomWriter) instead of text
+	 */
+	public void setBinaryOutput() {
+		this.binary = true;
+	}
+	
 	// handle wrong format _before_ running hmmer
 	public void setEvalueThreshold(Double evalue) {
 		this.evalue = evalue;
@@ -131,7 +239,8 @@ public class HmmerParser {
 	}
 	
 	public void destroyHmmoutFile () {
-		this.domtblout.delete();
+		if (this.domtblout != null)
+			this.domtblout.delete();
 	}
 	
 	public boolean isHmmscanOut() {
@@ -144,487 +253,505 @@ public class HmmerParser {
 	
 	public void hmmscan2xdom() {
 		
-		TreeMap<Integer, Domain> currentDoms = new TreeMap<Integer, Domain>();
-		Pattern comment = Pattern.compile("^#.+");
-		
+		if (parallel()) {
+			new ParallelParser(this, threads, minChunk).parse(domtblout, outfile, HMMSCAN);
+			if (binary)
+				convertOutput();
+			return;
+		}
 		try {
-			FileWriter fw = new FileWriter(outfile);
-					
-			String line;
-			FileInputStream fis = new FileInputStream(this.domtblout);
-			DataInputStream dis = new DataInputStream(fis);
-			BufferedReader br = new BufferedReader(new InputStreamReader(dis));
-			String currentId = null;
-			StringBuilder xdom = new StringBuilder();
-			int didField = 0;
-			
-			if ( accMode )
-				didField = 1 ;
-			
-			
-			while((line = br.readLine())!= null) {	
-				if (comment.matcher(line).matches())
-					continue;
-				
-				String[] fields = line.split("\\s+");
-				
-				// 0 -> domain id
-				// 1 -> domain acc
-				// 3 -> protein ID
-				// 5 -> protein length
-				// 12 -> domain I-evalue
-				// 15, 16 -> hmm coord
-				// 17, 18 -> align coord
-				// 19, 20 -> env coord
-				String thisId = fields[3];
-				Pattern p = Pattern.compile("\\w+.\\d+");
-				Matcher m = p.matcher(thisId);
-				if (m.find()) {
-					String[] pidFields = thisId.split("\\.");
-					thisId = pidFields[0];
-				}
-				if ( (currentId != null) && (!thisId.equals(currentId)) ) {
-					if (xdom.length() != 0) {
-
-						if (! (currentDoms.isEmpty() && removeEmpties))
-							fw.write(xdom.toString()+"\n");
-
-						if (! currentDoms.isEmpty() ) {
-							// merge split hits
-							if ( merge )
-								currentDoms = mergeHits( currentDoms );
-			
-							// resolve overlaps
-							if ( resolveOverlaps )
-								resolveOverlaps( currentDoms, null );
-													
-							// write the rest of the domains
-							for (int key : currentDoms.keySet()) {
-								Domain cdom;
-								if ( (cdom = currentDoms.get(key)) != null)
-										fw.write(cdom.toString()+"\n");
-							}
-						}
-					}
-					xdom.setLength(0);
-					currentDoms.clear();
-				}
-				
-				if (xdom.length() == 0) {
-					currentId = fields[3];
-					p = Pattern.compile("\\w+.\\d+");
-					m = p.matcher(currentId);
-					if (m.find()) {
-						String[] pidFields = currentId.split("\\.");
-						currentId = pidFields[0];
-					}
-					
-					xdom.setLength(0);
-					xdom.append(">"+currentId+"\t"+fields[5]);
-				}
-				if (evalue != null)
-					if (Double.parseDouble(fields[12]) > evalue)
-						continue;
-			
-				// ensure that the version number is removed if we are
-				// in acc mode
-				String did = fields[didField] ;
-				if ( accMode ) {
-					p = Pattern.compile("PF\\d+.\\d+");
-					m = p.matcher(did);
-					if (m.find()) {
-						String[] didFields = did.split("\\.");
-						did = didFields[0];
-					}
-				}
-				
-				Domain dom = new Domain(did,
-						Integer.parseInt(fields[17]), 
-						Integer.parseInt(fields[18]),
-						Integer.parseInt(fields[15]),
-						Integer.parseInt(fields[16]),
-						Double.parseDouble(fields[12]));
-				
-				currentDoms.put(Integer.parseInt(fields[17]), dom);
-			}
-			if (xdom.length() != 0) {
-				if (! (currentDoms.isEmpty() && removeEmpties))
-					fw.write(xdom.toString()+"\n");
-				if (! currentDoms.isEmpty() ) {
-					if ( merge )
-						currentDoms = mergeHits( currentDoms );
-					
-					if ( resolveOverlaps )
-						resolveOverlaps( currentDoms, null );
-				
-					for (int key : currentDoms.keySet()) {
-						Domain cdom = currentDoms.get(key);
-						if ( (cdom = currentDoms.get(key)) != null)
-							fw.write(cdom.toString()+"\n");
-					}
-				}
-			}			
+			AnnotationSink sink = openOutput();
+			InputStream fis = openInput();
+			toXdom(fis, sink, HMMSCAN, threads);
 			fis.close();
-			dis.close();
-			br.close();
-			fw.close();
+			sink.close();
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}	
 	}
 	
+	void hmmscan2xdom(InputStream fis, Writer fw) throws IOException {
+		toXdom(fis, fw, HMMSCAN);
+	}
+	
 	//<seq id> <alignment start> <alignment end> <envelope start> <envelope end> 
 	//<hmm acc> <hmm name> <type> <hmm start> <hmm end> <hmm length> <bit score> <E-value> <significance> <clan>
 	public void pfamscan2xdom() {
 		
-		TreeMap<Integer, Domain> currentDoms = new TreeMap<Integer, Domain>();
-		Pattern comment = Pattern.compile("^#.*");
-		Pattern empty = Pattern.compile("^$");
-		
+		if (parallel()) {
+			new ParallelParser(this, threads, minChunk).parse(domtblout, outfile, PFAMSCAN);
+			if (binary)
+				convertOutput();
+			return;
+		}
 		try {
-			FileWriter fw = new FileWriter(outfile);
-					
-			String line;
-			FileInputStream fis = new FileInputStream(this.domtblout);
-			DataInputStream dis = new DataInputStream(fis);
-			BufferedReader br = new BufferedReader(new InputStreamReader(dis));
-			String currentId = null;
-			StringBuilder xdom = new StringBuilder();
-			int didField = 6;
-			
-			if ( accMode )
-				didField = 5;
-			
-			while((line = br.readLine())!= null) {	
-				if (comment.matcher(line).matches())
-					continue;
-				if (empty.matcher(line).matches())
-					continue;
-				
-				String[] fields = line.split("\\s+");
-				
-				// 0 -> protein id
-				// 5 -> domain acc
-				// 6 -> domain name (id)
-				// 12 -> domain evalue
-				// 8, 9 -> hmm coord
-				// 1, 2 -> align coord
-				// 3, 4 -> env coord
-				// 15 -> clanid 
-				String thisId = fields[0];
-				Pattern p = Pattern.compile("\\w+.\\d+");
-				Matcher m = p.matcher(thisId);
-				if (m.find()) {
-					String[] pidFields = thisId.split("\\.");
-					thisId = pidFields[0];
-				}
-				if ( (currentId != null) && (!thisId.equals(currentId)) ) {
-					if (xdom.length() != 0) {
-						fw.write(xdom.toString()+"\n");
-						// merge split hits
-						if ( merge )
-							currentDoms = mergeHits( currentDoms );
-		
-						// resolve overlaps
-						if ( resolveOverlaps )
-							resolveOverlaps( currentDoms, null );
-		
-						if ( collapse )
-							currentDoms = collapseRepeats( currentDoms );
-						
-						// write the rest of the domains
-						for (int key : currentDoms.keySet()) {
-							Domain cdom = currentDoms.get(key);
-							if ( (cdom = currentDoms.get(key)) != null)
-								fw.write(cdom.toString()+"\n");
-						}
-					}
-					xdom.setLength(0);
-					currentDoms.clear();
-				}
-				
-				if (xdom.length() == 0) {
-					currentId = fields[0];
-					p = Pattern.compile("\\w+.\\d+");
-					m = p.matcher(currentId);
-					if (m.find()) {
-						String[] pidFields = currentId.split("\\.");
-						currentId = pidFields[0];
-					}
-					xdom.setLength(0);
-					xdom.append(">"+currentId);
-				}
-				if (evalue != null)
-					if (Double.parseDouble(fields[12]) > evalue)
-						continue;
-			
-				// ensure that the version number is removed if we are
-				// in acc mode
-				String did = fields[didField] ;
-				if ( accMode ) {
-					p = Pattern.compile("PF\\d+.\\d+");
-					m = p.matcher(did);
-					if (m.find()) {
-						String[] didFields = did.split("\\.");
-						did = didFields[0];
-					}
-				}
-				if ( clanMode ) {
-					p = Pattern.compile("CL\\d+");
-					m = p.matcher(fields[14]);
-					if (m.find())
-						did = fields[14];
-				}
-
-				Domain dom = new Domain(did,
-						Integer.parseInt(fields[1]), 
-						Integer.parseInt(fields[2]),
-						Integer.parseInt(fields[8]),
-						Integer.parseInt(fields[9]),
-						Double.parseDouble(fields[12]));
-				
-				currentDoms.put(Integer.parseInt(fields[1]), dom);
-			}
-			if (xdom.length() != 0) {
-				fw.write(xdom.toString()+"\n");
-				if ( merge )
-					currentDoms = mergeHits( currentDoms );
-				
-				if ( resolveOverlaps )
-					resolveOverlaps( currentDoms, null );
-			
-				if ( collapse )
-					currentDoms = collapseRepeats( currentDoms );
-				
-				for (int key : currentDoms.keySet()) {
-					Domain cdom = currentDoms.get(key);
-					if ( (cdom = currentDoms.get(key)) != null)
-						fw.write(cdom.toString()+"\n");
-				}
-			}			
+			AnnotationSink sink = openOutput();
+			InputStream fis = openInput();
+			toXdom(fis, sink, PFAMSCAN, threads);
 			fis.close();
-			dis.close();
-			br.close();
-			fw.close();
+			sink.close();
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}	
 	}
 	
-	private TreeMap<Integer, Domain> collapseRepeats(TreeMap<Integer, Domain> doms) {
-		
-		TreeMap<Integer, Domain> collpasedDomains = new TreeMap<Integer, Domain>();
-		ArrayList<Domain> domainHolding = new ArrayList<Domain>();
+	void pfamscan2xdom(InputStream fis, Writer fw) throws IOException {
+		toXdom(fis, fw, PFAMSCAN);
+	}
+	
+	/**
+	 * Parses a hit store (see setHitStore()) instead of text, with the
+	 * options that apply to the output it was made from
+	 */
+	public void hitstore2xdom() {
 		
-		Domain lastDom = null;
-		for (Domain cDom: doms.values()) {
-			
-			if (lastDom == null) {
-				domainHolding.add(cDom);
-				lastDom = cDom;
-				continue;
+		try {
+			ScanOptions options = getOptions(HitStoreReader.format(domtblout));
+			HitStoreReader store = new HitStoreReader(domtblout, options);
+			AnnotationSink sink = openOutput();
+			try {
+				toXdom((threads > 1) ? new ParallelAnnotationIterator(store, options, threads) :
+					new AnnotationIterator(store, options), sink);
 			}
-			
-			if ( lastDom.ID.equals(cDom.ID) ) 
-				domainHolding.add(cDom);
-			
-			else {
-				if (domainHolding.size() >= repNo) {
-					Domain firstRepDom = domainHolding.get(0);
-					Domain d = new Domain(lastDom.ID, firstRepDom.aliFrom, lastDom.aliTo, -1, -1, -1);
-					d.setComment("collapsed "+domainHolding.size()+" instances");
-					collpasedDomains.put(d.aliFrom, d);
-				}
-				else {
-					for (Domain d : domainHolding)
-						collpasedDomains.put(d.aliFrom, d);
-					
-				}
-				domainHolding.clear();
-				domainHolding.add(cDom);
+			finally {
+				store.close();
+				sink.close();
 			}
-			lastDom = cDom;
 		}
-		if (domainHolding.size() >= repNo) {
-			Domain firstRepDom = domainHolding.get(0);
-			Domain d = new Domain(lastDom.ID, firstRepDom.aliFrom, lastDom.aliTo, -1, -1, -1);
-			d.setComment("collapsed "+domainHolding.size()+" instances");
-			collpasedDomains.put(d.aliFrom, d);
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * The options set on this parser, as they have always applied to
+	 * each format: only hmmscan output honours removeEmpties, only
+	 * pfamscan output is collapsed, and hmmscan output is mapped to clans
+	 * only with a clan index.
+	 */
+	ScanOptions getOptions(int format) {
+		ScanOptions.Builder b = new ScanOptions.Builder();
+		if ( merge )
+			b.merge();
+		if ( resolveOverlaps )
+			b.resolveOverlaps();
+		if ( accMode )
+			b.accessions();
+		if ( evalue != null )
+			b.evalueThreshold(evalue);
+		if ( clanOverlaps )
+			b.resolveClanOverlaps();
+		b.clanIndex(clanIndex);
+		if (format == PFAMSCAN) {
+			if ( collapse )
+				b.collapseRepeats(repNo);
+			if ( clanMode )
+				b.clans();
 		}
 		else {
-			for (Domain d : domainHolding)
-				collpasedDomains.put(d.aliFrom, d);
+			if ( removeEmpties )
+				b.removeEmpties();
+			if ( clanMode && clanIndex != null )
+				b.clans();
+		}
+		return b.build();
+	}
+	
+	// one chunk of the parallel parser
+	private void toXdom(InputStream fis, Writer fw, int format) throws IOException {
+		ScanOptions options = getOptions(format);
+		toXdom(new AnnotationIterator(new HitGrouper(fis, format, options), options), new XdomWriter(fw));
+	}
+	
+	// post-processes on threads threads if more than one, writes the hit store if set
+	private void toXdom(InputStream fis, AnnotationSink xdom, int format, int threads) throws IOException {
+		ScanOptions options = getOptions(format);
+		HitGrouper grouper = new HitGrouper(fis, format, options);
+		HitStoreWriter store = null;
+		if (hitStore != null) {
+			store = new HitStoreWriter(hitStore, format);
+			grouper.setStore(store);
+		}
+		try {
+			toXdom((threads > 1) ? new ParallelAnnotationIterator(grouper, options, threads) :
+				new AnnotationIterator(grouper, options), xdom);
+		}
+		catch (IOException ioe) {
+			if (store != null)
+				store.discard();
+			throw ioe;
+		}
+		if (store != null)
+			store.close();
+	}
+	
+	private void toXdom(Iterator<ProteinAnnotation> it, AnnotationSink xdom) throws IOException {
+		try {
+			while (it.hasNext())
+				xdom.accept(it.next());
+		}
+		catch (UncheckedIOException uioe) {
+			throw uioe.getCause();
 		}
-		return collpasedDomains;
 	}
 	
+	/**
+	 * The protein ID as written to xdom (see proteinIdLength())
+	 */
+	static String proteinId(String id) {
+		for (int k = 2; k < id.length(); k++) {
+			char c = id.charAt(k), w = id.charAt(k - 2);
+			if (c >= '0' && c <= '9' && w < 128 && isWordChar((byte) w)) {
+				int dot = id.indexOf('.');
+				return (dot < 0) ? id : id.substring(0, dot);
+			}
+		}
+		return id;
+	}
+	
+	/**
+	 * Length of the protein ID in field, without version number
+	 * (P12345.2 -> P12345). Same as matching \w+.\d+ and cutting
+	 * the ID at the first dot.
+	 */
+	static int proteinIdLength(LineTokenizer tok, int field) {
+		int len = tok.fieldLength(field);
+		for (int k = 2; k < len; k++) {
+			if (isDigit(tok.byteAt(field, k)) && isWordChar(tok.byteAt(field, k - 2))) {
+				int dot = tok.indexOf(field, (byte) '.');
+				return (dot < 0) ? len : dot;
+			}
+		}
+		return len;
+	}
 	
-	private TreeMap<Integer, Domain> mergeHits(TreeMap<Integer, Domain> doms) {
+	/**
+	 * Length of a Pfam accession in field, without version number
+	 * (PF00002.12 -> PF00002). Same as matching PF\d+.\d+ and cutting
+	 * the accession at the first dot.
+	 */
+	static int accessionLength(LineTokenizer tok, int field) {
+		int len = tok.fieldLength(field);
+		for (int i = 0; i + 1 < len; i++) {
+			if (tok.byteAt(field, i) != 'P' || tok.byteAt(field, i + 1) != 'F')
+				continue;
+			for (int d = i + 2; d < len && isDigit(tok.byteAt(field, d)); d++) {
+				if (d + 2 < len && isDigit(tok.byteAt(field, d + 2))) {
+					int dot = tok.indexOf(field, (byte) '.');
+					return (dot < 0) ? len : dot;
+				}
+			}
+		}
+		return len;
+	}
+	
+	// CL\d+
+	static boolean isClan(LineTokenizer tok, int field) {
+		int len = tok.fieldLength(field);
+		for (int i = 0; i + 2 < len; i++)
+			if (tok.byteAt(field, i) == 'C' && tok.byteAt(field, i + 1) == 'L' && isDigit(tok.byteAt(field, i + 2)))
+				return true;
+		return false;
+	}
+	
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+	
+	private static boolean isWordChar(byte b) {
+		return isDigit(b) || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_';
+	}
+	
+	// compressed input can not be mapped in chunks, the hit store is written in order
+	private boolean parallel() {
+		return threads > 1 && domtbloutStream == null && !Compression.isCompressed(domtblout) && hitStore == null;
+	}
+	
+	private AnnotationSink openOutput() throws IOException {
+		if (binary)
+			return new BinaryXdomWriter(new BufferedOutputStream(Compression.create(outfile), 1 << 16));
+		return new XdomWriter(new BufferedWriter(new OutputStreamWriter(Compression.create(outfile))));
+	}
+	
+	// the parallel parser writes text xdom
+	private void convertOutput() {
+		try {
+			XdomConverter.toBinary(outfile);
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+	
+	private InputStream openInput() throws IOException {
+		if (domtbloutStream != null)
+			return domtbloutStream;
+		return Compression.open(this.domtblout);
+	}
+	
+	/**
+	 * Replaces runs of at least repNo successive hits to the same domain
+	 * by one collapsed hit spanning the run.
+	 */
+	static void collapseRepeats(HitBuffer hits, int repNo) {
 		
-		Domain lastDom = null, mergedDom = null;
-		int lastStart = 0;
+		HitBuffer collapsed = hits.scratch();
+		int runStart = 0;
+		for (int i = 1; i <= hits.size; i++) {
+			if (i < hits.size && hits.id[i] == hits.id[runStart])
+				continue;
+			int run = i - runStart;
+			if (run >= repNo)
+				collapsed.add(hits.id[runStart], hits.aliFrom[runStart], hits.aliTo[i - 1], -1, -1, -1,
+						HitBuffer.COLLAPSED, run);
+			else
+				for (int r = runStart; r < i; r++)
+					collapsed.add(hits, r);
+			runStart = i;
+		}
+		hits.swap(collapsed);
+	}
+	
+	/**
+	 * Merges split hits: successive hits to the same domain that follow
+	 * each other both in sequence and on the model.
+	 */
+	static void mergeHits(HitBuffer hits) {
+		
+		if (hits.size == 0)
+			return;
+		HitBuffer modified = hits.scratch();
+		int last = -1;
+		// the merged hit being built, if merging
+		boolean merging = false;
+		int mergedFrom = 0, mergedTo = 0, mergedHmmFrom = 0, mergedHmmTo = 0;
 		int numOfMerged = 1; // n merge operations means n+1 merged domains
-		TreeMap<Integer, Domain> modifedDoms = new TreeMap<Integer, Domain>();
-		for ( int startPos : doms.keySet() ) {
+		for (int cur = 0; cur < hits.size; cur++) {
 			
-			Domain curDom = doms.get(startPos);
-			
-			if (lastDom != null) {
+			if (last >= 0) {
 				// if the same domain type...
-				if (lastDom.getID().equals(curDom.getID())) {
+				if (hits.id[last] == hits.id[cur]) {
 					// ... check if split hits present
-					if ( (lastDom.getHmmTo() < curDom.getHmmFrom()) &&
-							(lastDom.getAliTo() < curDom.getAliFrom()) ) {
+					if ( (hits.hmmTo[last] < hits.hmmFrom[cur]) &&
+							(hits.aliTo[last] < hits.aliFrom[cur]) ) {
 						
-							numOfMerged += 1;
+						numOfMerged += 1;
 						// if we alread started a merged domain, extend
-						if (mergedDom != null){
-							mergedDom.setAliTo(curDom.getAliTo());
-							mergedDom.setComment(numOfMerged+" merged hits");
-						}
+						if (merging)
+							mergedTo = hits.aliTo[cur];
 						// else start new merged Domain
 						else {
-							mergedDom = new Domain(curDom.getID(), 
-									lastDom.getAliFrom(), // from beginning of last domain
-									curDom.getAliTo(),    // to end of current domain
-									lastDom.getHmmFrom(),
-									curDom.getHmmTo(),
-									-1);  // evalue?
-							mergedDom.setComment(numOfMerged+" merged hits");
+							merging = true;
+							mergedFrom = hits.aliFrom[last];	// from beginning of last domain
+							mergedTo = hits.aliTo[cur];			// to end of current domain
+							mergedHmmFrom = hits.hmmFrom[last];
+							mergedHmmTo = hits.hmmTo[cur];
 						}
 					}
 					// last domain ID is the same, but hits are not split
 					else {
-						modifedDoms.put(lastStart, lastDom);
+						modified.add(hits, last);
 					}
 				}
 				// last domain ID is different from current domain ID
 				else {
 					//first add merged domain, if present
-					if (mergedDom != null) {
-						modifedDoms.put(mergedDom.aliFrom, mergedDom);
-					}
+					if (merging)
+						modified.add(hits.id[last], mergedFrom, mergedTo, mergedHmmFrom, mergedHmmTo, -1,
+								HitBuffer.MERGED, numOfMerged);
 					// all is well - we will keep the last domain
-					else { 
-						modifedDoms.put(lastStart, lastDom);	
-					}
-					mergedDom = null;
+					else
+						modified.add(hits, last);
+					merging = false;
 					numOfMerged = 1;
 				}
 			}
-			lastStart = startPos;
-			lastDom = curDom;
-		}
-		if (mergedDom != null) {
-			mergedDom.setComment(numOfMerged+" merged hits");
-			modifedDoms.put(mergedDom.aliFrom, mergedDom);
+			last = cur;
 		}
+		if (merging)
+			modified.add(hits.id[last], mergedFrom, mergedTo, mergedHmmFrom, mergedHmmTo, -1,
+					HitBuffer.MERGED, numOfMerged);
 		// all is well - we will keep the last domain
 		else
-			modifedDoms.put(lastStart, lastDom);
+			modified.add(hits, last);
 		
-		return modifedDoms;
+		hits.swap(modified);
+		// merged hits are added once complete, after hits they precede
+		hits.sort();
 	}
 	
-	private void resolveOverlaps(TreeMap<Integer, Domain> doms, Domain lastDom) {
+	/**
+	 * Best match cascade: of two neighbouring (in sequence) domains that
+	 * overlap, the one with the higher evalue is removed. All overlapping
+	 * neighbours are flagged in one round and removed together, which
+	 * creates new neighbours, until no neighbours overlap any more.
+	 * Neighbours that did not overlap in one round cannot overlap in the
+	 * next, so each round only has to look at the pairs formed by the
+	 * removals of the previous round: O(n log n) overall.
+	 */
+	static void resolveOverlaps(HitBuffer hits) {
 		
-		ArrayList<Integer> flaggedToRemove = new ArrayList<Integer>();
-		int lastStart = 0;
-		for ( int startPos : doms.keySet() ) {
-			
-			Domain curDom = doms.get(startPos);
-			if (lastDom != null) {
-				if (lastDom.overlaps(curDom)) {
-					if (lastDom.getEvalue() >= curDom.getEvalue())
-						flaggedToRemove.add(lastStart);
-						else
-							flaggedToRemove.add(startPos);
+		int n = hits.size;
+		if (n < 2)
+			return;
+		
+		// survivors as doubly linked list
+		int[] prev = hits.work(0, n), next = hits.work(1, n);
+		for (int i = 0; i < n; i++) {
+			prev[i] = i - 1;
+			next[i] = (i + 1 < n) ? i + 1 : -1;
+		}
+		// pairs to check, by their left domain; removed domains have round -1
+		int[] pairs = hits.work(2, n), pairRound = hits.work(3, n);
+		int pairNo = 0, round = 0;
+		for (int i = 0; i + 1 < n; i++)
+			pairs[pairNo++] = i;
+		int[] flagged = hits.work(4, n);
+		
+		while (pairNo > 0) {
+			round++;
+			int flaggedNo = 0;
+			for (int p = 0; p < pairNo; p++) {
+				int left = pairs[p], right = next[left];
+				if (hits.aliTo[left] >= hits.aliFrom[right]) {
+					if (hits.evalue[left] >= hits.evalue[right])
+						flagged[flaggedNo++] = left;
+					else
+						flagged[flaggedNo++] = right;
 				}
 			}
-			lastStart = startPos;
-			lastDom = curDom;
-		}
-		if (! flaggedToRemove.isEmpty() ) {
-			for (int remPos : flaggedToRemove)
-				doms.remove(remPos);
-			
-			resolveOverlaps(doms, null);
+			// unlink in sequence order, so that prev[] always points to a survivor
+			Arrays.sort(flagged, 0, flaggedNo);
+			pairNo = 0;
+			for (int f = 0; f < flaggedNo; f++) {
+				int dom = flagged[f];
+				if (pairRound[dom] < 0)
+					continue;
+				pairRound[dom] = -1;
+				if (prev[dom] >= 0)
+					next[prev[dom]] = next[dom];
+				if (next[dom] >= 0)
+					prev[next[dom]] = prev[dom];
+				if (prev[dom] >= 0 && pairRound[prev[dom]] != round) {
+					pairRound[prev[dom]] = round;
+					pairs[pairNo++] = prev[dom];
+				}
+			}
+			// a left neighbour may have become the last domain
+			int kept = 0;
+			for (int p = 0; p < pairNo; p++)
+				if (next[pairs[p]] >= 0)
+					pairs[kept++] = pairs[p];
+			pairNo = kept;
 		}
 		
+		// drop the removed domains in place
+		int kept = 0;
+		for (int i = 0; i < n; i++)
+			if (pairRound[i] >= 0)
+				hits.move(i, kept++);
+		hits.size = kept;
 	}
 	
-	
-	private class Domain{
-		
-		private int aliFrom, aliTo, hmmFrom, hmmTo;
-		private double evalue;
-		private String ID, comment;
-		private boolean isCollapsed = false;
+	/**
+	 * Resolves overlaps between domains of the same clan only, as
+	 * pfam_scan.pl does: domains are taken in order of their evalue, and
+	 * a domain is dropped if it overlaps one of the same clan taken
+	 * before. Domains of different clans may overlap.
+	 * The domains taken of a clan do not overlap each other, so of those
+	 * starting before the end of a domain, only the last one can overlap
+	 * it. They are kept in a Fenwick tree over the domains sorted by clan
+	 * and start, where it is found in O(log n).
+	 * @param hits in sequence order
+	 * @param clans clan of each hit (any number, equal for the same clan)
+	 */
+	static void resolveClanOverlaps(HitBuffer hits, int[] clans) {
 		
-		public Domain(String ID, int aliFrom, int aliTo, int hmmFrom, int hmmTo, double evalue) {
-			this.aliFrom = aliFrom;
-			this.aliTo = aliTo;
-			this.hmmFrom = hmmFrom;
-			this.hmmTo = hmmTo;
-			this.evalue = evalue;
-			this.ID = ID;
+		int n = hits.size;
+		if (n < 2)
+			return;
+		// by clan, then sequence order
+		long[] keys = hits.keys(1, n);
+		for (int i = 0; i < n; i++)
+			keys[i] = ((long) clans[i] << 32) | i;
+		Arrays.sort(keys, 0, n);
+		int[] byRank = hits.work(1, n), rank = hits.work(2, n);
+		for (int r = 0; r < n; r++) {
+			byRank[r] = (int) keys[r];
+			rank[byRank[r]] = r;
 		}
+		// by evalue (its rank among the evalues in the high bits), then sequence order
+		long[] evalues = hits.keys(2, n);
+		for (int i = 0; i < n; i++)
+			evalues[i] = sortable(hits.evalue[i]);
+		Arrays.sort(evalues, 0, n);
+		for (int i = 0; i < n; i++)
+			keys[i] = ((long) lowerBound(evalues, n, sortable(hits.evalue[i])) << 32) | i;
+		Arrays.sort(keys, 0, n);
 		
-		public void setAliTo(int endPos) {
-			this.aliTo = endPos;
-		}
-		
-		public void setComment(String comment) {
-			this.comment = comment;
-		}
-		
-		public void setCollpased() {
-			this.isCollapsed = true;
-		}
-		
-		public int getAliFrom() {
-			return this.aliFrom;
-		}
-		
-		public int getAliTo() {
-			return this.aliTo;
-		}
-		
-		public int getHmmFrom() {
-			return this.hmmFrom;
-		}
-		
-		public int getHmmTo() {
-			return this.hmmTo;
-		}
-		
-		public String getID() {
-			return this.ID;
-		}
-		
-		public double getEvalue() {
-			return this.evalue;
-		}
-
-		public boolean isCollapsed() {
-			return this.isCollapsed;
+		int[] taken = hits.work(3, n), tree = hits.work(4, n + 1);
+		for (int o = 0; o < n; o++) {
+			int dom = (int) keys[o], clan = clans[dom];
+			// the last domain of the clan starting before dom ends
+			int lo = rank[dom], hi = n - 1;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1, other = byRank[mid];
+				if (clans[other] == clan && hits.aliFrom[other] <= hits.aliTo[dom])
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			int last = lastTaken(tree, n, lo);
+			if (last >= 0 && clans[byRank[last]] == clan && hits.aliTo[byRank[last]] >= hits.aliFrom[dom])
+				continue;
+			taken[dom] = 1;
+			for (int t = rank[dom] + 1; t <= n; t += t & -t)
+				tree[t]++;
 		}
-		
-		public String toString() {
-			if (comment == null)
-				return this.aliFrom+"\t"+this.aliTo+"\t"+this.ID+"\t"+this.evalue;
+		int kept = 0;
+		for (int i = 0; i < n; i++)
+			if (taken[i] == 1)
+				hits.move(i, kept++);
+		hits.size = kept;
+	}
+	
+	// the bits of d, ordered as d (merged hits have evalue -1)
+	private static long sortable(double d) {
+		long bits = Double.doubleToLongBits(d);
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+	
+	// index of the first of the n sorted keys that is not less than key
+	private static int lowerBound(long[] sorted, int n, long key) {
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < key)
+				lo = mid + 1;
 			else
-				return this.aliFrom+"\t"+this.aliTo+"\t"+this.ID+"\t"+this.evalue+"\t;"+this.comment;
+				hi = mid;
 		}
-		
-		public boolean overlaps(Domain nextDom) {
-			if (this.aliTo >= nextDom.aliFrom)
-				return true;
-			return false;
+		return lo;
+	}
+	
+	// the highest rank up to r in the Fenwick tree of n ranks, or -1
+	private static int lastTaken(int[] tree, int n, int r) {
+		int count = 0;
+		for (int t = r + 1; t > 0; t -= t & -t)
+			count += tree[t];
+		if (count == 0)
+			return -1;
+		// descend to the count-th rank in the tree
+		int pos = 0;
+		for (int step = Integer.highestOneBit(n); step > 0; step >>= 1) {
+			if (pos + step <= n && tree[pos + step] < count) {
+				pos += step;
+				count -= tree[pos];
+			}
 		}
-		
+		return pos;
 	}
 	
 }
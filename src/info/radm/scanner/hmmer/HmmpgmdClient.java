@@ -0,0 +1,293 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.metrics.ScanProgress;
+import info.radm.scanner.utils.Compression;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Class HmmpgmdClient
+ * Searches sequences against the models held by a running hmmpgmd
+ * (see HmmpgmdDaemon) and turns the results into domtblout lines, in the
+ * format hmmscan --domtblout writes, so that they can be parsed as usual.
+ *
+ * A query is sent as a command line and the sequence in fasta format,
+ * terminated by "//". The answer is a status (uint32 status, uint64
+ * size) followed by an error message or the serialized search statistics
+ * and hits, all in network byte order, as written by hmmpgmd of HMMER 3.3
+ * (hmmd_search_status.c, hmmd_search_stats.c, p7_tophits.c, p7_domain.c,
+ * p7_alidisplay.c). Only the fields needed for the domtblout are decoded,
+ * everything else is skipped using the sizes that precede each object.
+ */
+public class HmmpgmdClient implements Closeable {
+
+	// P7_HIT flags
+	private static final int IS_REPORTED = 1 << 1;
+	// presence flags of optional hit strings
+	private static final int ACC_PRESENT = 1 << 0, DESC_PRESENT = 1 << 1;
+
+	private static final String HEADER =
+			"#                                                                            --- full sequence --- -------------- this domain -------------   hmm coord   ali coord   env coord\n" +
+			"# target name        accession   tlen query name           accession   qlen   E-value  score  bias   #  of  c-Evalue  i-Evalue  score  bias  from    to  from    to  from    to  acc description of target\n" +
+			"#------------------- ---------- ----- -------------------- ---------- ----- --------- ------ ----- --- --- --------- --------- ------ ----- ----- ----- ----- ----- ----- ----- ---- ---------------------\n";
+
+	private Socket socket;
+	private DataInputStream in;
+	private Writer out;
+	private ScanProgress progress;
+
+
+	/**
+	 * Connects to hmmpgmd on the local port
+	 * @param port client port of the hmmpgmd master
+	 * @throws IOException
+	 */
+	public HmmpgmdClient(int port) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new BufferedWriter(new OutputStreamWriter(
+				new BufferedOutputStream(socket.getOutputStream()), "US-ASCII"));
+	}
+
+	/**
+	 * Count the sequences searched by scan(), for progress reports
+	 * @param progress or null
+	 */
+	public void setProgress(ScanProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * Searches all sequences of fasta and writes their hits to domtblout.
+	 * If the search fails, the sequences it counted as searched (see
+	 * setProgress()) are taken back.
+	 * @param fasta
+	 * @param domtblout
+	 * @param options search options, e.g. --cut_ga or -E 0.01
+	 * @return the number of sequences searched
+	 * @throws IOException if hmmpgmd fails or reports an error
+	 */
+	public int scan(File fasta, File domtblout, String options) throws IOException {
+
+		FastaReader reader = new FastaReader(fasta);
+		Writer w = new BufferedWriter(new OutputStreamWriter(Compression.create(domtblout)));
+		int sequences = 0;
+		long residues = 0;
+		try {
+			w.write(HEADER);
+			while ( reader.next() ) {
+				for (String line : search(reader.getId(), reader.getResidues(), options)) {
+					w.write(line);
+					w.write('\n');
+				}
+				sequences++;
+				residues += reader.getResidues().length();
+				if (progress != null)
+					progress.queryDone(reader.getResidues().length());
+			}
+			w.write("#\n# Program:         hmmpgmd\n# Query file:      "+fasta.getPath()+"\n# [ok]\n");
+		}
+		catch (IOException ioe) {
+			// the search is repeated from the start, if at all
+			if (progress != null)
+				progress.queriesUndone(sequences, residues);
+			throw ioe;
+		}
+		finally {
+			reader.close();
+			w.close();
+		}
+		return sequences;
+	}
+
+	/**
+	 * Searches one sequence
+	 * @param name
+	 * @param residues
+	 * @param options search options, e.g. --cut_ga or -E 0.01
+	 * @return the domtblout lines of the sequence
+	 * @throws IOException if hmmpgmd fails or reports an error
+	 */
+	public List<String> search(String name, CharSequence residues, String options) throws IOException {
+
+		out.write("@--hmmdb 1 "+options+"\n");
+		FastaReader.write(out, ">"+name, residues);
+		out.write("//\n");
+		out.flush();
+
+		int status = in.readInt();
+		long size = in.readLong();
+		if (size < 0 || size > Integer.MAX_VALUE)
+			throw new IOException("hmmpgmd: invalid message size "+size);
+		byte[] message = new byte[(int) size];
+		in.readFully(message);
+		if (status != 0)
+			throw new IOException("hmmpgmd: "+cString(ByteBuffer.wrap(message)).trim());
+		try {
+			return domtblout(ByteBuffer.wrap(message), name, residues.length());
+		}
+		catch (RuntimeException re) {
+			// BufferUnderflowException, IllegalArgumentException
+			throw new IOException("hmmpgmd: could not decode results for "+name+" ("+re+")");
+		}
+	}
+
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	private static List<String> domtblout(ByteBuffer bb, String query, int qlen) {
+
+		// HMMD_SEARCH_STATS
+		bb.position(bb.position() + 3 * 8);	// elapsed, user, sys
+		double Z = bb.getDouble(), domZ = bb.getDouble();
+		bb.position(bb.position() + 2 + 6 * 8);	// Z_setby, domZ_setby, nmodels ... n_past_fwd
+		int nhits = (int) bb.getLong();
+		bb.position(bb.position() + 2 * 8);	// nreported, nincluded
+		long[] offsets = new long[nhits];
+		for (int i = 0; i < nhits; i++)
+			offsets[i] = bb.getLong();
+		int hitData = bb.position();
+
+		List<Hit> hits = new ArrayList<Hit>(nhits);
+		for (int i = 0; i < nhits; i++) {
+			// offsets are missing (-1) if hmmpgmd did not record them
+			if (offsets[i] >= 0)
+				bb.position(hitData + (int) offsets[i]);
+			hits.add(new Hit(bb));
+		}
+		Collections.sort(hits, new Comparator<Hit>() {
+			public int compare(Hit h1, Hit h2) {
+				return Double.compare(h2.sortkey, h1.sortkey);
+			}
+		});
+
+		List<String> lines = new ArrayList<String>();
+		for (Hit hit : hits) {
+			if ((hit.flags & IS_REPORTED) == 0)
+				continue;
+			int nd = 0;
+			for (Dom dom : hit.domains) {
+				if (! dom.reported )
+					continue;
+				nd++;
+				lines.add(String.format(Locale.US,
+						"%-20s %-10s %5d %-20s %-10s %5d %9.2g %6.1f %5.1f %3d %3d %9.2g %9.2g %6.1f %5.1f %5d %5d %5d %5d %5d %5d %4.2f %s",
+						hit.name, (hit.acc == null) ? "-" : hit.acc, dom.M, query, "-", qlen,
+						Math.exp(hit.lnP) * Z, hit.score, hit.preScore - hit.score, nd, hit.nreported,
+						Math.exp(dom.lnP) * domZ, Math.exp(dom.lnP) * Z, dom.bitscore, dom.dombias,
+						dom.hmmFrom, dom.hmmTo, dom.sqFrom, dom.sqTo, dom.ienv, dom.jenv,
+						dom.oasc / (1.0 + Math.abs(dom.jenv - dom.ienv)),
+						(hit.desc == null) ? "-" : hit.desc));
+			}
+		}
+		return lines;
+	}
+
+	// NUL terminated string
+	private static String cString(ByteBuffer bb) {
+		int start = bb.position(), end = start;
+		while (end < bb.limit() && bb.get(end) != 0)
+			end++;
+		String s = new String(bb.array(), start, end - start, StandardCharsets.US_ASCII);
+		bb.position(Math.min(bb.limit(), end + 1));
+		return s;
+	}
+
+
+	/**
+	 * The parts of a serialized P7_HIT that go into the domtblout
+	 */
+	private static class Hit {
+
+		String name, acc, desc;
+		double sortkey, lnP;
+		float score, preScore;
+		int flags, nreported;
+		List<Dom> domains;
+
+		Hit(ByteBuffer bb) {
+			int start = bb.position();
+			int size = bb.getInt();
+			bb.getInt();				// window_length
+			sortkey = bb.getDouble();
+			score = bb.getFloat();
+			preScore = bb.getFloat();
+			bb.getFloat();				// sum_score
+			lnP = bb.getDouble();
+			bb.position(bb.position() + 2 * 8 + 4 + 4 * 4);	// pre_lnP, sum_lnP, nexpected, nregions ... nenvelopes
+			int ndom = bb.getInt();
+			flags = bb.getInt();
+			nreported = bb.getInt();
+			bb.position(bb.position() + 2 * 4 + 3 * 8);	// nincluded, best_domain, seqidx, subseq_start, offset
+			int presence = bb.get();
+			name = cString(bb);
+			acc = ((presence & ACC_PRESENT) != 0) ? cString(bb) : null;
+			desc = ((presence & DESC_PRESENT) != 0) ? cString(bb) : null;
+			domains = new ArrayList<Dom>(ndom);
+			for (int d = 0; d < ndom; d++)
+				domains.add(new Dom(bb));
+			bb.position(start + size);
+		}
+	}
+
+
+	/**
+	 * The parts of a serialized P7_DOMAIN (and its P7_ALIDISPLAY) that go
+	 * into the domtblout
+	 */
+	private static class Dom {
+
+		int ienv, jenv, hmmFrom, hmmTo, M, sqFrom, sqTo;
+		float dombias, oasc, bitscore;
+		double lnP;
+		boolean reported;
+
+		Dom(ByteBuffer bb) {
+			int start = bb.position();
+			int size = bb.getInt();
+			ienv = (int) bb.getLong();
+			jenv = (int) bb.getLong();
+			bb.position(bb.position() + 2 * 8);	// iali, jali (also in the alidisplay)
+			bb.getFloat();				// envsc
+			bb.getFloat();				// domcorrection
+			dombias = bb.getFloat();
+			oasc = bb.getFloat();
+			bitscore = bb.getFloat();
+			lnP = bb.getDouble();
+			reported = bb.getInt() != 0;
+			bb.getInt();				// is_included
+			int scores = bb.getInt();
+			bb.position(bb.position() + 4 * scores);	// scores_per_pos
+			// P7_ALIDISPLAY
+			bb.getInt();				// size
+			bb.getInt();				// N
+			hmmFrom = bb.getInt();
+			hmmTo = bb.getInt();
+			M = bb.getInt();
+			sqFrom = (int) bb.getLong();
+			sqTo = (int) bb.getLong();
+			bb.position(start + size);
+		}
+	}
+
+}
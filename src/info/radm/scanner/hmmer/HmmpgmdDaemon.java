@@ -0,0 +1,207 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.StreamGobbler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Class HmmpgmdDaemon
+ * Keeps the models resident in a HMMER hmmpgmd daemon (one master, one
+ * worker) on a local port, so that a search does not have to load the
+ * models first, as every hmmscan run does. The hmmpgmd binary must reside
+ * in the working directory, next to hmmscan.
+ *
+ * The daemon is started by start() and supervised until stop(): if the
+ * master or the worker exits, both are restarted (up to MAX_RESTARTS
+ * times). If a daemon is already listening on the port (e.g. started by
+ * another PfamScanner), it is used as it is and left running.
+ */
+public class HmmpgmdDaemon {
+
+	private static final int MAX_RESTARTS = 5;
+	// loading Pfam-A takes a while
+	private static final long READY_TIMEOUT = 600 * 1000;
+	// sequence to check that the daemon answers searches
+	private static final String PROBE = "MKVLAAGIVGLLLAGCSSHKEEPKPQVVAPKVEPV";
+
+	private String hmmpgmdBin, modelPath, CPUs = "1";
+	private int port;
+	private boolean verbose;
+	private Process master, worker;
+	private Thread supervisor;
+	private volatile boolean stopped = false;
+
+
+	/**
+	 * @param workingDir directory holding the hmmpgmd binary
+	 * @param modelPath HMM file (Pfam-A.hmm)
+	 * @param port client port, the workers connect to port + 1
+	 */
+	public HmmpgmdDaemon(File workingDir, String modelPath, int port) {
+		this.hmmpgmdBin = workingDir.getAbsolutePath()+"/hmmpgmd";
+		this.modelPath = modelPath;
+		this.port = port;
+	}
+
+	/**
+	 * @param CPUs hmmpgmd worker --cpu
+	 */
+	public void setCPUs(String CPUs) {
+		this.CPUs = CPUs;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Starts the daemon, unless one is already answering on the port, and
+	 * waits until it answers searches
+	 * @throws IOException if the daemon could not be started
+	 */
+	public synchronized void start() throws IOException {
+
+		if (answers()) {
+			System.out.println("INFO: using hmmpgmd running on port "+port+".");
+			return;
+		}
+		launch();
+		if (! awaitReady() ) {
+			stop();
+			throw new IOException("hmmpgmd did not answer on port "+port);
+		}
+		supervisor = new Thread("hmmpgmd-supervisor") {
+			public void run() {
+				supervise();
+			}
+		};
+		supervisor.setDaemon(true);
+		supervisor.start();
+	}
+
+	/**
+	 * Waits until the daemon answers searches (e.g. after a restart)
+	 * @return false on timeout, or if the daemon has been stopped
+	 */
+	public boolean awaitReady() {
+		long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+		while (! stopped && System.currentTimeMillis() < deadline) {
+			if (answers())
+				return true;
+			try {
+				Thread.sleep(250);
+			}
+			catch (InterruptedException ie) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stops a daemon started by start()
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (supervisor != null)
+			supervisor.interrupt();
+		destroy();
+	}
+
+	private void supervise() {
+
+		int restarts = 0;
+		while (! stopped ) {
+			try {
+				Thread.sleep(1000);
+			}
+			catch (InterruptedException ie) {
+				return;
+			}
+			synchronized (this) {
+				if (stopped || (master.isAlive() && worker.isAlive()))
+					continue;
+				if (restarts == MAX_RESTARTS) {
+					System.err.println("ERROR: hmmpgmd exited "+MAX_RESTARTS+" times - giving up.");
+					destroy();
+					return;
+				}
+				restarts++;
+				System.err.println("WARNING: hmmpgmd "+(master.isAlive() ? "worker" : "master")+
+						" exited - restarting.");
+				destroy();
+				try {
+					launch();
+				}
+				catch (IOException ioe) {
+					System.err.println("ERROR: could not restart hmmpgmd: "+ioe.getMessage());
+					return;
+				}
+			}
+		}
+	}
+
+	private void launch() throws IOException {
+
+		List<String> command = new ArrayList<String>();
+		command.add(hmmpgmdBin);
+		command.add("--master");
+		command.add("--hmmdb");
+		command.add(modelPath);
+		command.add("--cport");
+		command.add(""+port);
+		command.add("--wport");
+		command.add(""+(port + 1));
+		master = start(command);
+
+		command = new ArrayList<String>();
+		command.add(hmmpgmdBin);
+		command.add("--worker");
+		command.add("127.0.0.1");
+		command.add("--wport");
+		command.add(""+(port + 1));
+		command.add("--cpu");
+		command.add(CPUs);
+		worker = start(command);
+	}
+
+	private Process start(List<String> command) throws IOException {
+		Process process = new ProcessBuilder(command).start();
+		new StreamGobbler(process.getInputStream(), verbose).start();
+		new StreamGobbler(process.getErrorStream(), true).start();
+		return process;
+	}
+
+	private void destroy() {
+		if (worker != null)
+			worker.destroy();
+		if (master != null)
+			master.destroy();
+	}
+
+	// true if the daemon is up, has a worker and searches the models
+	private boolean answers() {
+		try {
+			HmmpgmdClient client = new HmmpgmdClient(port);
+			try {
+				client.search("probe", PROBE, "-E 10");
+				return true;
+			}
+			finally {
+				client.close();
+			}
+		}
+		catch (IOException ioe) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,316 @@
+package info.radm.scanner.hmmer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Class LineTokenizer
+ * Splits whitespace delimited text (domtblout, pfamscan output) into
+ * fields, line by line, directly on a reusable byte buffer. Fields are
+ * only located, never copied: numbers are parsed in place and Strings
+ * are only created for the fields that are actually asked for
+ * (domain IDs are interned, see intern()).
+ * Only the first maxFields fields of a line are located, so trailing
+ * columns (e.g. the target description) cost nothing.
+ */
+public class LineTokenizer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final int DOUBLE_CACHE = 4096;
+	private static final int INTERN_CACHE = 1 << 15;
+
+	private InputStream in;
+	private byte[] buf = new byte[1 << 16];
+	private int pos = 0, limit = 0, lineStart = 0, lineEnd = 0;
+	private boolean eof = false;
+	private long bytesRead = 0;
+
+	private int maxFields, fieldNo;
+	private int[] starts, ends;
+
+	// doubles outside of the exact fast path, keyed by decimal mantissa and exponent
+	private long[] cachedMantissa = new long[DOUBLE_CACHE];
+	private int[] cachedExp = new int[DOUBLE_CACHE];
+	private double[] cachedValue = new double[DOUBLE_CACHE];
+	private boolean[] cached = new boolean[DOUBLE_CACHE];
+
+	private byte[][] internKeys = new byte[INTERN_CACHE][];
+	private String[] internValues = new String[INTERN_CACHE];
+
+
+	public LineTokenizer(InputStream in, int maxFields) {
+		this.in = in;
+		this.maxFields = maxFields;
+		this.starts = new int[maxFields];
+		this.ends = new int[maxFields];
+	}
+
+	/**
+	 * Advances to the next line and locates its fields.
+	 * @return false at the end of the input
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+
+		int nl;
+		while ( (nl = indexOfNewline(pos)) < 0 ) {
+			if (eof) {
+				if (pos >= limit)
+					return false;
+				nl = limit;
+				break;
+			}
+			fill();
+		}
+		lineStart = pos;
+		lineEnd = nl;
+		pos = nl + 1;
+		if (lineEnd > lineStart && buf[lineEnd - 1] == '\r')
+			lineEnd--;
+		tokenize();
+		return true;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return offset of the current line, relative to the start of the input
+	 */
+	public long getLineOffset() {
+		return bytesRead - (limit - lineStart);
+	}
+
+	public boolean isComment() {
+		return lineEnd > lineStart && buf[lineStart] == '#';
+	}
+
+	public boolean isEmpty() {
+		return fieldNo == 0;
+	}
+
+	/**
+	 * Number of fields located on the current line (at most maxFields)
+	 */
+	public int fieldCount() {
+		return fieldNo;
+	}
+
+	public int fieldLength(int field) {
+		return ends[field] - starts[field];
+	}
+
+	public byte byteAt(int field, int offset) {
+		return buf[starts[field] + offset];
+	}
+
+	/**
+	 * @return offset of the first b in field, or -1
+	 */
+	public int indexOf(int field, byte b) {
+		for (int i = starts[field]; i < ends[field]; i++)
+			if (buf[i] == b)
+				return i - starts[field];
+		return -1;
+	}
+
+	public String getString(int field) {
+		return getString(field, fieldLength(field));
+	}
+
+	/**
+	 * @return the first len bytes of field as String
+	 */
+	public String getString(int field, int len) {
+		return new String(buf, starts[field], len, UTF8);
+	}
+
+	/**
+	 * @return the first len bytes of field
+	 */
+	public byte[] getBytes(int field, int len) {
+		byte[] copy = new byte[len];
+		System.arraycopy(buf, starts[field], copy, 0, len);
+		return copy;
+	}
+
+	/**
+	 * @return true if the first len bytes of field equal other
+	 */
+	public boolean fieldEquals(int field, int len, byte[] other) {
+		if (other == null || other.length != len)
+			return false;
+		int s = starts[field];
+		for (int i = 0; i < len; i++)
+			if (buf[s + i] != other[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the first len bytes of field as String. Equal byte sequences
+	 * map to the same String instance as long as they remain cached, so
+	 * the (few thousand) domain IDs in a file are not allocated per hit.
+	 */
+	public String intern(int field, int len) {
+		int s = starts[field];
+		int h = 0x811c9dc5;
+		for (int i = s; i < s + len; i++)
+			h = (h ^ buf[i]) * 0x01000193;
+		int slot = (h ^ (h >>> 16)) & (INTERN_CACHE - 1);
+		if (fieldEquals(field, len, internKeys[slot]))
+			return internValues[slot];
+		internKeys[slot] = getBytes(field, len);
+		internValues[slot] = getString(field, len);
+		return internValues[slot];
+	}
+
+	public int parseInt(int field) {
+		int i = starts[field], end = ends[field];
+		if (i == end)
+			throw new NumberFormatException("empty field "+field);
+		boolean negative = false;
+		if (buf[i] == '-' || buf[i] == '+')
+			negative = buf[i++] == '-';
+		if (i == end)
+			throw new NumberFormatException(getString(field));
+		long value = 0;
+		for (; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9)
+				throw new NumberFormatException(getString(field));
+			value = value * 10 + d;
+			if (value > Integer.MAX_VALUE + 1L)
+				throw new NumberFormatException(getString(field));
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE)
+			throw new NumberFormatException(getString(field));
+		return (int) value;
+	}
+
+	/**
+	 * Parses a field as double, giving exactly the same result as
+	 * Double.parseDouble(). Decimal numbers that are exactly representable
+	 * (mantissa below 2^53, |exponent| <= 22) are computed directly, all
+	 * others (e.g. tiny e-values) are parsed once and then served from a
+	 * small cache keyed by their decimal mantissa and exponent.
+	 */
+	public double parseDouble(int field) {
+
+		int i = starts[field], end = ends[field];
+		boolean negative = false;
+		if (i < end && (buf[i] == '-' || buf[i] == '+'))
+			negative = buf[i++] == '-';
+
+		long mantissa = 0;
+		int exp = 0, digits = 0;
+		boolean dot = false, overflow = false;
+		for (; i < end; i++) {
+			byte c = buf[i];
+			if (c >= '0' && c <= '9') {
+				digits++;
+				if (mantissa < 100000000000000000L)
+					mantissa = mantissa * 10 + (c - '0');
+				else {
+					overflow = true;
+					break;
+				}
+				if (dot)
+					exp--;
+			}
+			else if (c == '.' && !dot)
+				dot = true;
+			else
+				break;
+		}
+		if (i < end && !overflow && digits > 0 && (buf[i] == 'e' || buf[i] == 'E')) {
+			i++;
+			boolean negExp = false;
+			if (i < end && (buf[i] == '-' || buf[i] == '+'))
+				negExp = buf[i++] == '-';
+			int e = 0, expDigits = 0;
+			for (; i < end && buf[i] >= '0' && buf[i] <= '9' && e < 100000; i++, expDigits++)
+				e = e * 10 + (buf[i] - '0');
+			if (expDigits == 0)
+				overflow = true;
+			exp += negExp ? -e : e;
+		}
+		if (i != end || overflow || digits == 0)
+			return Double.parseDouble(getString(field).trim());
+
+		if (mantissa == 0)
+			return negative ? -0.0 : 0.0;
+		if (mantissa < (1L << 53) && exp >= -22 && exp <= 22) {
+			double value = (exp < 0) ? mantissa / POW10[-exp] : mantissa * POW10[exp];
+			return negative ? -value : value;
+		}
+		long key = negative ? -mantissa : mantissa;
+		int slot = (int) ((key * 31 + exp) & (DOUBLE_CACHE - 1));
+		if (cached[slot] && cachedMantissa[slot] == key && cachedExp[slot] == exp)
+			return cachedValue[slot];
+		double value = Double.parseDouble(getString(field));
+		cached[slot] = true;
+		cachedMantissa[slot] = key;
+		cachedExp[slot] = exp;
+		cachedValue[slot] = value;
+		return value;
+	}
+
+	private void tokenize() {
+		fieldNo = 0;
+		int i = lineStart;
+		while (fieldNo < maxFields) {
+			while (i < lineEnd && isWhitespace(buf[i]))
+				i++;
+			if (i >= lineEnd)
+				break;
+			starts[fieldNo] = i;
+			while (i < lineEnd && !isWhitespace(buf[i]))
+				i++;
+			ends[fieldNo++] = i;
+		}
+	}
+
+	private int indexOfNewline(int from) {
+		for (int i = from; i < limit; i++)
+			if (buf[i] == '\n')
+				return i;
+		return -1;
+	}
+
+	// moves the unread rest to the front of the buffer (growing it if a
+	// single line does not fit) and reads more input
+	private void fill() throws IOException {
+		int rest = limit - pos;
+		if (pos == 0 && rest == buf.length) {
+			byte[] larger = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, larger, 0, rest);
+			buf = larger;
+		}
+		else if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, rest);
+		}
+		pos = 0;
+		limit = rest;
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0)
+			eof = true;
+		else {
+			limit += n;
+			bytesRead += n;
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+	}
+
+}
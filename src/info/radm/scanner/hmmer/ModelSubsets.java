@@ -0,0 +1,256 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Digests;
+import info.radm.scanner.utils.StreamGobbler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/**
+ * Class ModelSubsets
+ * Builds model databases holding only some families of a model file
+ * (e.g. Pfam-A.hmm) and presses them with hmmpress, so that scans of a
+ * project that only cares about these families run against a few models
+ * instead of all of them (hmmscan takes time in proportion to the number
+ * of models). A family is given by its accession, with or without
+ * version, or its ID (NAME).
+ *
+ * Subsets are kept in a directory under a digest of the model file
+ * checksum (see ResultCache) and the sorted list of families, so that
+ * later runs with the same list and models reuse them, and a new model
+ * file never sees a stale subset. A subset consists of
+ *
+ * <pre>
+ * &lt;digest&gt;.hmm (+ .h3m .h3i .h3f .h3p)  the pressed models
+ * &lt;digest&gt;.found                       the families of the list it holds
+ * </pre>
+ *
+ * where the .found file is moved in place last and marks the subset as
+ * complete (a model file holding none of the families has no .hmm). The
+ * directory can be shared by concurrent runs, which build a subset once.
+ */
+public class ModelSubsets {
+
+	private static final String LOCK = ".lock";
+	private static final String[] PRESSED = { ".h3m", ".h3i", ".h3f", ".h3p" };
+
+	private File dir;
+	private String hmmpressBin;
+	private boolean verbose = false;
+	private Set<String> found = new TreeSet<String>();
+
+
+	/**
+	 * @param dir directory of the subsets (created if missing)
+	 * @param hmmpressBin the hmmpress binary
+	 * @throws IOException if dir can not be created
+	 */
+	public ModelSubsets(File dir, String hmmpressBin) throws IOException {
+		this.dir = dir;
+		this.hmmpressBin = hmmpressBin;
+		if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory() )
+			throw new IOException("could not create subset directory "+dir.getAbsolutePath());
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Reads a list of families: separated by commas, or, if spec names a
+	 * file, one per line (lines starting with # are left out)
+	 * @param spec
+	 * @return the families, sorted and without duplicates
+	 * @throws IOException if the file can not be read
+	 */
+	public static Set<String> readFamilies(String spec) throws IOException {
+		Set<String> families = new TreeSet<String>();
+		File file = new File(spec);
+		List<String> items = file.isFile() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8) :
+			Arrays.asList(spec.split(","));
+		for (String item : items) {
+			item = item.trim();
+			if (! item.isEmpty() && ! item.startsWith("#") )
+				families.add(item);
+		}
+		return families;
+	}
+
+	/**
+	 * @param model model file
+	 * @param families accessions or IDs
+	 * @return the pressed subset of model holding the families, built if
+	 * it is not there yet; null if model holds none of them
+	 * @throws IOException if model can not be read or the subset not be
+	 * pressed
+	 */
+	public File get(File model, Collection<String> families) throws IOException {
+
+		Set<String> sorted = new TreeSet<String>(families);
+		StringBuilder key = new StringBuilder(ResultCache.modelChecksum(dir, model));
+		for (String family : sorted)
+			key.append('\n').append(family);
+		String digest = Digests.sha256(key.toString()).substring(0, 16);
+		File subset = new File(dir, digest+".hmm"), foundFile = new File(dir, digest+".found");
+
+		if (! foundFile.isFile() ) {
+			RandomAccessFile raf = new RandomAccessFile(new File(dir, LOCK), "rw");
+			try {
+				FileLock lock = raf.getChannel().lock();
+				try {
+					// built by another run in the meantime?
+					if (! foundFile.isFile() )
+						build(model, sorted, digest);
+				}
+				finally {
+					lock.release();
+				}
+			}
+			finally {
+				raf.close();
+			}
+		}
+		List<String> inSubset = Files.readAllLines(foundFile.toPath(), StandardCharsets.UTF_8);
+		found.addAll(inSubset);
+		return inSubset.isEmpty() ? null : subset;
+	}
+
+	/**
+	 * @return the families of the lists given to get() found in any of
+	 * the model files so far
+	 */
+	public Set<String> getFound() {
+		return found;
+	}
+
+	// extracts the families from model, presses them and moves them in place
+	private void build(File model, Set<String> families, String digest) throws IOException {
+
+		File work = Files.createTempDirectory(dir.toPath(), ".build_").toFile();
+		File hmm = new File(work, digest+".hmm"), foundTmp = new File(work, digest+".found");
+		try {
+			Set<String> inSubset = extract(model, families, hmm);
+			if (verbose)
+				System.out.println("INFO: building subset of "+inSubset.size()+" famil"+
+						(inSubset.size() == 1 ? "y" : "ies")+" of "+model.getPath()+".");
+			if (! inSubset.isEmpty() ) {
+				press(hmm);
+				for (String ext : PRESSED)
+					move(new File(work, hmm.getName()+ext), new File(dir, hmm.getName()+ext));
+				move(hmm, new File(dir, hmm.getName()));
+			}
+			Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(foundTmp), StandardCharsets.UTF_8));
+			try {
+				for (String family : inSubset)
+					w.write(family+"\n");
+			}
+			finally {
+				w.close();
+			}
+			move(foundTmp, new File(dir, foundTmp.getName()));
+		}
+		finally {
+			File[] left = work.listFiles();
+			if (left != null)
+				for (File f : left)
+					f.delete();
+			work.delete();
+		}
+	}
+
+	/**
+	 * Copies the models of the families (by NAME, or ACC with or without
+	 * version) from model to subset
+	 * @return the families found
+	 */
+	static Set<String> extract(File model, Set<String> families, File subset) throws IOException {
+
+		Set<String> inSubset = new TreeSet<String>();
+		// latin-1 keeps the bytes as they are
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(model), StandardCharsets.ISO_8859_1), 1 << 16);
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(subset), StandardCharsets.ISO_8859_1), 1 << 16);
+		try {
+			List<String> record = new ArrayList<String>();
+			String name = null, acc = null, line;
+			while ( (line = br.readLine()) != null ) {
+				record.add(line);
+				if (line.startsWith("NAME "))
+					name = line.substring(5).trim();
+				else if (line.startsWith("ACC "))
+					acc = line.substring(4).trim();
+				else if (line.startsWith("//")) {
+					String match = match(families, name, acc);
+					if (match != null) {
+						inSubset.add(match);
+						for (String l : record)
+							w.write(l+"\n");
+					}
+					record.clear();
+					name = acc = null;
+				}
+			}
+		}
+		finally {
+			br.close();
+			w.close();
+		}
+		return inSubset;
+	}
+
+	// the entry of families naming the model, or null
+	private static String match(Set<String> families, String name, String acc) {
+		if (name != null && families.contains(name))
+			return name;
+		if (acc == null)
+			return null;
+		if (families.contains(acc))
+			return acc;
+		int dot = acc.indexOf('.');
+		if (dot > 0 && families.contains(acc.substring(0, dot)))
+			return acc.substring(0, dot);
+		return null;
+	}
+
+	private void press(File hmm) throws IOException {
+
+		List<String> command = Arrays.asList(hmmpressBin, hmm.getAbsolutePath());
+		Process process = new ProcessBuilder(command).start();
+		new StreamGobbler(process.getInputStream(), verbose).start();
+		new StreamGobbler(process.getErrorStream(), true).start();
+		try {
+			int exitValue = process.waitFor();
+			if (exitValue != 0)
+				throw new IOException("hmmpress exited with "+exitValue);
+		}
+		catch (InterruptedException ire) {
+			process.destroy();
+			throw new IOException("interrupted while pressing "+hmm.getPath());
+		}
+	}
+
+	private static void move(File from, File to) throws IOException {
+		if (! from.isFile() )
+			throw new IOException("hmmpress did not write "+from.getName());
+		Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
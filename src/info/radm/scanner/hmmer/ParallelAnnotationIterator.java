@@ -0,0 +1,201 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+/**
+ * Class ParallelAnnotationIterator
+ * Like AnnotationIterator, but post-processes on several threads, for
+ * input that can not be split into chunks (see ParallelParser), e.g.
+ * hmmscan output as it is streamed, compressed output or a hit store. A
+ * reader thread takes the hits of one protein after the other from a
+ * HitSource (e.g. HitGrouper) and puts them into batches of proteins,
+ * which are post-processed on a ForkJoinPool. The batches are
+ * queued in input order as they are submitted, and the iterator hands
+ * out their annotations in that order. The queue holds at most two
+ * batches per thread, so the reader waits for the consumer rather than
+ * running ahead.
+ */
+class ParallelAnnotationIterator implements Iterator<ProteinAnnotation> {
+
+	// a batch ends after this many proteins or hits, whichever comes first
+	private static final int BATCH_PROTEINS = 256;
+	private static final int BATCH_HITS = 4096;
+
+	private HitSource source;
+	private ScanOptions options;
+	private ForkJoinPool pool;
+	private BlockingQueue<Future<Batch>> batches;
+	private Iterator<ProteinAnnotation> current = Collections.<ProteinAnnotation>emptyList().iterator();
+	private boolean done = false;
+
+	private Metrics.Parse parse = Metrics.startParse();
+	private PostProcessor totals;
+
+
+	/**
+	 * @param in
+	 * @param format HmmerParser.HMMSCAN or HmmerParser.PFAMSCAN
+	 * @param options
+	 * @param threads number of post-processing threads
+	 */
+	public ParallelAnnotationIterator(InputStream in, int format, ScanOptions options, int threads) {
+		this(new HitGrouper(in, format, options), options, threads);
+	}
+
+	ParallelAnnotationIterator(HitSource source, ScanOptions options, int threads) {
+		this.source = source;
+		this.options = options;
+		this.totals = new PostProcessor(options);
+		this.pool = new ForkJoinPool(threads);
+		this.batches = new ArrayBlockingQueue<Future<Batch>>(2 * threads);
+		Thread reader = new Thread("hit-grouper") {
+			public void run() {
+				read();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public boolean hasNext() {
+		while (! current.hasNext() && !done ) {
+			Batch batch;
+			try {
+				batch = batches.take().get();
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new UncheckedIOException(new InterruptedIOException("interrupted while parsing"));
+			}
+			catch (ExecutionException ee) {
+				pool.shutdownNow();
+				done = true;
+				if (ee.getCause() instanceof IOException)
+					throw new UncheckedIOException((IOException) ee.getCause());
+				if (ee.getCause() instanceof RuntimeException)
+					throw (RuntimeException) ee.getCause();
+				throw new UncheckedIOException(new IOException(ee.getCause()));
+			}
+			// the end of the input
+			if (batch == null) {
+				done = true;
+				pool.shutdown();
+				parse.end(source.getBytesRead(), source.getLines(), totals.proteins, totals.domains,
+						totals.mergeNanos, totals.resolveNanos, totals.collapseNanos);
+				break;
+			}
+			totals.add(batch.post);
+			current = batch.annotations.iterator();
+		}
+		return current.hasNext();
+	}
+
+	public ProteinAnnotation next() {
+		if (! hasNext() )
+			throw new NoSuchElementException();
+		return current.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	// runs on the reader thread
+	private void read() {
+		try {
+			Batch batch = new Batch();
+			while ( source.next() ) {
+				batch.add(source.getName(), source.getLength(), source.getHits());
+				if (batch.isFull()) {
+					batches.put(pool.submit(batch));
+					batch = new Batch();
+				}
+			}
+			if (batch.proteins > 0)
+				batches.put(pool.submit(batch));
+			batches.put(CompletableFuture.completedFuture((Batch) null));
+		}
+		catch (InterruptedException ie) {
+			// abandoned
+		}
+		catch (IOException ioe) {
+			fail(ioe);
+		}
+		catch (RuntimeException re) {
+			fail(re);
+		}
+	}
+
+	// hands the error to the consumer, in place of the next batch
+	private void fail(Exception e) {
+		CompletableFuture<Batch> failed = new CompletableFuture<Batch>();
+		failed.completeExceptionally(e);
+		try {
+			batches.put(failed);
+		}
+		catch (InterruptedException ie) {
+			// abandoned
+		}
+	}
+
+
+	/**
+	 * The hits of consecutive proteins, and their annotations once
+	 * post-processed
+	 */
+	private class Batch implements Callable<Batch> {
+
+		private HitBuffer hits = source.getHits().sibling();
+		private List<String> names = new ArrayList<String>(BATCH_PROTEINS);
+		private int[] lengths = new int[BATCH_PROTEINS], ends = new int[BATCH_PROTEINS];
+		private int proteins = 0;
+
+		private List<ProteinAnnotation> annotations;
+		private PostProcessor post;
+
+		void add(String name, int length, HitBuffer protein) {
+			for (int i = 0; i < protein.size; i++)
+				hits.add(protein, i);
+			names.add(name);
+			lengths[proteins] = length;
+			ends[proteins++] = hits.size;
+		}
+
+		boolean isFull() {
+			return proteins == BATCH_PROTEINS || hits.size >= BATCH_HITS;
+		}
+
+		public Batch call() {
+			post = new PostProcessor(options);
+			annotations = new ArrayList<ProteinAnnotation>(proteins);
+			HitBuffer protein = hits.sibling();
+			for (int p = 0, start = 0; p < proteins; start = ends[p++]) {
+				protein.clear();
+				for (int i = start; i < ends[p]; i++)
+					protein.add(hits, i);
+				annotations.add(post.process(names.get(p), lengths[p], protein));
+			}
+			hits = null;
+			return this;
+		}
+	}
+
+}
@@ -0,0 +1,144 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.ByteBufferInputStream;
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * Class ParallelParser
+ * Parses a large hmmscan (domtblout) or pfamscan output file on several
+ * threads. The file is memory mapped in chunks that end at protein
+ * boundaries, so that the hits of a protein are never split between two
+ * chunks. Each chunk is converted to xdom (including merging, overlap
+ * resolution and collapsing) on a ForkJoinPool, and the xdom of the
+ * chunks is written in file order.
+ */
+class ParallelParser {
+
+	static final long MIN_CHUNK = 1L << 20;
+	private static final long MAX_CHUNK = 1L << 28;
+
+	private HmmerParser parser;
+	private int threads;
+	private long minChunk;
+
+
+	/**
+	 * @param minChunk smallest chunk size in bytes
+	 */
+	public ParallelParser(HmmerParser parser, int threads, long minChunk) {
+		this.parser = parser;
+		this.threads = threads;
+		this.minChunk = minChunk;
+	}
+
+	public void parse(File in, File out, int format) {
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(in, "r");
+			FileChannel channel = raf.getChannel();
+			Writer fw = new BufferedWriter(new OutputStreamWriter(Compression.create(out)));
+
+			// a few chunks per thread, so that uneven chunks even out
+			long size = channel.size();
+			long chunkSize = Math.max(minChunk, Math.min(MAX_CHUNK, size / (threads * 4L)));
+			int idField = (format == HmmerParser.PFAMSCAN) ? 0 : 3;
+
+			List<long[]> chunks = new ArrayList<long[]>();
+			long start = 0;
+			while (start < size) {
+				long end = nextBoundary(channel, start + chunkSize, size, idField);
+				chunks.add(new long[] { start, end });
+				start = end;
+			}
+
+			// keep at most two chunks per thread in flight
+			LinkedList<ForkJoinTask<CharArrayWriter>> pending = new LinkedList<ForkJoinTask<CharArrayWriter>>();
+			for (long[] chunk : chunks) {
+				if (pending.size() >= 2 * threads)
+					pending.removeFirst().get().writeTo(fw);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+				pending.add(pool.submit(new ChunkTask(buffer, format)));
+			}
+			while (! pending.isEmpty() )
+				pending.removeFirst().get().writeTo(fw);
+
+			fw.close();
+			channel.close();
+			raf.close();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the start of the first line at or after off that belongs to
+	 * a protein other than the one of the first data line after off.
+	 */
+	private long nextBoundary(FileChannel channel, long off, long size, int idField) throws IOException {
+
+		if (off >= size)
+			return size;
+		long start = off - 1;
+		channel.position(start);
+		LineTokenizer tok = new LineTokenizer(Channels.newInputStream(channel), idField + 1);
+		// rest of the line containing off - 1
+		tok.nextLine();
+		byte[] first = null;
+		while ( tok.nextLine() ) {
+			if ( tok.isComment() || tok.fieldCount() <= idField )
+				continue;
+			int len = HmmerParser.proteinIdLength(tok, idField);
+			if (first == null)
+				first = tok.getBytes(idField, len);
+			else if (! tok.fieldEquals(idField, len, first) )
+				return start + tok.getLineOffset();
+		}
+		return size;
+	}
+
+
+	private class ChunkTask implements Callable<CharArrayWriter> {
+
+		private MappedByteBuffer buffer;
+		private int format;
+
+		public ChunkTask(MappedByteBuffer buffer, int format) {
+			this.buffer = buffer;
+			this.format = format;
+		}
+
+		public CharArrayWriter call() throws IOException {
+			CharArrayWriter xdom = new CharArrayWriter();
+			ByteBufferInputStream in = new ByteBufferInputStream(buffer);
+			if (format == HmmerParser.PFAMSCAN)
+				parser.pfamscan2xdom(in, xdom);
+			else
+				parser.hmmscan2xdom(in, xdom);
+			return xdom;
+		}
+	}
+
+}
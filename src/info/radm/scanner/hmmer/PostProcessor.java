@@ -0,0 +1,99 @@
+package info.radm.scanner.hmmer;
+
+import java.util.Arrays;
+
+
+/**
+ * Class PostProcessor
+ * Post-processes the hits of one protein at a time according to the
+ * ScanOptions (merging split hits, resolving overlaps within clans
+ * and/or overall, collapsing repeats) and turns them into its annotation. Counts the proteins and
+ * domains emitted and the time spent in each step, for Metrics. A
+ * post-processor is used by one thread only.
+ */
+final class PostProcessor {
+
+	private ScanOptions options;
+	// clan of each domain code, for resolving overlaps within clans
+	private int[] clanOfCode = new int[0];
+	long proteins = 0, domains = 0, mergeNanos = 0, resolveNanos = 0, collapseNanos = 0;
+
+
+	PostProcessor(ScanOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Processes hits in place
+	 * @param name protein ID
+	 * @param length protein length, -1 if unknown
+	 * @param hits the hits of the protein
+	 * @return the annotation of the protein
+	 */
+	ProteinAnnotation process(String name, int length, HitBuffer hits) {
+
+		if (! hits.isEmpty() ) {
+			hits.sort();
+			long start = System.nanoTime(), end;
+			// merge split hits
+			if ( options.isMerge() ) {
+				HmmerParser.mergeHits(hits);
+				end = System.nanoTime();
+				mergeNanos += end - start;
+				start = end;
+			}
+			// resolve overlaps within clans
+			if ( options.isResolveClanOverlaps() ) {
+				HmmerParser.resolveClanOverlaps(hits, clans(hits));
+				end = System.nanoTime();
+				resolveNanos += end - start;
+				start = end;
+			}
+			// resolve overlaps
+			if ( options.isResolveOverlaps() ) {
+				HmmerParser.resolveOverlaps(hits);
+				end = System.nanoTime();
+				resolveNanos += end - start;
+				start = end;
+			}
+			if ( options.getCollapseRepeats() > 0 ) {
+				HmmerParser.collapseRepeats(hits, options.getCollapseRepeats());
+				collapseNanos += System.nanoTime() - start;
+			}
+		}
+		proteins++;
+		domains += hits.size;
+		return new ProteinAnnotation(name, length, hits.toDomains());
+	}
+
+	// the clan of each hit; a domain without clan is a clan of its own
+	private int[] clans(HitBuffer hits) {
+		int[] clans = hits.work(0, hits.size);
+		for (int i = 0; i < hits.size; i++) {
+			int code = hits.id[i];
+			if (code >= clanOfCode.length) {
+				int from = clanOfCode.length;
+				clanOfCode = Arrays.copyOf(clanOfCode, Math.max(code + 1, from * 2));
+				Arrays.fill(clanOfCode, from, clanOfCode.length, Integer.MIN_VALUE);
+			}
+			if (clanOfCode[code] == Integer.MIN_VALUE) {
+				int clan = options.getClanIndex().clanNumber(hits.name(code));
+				clanOfCode[code] = (clan > 0) ? clan : -1 - code;
+			}
+			clans[i] = clanOfCode[code];
+		}
+		return clans;
+	}
+
+	/**
+	 * Adds the counts of other to those of this post-processor
+	 */
+	void add(PostProcessor other) {
+		proteins += other.proteins;
+		domains += other.domains;
+		mergeNanos += other.mergeNanos;
+		resolveNanos += other.resolveNanos;
+		collapseNanos += other.collapseNanos;
+	}
+
+}
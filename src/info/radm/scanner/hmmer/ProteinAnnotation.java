@@ -0,0 +1,48 @@
+package info.radm.scanner.hmmer;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Class ProteinAnnotation
+ * The domains of one protein, in sequence order.
+ */
+public final class ProteinAnnotation {
+
+	private final String id;
+	private final int length;
+	private final List<Domain> domains;
+
+
+	/**
+	 * @param id protein ID (without version number)
+	 * @param length protein length, or -1 if unknown
+	 * @param domains
+	 */
+	public ProteinAnnotation(String id, int length, List<Domain> domains) {
+		this.id = id;
+		this.length = length;
+		this.domains = Collections.unmodifiableList(domains);
+	}
+
+	public String getID() {
+		return id;
+	}
+
+	/**
+	 * @return the protein length, or -1 if unknown (pfamscan output)
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public List<Domain> getDomains() {
+		return domains;
+	}
+
+	public String toString() {
+		return (length < 0) ? ">"+id : ">"+id+"\t"+length;
+	}
+
+}
@@ -0,0 +1,247 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Digests;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+
+/**
+ * Class ResultCache
+ * On-disk cache of hmmscan (domtblout) results per sequence. Entries are
+ * keyed by a digest of the residue sequence and live in a namespace
+ * derived from the model file checksum and the threshold settings, so
+ * that a new Pfam release or a different threshold never sees stale hits.
+ * An entry holds the domtblout lines of one sequence (possibly none).
+ *
+ * Entries are written to a temporary file and renamed into place, so that
+ * concurrent runs sharing a cache directory never see partial entries.
+ * Reading an entry updates its modification time, and evict() removes the
+ * least recently used entries once the cache exceeds its size limit.
+ */
+public class ResultCache {
+
+	private static final String CHECKSUMS = "model-checksums.properties";
+	private static final String LOCK = ".lock";
+
+	private File cacheDir, namespaceDir;
+	private long maxBytes;
+
+
+	/**
+	 * @param cacheDir cache directory (created if missing)
+	 * @param modelFile the model file scanned against
+	 * @param threshold the threshold arguments passed to hmmscan
+	 * @param maxBytes size limit of the whole cache directory
+	 * @throws IOException
+	 */
+	public ResultCache(File cacheDir, File modelFile, String threshold, long maxBytes) throws IOException {
+		this(cacheDir, Collections.singletonList(modelFile), threshold, maxBytes);
+	}
+
+	/**
+	 * @param cacheDir cache directory (created if missing)
+	 * @param modelFiles the model files scanned against (in this order)
+	 * @param threshold the threshold arguments passed to hmmscan
+	 * @param maxBytes size limit of the whole cache directory
+	 * @throws IOException
+	 */
+	public ResultCache(File cacheDir, List<File> modelFiles, String threshold, long maxBytes) throws IOException {
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+		if (! cacheDir.isDirectory() && ! cacheDir.mkdirs() )
+			throw new IOException("could not create cache directory "+cacheDir.getAbsolutePath());
+		// a single model file keeps the namespace it had before
+		StringBuilder models = new StringBuilder();
+		for (File modelFile : modelFiles) {
+			if (models.length() > 0)
+				models.append(' ');
+			models.append(modelChecksum(cacheDir, modelFile));
+		}
+		String namespace = Digests.sha256(models + " " + threshold).substring(0, 16);
+		this.namespaceDir = new File(cacheDir, namespace);
+	}
+
+	/**
+	 * @param digest sequence digest (see Digests.sequence())
+	 * @return the cached domtblout lines, or null if not cached
+	 */
+	public List<String> get(byte[] digest) {
+		File entry = entryFile(Digests.hex(digest));
+		List<String> lines = new ArrayList<String>();
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(entry));
+			try {
+				String line;
+				while ( (line = br.readLine()) != null )
+					lines.add(line);
+			}
+			finally {
+				br.close();
+			}
+		}
+		catch (FileNotFoundException fnfe) {
+			return null;
+		}
+		catch (IOException ioe) {
+			// treat unreadable (e.g. concurrently evicted) entries as misses
+			return null;
+		}
+		entry.setLastModified(System.currentTimeMillis());
+		return lines;
+	}
+
+	/**
+	 * Stores the domtblout lines of a sequence
+	 * @param digest
+	 * @param lines
+	 * @throws IOException
+	 */
+	public void put(byte[] digest, List<String> lines) throws IOException {
+		File entry = entryFile(Digests.hex(digest));
+		File dir = entry.getParentFile();
+		if (! dir.isDirectory() && ! dir.mkdirs() && ! dir.isDirectory() )
+			throw new IOException("could not create "+dir.getAbsolutePath());
+		File tmp = File.createTempFile(".put_", ".tmp", dir);
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(tmp));
+			try {
+				for (String line : lines) {
+					bw.write(line);
+					bw.newLine();
+				}
+			}
+			finally {
+				bw.close();
+			}
+			Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Removes least recently used entries (of all namespaces) until the
+	 * cache is below 90% of its size limit. Concurrent evictions are
+	 * serialized by a lock file in the cache directory.
+	 * @throws IOException
+	 */
+	public void evict() throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(new File(cacheDir, LOCK), "rw");
+		FileChannel channel = raf.getChannel();
+		FileLock lock = channel.lock();
+		try {
+			List<File> entries = new ArrayList<File>();
+			long total = collect(cacheDir, entries);
+			if (total <= maxBytes)
+				return;
+			final long[] lastUsed = new long[entries.size()];
+			Integer[] order = new Integer[entries.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+				lastUsed[i] = entries.get(i).lastModified();
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Long.compare(lastUsed[a], lastUsed[b]);
+				}
+			});
+			long target = maxBytes / 10 * 9;
+			for (int i = 0; i < order.length && total > target; i++) {
+				File entry = entries.get(order[i]);
+				long size = entry.length();
+				if (entry.delete())
+					total -= size;
+			}
+		}
+		finally {
+			lock.release();
+			channel.close();
+			raf.close();
+		}
+	}
+
+	private File entryFile(String hex) {
+		return new File(new File(namespaceDir, hex.substring(0, 2)), hex);
+	}
+
+	// entry files below dir, returns their total size
+	private static long collect(File dir, List<File> entries) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return 0;
+		long total = 0;
+		for (File f : files) {
+			if (f.isDirectory())
+				total += collect(f, entries);
+			else if (! f.getName().startsWith(".") && ! f.getName().equals(CHECKSUMS) ) {
+				entries.add(f);
+				total += f.length();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Checksum of the model file. Hashing a full Pfam-A.hmm takes a while,
+	 * so checksums are remembered in dir by path, size and modification
+	 * time (also used for ModelSubsets).
+	 */
+	static String modelChecksum(File dir, File modelFile) throws IOException {
+
+		File checksums = new File(dir, CHECKSUMS);
+		String key = modelFile.getAbsolutePath()+"|"+modelFile.length()+"|"+modelFile.lastModified();
+		Properties known = new Properties();
+		if (checksums.isFile()) {
+			FileInputStream in = new FileInputStream(checksums);
+			try {
+				known.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		String checksum = known.getProperty(key);
+		if (checksum != null)
+			return checksum;
+
+		checksum = Digests.sha256(modelFile);
+		known.setProperty(key, checksum);
+		File tmp = File.createTempFile(".checksums_", ".tmp", dir);
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				known.store(out, null);
+			}
+			finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), checksums.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally {
+			tmp.delete();
+		}
+		return checksum;
+	}
+
+}
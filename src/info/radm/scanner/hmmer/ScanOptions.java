@@ -0,0 +1,208 @@
+package info.radm.scanner.hmmer;
+
+
+/**
+ * Class ScanOptions
+ * Immutable set of options for turning hmmscan/pfamscan hits into
+ * per-protein annotations (see DomainAnnotator). Instances are created
+ * with a Builder and can be shared between threads.
+ *
+ * <pre>
+ * ScanOptions options = new ScanOptions.Builder()
+ *     .merge()
+ *     .resolveOverlaps()
+ *     .evalueThreshold(1e-5)
+ *     .build();
+ * </pre>
+ */
+public final class ScanOptions {
+
+	private final boolean merge, resolveOverlaps, resolveClanOverlaps, accessions, clans, removeEmpties;
+	private final int collapseRepeats;
+	private final Double evalueThreshold;
+	private final ClanIndex clanIndex;
+
+
+	private ScanOptions(Builder b) {
+		this.merge = b.merge;
+		this.resolveOverlaps = b.resolveOverlaps;
+		this.resolveClanOverlaps = b.resolveClanOverlaps;
+		this.clanIndex = b.clanIndex;
+		this.accessions = b.accessions;
+		this.clans = b.clans;
+		this.removeEmpties = b.removeEmpties;
+		this.collapseRepeats = b.collapseRepeats;
+		this.evalueThreshold = b.evalueThreshold;
+	}
+
+	/**
+	 * @return options with everything switched off
+	 */
+	public static ScanOptions defaults() {
+		return new Builder().build();
+	}
+
+	public boolean isMerge() {
+		return merge;
+	}
+
+	public boolean isResolveOverlaps() {
+		return resolveOverlaps;
+	}
+
+	/**
+	 * @return true if overlaps are only resolved between domains of the
+	 * same clan (see Builder.resolveClanOverlaps())
+	 */
+	public boolean isResolveClanOverlaps() {
+		return resolveClanOverlaps;
+	}
+
+	/**
+	 * @return the clans of Pfam families, or null
+	 */
+	public ClanIndex getClanIndex() {
+		return clanIndex;
+	}
+
+	/**
+	 * @return true if Pfam accessions (without version) are reported instead of IDs
+	 */
+	public boolean isAccessions() {
+		return accessions;
+	}
+
+	/**
+	 * @return true if domains are reported by their clan, where they have
+	 * one (as given in pfamscan output, or by the clan index)
+	 */
+	public boolean isClans() {
+		return clans;
+	}
+
+	public boolean isRemoveEmpties() {
+		return removeEmpties;
+	}
+
+	/**
+	 * @return minimum number of successive identical domains to collapse, or 0
+	 */
+	public int getCollapseRepeats() {
+		return collapseRepeats;
+	}
+
+	/**
+	 * @return the i-Evalue threshold, or null
+	 */
+	public Double getEvalueThreshold() {
+		return evalueThreshold;
+	}
+
+	public Builder toBuilder() {
+		Builder b = new Builder();
+		b.merge = merge;
+		b.resolveOverlaps = resolveOverlaps;
+		b.resolveClanOverlaps = resolveClanOverlaps;
+		b.clanIndex = clanIndex;
+		b.accessions = accessions;
+		b.clans = clans;
+		b.removeEmpties = removeEmpties;
+		b.collapseRepeats = collapseRepeats;
+		b.evalueThreshold = evalueThreshold;
+		return b;
+	}
+
+
+	public static final class Builder {
+
+		private boolean merge, resolveOverlaps, resolveClanOverlaps, accessions, clans, removeEmpties;
+		private int collapseRepeats = 0;
+		private Double evalueThreshold;
+		private ClanIndex clanIndex;
+
+		/**
+		 * Merge split hits
+		 */
+		public Builder merge() {
+			this.merge = true;
+			return this;
+		}
+
+		/**
+		 * Resolve overlaps (best match cascade)
+		 */
+		public Builder resolveOverlaps() {
+			this.resolveOverlaps = true;
+			return this;
+		}
+
+		/**
+		 * Resolve overlaps between domains of the same clan only (or of
+		 * the same family, if it has no clan), keeping the domain with the
+		 * lower evalue, as pfam_scan.pl does. Needs a clan index.
+		 */
+		public Builder resolveClanOverlaps() {
+			this.resolveClanOverlaps = true;
+			return this;
+		}
+
+		/**
+		 * Clans of Pfam families, for clan mapping of hmmscan output and
+		 * for resolveClanOverlaps()
+		 */
+		public Builder clanIndex(ClanIndex clanIndex) {
+			this.clanIndex = clanIndex;
+			return this;
+		}
+
+		/**
+		 * Collapse identical domains occurring in succession repNo or more times
+		 */
+		public Builder collapseRepeats(int repNo) {
+			if (repNo < 1)
+				throw new IllegalArgumentException("invalid repeat number: "+repNo);
+			this.collapseRepeats = repNo;
+			return this;
+		}
+
+		/**
+		 * Report Pfam accessions (PF00002) instead of IDs (7tm_2)
+		 */
+		public Builder accessions() {
+			this.accessions = true;
+			return this;
+		}
+
+		/**
+		 * Report clans instead of domains where applicable (pfamscan
+		 * output, or hmmscan output with a clan index)
+		 */
+		public Builder clans() {
+			this.clans = true;
+			return this;
+		}
+
+		/**
+		 * Leave out proteins without domains
+		 */
+		public Builder removeEmpties() {
+			this.removeEmpties = true;
+			return this;
+		}
+
+		/**
+		 * Leave out hits with an i-Evalue above threshold
+		 */
+		public Builder evalueThreshold(double threshold) {
+			this.evalueThreshold = threshold;
+			return this;
+		}
+
+		public ScanOptions build() {
+			if (resolveClanOverlaps && clanIndex == null)
+				throw new IllegalStateException("resolving overlaps within clans needs a clan index");
+			return new ScanOptions(this);
+		}
+	}
+
+}
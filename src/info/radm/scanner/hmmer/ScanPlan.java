@@ -0,0 +1,145 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+import info.radm.scanner.utils.Digests;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * Class ScanPlan
+ * Splits a scan into the sequences whose results are already in a
+ * ResultCache and those that still need to be scanned. prepare() writes
+ * the cache misses to a fasta file of their own; once that has been
+ * scanned, assemble() stores the new results in the cache and merges
+ * fresh and cached hits into one domtblout, in input order.
+ *
+ * While the plan is in use, sequences are named by their ordinal in the
+ * input (q0, q1, ...), so that duplicate or unusual IDs do not matter.
+ */
+public class ScanPlan {
+
+	private File fasta, missFasta, cachedHits;
+	private ResultCache cache;
+	private BitSet cached = new BitSet();
+	private int sequences = 0, misses = 0;
+
+
+	public ScanPlan(File fasta, ResultCache cache) {
+		this.fasta = fasta;
+		this.cache = cache;
+	}
+
+	/**
+	 * Looks up all input sequences in the cache
+	 * @param tempDir
+	 * @return the number of cache misses
+	 * @throws IOException
+	 */
+	public int prepare(File tempDir) throws IOException {
+
+		missFasta = File.createTempFile("hmmscan_misses_", ".fa", tempDir.getAbsoluteFile());
+		cachedHits = File.createTempFile("hmmscan_cached_", ".domtblout", tempDir.getAbsoluteFile());
+		FastaReader reader = new FastaReader(fasta);
+		BufferedWriter misses = new BufferedWriter(new FileWriter(missFasta));
+		BufferedWriter hits = new BufferedWriter(new FileWriter(cachedHits));
+		try {
+			while ( reader.next() ) {
+				List<String> lines = cache.get(Digests.sequence(reader.getResidues()));
+				if (lines == null) {
+					FastaReader.write(misses, ">"+ordinal(sequences), reader.getResidues());
+					this.misses++;
+				}
+				else {
+					cached.set(sequences);
+					for (String line : lines) {
+						hits.write(Domtblout.withQuery(line, ordinal(sequences)));
+						hits.newLine();
+					}
+				}
+				sequences++;
+			}
+		}
+		finally {
+			reader.close();
+			misses.close();
+			hits.close();
+		}
+		return this.misses;
+	}
+
+	/**
+	 * @return fasta file of the sequences to scan
+	 */
+	public File getMissFasta() {
+		return missFasta;
+	}
+
+	/**
+	 * Stores the results of the scanned sequences in the cache and writes
+	 * the results of all sequences to target.
+	 * @param missOut domtblout of getMissFasta(), or null if there were no misses
+	 * @param target
+	 * @throws IOException
+	 */
+	public void assemble(File missOut, File target) throws IOException {
+
+		FastaReader reader = new FastaReader(fasta);
+		Domtblout.Reader fresh = (missOut == null) ? null : new Domtblout.Reader(missOut);
+		Domtblout.Reader known = new Domtblout.Reader(cachedHits);
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(Compression.create(target)));
+		try {
+			if (fresh != null) {
+				for (String comment : fresh.getLeadingComments()) {
+					bw.write(comment);
+					bw.newLine();
+				}
+			}
+			List<String> lines = new ArrayList<String>();
+			for (int seq = 0; reader.next(); seq++) {
+				String name = ordinal(seq);
+				Domtblout.Reader source = cached.get(seq) ? known : fresh;
+				lines.clear();
+				while ( source.getLine() != null && name.equals(source.getQuery()) ) {
+					lines.add(Domtblout.withQuery(source.getLine(), "-"));
+					bw.write(Domtblout.withQuery(source.getLine(), reader.getId()));
+					bw.newLine();
+					source.advance();
+				}
+				if (! cached.get(seq) )
+					cache.put(Digests.sequence(reader.getResidues()), lines);
+			}
+		}
+		finally {
+			reader.close();
+			known.close();
+			if (fresh != null)
+				fresh.close();
+			bw.close();
+		}
+		cache.evict();
+	}
+
+	/**
+	 * Removes the temporary files of this plan
+	 */
+	public void cleanUp() {
+		if (missFasta != null)
+			missFasta.delete();
+		if (cachedHits != null)
+			cachedHits.delete();
+	}
+
+	private static String ordinal(int seq) {
+		return "q"+seq;
+	}
+
+}
@@ -0,0 +1,103 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+
+/**
+ * Class XdomConverter
+ * Converts between text xdom and binary xdom (see BinaryXdomWriter).
+ * Text written from binary xdom is identical to the text it was made
+ * from, as long as that was written by PfamScanner. Either side may be
+ * compressed (see Compression).
+ */
+public class XdomConverter {
+
+	/**
+	 * @return true if file (or what it decompresses to) starts like
+	 * binary xdom
+	 * @throws IOException
+	 */
+	public static boolean isBinary(File file) throws IOException {
+		byte[] magic = new byte[BinaryXdomWriter.MAGIC.length];
+		InputStream in = Compression.open(file);
+		try {
+			int n = 0, r;
+			while (n < magic.length && (r = in.read(magic, n, magic.length - n)) > 0)
+				n += r;
+			return n == magic.length && Arrays.equals(magic, BinaryXdomWriter.MAGIC);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of proteins converted
+	 */
+	public static int toBinary(File text, File binary) throws IOException {
+		XdomReader reader = new XdomReader(new InputStreamReader(Compression.open(text)));
+		BinaryXdomWriter writer = new BinaryXdomWriter(new BufferedOutputStream(Compression.create(binary), 1 << 16));
+		try {
+			int proteins = 0;
+			ProteinAnnotation annotation;
+			while ( (annotation = reader.next()) != null ) {
+				writer.accept(annotation);
+				proteins++;
+			}
+			return proteins;
+		}
+		finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the number of proteins converted
+	 */
+	public static int toText(File binary, File text) throws IOException {
+		BinaryXdomReader reader = new BinaryXdomReader(Compression.open(binary));
+		XdomWriter writer = new XdomWriter(new BufferedWriter(new OutputStreamWriter(Compression.create(text)), 1 << 16));
+		try {
+			int proteins = 0;
+			ProteinAnnotation annotation;
+			while ( (annotation = reader.next()) != null ) {
+				writer.accept(annotation);
+				proteins++;
+			}
+			return proteins;
+		}
+		finally {
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Replaces the text xdom file by its binary version
+	 * @throws IOException
+	 */
+	public static void toBinary(File xdom) throws IOException {
+		// keeps the compression of xdom
+		File tmp = new File(xdom.getPath()+".bin.tmp"+Compression.suffix(xdom));
+		try {
+			toBinary(xdom, tmp);
+			Files.move(tmp.toPath(), xdom.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			tmp.delete();
+		}
+	}
+
+}
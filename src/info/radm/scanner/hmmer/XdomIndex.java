@@ -0,0 +1,359 @@
+package info.radm.scanner.hmmer;
+
+import info.radm.scanner.utils.Compression;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * Class XdomIndex
+ * Sidecar index (xdom file name + ".xdi") for looking up single proteins
+ * in a large text xdom file without reading it:
+ *
+ * <pre>
+ * file   := "XDIX" version(u32) #proteins(u64) xdom length(u64) xdom mtime(u64) entry*
+ * entry  := hash(u64) offset(u64)   (sorted by hash, then offset)
+ * </pre>
+ *
+ * The hash is a 64 bit hash of the UTF-8 bytes of the protein ID, the
+ * offset that of the '>' of its header line. The entries are memory
+ * mapped, so a lookup is a binary search over the mapped pages plus one
+ * read of the protein's lines, and the index can be shared by any number
+ * of threads. Several proteins of the same hash are told apart by their
+ * header line; of proteins listed twice the first one is found. An index
+ * is refused once the length or modification time of its xdom file has
+ * changed.
+ *
+ * Only uncompressed text xdom can be indexed, as offsets into compressed
+ * or binary xdom do not lead to a protein.
+ */
+public class XdomIndex implements Closeable {
+
+	private static final byte[] MAGIC = { 'X', 'D', 'I', 'X' };
+	private static final int VERSION = 1;
+	private static final int HEADER = 32, ENTRY = 16;
+	// entries per mapped segment (1 GB)
+	private static final int SEGMENT_ENTRIES = 1 << 26;
+
+	private FileChannel data;
+	private ByteBuffer[] segments;
+	private long size;
+
+
+	/**
+	 * Opens the index of xdom
+	 * @param xdom
+	 * @throws IOException if there is no index, or it is out of date
+	 */
+	public XdomIndex(File xdom) throws IOException {
+
+		File index = indexFile(xdom);
+		if (! index.isFile() )
+			throw new IOException("no index for "+xdom.getPath()+" (build it with --index)");
+		FileChannel ch = FileChannel.open(index.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining() && ch.read(header) > 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			if (header.remaining() < HEADER)
+				throw new IOException("not an xdom index: "+index.getPath());
+			header.get(magic);
+			if (! Arrays.equals(magic, MAGIC) )
+				throw new IOException("not an xdom index: "+index.getPath());
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported xdom index version "+version);
+			size = header.getLong();
+			if (header.getLong() != xdom.length() || header.getLong() != xdom.lastModified())
+				throw new IOException("index of "+xdom.getPath()+" is out of date (rebuild it with --index)");
+			if (ch.size() != HEADER + size * ENTRY)
+				throw new IOException("xdom index "+index.getPath()+" is truncated");
+
+			segments = new ByteBuffer[(int) ((size + SEGMENT_ENTRIES - 1) / SEGMENT_ENTRIES)];
+			for (int s = 0; s < segments.length; s++) {
+				long entries = Math.min(SEGMENT_ENTRIES, size - (long) s * SEGMENT_ENTRIES);
+				segments[s] = ch.map(FileChannel.MapMode.READ_ONLY,
+						HEADER + (long) s * SEGMENT_ENTRIES * ENTRY, entries * ENTRY);
+			}
+		}
+		finally {
+			// the mappings stay valid
+			ch.close();
+		}
+		data = FileChannel.open(xdom.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * @return the index file of xdom
+	 */
+	public static File indexFile(File xdom) {
+		return new File(xdom.getPath()+".xdi");
+	}
+
+	/**
+	 * @return the number of proteins in the index
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @param id
+	 * @return the lines of the protein (header and domains), as in the
+	 * xdom file, or null if it is not in there
+	 * @throws IOException
+	 */
+	public String getBlock(String id) throws IOException {
+
+		byte[] key = id.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(key, 0, key.length);
+		// first entry of the hash
+		long lo = 0, hi = size;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (Long.compareUnsigned(hashAt(mid), hash) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		for (long e = lo; e < size && hashAt(e) == hash; e++) {
+			String block = readBlock(offsetAt(e), key);
+			if (block != null)
+				return block;
+		}
+		return null;
+	}
+
+	/**
+	 * @param id
+	 * @return the protein, or null if it is not in the xdom file
+	 * @throws IOException
+	 */
+	public ProteinAnnotation get(String id) throws IOException {
+		String block = getBlock(id);
+		if (block == null)
+			return null;
+		XdomReader reader = new XdomReader(new StringReader(block));
+		try {
+			return reader.next();
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	public void close() throws IOException {
+		data.close();
+		segments = null;
+	}
+
+	/**
+	 * Writes the index of an xdom file, replacing any previous one
+	 * @param xdom uncompressed text xdom
+	 * @return the number of proteins indexed
+	 * @throws IOException
+	 */
+	public static long build(File xdom) throws IOException {
+
+		if ( Compression.isCompressed(xdom) || XdomConverter.isBinary(xdom) )
+			throw new IOException("only uncompressed text xdom can be indexed");
+		long length = xdom.length(), modified = xdom.lastModified();
+
+		long[] hashes = new long[1 << 16], offsets = new long[1 << 16];
+		int n = 0;
+		InputStream in = new FileInputStream(xdom);
+		try {
+			byte[] buf = new byte[1 << 16];
+			long pos = 0;
+			// the ID of a header line is hashed as it goes by
+			boolean lineStart = true, inId = false;
+			long hash = 0;
+			int r;
+			while ( (r = in.read(buf)) != -1 ) {
+				for (int i = 0; i < r; i++) {
+					byte b = buf[i];
+					if (inId) {
+						if (b == '\t' || b == ' ' || b == '\n' || b == '\r') {
+							hashes[n++] = finish(hash);
+							inId = false;
+						}
+						else
+							hash = update(hash, b);
+					}
+					else if (lineStart && b == '>') {
+						if (n == hashes.length) {
+							hashes = Arrays.copyOf(hashes, n * 2);
+							offsets = Arrays.copyOf(offsets, n * 2);
+						}
+						offsets[n] = pos + i;
+						hash = FNV_BASIS;
+						inId = true;
+					}
+					lineStart = (b == '\n');
+				}
+				pos += r;
+			}
+			if (inId)
+				hashes[n++] = finish(hash);
+		}
+		finally {
+			in.close();
+		}
+		sort(hashes, offsets, 0, n - 1);
+
+		File index = indexFile(xdom);
+		File tmp = new File(index.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(n);
+			out.writeLong(length);
+			out.writeLong(modified);
+			for (int i = 0; i < n; i++) {
+				out.writeLong(hashes[i]);
+				out.writeLong(offsets[i]);
+			}
+			out.close();
+			Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			out.close();
+			tmp.delete();
+		}
+		return n;
+	}
+
+	// reads the protein at offset, null if it is not the one of key
+	private String readBlock(long offset, byte[] key) throws IOException {
+
+		ByteBuffer buf = ByteBuffer.allocate(Math.max(1024, key.length + 2));
+		int n = read(buf, offset);
+		if (n < key.length + 1 || buf.get(0) != '>')
+			return null;
+		for (int i = 0; i < key.length; i++)
+			if (buf.get(i + 1) != key[i])
+				return null;
+		if (n > key.length + 1) {
+			byte end = buf.get(key.length + 1);
+			if (end != '\t' && end != ' ' && end != '\n' && end != '\r')
+				return null;
+		}
+		// up to the next header line
+		int from = 1;
+		while (true) {
+			for (int i = from; i < n; i++)
+				if (buf.get(i) == '>' && buf.get(i - 1) == '\n')
+					return new String(buf.array(), 0, i, StandardCharsets.UTF_8);
+			if (n < buf.capacity())
+				return new String(buf.array(), 0, n, StandardCharsets.UTF_8);
+			from = n;
+			ByteBuffer larger = ByteBuffer.allocate(buf.capacity() * 2);
+			larger.put(buf.array(), 0, n);
+			buf = larger;
+			n += read(buf, offset + n);
+		}
+	}
+
+	// fills buf from its position on (as far as the file goes)
+	private int read(ByteBuffer buf, long offset) throws IOException {
+		int start = buf.position();
+		long pos = offset;
+		int r;
+		while ( buf.hasRemaining() && (r = data.read(buf, pos)) > 0 )
+			pos += r;
+		return buf.position() - start;
+	}
+
+	private long hashAt(long entry) {
+		return segments[(int) (entry / SEGMENT_ENTRIES)].getLong((int) (entry % SEGMENT_ENTRIES) * ENTRY);
+	}
+
+	private long offsetAt(long entry) {
+		return segments[(int) (entry / SEGMENT_ENTRIES)].getLong((int) (entry % SEGMENT_ENTRIES) * ENTRY + 8);
+	}
+
+	// FNV-1a, finished with the MurmurHash3 mix for well spread high bits
+	private static final long FNV_BASIS = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+
+	private static long update(long hash, byte b) {
+		return (hash ^ (b & 0xff)) * FNV_PRIME;
+	}
+
+	private static long finish(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	static long hash(byte[] bytes, int from, int to) {
+		long h = FNV_BASIS;
+		for (int i = from; i < to; i++)
+			h = update(h, bytes[i]);
+		return finish(h);
+	}
+
+	// sorts the entries by unsigned hash, then offset
+	private static void sort(long[] hashes, long[] offsets, int lo, int hi) {
+
+		while (hi - lo > 16) {
+			int mid = (lo + hi) >>> 1;
+			long ph = hashes[mid], po = offsets[mid];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (compare(hashes[i], offsets[i], ph, po) < 0)
+					i++;
+				while (compare(hashes[j], offsets[j], ph, po) > 0)
+					j--;
+				if (i <= j)
+					swap(hashes, offsets, i++, j--);
+			}
+			// recurse into the smaller part
+			if (j - lo < hi - i) {
+				sort(hashes, offsets, lo, j);
+				lo = i;
+			}
+			else {
+				sort(hashes, offsets, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++)
+			for (int j = i; j > lo && compare(hashes[j - 1], offsets[j - 1], hashes[j], offsets[j]) > 0; j--)
+				swap(hashes, offsets, j - 1, j);
+	}
+
+	private static int compare(long h1, long o1, long h2, long o2) {
+		int c = Long.compareUnsigned(h1, h2);
+		return (c != 0) ? c : Long.compare(o1, o2);
+	}
+
+	private static void swap(long[] hashes, long[] offsets, int i, int j) {
+		long h = hashes[i];
+		hashes[i] = hashes[j];
+		hashes[j] = h;
+		long o = offsets[i];
+		offsets[i] = offsets[j];
+		offsets[j] = o;
+	}
+
+}
@@ -0,0 +1,105 @@
+package info.radm.scanner.hmmer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Class XdomReader
+ * Reads text xdom (as written by XdomWriter) protein by protein. Domain
+ * lines hold start, end and ID, optionally followed by the evalue (NaN
+ * if there is none) and a comment (after ';'). Model coordinates are
+ * not part of xdom and read as -1.
+ */
+public class XdomReader implements Closeable {
+
+	private BufferedReader br;
+	private String header;
+	private int lineNo = 0;
+
+
+	public XdomReader(Reader r) throws IOException {
+		this.br = new BufferedReader(r, 1 << 16);
+		String line;
+		while ( (line = readLine()) != null && !line.startsWith(">") ) {
+			if (! line.trim().isEmpty() )
+				throw new IOException("xdom line "+lineNo+": domain outside of a protein");
+		}
+		header = line;
+	}
+
+	/**
+	 * @return the next protein, or null at the end of the input
+	 * @throws IOException on malformed lines
+	 */
+	public ProteinAnnotation next() throws IOException {
+
+		if (header == null)
+			return null;
+		String[] fields = header.substring(1).trim().split("\\s+");
+		int length = -1;
+		if (fields.length > 1)
+			length = parseInt(fields[1]);
+
+		List<Domain> domains = new ArrayList<Domain>();
+		String line;
+		while ( (line = readLine()) != null && !line.startsWith(">") ) {
+			if (line.trim().isEmpty())
+				continue;
+			domains.add(parseDomain(line));
+		}
+		header = line;
+		return new ProteinAnnotation(fields[0], length, domains);
+	}
+
+	public void close() throws IOException {
+		br.close();
+	}
+
+	private Domain parseDomain(String line) throws IOException {
+
+		String comment = null;
+		int semicolon = line.indexOf(';');
+		if (semicolon >= 0) {
+			comment = line.substring(semicolon + 1);
+			line = line.substring(0, semicolon);
+		}
+		String[] fields = line.trim().split("\\s+");
+		if (fields.length < 3 || fields.length > 4)
+			throw new IOException("xdom line "+lineNo+": expected start, end, ID [and evalue]");
+		double evalue = Double.NaN;
+		if (fields.length == 4) {
+			try {
+				evalue = Double.parseDouble(fields[3]);
+			}
+			catch (NumberFormatException nfe) {
+				throw new IOException("xdom line "+lineNo+": invalid evalue "+fields[3]);
+			}
+		}
+		Domain dom = new Domain(fields[2], parseInt(fields[0]), parseInt(fields[1]), -1, -1, evalue);
+		if (comment != null)
+			dom.setComment(comment);
+		return dom;
+	}
+
+	private int parseInt(String field) throws IOException {
+		try {
+			return Integer.parseInt(field);
+		}
+		catch (NumberFormatException nfe) {
+			throw new IOException("xdom line "+lineNo+": invalid number "+field);
+		}
+	}
+
+	private String readLine() throws IOException {
+		String line = br.readLine();
+		if (line != null)
+			lineNo++;
+		return line;
+	}
+
+}
@@ -0,0 +1,41 @@
+package info.radm.scanner.hmmer;
+
+import java.io.IOException;
+import java.io.Writer;
+
+
+/**
+ * Class XdomWriter
+ * Writes annotations as text xdom.
+ */
+public class XdomWriter implements AnnotationSink {
+
+	private Writer w;
+
+
+	public XdomWriter(Writer w) {
+		this.w = w;
+	}
+
+	public void accept(ProteinAnnotation annotation) throws IOException {
+		w.write('>');
+		w.write(annotation.getID());
+		if (annotation.getLength() >= 0) {
+			w.write('\t');
+			w.write(Integer.toString(annotation.getLength()));
+		}
+		w.write('\n');
+		for (Domain dom : annotation.getDomains()) {
+			dom.appendTo(w);
+			w.write('\n');
+		}
+	}
+
+	/**
+	 * Flushes and closes the underlying writer
+	 */
+	public void close() throws IOException {
+		w.close();
+	}
+
+}
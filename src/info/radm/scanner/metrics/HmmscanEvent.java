@@ -0,0 +1,30 @@
+package info.radm.scanner.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Class HmmscanEvent
+ * JFR event spanning one hmmscan process (or one hmmpgmd search), see
+ * Metrics.startScan().
+ */
+@Name("info.radm.scanner.Hmmscan")
+@Label("hmmscan")
+@Category("PfamScanner")
+@Description("One hmmscan process or hmmpgmd search")
+class HmmscanEvent extends Event {
+
+	@Label("Backend")
+	String backend;
+
+	@Label("Input")
+	String input;
+
+	@Label("Exit Value")
+	int exitValue;
+
+}
@@ -0,0 +1,335 @@
+package info.radm.scanner.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.FlightRecorder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * Class Metrics
+ * Where the time of a run goes: wall time of every hmmscan process (or
+ * hmmpgmd search), bytes and lines parsed, proteins and domains
+ * emitted, time spent merging, resolving overlaps and collapsing, and
+ * the peak heap. The same numbers are available as JFR events
+ * (HmmscanEvent, ParseEvent), as a JSON summary (see writeJson()) and
+ * through JMX (see registerMBean()). Events are only created once
+ * Flight Recorder is running (-XX:StartFlightRecording, or jcmd
+ * JFR.start), as the first event class loaded costs a third of a
+ * second.
+ *
+ * Metrics are collected for the whole JVM, from all threads. A parse
+ * lasts from the first to the last line of its input, including the
+ * time spent waiting for input (e.g. from a streaming hmmscan) and
+ * writing the results. Parse times are summed over parsing threads, so
+ * rates are per parsing thread.
+ */
+public class Metrics {
+
+	// per-process entries kept for the JSON summary
+	private static final int MAX_SCANS = 1000;
+
+	private static final long started = System.nanoTime();
+	private static final AtomicLong scans = new AtomicLong(), scanFailures = new AtomicLong(),
+			scanNanos = new AtomicLong(), parseNanos = new AtomicLong(), bytes = new AtomicLong(),
+			lines = new AtomicLong(), proteins = new AtomicLong(), domains = new AtomicLong(),
+			mergeNanos = new AtomicLong(), resolveNanos = new AtomicLong(), collapseNanos = new AtomicLong();
+	private static final List<Scan> finished = new ArrayList<Scan>();
+
+
+	/**
+	 * Starts timing a hmmscan process or hmmpgmd search
+	 * @param backend hmmscan or hmmpgmd
+	 * @param input the fasta file scanned
+	 * @return the scan, to be ended when the process has finished
+	 */
+	public static Scan startScan(String backend, File input) {
+		return new Scan(backend, input.getName());
+	}
+
+	/**
+	 * Starts timing the parsing of one hmmscan or pfamscan output (or
+	 * chunk of it)
+	 * @return the parse, to be ended at the end of the output
+	 */
+	public static Parse startParse() {
+		return new Parse();
+	}
+
+	/**
+	 * @return peak heap use in bytes (sum of the peaks of all heap pools)
+	 */
+	public static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	/**
+	 * Makes the metrics available through JMX as
+	 * info.radm.scanner:type=Metrics (e.g. for a scan server)
+	 * @throws JMException if they are registered already
+	 */
+	public static void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+				new ObjectName("info.radm.scanner:type=Metrics"));
+	}
+
+	/**
+	 * Writes the metrics collected so far as JSON
+	 * @throws IOException
+	 */
+	public static void writeJson(File file) throws IOException {
+		Writer w = new BufferedWriter(new FileWriter(file));
+		try {
+			writeJson(w);
+		}
+		finally {
+			w.close();
+		}
+	}
+
+	public static void writeJson(Writer w) throws IOException {
+
+		double parseSeconds = seconds(parseNanos.get());
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"wallSeconds\": ").append(number(seconds(System.nanoTime() - started))).append(",\n");
+		sb.append("  \"hmmscan\": {\n");
+		sb.append("    \"processes\": ").append(scans.get()).append(",\n");
+		sb.append("    \"failures\": ").append(scanFailures.get()).append(",\n");
+		sb.append("    \"seconds\": ").append(number(seconds(scanNanos.get()))).append(",\n");
+		sb.append("    \"runs\": [");
+		synchronized (finished) {
+			for (int i = 0; i < finished.size(); i++) {
+				Scan scan = finished.get(i);
+				sb.append((i == 0) ? "\n" : ",\n");
+				sb.append("      {\"backend\": ").append(string(scan.backend));
+				sb.append(", \"input\": ").append(string(scan.input));
+				sb.append(", \"seconds\": ").append(number(seconds(scan.nanos)));
+				sb.append(", \"exitValue\": ").append(scan.exitValue).append("}");
+			}
+			sb.append(finished.isEmpty() ? "]\n" : "\n    ]\n");
+		}
+		sb.append("  },\n");
+		sb.append("  \"parse\": {\n");
+		sb.append("    \"seconds\": ").append(number(parseSeconds)).append(",\n");
+		sb.append("    \"bytes\": ").append(bytes.get()).append(",\n");
+		sb.append("    \"lines\": ").append(lines.get()).append(",\n");
+		sb.append("    \"proteins\": ").append(proteins.get()).append(",\n");
+		sb.append("    \"domains\": ").append(domains.get()).append(",\n");
+		sb.append("    \"bytesPerSecond\": ").append(number(rate(bytes.get(), parseSeconds))).append(",\n");
+		sb.append("    \"linesPerSecond\": ").append(number(rate(lines.get(), parseSeconds))).append(",\n");
+		sb.append("    \"proteinsPerSecond\": ").append(number(rate(proteins.get(), parseSeconds))).append(",\n");
+		sb.append("    \"domainsPerSecond\": ").append(number(rate(domains.get(), parseSeconds))).append(",\n");
+		sb.append("    \"mergeSeconds\": ").append(number(seconds(mergeNanos.get()))).append(",\n");
+		sb.append("    \"resolveOverlapsSeconds\": ").append(number(seconds(resolveNanos.get()))).append(",\n");
+		sb.append("    \"collapseSeconds\": ").append(number(seconds(collapseNanos.get()))).append("\n");
+		sb.append("  },\n");
+		sb.append("  \"peakHeapBytes\": ").append(peakHeap()).append("\n");
+		sb.append("}\n");
+		w.write(sb.toString());
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+	private static double rate(long count, double seconds) {
+		return (seconds > 0) ? count / seconds : 0;
+	}
+
+	private static String number(double d) {
+		return String.format(Locale.ROOT, "%.3f", d);
+	}
+
+	private static String string(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+
+	/**
+	 * One hmmscan process or hmmpgmd search, from startScan() to end()
+	 */
+	public static class Scan {
+
+		private String backend, input;
+		private long start, nanos;
+		private int exitValue;
+		private boolean ended = false;
+		private HmmscanEvent event;
+
+		private Scan(String backend, String input) {
+			this.backend = backend;
+			this.input = input;
+			this.start = System.nanoTime();
+			if (FlightRecorder.isInitialized()) {
+				event = new HmmscanEvent();
+				event.begin();
+			}
+		}
+
+		/**
+		 * @param exitValue of the process (0: success)
+		 */
+		public synchronized void end(int exitValue) {
+			if (ended)
+				return;
+			ended = true;
+			this.nanos = System.nanoTime() - start;
+			this.exitValue = exitValue;
+			scans.incrementAndGet();
+			if (exitValue != 0)
+				scanFailures.incrementAndGet();
+			scanNanos.addAndGet(nanos);
+			synchronized (finished) {
+				if (finished.size() < MAX_SCANS)
+					finished.add(this);
+			}
+			if (event == null)
+				return;
+			event.end();
+			if (event.shouldCommit()) {
+				event.backend = backend;
+				event.input = input;
+				event.exitValue = exitValue;
+				event.commit();
+			}
+		}
+	}
+
+
+	/**
+	 * Parsing of one hmmscan or pfamscan output, from startParse() to end()
+	 */
+	public static class Parse {
+
+		private ParseEvent event;
+		private long start = System.nanoTime();
+
+		private Parse() {
+			if (FlightRecorder.isInitialized()) {
+				event = new ParseEvent();
+				event.begin();
+			}
+		}
+
+		/**
+		 * @param bytes
+		 * @param lines
+		 * @param proteins proteins emitted
+		 * @param domains domains emitted
+		 * @param merge nanoseconds spent merging split hits
+		 * @param resolve nanoseconds spent resolving overlaps
+		 * @param collapse nanoseconds spent collapsing repeats
+		 */
+		public void end(long bytes, long lines, long proteins, long domains,
+				long merge, long resolve, long collapse) {
+
+			parseNanos.addAndGet(System.nanoTime() - start);
+			Metrics.bytes.addAndGet(bytes);
+			Metrics.lines.addAndGet(lines);
+			Metrics.proteins.addAndGet(proteins);
+			Metrics.domains.addAndGet(domains);
+			mergeNanos.addAndGet(merge);
+			resolveNanos.addAndGet(resolve);
+			collapseNanos.addAndGet(collapse);
+
+			if (event == null)
+				return;
+			event.end();
+			if (event.shouldCommit()) {
+				event.bytes = bytes;
+				event.lines = lines;
+				event.proteins = proteins;
+				event.domains = domains;
+				event.mergeTime = merge;
+				event.resolveTime = resolve;
+				event.collapseTime = collapse;
+				event.commit();
+			}
+		}
+	}
+
+
+	private static class Bean implements MetricsMXBean {
+
+		public long getHmmscanProcesses() {
+			return scans.get();
+		}
+
+		public long getHmmscanFailures() {
+			return scanFailures.get();
+		}
+
+		public double getHmmscanSeconds() {
+			return seconds(scanNanos.get());
+		}
+
+		public double getParseSeconds() {
+			return seconds(parseNanos.get());
+		}
+
+		public long getBytesParsed() {
+			return bytes.get();
+		}
+
+		public long getLinesParsed() {
+			return lines.get();
+		}
+
+		public long getProteins() {
+			return proteins.get();
+		}
+
+		public long getDomains() {
+			return domains.get();
+		}
+
+		public double getMergeSeconds() {
+			return seconds(mergeNanos.get());
+		}
+
+		public double getResolveOverlapsSeconds() {
+			return seconds(resolveNanos.get());
+		}
+
+		public double getCollapseSeconds() {
+			return seconds(collapseNanos.get());
+		}
+
+		public long getPeakHeapBytes() {
+			return peakHeap();
+		}
+
+		public double getUptimeSeconds() {
+			return seconds(System.nanoTime() - started);
+		}
+	}
+
+}
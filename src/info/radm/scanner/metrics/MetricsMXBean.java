@@ -0,0 +1,37 @@
+package info.radm.scanner.metrics;
+
+
+/**
+ * Interface MetricsMXBean
+ * The run metrics (see Metrics) as seen through JMX, registered as
+ * info.radm.scanner:type=Metrics. Times are in seconds.
+ */
+public interface MetricsMXBean {
+
+	long getHmmscanProcesses();
+
+	long getHmmscanFailures();
+
+	double getHmmscanSeconds();
+
+	double getParseSeconds();
+
+	long getBytesParsed();
+
+	long getLinesParsed();
+
+	long getProteins();
+
+	long getDomains();
+
+	double getMergeSeconds();
+
+	double getResolveOverlapsSeconds();
+
+	double getCollapseSeconds();
+
+	long getPeakHeapBytes();
+
+	double getUptimeSeconds();
+
+}
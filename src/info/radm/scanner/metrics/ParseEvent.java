@@ -0,0 +1,49 @@
+package info.radm.scanner.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+/**
+ * Class ParseEvent
+ * JFR event spanning the parsing of one hmmscan or pfamscan output
+ * (stream, or chunk of it when parsing in parallel), see
+ * Metrics.startParse().
+ */
+@Name("info.radm.scanner.Parse")
+@Label("Parse")
+@Category("PfamScanner")
+@Description("Parsing and post-processing of hmmscan or pfamscan output")
+class ParseEvent extends Event {
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	@Label("Lines")
+	long lines;
+
+	@Label("Proteins")
+	long proteins;
+
+	@Label("Domains")
+	long domains;
+
+	@Label("Merge Time")
+	@Timespan
+	long mergeTime;
+
+	@Label("Overlap Resolution Time")
+	@Timespan
+	long resolveTime;
+
+	@Label("Collapse Time")
+	@Timespan
+	long collapseTime;
+
+}
@@ -0,0 +1,340 @@
+package info.radm.scanner.metrics;
+
+import info.radm.scanner.utils.Compression;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Class ScanProgress
+ * Reports how far a scan has got: queries searched out of those in the
+ * input, residues searched per second and the estimated time left,
+ * every few seconds to stderr or to a status file (replaced at every
+ * report). The estimate is based on residues, as the search time of a
+ * query grows with its length.
+ *
+ * Queries are counted as hmmscan finishes them: from its main output
+ * ("Query:" and "//" lines, see StreamGobbler), or, while its domtblout
+ * is streamed, from the query names in the domtblout, matched up with
+ * the input (see follow()). Only a line per report interval is looked
+ * at in the latter case. hmmpgmd searches are counted by the client.
+ */
+public class ScanProgress {
+
+	private long interval;
+	private File statusFile;
+	private long started = System.nanoTime();
+	private AtomicLong queries = new AtomicLong(), residues = new AtomicLong(),
+			doneQueries = new AtomicLong(), doneResidues = new AtomicLong();
+	private boolean fixed = false;
+	private volatile boolean sample = false;
+	private Thread reporter;
+
+
+	/**
+	 * @param seconds report interval
+	 * @param statusFile file to write the reports to, or null for stderr
+	 */
+	public ScanProgress(long seconds, File statusFile) {
+		this.interval = seconds * 1000;
+		this.statusFile = statusFile;
+	}
+
+	/**
+	 * Adds the queries of fasta to those to be searched, unless the
+	 * total is fixed (see expectAll())
+	 * @param fasta
+	 * @throws IOException
+	 */
+	public synchronized void expect(File fasta) throws IOException {
+		if (! fixed )
+			count(fasta, 0);
+	}
+
+	/**
+	 * Sets the queries to be searched to those of fasta from offset on
+	 * (e.g. the rest of a checkpointed scan, scanned segment by segment)
+	 * and ignores the fastas passed to expect() from now on
+	 * @param fasta
+	 * @param offset byte offset of the first record
+	 * @throws IOException
+	 */
+	public synchronized void expectAll(File fasta, long offset) throws IOException {
+		queries.set(0);
+		residues.set(0);
+		count(fasta, offset);
+		fixed = true;
+	}
+
+	/**
+	 * One query has been searched
+	 * @param length its number of residues
+	 */
+	public void queryDone(long length) {
+		doneQueries.incrementAndGet();
+		doneResidues.addAndGet(length);
+	}
+
+	/**
+	 * Takes back queries counted by queryDone() that are searched again
+	 * (e.g. after a failed hmmpgmd search)
+	 * @param queries
+	 * @param residues their number of residues
+	 */
+	public void queriesUndone(long queries, long residues) {
+		doneQueries.addAndGet(-queries);
+		doneResidues.addAndGet(-residues);
+	}
+
+	/**
+	 * Counts the queries of a domtblout stream as they pass, by matching
+	 * the query names against fasta, which has been searched in this
+	 * order. A query counts as searched once a later query shows up (or
+	 * at the end of the stream).
+	 * @param domtblout
+	 * @param fasta the input of the search
+	 * @return the stream, to be read instead of domtblout
+	 * @throws IOException if fasta cannot be read
+	 */
+	public InputStream follow(InputStream domtblout, File fasta) throws IOException {
+		return new Follower(domtblout, new FastaReader(fasta));
+	}
+
+	/**
+	 * Starts reporting
+	 */
+	public void start() {
+		reporter = new Thread("progress") {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(interval);
+						report();
+						// have the domtblout followers look at a line
+						sample = true;
+					}
+				}
+				catch (InterruptedException ie) {
+					// stopped
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Stops reporting, after a last report
+	 */
+	public void stop() {
+		if (reporter == null)
+			return;
+		reporter.interrupt();
+		try {
+			reporter.join();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		reporter = null;
+		report();
+	}
+
+	/**
+	 * Writes a report
+	 */
+	public void report() {
+		long done = doneQueries.get(), total = queries.get();
+		long doneRes = doneResidues.get(), totalRes = residues.get();
+		double seconds = (System.nanoTime() - started) / 1e9;
+		double rate = (seconds > 0) ? doneRes / seconds : 0;
+		long eta = (rate > 0 && totalRes >= doneRes) ? Math.round((totalRes - doneRes) / rate) : -1;
+
+		String line = String.format(Locale.ROOT, "%d/%d queries (%.1f%%), %.0f residues/s, ETA %s",
+				done, total, (total > 0) ? 100.0 * done / total : 0.0, rate, duration(eta));
+		if (statusFile == null) {
+			System.err.println("INFO: "+line);
+			return;
+		}
+		Properties p = new Properties();
+		p.setProperty("queries.done", ""+done);
+		p.setProperty("queries.total", ""+total);
+		p.setProperty("residues.done", ""+doneRes);
+		p.setProperty("residues.total", ""+totalRes);
+		p.setProperty("residues.per.second", String.format(Locale.ROOT, "%.0f", rate));
+		p.setProperty("elapsed.seconds", ""+Math.round(seconds));
+		p.setProperty("eta.seconds", ""+eta);
+		File tmp = new File(statusFile.getPath()+".tmp");
+		try {
+			OutputStream os = new FileOutputStream(tmp);
+			try {
+				p.store(os, line);
+			}
+			finally {
+				os.close();
+			}
+			if (! tmp.renameTo(statusFile) )
+				throw new IOException("could not rename "+tmp.getPath());
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not write progress to "+statusFile.getAbsolutePath()+": "+ioe.getMessage());
+		}
+	}
+
+	// e.g. 2d 03:04:05, or ? if unknown
+	private static String duration(long seconds) {
+		if (seconds < 0)
+			return "?";
+		String hms = String.format(Locale.ROOT, "%02d:%02d:%02d",
+				(seconds / 3600) % 24, (seconds / 60) % 60, seconds % 60);
+		return (seconds >= 86400) ? (seconds / 86400)+"d "+hms : hms;
+	}
+
+	// adds the records and residues of fasta from offset on
+	private void count(File fasta, long offset) throws IOException {
+		InputStream is = Compression.open(fasta);
+		long records = 0, length = 0;
+		try {
+			while (offset > 0) {
+				long skipped = is.skip(offset);
+				if (skipped <= 0)
+					throw new IOException(fasta.getPath()+" is shorter than "+offset+" bytes");
+				offset -= skipped;
+			}
+			byte[] buf = new byte[1 << 16];
+			boolean lineStart = true, header = false;
+			int r;
+			while ( (r = is.read(buf)) != -1 ) {
+				for (int i = 0; i < r; i++) {
+					byte b = buf[i];
+					if (lineStart && b == '>') {
+						header = true;
+						records++;
+					}
+					else if (b == '\n')
+						header = false;
+					else if (! header && b > ' ')
+						length++;
+					lineStart = (b == '\n');
+				}
+			}
+		}
+		finally {
+			is.close();
+		}
+		queries.addAndGet(records);
+		residues.addAndGet(length);
+	}
+
+
+	/**
+	 * Passes a domtblout stream on, and looks at the query name of the
+	 * next complete line whenever a report has been written
+	 */
+	private class Follower extends FilterInputStream {
+
+		private FastaReader fasta;
+		private StringBuilder line = new StringBuilder();
+		// looking for the start of a line, collecting a line
+		private boolean seeking = false, collecting = false;
+		private boolean more;
+
+		Follower(InputStream in, FastaReader fasta) throws IOException {
+			super(in);
+			this.fasta = fasta;
+			this.more = fasta.next();
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1)
+				finish();
+			else if (sample || seeking || collecting)
+				look(b);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = super.read(b, off, len);
+			if (r == -1)
+				finish();
+			for (int i = off; i < off + r && (sample || seeking || collecting); i++)
+				look(b[i]);
+			return r;
+		}
+
+		public void close() throws IOException {
+			fasta.close();
+			super.close();
+		}
+
+		private void look(int b) {
+			if (sample) {
+				sample = false;
+				seeking = true;
+			}
+			if (seeking) {
+				if (b == '\n') {
+					seeking = false;
+					collecting = true;
+					line.setLength(0);
+				}
+				return;
+			}
+			if (b != '\n') {
+				line.append((char) b);
+				return;
+			}
+			collecting = false;
+			String name = queryName(line);
+			if (name == null)
+				// comment line, look at the next one
+				seeking = true;
+			else
+				reached(name);
+		}
+
+		// counts the queries before name (in the fasta) as done
+		private void reached(String name) {
+			try {
+				while (more && !fasta.getId().equals(name)) {
+					queryDone(fasta.getResidues().length());
+					more = fasta.next();
+				}
+			}
+			catch (IOException ioe) {
+				more = false;
+			}
+		}
+
+		private void finish() {
+			try {
+				while (more) {
+					queryDone(fasta.getResidues().length());
+					more = fasta.next();
+				}
+			}
+			catch (IOException ioe) {
+				more = false;
+			}
+		}
+
+		// fourth column of a domtblout line
+		private String queryName(CharSequence l) {
+			if (l.length() == 0 || l.charAt(0) == '#')
+				return null;
+			String[] fields = l.toString().trim().split("\\s+", 5);
+			return (fields.length > 4) ? fields[3] : null;
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package info.radm.scanner.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Class ByteBufferInputStream
+ * Reads from a (memory mapped) byte buffer.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer buffer;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public int read() {
+		if (! buffer.hasRemaining() )
+			return -1;
+		return buffer.get() & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (! buffer.hasRemaining() )
+			return -1;
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	public int available() {
+		return buffer.remaining();
+	}
+
+}
@@ -0,0 +1,219 @@
+package info.radm.scanner.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Class Compression
+ * Transparent reading and writing of gzip and zstd compressed files.
+ * Compressed input is recognized by its magic bytes, whatever the file
+ * is called; output is compressed if the file name ends in .gz or .zst.
+ * Gzip output is compressed on several threads (see
+ * ParallelGzipOutputStream). There is no zstd codec in the JDK, so zstd
+ * files are read and written through the zstd command line tool, which
+ * must be on the PATH.
+ */
+public class Compression {
+
+	public static final int NONE = 0;
+	public static final int GZIP = 1;
+	public static final int ZSTD = 2;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static int threads = Runtime.getRuntime().availableProcessors();
+
+
+	/**
+	 * Number of threads to compress output with (default: one per CPU)
+	 * @param threads
+	 */
+	public static void setThreads(int threads) {
+		Compression.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @return GZIP or ZSTD if the file starts like one, NONE otherwise
+	 * @throws IOException
+	 */
+	public static int detect(File file) throws IOException {
+		byte[] magic = new byte[4];
+		InputStream in = new FileInputStream(file);
+		int n = 0, r;
+		try {
+			while (n < magic.length && (r = in.read(magic, n, magic.length - n)) > 0)
+				n += r;
+		}
+		finally {
+			in.close();
+		}
+		if (n >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B)
+			return GZIP;
+		if (n == 4 && (magic[0] & 0xFF) == 0x28 && (magic[1] & 0xFF) == 0xB5 &&
+				(magic[2] & 0xFF) == 0x2F && (magic[3] & 0xFF) == 0xFD)
+			return ZSTD;
+		return NONE;
+	}
+
+	/**
+	 * @return true if file is gzip or zstd compressed (false if it can not
+	 * be read)
+	 */
+	public static boolean isCompressed(File file) {
+		try {
+			return detect(file) != NONE;
+		}
+		catch (IOException ioe) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return GZIP or ZSTD if output to file is compressed (by its name),
+	 * NONE otherwise
+	 */
+	public static int forName(File file) {
+		String name = file.getName();
+		if (name.endsWith(".gz"))
+			return GZIP;
+		if (name.endsWith(".zst"))
+			return ZSTD;
+		return NONE;
+	}
+
+	/**
+	 * @return the compression suffix of file (.gz, .zst), or ""
+	 */
+	public static String suffix(File file) {
+		switch (forName(file)) {
+		case GZIP:
+			return ".gz";
+		case ZSTD:
+			return ".zst";
+		default:
+			return "";
+		}
+	}
+
+	/**
+	 * Opens file for reading, decompressing it if it is compressed
+	 * @throws IOException
+	 */
+	public static InputStream open(File file) throws IOException {
+		switch (detect(file)) {
+		case GZIP:
+			// reads all members of concatenated (e.g. pigz) files
+			return new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE);
+		case ZSTD:
+			return zstdInput(file);
+		default:
+			return new FileInputStream(file);
+		}
+	}
+
+	/**
+	 * Opens file for writing, compressing by its name (see forName()). If
+	 * append is true, the compressed data is appended as a further gzip
+	 * member or zstd frame, which readers treat as part of the same data.
+	 * @throws IOException
+	 */
+	public static OutputStream create(File file, boolean append) throws IOException {
+		switch (forName(file)) {
+		case GZIP:
+			return new ParallelGzipOutputStream(new FileOutputStream(file, append), threads);
+		case ZSTD:
+			return zstdOutput(file, append);
+		default:
+			return new FileOutputStream(file, append);
+		}
+	}
+
+	public static OutputStream create(File file) throws IOException {
+		return create(file, false);
+	}
+
+	private static InputStream zstdInput(File file) throws IOException {
+		final Process process = startZstd(new ProcessBuilder("zstd", "-q", "-d", "-c", file.getAbsolutePath()));
+		process.getOutputStream().close();
+		return new FilterInputStream(new BufferedInputStream(process.getInputStream(), BUFFER_SIZE)) {
+			private boolean eof = false;
+
+			public int read() throws IOException {
+				return check(super.read());
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return check(super.read(b, off, len));
+			}
+
+			public void close() throws IOException {
+				super.close();
+				if (! eof )
+					process.destroy();
+			}
+
+			// a truncated or corrupt file ends the stream early
+			private int check(int r) throws IOException {
+				if (r == -1 && !eof) {
+					eof = true;
+					if (waitFor(process) != 0)
+						throw new IOException("zstd could not decompress "+file.getPath());
+				}
+				return r;
+			}
+		};
+	}
+
+	private static OutputStream zstdOutput(final File file, boolean append) throws IOException {
+		ProcessBuilder pb = new ProcessBuilder("zstd", "-q", "-T"+threads, "-c");
+		pb.redirectOutput(append ? Redirect.appendTo(file) : Redirect.to(file));
+		final Process process = startZstd(pb);
+		process.getInputStream().close();
+		return new FilterOutputStream(new BufferedOutputStream(process.getOutputStream(), BUFFER_SIZE)) {
+			private boolean closed = false;
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			public void close() throws IOException {
+				if (closed)
+					return;
+				closed = true;
+				super.close();
+				if (waitFor(process) != 0)
+					throw new IOException("zstd could not compress to "+file.getPath());
+			}
+		};
+	}
+
+	private static Process startZstd(ProcessBuilder pb) throws IOException {
+		pb.redirectError(Redirect.INHERIT);
+		try {
+			return pb.start();
+		}
+		catch (IOException ioe) {
+			throw new IOException("zstd compressed files need the zstd command line tool ("+ioe.getMessage()+")");
+		}
+	}
+
+	private static int waitFor(Process process) throws IOException {
+		try {
+			return process.waitFor();
+		}
+		catch (InterruptedException ie) {
+			throw new IOException("interrupted while waiting for zstd");
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package info.radm.scanner.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Class Digests
+ * Hashes of sequences, strings and files.
+ */
+public class Digests {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 128 bit digest of a residue sequence (case insensitive)
+	 */
+	public static byte[] sequence(CharSequence residues) {
+		MessageDigest md = get("MD5");
+		byte[] buf = new byte[4096];
+		int n = 0;
+		for (int i = 0; i < residues.length(); i++) {
+			buf[n++] = (byte) Character.toUpperCase(residues.charAt(i));
+			if (n == buf.length) {
+				md.update(buf, 0, n);
+				n = 0;
+			}
+		}
+		md.update(buf, 0, n);
+		return md.digest();
+	}
+
+	public static String sha256(String s) {
+		try {
+			return hex(get("SHA-256").digest(s.getBytes("UTF-8")));
+		}
+		catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	public static String sha256(File f) throws IOException {
+		MessageDigest md = get("SHA-256");
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buf = new byte[1 << 16];
+			int n;
+			while ( (n = in.read(buf)) > 0 )
+				md.update(buf, 0, n);
+		}
+		finally {
+			in.close();
+		}
+		return hex(md.digest());
+	}
+
+	public static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+	private static MessageDigest get(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package info.radm.scanner.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Class FastaReader
+ * Reads a fasta file record by record.
+ */
+public class FastaReader {
+
+	private BufferedReader br;
+	private String nextHeader, header, id;
+	private StringBuilder residues = new StringBuilder();
+
+	public FastaReader(File fasta) throws IOException {
+		this.br = new BufferedReader(new InputStreamReader(Compression.open(fasta)));
+		String line;
+		while ( (line = br.readLine()) != null && !line.startsWith(">") )
+			;
+		nextHeader = line;
+	}
+
+	/**
+	 * Advances to the next record
+	 * @return false at the end of the file
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if (nextHeader == null)
+			return false;
+		header = nextHeader;
+		id = firstWord(header);
+		residues.setLength(0);
+		String line;
+		while ( (line = br.readLine()) != null && !line.startsWith(">") )
+			residues.append(line.trim());
+		nextHeader = line;
+		return true;
+	}
+
+	/**
+	 * @return the header line, including '>'
+	 */
+	public String getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return the first word of the header (as used by hmmscan)
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public CharSequence getResidues() {
+		return residues;
+	}
+
+	public void close() throws IOException {
+		br.close();
+	}
+
+	/**
+	 * Writes a record with 60 residues per line
+	 */
+	public static void write(Appendable out, String header, CharSequence residues) throws IOException {
+		out.append(header).append('\n');
+		for (int i = 0; i < residues.length(); i += 60)
+			out.append(residues, i, Math.min(residues.length(), i + 60)).append('\n');
+	}
+
+	private static String firstWord(String header) {
+		int start = 1;
+		while (start < header.length() && Character.isWhitespace(header.charAt(start)))
+			start++;
+		int end = start;
+		while (end < header.length() && !Character.isWhitespace(header.charAt(end)))
+			end++;
+		return header.substring(start, end);
+	}
+
+}
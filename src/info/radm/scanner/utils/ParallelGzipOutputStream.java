@@ -0,0 +1,191 @@
+package info.radm.scanner.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Class ParallelGzipOutputStream
+ * Gzip compresses on several threads, the way pigz does: the data is cut
+ * into blocks of BLOCK_SIZE bytes that are deflated independently, each
+ * with the last 32 KiB of the previous block as its dictionary, and
+ * ended on a byte boundary (sync flush) so that the compressed blocks
+ * can simply be written one after the other. The result is a single
+ * gzip member, about as small as that of gzip. The checksum is computed
+ * on the writing thread.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	static final int BLOCK_SIZE = 1 << 17;
+	private static final int DICTIONARY_SIZE = 1 << 15;
+	private static final byte[] HEADER = { 0x1F, (byte) 0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xFF };
+
+	private OutputStream out;
+	private ExecutorService pool;
+	private int threads;
+	private byte[] block = new byte[BLOCK_SIZE], previous = null;
+	private int blockLength = 0;
+	private long length = 0;
+	private boolean closed = false;
+	private CRC32 crc = new CRC32();
+	private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+
+	/**
+	 * @param out
+	 * @param threads number of compressing threads (1: compress on the
+	 * writing thread)
+	 * @throws IOException
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int threads) throws IOException {
+		this.out = out;
+		this.threads = Math.max(1, threads);
+		if (this.threads > 1) {
+			this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "gzip");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		out.write(HEADER);
+	}
+
+	public void write(int b) throws IOException {
+		if (blockLength == BLOCK_SIZE)
+			submit(false);
+		block[blockLength++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (blockLength == BLOCK_SIZE)
+				submit(false);
+			int n = Math.min(len, BLOCK_SIZE - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes out the blocks compressed so far. The last, incomplete block
+	 * is only compressed on close().
+	 */
+	public void flush() throws IOException {
+		while (! pending.isEmpty() && pending.getFirst().isDone() )
+			writeNext();
+		out.flush();
+	}
+
+	/**
+	 * Compresses the last block, writes the gzip trailer and closes the
+	 * underlying stream
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			submit(true);
+			while (! pending.isEmpty() )
+				writeNext();
+			int value = (int) crc.getValue(), size = (int) length;
+			for (int shift = 0; shift < 32; shift += 8)
+				out.write(value >>> shift);
+			for (int shift = 0; shift < 32; shift += 8)
+				out.write(size >>> shift);
+		}
+		finally {
+			if (pool != null)
+				pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		crc.update(block, 0, blockLength);
+		length += blockLength;
+		Compressor task = new Compressor(block, blockLength, previous, last);
+		// blocks are not reused, they serve as the next dictionary
+		previous = block;
+		block = new byte[BLOCK_SIZE];
+		blockLength = 0;
+		if (pool == null) {
+			out.write(task.call());
+			return;
+		}
+		// keep at most two blocks per thread in flight
+		if (pending.size() >= 2 * threads)
+			writeNext();
+		pending.add(pool.submit(task));
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			out.write(pending.removeFirst().get());
+		}
+		catch (InterruptedException ie) {
+			throw new IOException("interrupted while compressing");
+		}
+		catch (ExecutionException ee) {
+			throw new IOException("could not compress: "+ee.getCause());
+		}
+	}
+
+
+	private static class Compressor implements Callable<byte[]> {
+
+		private byte[] data, dictionary;
+		private int length;
+		private boolean last;
+
+		// dictionary is the previous (full) block, or null
+		Compressor(byte[] data, int length, byte[] dictionary, boolean last) {
+			this.data = data;
+			this.length = length;
+			this.dictionary = dictionary;
+			this.last = last;
+		}
+
+		public byte[] call() {
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				if (dictionary != null)
+					deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+				deflater.setInput(data, 0, length);
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 3 + 64);
+				byte[] buf = new byte[1 << 16];
+				if (last) {
+					deflater.finish();
+					while (! deflater.finished() )
+						compressed.write(buf, 0, deflater.deflate(buf));
+				}
+				else {
+					int n;
+					do {
+						n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+						compressed.write(buf, 0, n);
+					} while (n == buf.length);
+				}
+				return compressed.toByteArray();
+			}
+			finally {
+				deflater.end();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package info.radm.scanner.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Class StreamFeeder
+ * Writes a (possibly compressed, see Compression) file to the standard
+ * input of hmmscan in a seperate thread. If the file can not be read to
+ * the end, the process is killed, so that it does not finish on a part
+ * of its input.
+ */
+public class StreamFeeder extends Thread {
+
+	private File file;
+	private Process process;
+
+	public StreamFeeder(File file, Process process) {
+		this.file = file;
+		this.process = process;
+	}
+
+	public void run() {
+		OutputStream os = process.getOutputStream();
+		try {
+			InputStream is = Compression.open(file);
+			try {
+				byte[] buf = new byte[1 << 16];
+				int r;
+				while ( (r = is.read(buf)) != -1 )
+					os.write(buf, 0, r);
+			}
+			finally {
+				is.close();
+			}
+			os.close();
+		}
+		catch (IOException ioe) {
+			System.err.println("ERROR: could not read "+file.getAbsolutePath()+": "+ioe.getMessage());
+			process.destroy();
+		}
+	}
+
+}
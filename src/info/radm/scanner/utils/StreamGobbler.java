@@ -1,5 +1,7 @@
 package info.radm.scanner.utils;
 
+import info.radm.scanner.metrics.ScanProgress;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,7 +10,8 @@ import java.io.InputStreamReader;
 /**
  * Class StreamGobbler
  * Handles the input stream coming from hmmscan in seperate threads.
- * 
+ * If given a ScanProgress, counts the queries in hmmscan's main output
+ * as they are finished ("//" after a "Query:" line).
  * 
  * @author Andrew D. Moore <radmoore@uni-muenster.de>
  *
@@ -17,25 +20,52 @@ public class StreamGobbler extends Thread {
 
 	InputStream is;
 	Boolean verbose = false;
+	ScanProgress progress;
 	    
 	public StreamGobbler(InputStream is, Boolean verbose) {
 		this.is = is;
 		this.verbose = verbose;
 	}
+	
+	public StreamGobbler(InputStream is, Boolean verbose, ScanProgress progress) {
+		this(is, verbose);
+		this.progress = progress;
+	}
 	    
 	public void run() {
 		try {
 			InputStreamReader isr = new InputStreamReader(is);
 	        BufferedReader br = new BufferedReader(isr);
 	        String line = null;
-	        while ( (line = br.readLine()) != null )
+	        long length = 0;
+	        while ( (line = br.readLine()) != null ) {
 	        	if ( verbose )
-	        		System.out.println(line);    
+	        		System.out.println(line);
+	        	if ( progress == null )
+	        		continue;
+	        	// Query:       name  [L=347]
+	        	if ( line.startsWith("Query:") )
+	        		length = queryLength(line);
+	        	else if ( line.equals("//") )
+	        		progress.queryDone(length);
+	        }
 	    } 
 		catch (IOException ioe) {
 			ioe.printStackTrace();  
 		}
 	}
 	
+	private static long queryLength(String line) {
+		int start = line.lastIndexOf("[L=");
+		int end = line.lastIndexOf(']');
+		if (start == -1 || end < start + 3)
+			return 0;
+		try {
+			return Long.parseLong(line.substring(start + 3, end));
+		}
+		catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
 
 }
@@ -0,0 +1,58 @@
+package info.radm.scanner.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Class TeeInputStream
+ * Copies everything that is read from the wrapped stream to an
+ * output stream (e.g. to keep hmmscan output that is parsed on the fly).
+ */
+public class TeeInputStream extends FilterInputStream {
+
+	private OutputStream copy;
+
+	public TeeInputStream(InputStream in, OutputStream copy) {
+		super(in);
+		this.copy = copy;
+	}
+
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1)
+			copy.write(b);
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n > 0)
+			copy.write(b, off, n);
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		byte[] buf = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		int r;
+		while ( skipped < n && (r = read(buf, 0, (int) Math.min(buf.length, n - skipped))) > 0 )
+			skipped += r;
+		return skipped;
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	public void close() throws IOException {
+		try {
+			super.close();
+		}
+		finally {
+			copy.close();
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package info.radm.scanner.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Class Varints
+ * Variable length encoding of non-negative integers, 7 bits per byte,
+ * least significant group first (as in protocol buffers). Signed values
+ * are zigzag encoded first, so that small negative values stay short.
+ */
+public class Varints {
+
+	public static void write(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	public static void writeSigned(ByteArrayOutputStream out, long value) {
+		write(out, zigzag(value));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the varint is longer than 10 bytes
+	 * @throws java.nio.BufferUnderflowException if the buffer ends within the varint
+	 */
+	public static long read(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+	public static long readSigned(ByteBuffer in) {
+		return unzigzag(read(in));
+	}
+
+	/**
+	 * Reads a varint that must fit into a non-negative int
+	 */
+	public static int readInt(ByteBuffer in) {
+		long value = read(in);
+		if (value < 0 || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("varint out of range: "+value);
+		return (int) value;
+	}
+
+	public static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	public static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
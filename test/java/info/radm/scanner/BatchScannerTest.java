@@ -0,0 +1,81 @@
+package info.radm.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class BatchScannerTest
+ * A batch (--batch) against single scans of the same files, with the stub
+ * hmmscan (see StubScan).
+ */
+public class BatchScannerTest {
+
+	private static final String[] INPUTS = { "a.fa", "b.fa", "c.fa" };
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private StubScan stub;
+	private File inputs;
+
+
+	@Before
+	public void setUp() throws Exception {
+		StubScan.assumeShell();
+		stub = new StubScan(tmp.newFolder("wd"));
+		inputs = tmp.newFolder("inputs");
+		for (int i = 0; i < INPUTS.length; i++)
+			StubScan.writeFasta(new File(inputs, INPUTS[i]), i * 100, 40 + i * 30);
+	}
+
+	@Test
+	public void batchMatchesSingleScans() throws Exception {
+		compare("-m", "-r");
+		compare("-acc", "-ne", "-e", "1e-5");
+	}
+
+	@Test
+	public void unsupportedOptionsAreRejected() throws Exception {
+		File log = tmp.newFile("batch.log");
+		File out = new File(tmp.getRoot(), "rejected");
+		assertNotEquals(0, stub.run(log, "-B", inputs.getPath(), "-out", out.getPath(), "-m", "-S", "2"));
+		assertTrue(StubScan.read(log), StubScan.read(log).contains("ERROR: -S is not supported with --batch"));
+		assertTrue(! out.exists() );
+	}
+
+	// scans the inputs as a batch and one by one, with the same options
+	private void compare(String... options) throws Exception {
+		String name = String.join("", options).replace("-", "");
+		File batchOut = new File(tmp.getRoot(), "batch"+name), single = tmp.newFolder("single"+name);
+		File log = new File(tmp.getRoot(), "batch"+name+".log");
+		int exit = stub.run(log, concat(options, "-B", inputs.getPath(), "-out", batchOut.getPath()));
+		assertEquals(StubScan.read(log), 0, exit);
+		for (String input : INPUTS) {
+			String xdom = input.replace(".fa", ".xdom");
+			log = new File(single, xdom+".log");
+			exit = stub.run(log, concat(options,
+					"-in", new File(inputs, input).getPath(), "-out", new File(single, xdom).getPath()));
+			assertEquals(StubScan.read(log), 0, exit);
+			String expected = StubScan.read(new File(single, xdom));
+			assertTrue(expected.contains(">seq"));
+			assertEquals(input+" "+name, expected, StubScan.read(new File(batchOut, xdom)));
+		}
+	}
+
+	private static String[] concat(String[] options, String... args) {
+		String[] all = new String[options.length + args.length];
+		System.arraycopy(args, 0, all, 0, args.length);
+		System.arraycopy(options, 0, all, args.length, options.length);
+		return all;
+	}
+
+}
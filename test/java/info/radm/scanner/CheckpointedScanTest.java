@@ -0,0 +1,105 @@
+package info.radm.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class CheckpointedScanTest
+ * A checkpointed scan (-ck) killed in the middle and resumed (-R) against
+ * a scan run in one go, with the stub hmmscan (see StubScan).
+ */
+public class CheckpointedScanTest {
+
+	private static final int SEQUENCES = 80, SEGMENT = 10;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private StubScan stub;
+	private File fasta;
+
+
+	@Before
+	public void setUp() throws Exception {
+		StubScan.assumeShell();
+		stub = new StubScan(tmp.newFolder("wd"));
+		fasta = StubScan.writeFasta(tmp.newFile("in.fa"), 0, SEQUENCES);
+	}
+
+	@Test
+	public void killedScanIsResumed() throws Exception {
+
+		File whole = new File(tmp.getRoot(), "whole.xdom");
+		File log = tmp.newFile("whole.log");
+		int exit = stub.run(log, "-in", fasta.getPath(), "-out", whole.getPath(), "-m", "-r");
+		assertEquals(StubScan.read(log), 0, exit);
+
+		File xdom = new File(tmp.getRoot(), "out.xdom"), ckpt = new File(xdom.getPath()+".ckpt");
+		stub.setDelay("0.05");
+		log = tmp.newFile("killed.log");
+		Process p = stub.start(log, "-in", fasta.getPath(), "-out", xdom.getPath(), "-m", "-r", "-ck", ""+SEGMENT);
+		try {
+			// past a couple of segments, but not done
+			long deadline = System.currentTimeMillis() + 60000;
+			while ( sequences(ckpt) < 2 * SEGMENT ) {
+				if (! p.isAlive() || System.currentTimeMillis() > deadline )
+					fail("no checkpoint: "+StubScan.read(log));
+				Thread.sleep(50);
+			}
+		}
+		finally {
+			p.destroyForcibly();
+			p.waitFor();
+		}
+		long done = sequences(ckpt);
+		assertTrue(done < SEQUENCES);
+
+		stub.setDelay(null);
+		log = tmp.newFile("resumed.log");
+		exit = stub.run(log, "-in", fasta.getPath(), "-out", xdom.getPath(), "-m", "-r", "-ck", ""+SEGMENT, "-R");
+		String resumed = StubScan.read(log);
+		assertEquals(resumed, 0, exit);
+		assertTrue(resumed, resumed.contains("INFO: resuming after "));
+		assertEquals(StubScan.read(whole), StubScan.read(xdom));
+		assertTrue(! ckpt.exists() );
+	}
+
+	@Test
+	public void resumeWithoutCheckpointStartsOver() throws Exception {
+		File xdom = new File(tmp.getRoot(), "out.xdom");
+		File log = tmp.newFile("resumed.log");
+		int exit = stub.run(log, "-in", fasta.getPath(), "-out", xdom.getPath(), "-m", "-r", "-R");
+		String resumed = StubScan.read(log);
+		assertEquals(resumed, 0, exit);
+		assertTrue(resumed, resumed.contains("INFO: no checkpoint found - starting from the beginning."));
+		assertTrue(StubScan.read(xdom).contains(">seq"));
+	}
+
+	// sequences committed to the checkpoint so far
+	private static long sequences(File ckpt) throws Exception {
+		if (! ckpt.isFile() )
+			return 0;
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(ckpt);
+		try {
+			p.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return Long.parseLong(p.getProperty("sequences", "0"));
+	}
+
+}
@@ -0,0 +1,93 @@
+package info.radm.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class LookupTest
+ * Lookups (-g) in the indexed output (-ix) of a scan with the stub
+ * hmmscan (see StubScan).
+ */
+public class LookupTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private StubScan stub;
+	private File xdom;
+	private Map<String, String> blocks = new LinkedHashMap<String, String>();
+
+
+	@Before
+	public void setUp() throws Exception {
+		StubScan.assumeShell();
+		stub = new StubScan(tmp.newFolder("wd"));
+		File fasta = StubScan.writeFasta(tmp.newFile("in.fa"), 0, 60);
+		xdom = new File(tmp.getRoot(), "out.xdom");
+		File log = tmp.newFile("scan.log");
+		int exit = stub.run(log, "-in", fasta.getPath(), "-out", xdom.getPath(), "-m", "-ix");
+		assertEquals(StubScan.read(log), 0, exit);
+		assertTrue(StubScan.read(log), StubScan.read(log).contains(" protein(s) indexed in "+xdom.getPath()+".xdi."));
+		for (String block : StubScan.read(xdom).split("(?=>)"))
+			blocks.put(block.substring(1, block.indexOf('\n')).split("\t")[0], block);
+		assertTrue(blocks.size() > 10);
+	}
+
+	@Test
+	public void proteinsArePrintedInTheOrderAsked() throws Exception {
+
+		String[] ids = blocks.keySet().toArray(new String[0]);
+		String asked = ids[7]+","+ids[2]+","+ids[ids.length - 1];
+		File out = tmp.newFile("lookup.out");
+		int exit = stub.run(out, "-in", xdom.getPath(), "-g", asked);
+		assertEquals(StubScan.read(out), 0, exit);
+		assertEquals(blocks.get(ids[7])+blocks.get(ids[2])+blocks.get(ids[ids.length - 1]), StubScan.read(out));
+
+		// one per line from stdin
+		out = tmp.newFile("stdin.out");
+		Process p = stub.start(out, "-in", xdom.getPath(), "-g", "-");
+		OutputStream stdin = p.getOutputStream();
+		stdin.write((ids[3]+"\n\n "+ids[0]+"\n").getBytes(StandardCharsets.UTF_8));
+		stdin.close();
+		exit = StubScan.waitFor(p);
+		assertEquals(StubScan.read(out), 0, exit);
+		assertEquals(blocks.get(ids[3])+blocks.get(ids[0]), StubScan.read(out));
+	}
+
+	@Test
+	public void missingProteinsAndStaleIndexesFail() throws Exception {
+
+		String id = blocks.keySet().iterator().next();
+		File out = tmp.newFile("missing.out");
+		int exit = stub.run(out, "-in", xdom.getPath(), "-g", id+",nothere");
+		assertNotEquals(0, exit);
+		// stdout and stderr, in no particular order
+		String printed = StubScan.read(out), missing = "INFO: nothere not found in "+xdom.getPath()+".\n";
+		assertTrue(printed, printed.contains(missing));
+		assertEquals(blocks.get(id), printed.replace(missing, ""));
+
+		// the output scanned again, without -ix
+		File log = tmp.newFile("rescan.log");
+		exit = stub.run(log, "-in", StubScan.writeFasta(tmp.newFile("other.fa"), 100, 10).getPath(),
+				"-out", xdom.getPath(), "-m");
+		assertEquals(StubScan.read(log), 0, exit);
+		out = tmp.newFile("stale.out");
+		exit = stub.run(out, "-in", xdom.getPath(), "-g", id);
+		assertNotEquals(0, exit);
+		assertTrue(StubScan.read(out), StubScan.read(out).contains("is out of date (rebuild it with --index)"));
+	}
+
+}
@@ -0,0 +1,46 @@
+package info.radm.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.PosixParser;
+import org.junit.Test;
+
+
+/**
+ * Class PfamScannerTest
+ * Parsing of the command line options.
+ */
+public class PfamScannerTest {
+
+	private CommandLine parse(String... args) throws Exception {
+		return new PosixParser().parse(PfamScanner.options(), args, false);
+	}
+
+	@Test
+	public void longOptionsAreUnique() {
+		Set<String> longOpts = new HashSet<String>();
+		for (Object o : PfamScanner.options().getOptions()) {
+			Option option = (Option) o;
+			if (option.getLongOpt() != null)
+				assertTrue("--"+option.getLongOpt()+" given twice", longOpts.add(option.getLongOpt()));
+		}
+	}
+
+	@Test
+	public void queueSizeAndQueueDir() throws Exception {
+		CommandLine cl = parse("-srv", "7000", "--queue", "4", "--queue-dir", "/shared/scan");
+		assertEquals("4", cl.getOptionValue("Q"));
+		assertEquals("/shared/scan", cl.getOptionValue("qd"));
+
+		cl = parse("-Q", "8", "-qd", "/shared/scan");
+		assertEquals("8", cl.getOptionValue("queue"));
+		assertEquals("/shared/scan", cl.getOptionValue("queue-dir"));
+	}
+
+}
@@ -0,0 +1,166 @@
+package info.radm.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class ScanServerTest
+ * Jobs sent to a scan server (--server) with the stub hmmscan (see
+ * StubScan).
+ */
+public class ScanServerTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private StubScan stub;
+	private File fasta;
+	private ScanServer server;
+	private int port;
+
+
+	@Before
+	public void setUp() throws Exception {
+		StubScan.assumeShell();
+		stub = new StubScan(tmp.newFolder("wd"));
+		fasta = StubScan.writeFasta(tmp.newFile("in.fa"), 0, 60);
+	}
+
+	@After
+	public void tearDown() {
+		if (server != null)
+			server.stop();
+	}
+
+	@Test
+	public void jobsAreAnsweredWithTheirXdom() throws Exception {
+
+		start(2, 4);
+		String fa = StubScan.read(fasta);
+		assertEquals(singleScan("-m", "-r")+"# OK\n", send("SCAN -m -r\n"+fa+"END\n"));
+		assertEquals(singleScan("-acc", "-ne")+"# OK\n", send("SCAN --accession --no-empties\n"+fa+"END\n"));
+		assertEquals("# ERROR expected SCAN request\n", send("LIST\n"+fa+"END\n"));
+		assertEquals("# ERROR unknown option -x\n", send("SCAN -m -x\n"+fa+"END\n"));
+		assertEquals("# ERROR invalid value for -e\n", send("SCAN -e low\n"+fa+"END\n"));
+	}
+
+	@Test
+	public void jobsBeyondTheQueueAreTurnedAway() throws Exception {
+
+		// one job running and one queued, both still being sent
+		start(1, 1);
+		String fa = StubScan.read(fasta);
+		Socket first = connect("SCAN -m\n"+fa), second = connect("SCAN -m\n"+fa);
+		Thread.sleep(200);
+		// turned away before its request is read
+		assertEquals("# ERROR busy\n", answer(new Socket(InetAddress.getLoopbackAddress(), port)));
+		String expected = singleScan("-m")+"# OK\n";
+		assertEquals(expected, finish(first));
+		assertEquals(expected, finish(second));
+		// room again
+		assertEquals(expected, send("SCAN -m\n"+fa+"END\n"));
+	}
+
+	private void start(int workers, int queueSize) throws Exception {
+		ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		port = free.getLocalPort();
+		free.close();
+		server = new ScanServer(port, stub.getDir().getPath());
+		server.setWorkers(workers);
+		server.setQueueSize(queueSize);
+		server.setTempDir(tmp.newFolder("jobs").getPath());
+		Thread serving = new Thread("scan-server") {
+			public void run() {
+				try {
+					server.serve();
+				}
+				catch (IOException ioe) {
+					throw new IllegalStateException(ioe);
+				}
+			}
+		};
+		serving.setDaemon(true);
+		serving.start();
+		// answered once the server is up
+		for (int i = 0; i < 100; i++) {
+			try {
+				assertEquals("# ERROR expected SCAN request\n", send("\nEND\n"));
+				break;
+			}
+			catch (IOException ioe) {
+				Thread.sleep(50);
+			}
+		}
+		// its connection thread is idle again
+		Thread.sleep(100);
+	}
+
+	// a job whose request has not been sent completely
+	private Socket connect(String request) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		OutputStream out = socket.getOutputStream();
+		out.write(request.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		return socket;
+	}
+
+	private String finish(Socket socket) throws IOException {
+		socket.getOutputStream().write("END\n".getBytes(StandardCharsets.UTF_8));
+		socket.shutdownOutput();
+		return answer(socket);
+	}
+
+	private String answer(Socket socket) throws IOException {
+		try {
+			socket.setSoTimeout(60 * 1000);
+			ByteArrayOutputStream answer = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buf = new byte[1 << 16];
+			int r;
+			while ( (r = in.read(buf)) != -1 )
+				answer.write(buf, 0, r);
+			return new String(answer.toByteArray(), StandardCharsets.UTF_8);
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	private String send(String job) throws IOException {
+		Socket socket = connect(job.substring(0, job.length() - "END\n".length()));
+		return finish(socket);
+	}
+
+	private String singleScan(String... options) throws Exception {
+		File xdom = new File(tmp.getRoot(), "single.xdom"), log = new File(tmp.getRoot(), "single.log");
+		String[] args = new String[options.length + 4];
+		args[0] = "-in";
+		args[1] = fasta.getPath();
+		args[2] = "-out";
+		args[3] = xdom.getPath();
+		System.arraycopy(options, 0, args, 4, options.length);
+		int exit = stub.run(log, args);
+		assertEquals(StubScan.read(log), 0, exit);
+		String scanned = StubScan.read(xdom);
+		assertTrue(scanned.contains(">seq"));
+		return scanned;
+	}
+
+}
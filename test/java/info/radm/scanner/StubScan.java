@@ -0,0 +1,146 @@
+package info.radm.scanner;
+
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Class StubScan
+ * Runs PfamScanner in a JVM of its own (it calls System.exit()) on a
+ * working directory with the stub hmmscan of test/data/stub, which makes
+ * up hits from the length of each query, and an empty Pfam-A.hmm.
+ */
+class StubScan {
+
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+	private static final long TIMEOUT = 120;
+
+	private File dir;
+	private String delay;
+
+
+	/**
+	 * Skips the calling test where the stub can not run
+	 */
+	static void assumeShell() throws Exception {
+		assumeTrue(new File("/bin/sh").canExecute());
+		assumeTrue(new ProcessBuilder("/bin/sh", "-c", "command -v awk").start().waitFor() == 0);
+	}
+
+	/**
+	 * @param dir working directory (-dir) of the scans
+	 * @throws IOException
+	 */
+	StubScan(File dir) throws IOException {
+		this.dir = dir;
+		File hmmscan = new File(dir, "hmmscan");
+		InputStream in = StubScan.class.getResourceAsStream("/stub/hmmscan");
+		try {
+			Files.copy(in, hmmscan.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			in.close();
+		}
+		// test resources are copied without their mode
+		hmmscan.setExecutable(true);
+		new File(dir, "Pfam-A.hmm").createNewFile();
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	/**
+	 * @param seconds time the stub takes per query, or null
+	 */
+	void setDelay(String seconds) {
+		this.delay = seconds;
+	}
+
+	/**
+	 * Writes sequences named seq<first> onwards, of lengths between 3 and
+	 * 120 (so that some have no hits)
+	 * @param fasta
+	 * @param first
+	 * @param sequences
+	 * @return fasta
+	 * @throws IOException
+	 */
+	static File writeFasta(File fasta, int first, int sequences) throws IOException {
+		Writer w = new FileWriter(fasta);
+		try {
+			for (int i = first; i < first + sequences; i++) {
+				w.write(">seq"+i+" stub protein "+i+"\n");
+				int length = 3 + (i * 37) % 118;
+				StringBuilder seq = new StringBuilder(length);
+				for (int j = 0; j < length; j++)
+					seq.append(RESIDUES.charAt((i + j * j) % RESIDUES.length()));
+				for (int j = 0; j < length; j += 60)
+					w.write(seq.substring(j, Math.min(length, j + 60))+"\n");
+			}
+		}
+		finally {
+			w.close();
+		}
+		return fasta;
+	}
+
+	/**
+	 * Starts PfamScanner, with -dir set to the working directory
+	 * @param log file for its stdout and stderr
+	 * @param args
+	 * @return the process
+	 * @throws IOException
+	 */
+	Process start(File log, String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(PfamScanner.class.getName());
+		for (String arg : args)
+			command.add(arg);
+		command.add("-dir");
+		command.add(dir.getPath());
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.directory(dir);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(log);
+		if (delay != null)
+			pb.environment().put("STUB_DELAY", delay);
+		return pb.start();
+	}
+
+	/**
+	 * Runs PfamScanner to the end
+	 * @return its exit code
+	 */
+	int run(File log, String... args) throws IOException, InterruptedException {
+		return waitFor(start(log, args));
+	}
+
+	static int waitFor(Process p) throws InterruptedException {
+		if (! p.waitFor(TIMEOUT, TimeUnit.SECONDS) ) {
+			p.destroyForcibly();
+			fail("PfamScanner did not finish within "+TIMEOUT+"s");
+		}
+		return p.exitValue();
+	}
+
+	static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,132 @@
+package info.radm.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class WorkQueueTest
+ * Distributed scans (--queue-dir) with a coordinator and worker processes
+ * on one machine, with the stub hmmscan (see StubScan).
+ */
+public class WorkQueueTest {
+
+	private static final Pattern SCANNING = Pattern.compile("INFO: scanning (unit-\\d+)\\.fa\\.");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private StubScan stub;
+	private File fasta, queue;
+
+
+	@Before
+	public void setUp() throws Exception {
+		StubScan.assumeShell();
+		stub = new StubScan(tmp.newFolder("wd"));
+		fasta = StubScan.writeFasta(tmp.newFile("in.fa"), 0, 200);
+		queue = new File(tmp.getRoot(), "queue");
+	}
+
+	@Test
+	public void workersClaimEachUnitOnce() throws Exception {
+
+		stub.setDelay("0.01");
+		File xdom = new File(tmp.getRoot(), "distributed.xdom");
+		Process coordinator = stub.start(tmp.newFile("coordinator.log"), "-in", fasta.getPath(),
+				"-out", xdom.getPath(), "-qd", queue.getPath(), "-U", "20", "-m", "-r", "-acc");
+		List<Process> workers = new ArrayList<Process>();
+		for (int i = 0; i < 3; i++)
+			// the options of the scan are the coordinator's, and may be repeated
+			workers.add(stub.start(tmp.newFile("worker"+i+".log"), "-wk", "-qd", queue.getPath(),
+					i == 0 ? "-m" : "-c", i == 0 ? "-r" : "1"));
+		assertEquals(log("coordinator"), 0, StubScan.waitFor(coordinator));
+		Set<String> claimed = new HashSet<String>();
+		for (int i = 0; i < workers.size(); i++) {
+			assertEquals(log("worker"+i), 0, StubScan.waitFor(workers.get(i)));
+			Matcher m = SCANNING.matcher(log("worker"+i));
+			while ( m.find() )
+				assertTrue(m.group(1)+" claimed twice", claimed.add(m.group(1)));
+		}
+		assertEquals(10, claimed.size());
+		assertEquals(singleScan("-m", "-r", "-acc"), StubScan.read(xdom));
+		assertTrue(! new File(queue, "units").exists() );
+	}
+
+	@Test
+	public void staleClaimIsRequeued() throws Exception {
+
+		File xdom = new File(tmp.getRoot(), "distributed.xdom");
+		Process coordinator = stub.start(tmp.newFile("coordinator.log"), "-in", fasta.getPath(),
+				"-out", xdom.getPath(), "-qd", queue.getPath(), "-U", "50", "-qt", "2", "-m");
+		// a worker that dies right after its claim
+		WorkQueue dead = new WorkQueue(queue);
+		for (int i = 0; i < 600 && ! dead.isOpen(); i++)
+			Thread.sleep(100);
+		assertNotNull(dead.claim("dead-worker"));
+		Process worker = stub.start(tmp.newFile("worker.log"), "-wk", "-qd", queue.getPath());
+		assertEquals(log("coordinator"), 0, StubScan.waitFor(coordinator));
+		assertEquals(log("worker"), 0, StubScan.waitFor(worker));
+		assertTrue(log("coordinator"), log("coordinator").contains(
+				"INFO: claim unit-000000.fa.dead-worker went stale - unit requeued."));
+		assertTrue(log("worker"), log("worker").contains("INFO: 4 unit(s) scanned"));
+		assertEquals(singleScan("-m"), StubScan.read(xdom));
+	}
+
+	@Test
+	public void conflictingWorkerOptionsAreRefused() throws Exception {
+
+		WorkQueue open = new WorkQueue(queue);
+		Properties settings = new Properties();
+		settings.setProperty("m", "");
+		settings.setProperty("e", "1e-5");
+		open.setSettings(settings);
+		open.setUnitSize(50);
+		assertTrue(queue.mkdirs());
+		open.open(fasta);
+
+		File log = tmp.newFile("worker.log");
+		assertNotEquals(0, stub.run(log, "-wk", "-qd", queue.getPath(), "-e", "1e-3"));
+		assertTrue(StubScan.read(log), StubScan.read(log).contains("ERROR: -e 1e-3 conflicts with the settings"));
+		log = tmp.newFile("worker-r.log");
+		assertNotEquals(0, stub.run(log, "-wk", "-qd", queue.getPath(), "-m", "-r"));
+		assertTrue(StubScan.read(log), StubScan.read(log).contains("ERROR: -r conflicts with the settings"));
+		// nothing was claimed
+		assertEquals(4, new File(queue, "units").list().length);
+	}
+
+	private String singleScan(String... options) throws Exception {
+		File xdom = new File(tmp.getRoot(), "single.xdom"), log = new File(tmp.getRoot(), "single.log");
+		List<String> args = new ArrayList<String>();
+		args.add("-in");
+		args.add(fasta.getPath());
+		args.add("-out");
+		args.add(xdom.getPath());
+		for (String option : options)
+			args.add(option);
+		int exit = stub.run(log, args.toArray(new String[args.size()]));
+		assertEquals(StubScan.read(log), 0, exit);
+		return StubScan.read(xdom);
+	}
+
+	private String log(String name) throws Exception {
+		return StubScan.read(new File(tmp.getRoot(), name+".log"));
+	}
+
+}
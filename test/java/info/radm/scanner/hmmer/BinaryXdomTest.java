@@ -0,0 +1,194 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import info.radm.scanner.utils.Compression;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class BinaryXdomTest
+ * Text xdom converted to binary xdom and back, and damaged binary xdom.
+ */
+public class BinaryXdomTest {
+
+	private static final int PROTEINS = 20000;
+	// exact decimals and values that only a double holds
+	private static final double[] EVALUES = { 1.2E-15, 3.4e-5, 0.0, 1.0, 17.0, 0.1 + 0.2, Double.MIN_VALUE,
+			1e-300, 2.5E200, Double.NaN, Math.PI * 1e-40 };
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void corpusIsConvertedLosslessly() throws Exception {
+		File[] corpus = new File(BinaryXdomTest.class.getResource("/corpus").toURI()).listFiles();
+		int converted = 0;
+		for (File xdom : corpus) {
+			if (! xdom.getName().endsWith(".xdom") )
+				continue;
+			assertEquals(xdom.getName(), read(xdom), roundTrip(xdom, ""));
+			converted++;
+		}
+		assertTrue(converted > 0);
+	}
+
+	@Test
+	public void blocksDictionaryAndEvaluesRoundTrip() throws Exception {
+
+		File xdom = xdom(tmp.newFile("many.xdom"));
+		File binary = new File(tmp.getRoot(), "many.bxdom");
+		assertEquals(PROTEINS, XdomConverter.toBinary(xdom, binary));
+		assertTrue(XdomConverter.isBinary(binary));
+		assertFalse(XdomConverter.isBinary(xdom));
+		// several blocks, in less space (even with that many doubles)
+		assertTrue(blocks(Files.readAllBytes(binary.toPath())) > 2);
+		assertTrue(binary.length() < xdom.length());
+
+		// every field as read from the text
+		XdomReader text = new XdomReader(new InputStreamReader(new FileInputStream(xdom), StandardCharsets.UTF_8));
+		BinaryXdomReader bin = new BinaryXdomReader(new FileInputStream(binary));
+		try {
+			ProteinAnnotation expected, actual;
+			while ( (expected = text.next()) != null ) {
+				actual = bin.next();
+				assertEquals(expected.getID(), actual.getID());
+				assertEquals(expected.getLength(), actual.getLength());
+				assertEquals(expected.getDomains().size(), actual.getDomains().size());
+				for (int i = 0; i < expected.getDomains().size(); i++) {
+					Domain e = expected.getDomains().get(i), a = actual.getDomains().get(i);
+					assertEquals(e.getID(), a.getID());
+					assertEquals(e.getAliFrom(), a.getAliFrom());
+					assertEquals(e.getAliTo(), a.getAliTo());
+					assertEquals(Double.doubleToLongBits(e.getEvalue()), Double.doubleToLongBits(a.getEvalue()));
+					assertEquals(e.getComment(), a.getComment());
+				}
+			}
+			assertEquals(null, bin.next());
+		}
+		finally {
+			text.close();
+			bin.close();
+		}
+
+		assertEquals(read(xdom), roundTrip(xdom, ""));
+		assertEquals(read(xdom), roundTrip(xdom, ".gz"));
+	}
+
+	@Test
+	public void damagedFilesAreRejected() throws Exception {
+
+		File xdom = xdom(tmp.newFile("many.xdom"));
+		File binary = new File(tmp.getRoot(), "many.bxdom");
+		XdomConverter.toBinary(xdom, binary);
+		byte[] bytes = Files.readAllBytes(binary.toPath());
+
+		// a flipped bit in the second block
+		byte[] flipped = bytes.clone();
+		flipped[block(bytes, 2) + 1000] ^= 0x10;
+		assertEquals("checksum mismatch in block 2 of binary xdom", readAll(flipped));
+		// cut off in the middle of a block and at the end marker
+		assertEquals("binary xdom is truncated in block 2", readAll(Arrays.copyOf(bytes, block(bytes, 2) + 1000)));
+		assertEquals("binary xdom is truncated after block "+blocks(bytes), readAll(Arrays.copyOf(bytes, bytes.length - 4)));
+		assertEquals("not a binary xdom file", readAll(Arrays.copyOf(read(xdom).getBytes(StandardCharsets.UTF_8), 100)));
+	}
+
+	// text xdom converted to binary (compressed as suffix says) and back
+	private String roundTrip(File xdom, String suffix) throws IOException {
+		File binary = new File(tmp.getRoot(), xdom.getName()+".bin"+suffix), text = new File(tmp.getRoot(), xdom.getName()+".txt");
+		int proteins = XdomConverter.toBinary(xdom, binary);
+		assertTrue(XdomConverter.isBinary(binary));
+		assertEquals(suffix.isEmpty(), ! Compression.isCompressed(binary) );
+		assertEquals(proteins, XdomConverter.toText(binary, text));
+		return read(text);
+	}
+
+	// proteins with front coded IDs, unknown lengths, comments and every
+	// kind of evalue, over many domain IDs
+	private static File xdom(File xdom) throws IOException {
+		XdomWriter writer = new XdomWriter(new FileWriter(xdom));
+		try {
+			for (int p = 0; p < PROTEINS; p++) {
+				List<Domain> domains = new ArrayList<Domain>();
+				int from = 1;
+				for (int d = 0; d < p % 5; d++) {
+					// not in sequence order for some
+					int start = (p % 7 == 0) ? 500 - from : from;
+					Domain dom = new Domain("PF"+((p * 31 + d * 7) % 3000), start, start + 20 + d, -1, -1,
+							EVALUES[(p + d) % EVALUES.length]);
+					if ((p + d) % 13 == 0)
+						dom.setComment("merged; from "+start+" é");
+					domains.add(dom);
+					from += 40;
+				}
+				String id = (p % 11 == 0) ? "q"+p : String.format("sp|P%05d|PROT_HUMAN", p);
+				writer.accept(new ProteinAnnotation(id, (p % 17 == 0) ? -1 : 100 + p % 900, domains));
+			}
+		}
+		finally {
+			writer.close();
+		}
+		return xdom;
+	}
+
+	// reads every protein of binary xdom, returns the error message
+	private String readAll(byte[] bytes) throws IOException {
+		File damaged = tmp.newFile();
+		Files.write(damaged.toPath(), bytes);
+		InputStream in = new FileInputStream(damaged);
+		try {
+			BinaryXdomReader reader = new BinaryXdomReader(in);
+			while (reader.next() != null);
+			fail("read to the end");
+		}
+		catch (IOException expected) {
+			return expected.getMessage();
+		}
+		finally {
+			in.close();
+		}
+		return null;
+	}
+
+	private static int blocks(byte[] bytes) {
+		int blocks = 0;
+		while (block(bytes, blocks + 1) < bytes.length - 8)
+			blocks++;
+		return blocks;
+	}
+
+	// offset of block n (from 1), or of the end marker after the last one
+	private static int block(byte[] bytes, int n) {
+		int at = BinaryXdomWriter.MAGIC.length + 1;
+		for (int b = 1; b < n; b++) {
+			int length = (bytes[at] & 0xFF) << 24 | (bytes[at + 1] & 0xFF) << 16 | (bytes[at + 2] & 0xFF) << 8 | (bytes[at + 3] & 0xFF);
+			if (length == 0)
+				break;
+			at += 8 + length;
+		}
+		return at;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
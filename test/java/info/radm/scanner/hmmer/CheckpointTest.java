@@ -0,0 +1,142 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class CheckpointTest
+ * Resuming a segmented scan after it was interrupted in the middle of a
+ * segment, against the same scan run in one go.
+ */
+public class CheckpointTest {
+
+	private static final int SEQUENCES = 47, SEGMENT = 5;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void resumedScanMatchesAnUninterruptedOne() throws Exception {
+
+		File fasta = FastaSharderTest.fasta(tmp.newFile("in.fa"), 0, SEQUENCES);
+		File xdom = new File(tmp.getRoot(), "out.xdom"), hmmout = new File(tmp.getRoot(), "out.domtblout");
+		Checkpoint checkpoint = new Checkpoint(xdom, fasta, hmmout, SEGMENT);
+		checkpoint.start();
+		assertEquals(4 * SEGMENT, scan(checkpoint, fasta, xdom, hmmout, 4));
+		long committed = xdom.length();
+		// killed while the next segment was being appended
+		Files.write(xdom.toPath(), ">s20\t99\n1\t".getBytes(StandardCharsets.US_ASCII),
+				StandardOpenOption.APPEND);
+		Files.write(hmmout.toPath(), "fam0 PF0".getBytes(StandardCharsets.US_ASCII),
+				StandardOpenOption.APPEND);
+
+		// the segment size of the checkpoint wins over the one asked for
+		checkpoint = new Checkpoint(xdom, fasta, hmmout, 100);
+		assertTrue(checkpoint.resume());
+		assertEquals(committed, xdom.length());
+		assertEquals(SEGMENT, checkpoint.getSegmentSize());
+		assertEquals(4 * SEGMENT, checkpoint.getSequenceCount());
+		assertEquals(SEQUENCES - 4 * SEGMENT, scan(checkpoint, fasta, xdom, hmmout, Integer.MAX_VALUE));
+		assertEquals(SEQUENCES, checkpoint.getSequenceCount());
+		checkpoint.finish();
+		assertFalse(new File(xdom.getPath()+".ckpt").exists());
+
+		File whole = new File(tmp.getRoot(), "whole.xdom"), wholeout = new File(tmp.getRoot(), "whole.domtblout");
+		Checkpoint once = new Checkpoint(whole, fasta, wholeout, SEQUENCES);
+		once.start();
+		assertEquals(SEQUENCES, scan(once, fasta, whole, wholeout, Integer.MAX_VALUE));
+		assertEquals(read(whole), read(xdom));
+		assertEquals(read(wholeout), read(hmmout));
+	}
+
+	@Test
+	public void nothingToResumeWithoutACheckpoint() throws Exception {
+		File fasta = FastaSharderTest.fasta(tmp.newFile("in.fa"), 0, 3);
+		Checkpoint checkpoint = new Checkpoint(new File(tmp.getRoot(), "out.xdom"), fasta, null, SEGMENT);
+		assertFalse(checkpoint.resume());
+		assertEquals(0, checkpoint.getInputOffset());
+		assertEquals(0, checkpoint.getSequenceCount());
+	}
+
+	@Test
+	public void modifiedInputIsNotResumed() throws Exception {
+
+		File fasta = FastaSharderTest.fasta(tmp.newFile("in.fa"), 0, 12);
+		File xdom = new File(tmp.getRoot(), "out.xdom");
+		Checkpoint checkpoint = new Checkpoint(xdom, fasta, null, SEGMENT);
+		checkpoint.start();
+		scan(checkpoint, fasta, xdom, null, 1);
+		FastaSharderTest.fasta(fasta, 0, 13);
+		try {
+			new Checkpoint(xdom, fasta, null, SEGMENT).resume();
+			fail("resumed on a modified input");
+		}
+		catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("different (or modified) input"));
+		}
+	}
+
+	// scans up to segments segments from the offset of the checkpoint into
+	// xdom (and hmmout), committing each; returns the number of sequences
+	private int scan(Checkpoint checkpoint, File fasta, File xdom, File hmmout, int segments) throws IOException {
+
+		File segment = new File(tmp.getRoot(), "segment.fa");
+		FastaSegmenter segmenter = new FastaSegmenter(fasta, checkpoint.getInputOffset());
+		int scanned = 0, sequences;
+		try {
+			while ( segments-- > 0 && (sequences = segmenter.next(checkpoint.getSegmentSize(), segment)) > 0 ) {
+				append(segment, xdom, false);
+				if (hmmout != null)
+					append(segment, hmmout, true);
+				checkpoint.commit(segmenter.getOffset(), sequences);
+				scanned += sequences;
+			}
+		}
+		finally {
+			segmenter.close();
+		}
+		return scanned;
+	}
+
+	// made up xdom or domtblout lines for every sequence of the segment
+	private static void append(File segment, File out, boolean hmmout) throws IOException {
+
+		Writer w = new FileWriter(out, true);
+		FastaReader reader = new FastaReader(segment);
+		try {
+			while ( reader.next() ) {
+				int length = reader.getResidues().length();
+				if (hmmout)
+					w.write("fam"+(length % 3)+" PF0000"+(length % 3)+".1 100 "+reader.getId()+" - "+length+"\n");
+				else
+					w.write(">"+reader.getId()+"\t"+length+"\n1\t"+(length / 2)+"\tfam"+(length % 3)+"\t1.0E-5\n");
+			}
+		}
+		finally {
+			reader.close();
+			w.close();
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,139 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class DeduplicatorTest
+ * Collapsing identical sequences and expanding the results of their
+ * representatives to every input sequence.
+ */
+public class DeduplicatorTest {
+
+	private static final int SEQUENCES = 30, DISTINCT = 10;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void identicalSequencesAreScannedOnce() throws Exception {
+
+		File fasta = fasta(tmp.newFile("in.fa"));
+		Deduplicator dedup = new Deduplicator(fasta);
+		File unique = dedup.collapse(tmp.getRoot());
+		try {
+			assertEquals(SEQUENCES, dedup.getSequenceCount());
+			assertEquals(DISTINCT, dedup.getUniqueCount());
+			// representatives in order of their first occurrence
+			FastaReader reader = new FastaReader(unique);
+			try {
+				for (int u = 0; u < DISTINCT; u++) {
+					assertTrue(reader.next());
+					assertEquals("u"+u, reader.getId());
+					assertEquals(residues(u), reader.getResidues().toString());
+				}
+				assertFalse(reader.next());
+			}
+			finally {
+				reader.close();
+			}
+		}
+		finally {
+			dedup.cleanUp();
+		}
+	}
+
+	@Test
+	public void resultsAreExpandedToEverySequence() throws Exception {
+
+		File fasta = fasta(tmp.newFile("in.fa"));
+		Deduplicator dedup = new Deduplicator(fasta);
+		File unique = dedup.collapse(tmp.getRoot());
+		try {
+			File domtblout = new File(tmp.getRoot(), "expanded.domtblout");
+			dedup.expandDomtblout(scan(unique, false, tmp.newFile("unique.domtblout")), domtblout);
+			assertEquals(read(scan(fasta, false, tmp.newFile("all.domtblout"))), read(domtblout));
+
+			File xdom = new File(tmp.getRoot(), "expanded.xdom");
+			dedup.expandXdom(scan(unique, true, tmp.newFile("unique.xdom")), xdom);
+			assertEquals(read(scan(fasta, true, tmp.newFile("all.xdom"))), read(xdom));
+		}
+		finally {
+			dedup.cleanUp();
+		}
+	}
+
+	// sequence i is a copy of one of DISTINCT sequences, wrapped differently
+	private static File fasta(File fasta) throws IOException {
+		Writer w = new FileWriter(fasta);
+		try {
+			for (int i = 0; i < SEQUENCES; i++) {
+				String residues = residues(i < DISTINCT ? i : (i * 7) % DISTINCT);
+				int width = 20 + i;
+				w.write(">s"+i+".1 copy\n");
+				for (int j = 0; j < residues.length(); j += width)
+					w.write(residues.substring(j, Math.min(residues.length(), j + width))+"\n");
+			}
+		}
+		finally {
+			w.close();
+		}
+		return fasta;
+	}
+
+	private static String residues(int distinct) {
+		StringBuilder residues = new StringBuilder();
+		for (int j = 0; j < 30 + distinct * 11; j++)
+			residues.append("ACDEFGHIKLMNPQRSTVWY".charAt((distinct + j * j) % 20));
+		return residues.toString();
+	}
+
+	// domtblout or xdom of a scan of fasta: length % 3 hits per sequence,
+	// with an xdom entry only for sequences with hits
+	private static File scan(File fasta, boolean xdom, File out) throws IOException {
+		Writer w = new FileWriter(out);
+		FastaReader reader = new FastaReader(fasta);
+		try {
+			if (! xdom )
+				w.write("# target name        accession   tlen query name\n#-------------------\n");
+			while ( reader.next() ) {
+				int length = reader.getResidues().length(), hits = length % 3;
+				if (xdom && hits > 0)
+					w.write(">"+HmmerParser.proteinId(reader.getId())+"\t"+length+"\n");
+				for (int k = 0; k < hits; k++) {
+					if (xdom)
+						w.write((1 + 5 * k)+"\t"+(4 + 5 * k)+"\tfam"+k+"\t1.0E-"+(5 + k)+"\n");
+					else
+						w.write("fam"+k+" PF0000"+k+".1 100 "+reader.getId()+" - "+length+" 1.0e-0"+(5 + k)+" rest\n");
+				}
+			}
+			if (! xdom )
+				w.write("#\n# [ok]\n");
+		}
+		finally {
+			reader.close();
+			w.close();
+		}
+		return out;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,124 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import info.radm.scanner.utils.Compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class DomainAnnotatorTest
+ * The library entry points that take a file.
+ */
+public class DomainAnnotatorTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private DomainAnnotator annotator = new DomainAnnotator(ScanOptions.defaults());
+
+
+	@Test
+	public void missingFileThrowsQuietly() throws Exception {
+
+		Path missing = new File(tmp.getRoot(), "missing.domtblout").toPath();
+		PrintStream err = System.err;
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(stderr));
+		try {
+			try {
+				annotator.stream(missing).count();
+				fail("stream() of a missing file");
+			}
+			catch (IOException expected) {
+				// passed on
+			}
+			try {
+				annotator.annotate(missing, new XdomWriter(new StringWriter()));
+				fail("annotate() of a missing file");
+			}
+			catch (IOException expected) {
+				// passed on
+			}
+		}
+		finally {
+			System.setErr(err);
+		}
+		assertEquals("", stderr.toString());
+	}
+
+	@Test
+	public void detectsFormat() throws Exception {
+		assertEquals(HmmerParser.HMMSCAN, HmmerParser.detectFormat(corpus("hmmscan.domtblout")));
+		assertEquals(HmmerParser.PFAMSCAN, HmmerParser.detectFormat(corpus("pfamscan.out")));
+		assertEquals(HmmerParser.UNKNOWN, HmmerParser.detectFormat(tmp.newFile()));
+		// no hits: read as hmmscan output
+		assertEquals(0, annotator.stream(tmp.newFile().toPath()).count());
+	}
+
+	@Test
+	public void readsGzip() throws Exception {
+		roundTrip("hmmscan.domtblout", ".gz");
+		roundTrip("pfamscan.out", ".gz");
+	}
+
+	@Test
+	public void readsZstd() throws Exception {
+		assumeTrue(hasZstd());
+		roundTrip("hmmscan.domtblout", ".zst");
+		roundTrip("pfamscan.out", ".zst");
+	}
+
+	// compresses a corpus file by suffix, and reads both through the library
+	private void roundTrip(String name, String suffix) throws Exception {
+		File plain = corpus(name), packed = new File(tmp.getRoot(), name+suffix);
+		OutputStream out = Compression.create(packed);
+		try {
+			Files.copy(plain.toPath(), out);
+		}
+		finally {
+			out.close();
+		}
+		assertEquals(Compression.forName(packed), Compression.detect(packed));
+		assertEquals(annotate(plain.toPath()), annotate(packed.toPath()));
+		assertEquals(annotator.stream(plain.toPath()).count(), annotator.stream(packed.toPath()).count());
+	}
+
+	private String annotate(Path file) throws IOException {
+		StringWriter w = new StringWriter();
+		annotator.annotate(file, new XdomWriter(w));
+		return w.toString();
+	}
+
+	private static boolean hasZstd() {
+		try {
+			Process process = new ProcessBuilder("zstd", "-V").start();
+			InputStream in = process.getInputStream();
+			while (in.read() != -1);
+			return process.waitFor() == 0;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	static File corpus(String name) throws URISyntaxException {
+		return new File(DomainAnnotatorTest.class.getResource("/corpus/"+name).toURI());
+	}
+
+}
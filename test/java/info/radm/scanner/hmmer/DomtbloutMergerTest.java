@@ -0,0 +1,122 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class DomtbloutMergerTest
+ * Merging the domtblout of scans of one input against several model
+ * databases into one, query by query.
+ */
+public class DomtbloutMergerTest {
+
+	private static final String HEADER = "# target name        accession   tlen query name\n#------------------- ----------\n";
+	private static final int SEQUENCES = 30, DATABASES = 3;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void hitsOfEachQueryFollowEachOther() throws Exception {
+
+		File fasta = FastaSharderTest.fasta(tmp.newFile("in.fa"), 0, SEQUENCES);
+		File[] outs = new File[DATABASES];
+		// the header of the first
+		StringBuilder expected = new StringBuilder(HEADER.replace("target name", "target db0"));
+		for (int db = 0; db < DATABASES; db++)
+			outs[db] = domtblout(fasta, db, new File(tmp.getRoot(), "db"+db+".domtblout"), null);
+		// in input order, the databases in the order given for each query
+		FastaReader reader = new FastaReader(fasta);
+		try {
+			while ( reader.next() )
+				for (int db = 0; db < DATABASES; db++)
+					expected.append(hits(db, reader.getId(), reader.getResidues().length()));
+		}
+		finally {
+			reader.close();
+		}
+		File merged = new File(tmp.getRoot(), "merged.domtblout");
+		assertEquals("", merge(fasta, outs, merged));
+		assertEquals(expected.toString(), read(merged));
+	}
+
+	@Test
+	public void unmatchedHitsAreAppended() throws Exception {
+
+		File fasta = FastaSharderTest.fasta(tmp.newFile("in.fa"), 0, SEQUENCES);
+		File[] outs = new File[DATABASES];
+		for (int db = 0; db < DATABASES; db++)
+			outs[db] = domtblout(fasta, db, new File(tmp.getRoot(), "db"+db+".domtblout"), (db == 1) ? "other" : null);
+		File merged = new File(tmp.getRoot(), "merged.domtblout");
+		String warnings = merge(fasta, outs, merged);
+		assertEquals("WARNING: unmatched hmmscan output in db1.domtblout (query other) - appending.\n", warnings);
+		// after the hits of the queries asked for, in order
+		File ordered = new File(tmp.getRoot(), "ordered.domtblout");
+		outs[1] = domtblout(fasta, 1, outs[1], null);
+		assertEquals("", merge(fasta, outs, ordered));
+		assertEquals(read(ordered)+hits(1, "other", 100), read(merged));
+	}
+
+	// merges, returns what was written to stderr
+	private static String merge(File fasta, File[] outs, File merged) throws IOException {
+		PrintStream err = System.err;
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(stderr, true));
+		try {
+			new DomtbloutMerger(fasta).merge(outs, merged);
+		}
+		finally {
+			System.setErr(err);
+		}
+		return new String(stderr.toByteArray(), StandardCharsets.UTF_8).replace(System.lineSeparator(), "\n");
+	}
+
+	// hmmscan output of fasta against database db, with the hits of extra
+	// (a query that is not in fasta) at the end
+	private static File domtblout(File fasta, int db, File domtblout, String extra) throws IOException {
+		Writer w = new FileWriter(domtblout);
+		FastaReader reader = new FastaReader(fasta);
+		try {
+			w.write(HEADER.replace("target name", "target db"+db));
+			while ( reader.next() )
+				w.write(hits(db, reader.getId(), reader.getResidues().length()));
+			if (extra != null)
+				w.write(hits(db, extra, 100));
+			w.write("#\n# [ok]\n");
+		}
+		finally {
+			reader.close();
+			w.close();
+		}
+		return domtblout;
+	}
+
+	// 0 to 2 hits, different ones per database and none for some queries
+	private static String hits(int db, String query, int length) {
+		StringBuilder hits = new StringBuilder();
+		for (int k = 0; k < (length + db) % 3; k++)
+			hits.append(String.format("%-20s %-10s %5d %-20s %-10s %5d 1.0e-%02d rest of line\n",
+					"db"+db+"fam"+k, "PF0"+db+"00"+k+".1", 100, query, "-", length, 5 + k));
+		return hits.toString();
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
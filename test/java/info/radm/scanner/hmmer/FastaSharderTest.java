@@ -0,0 +1,171 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import info.radm.scanner.utils.FastaReader;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class FastaSharderTest
+ * Splitting a fasta into shards and stitching their domtblout back into
+ * input order.
+ */
+public class FastaSharderTest {
+
+	private static final String HEADER = "# target name        accession   tlen query name\n#------------------- ----------\n";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void shardsHoldEverySequenceOnceInInputOrder() throws Exception {
+
+		File fasta = fasta(tmp.newFile("in.fa"), 0, 41);
+		List<String> ids = ids(fasta);
+		Map<String, Integer> position = new HashMap<String, Integer>();
+		for (int i = 0; i < ids.size(); i++)
+			position.put(ids.get(i), i);
+
+		File[] shards = new FastaSharder(fasta, 4).split(tmp.newFolder("shards"));
+		assertEquals(4, shards.length);
+		int sequences = 0;
+		long[] load = new long[shards.length];
+		for (int s = 0; s < shards.length; s++) {
+			int last = -1;
+			FastaReader reader = new FastaReader(shards[s]);
+			try {
+				while ( reader.next() ) {
+					int p = position.remove(reader.getId());
+					assertTrue(reader.getId()+" out of order", p > last);
+					assertEquals(residues(p), reader.getResidues().toString());
+					last = p;
+					load[s] += reader.getResidues().length();
+					sequences++;
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		assertEquals(41, sequences);
+		assertTrue(position.isEmpty());
+		// longest first to the lightest shard: within one sequence of each other
+		long min = Long.MAX_VALUE, max = 0;
+		for (long l : load) {
+			min = Math.min(min, l);
+			max = Math.max(max, l);
+		}
+		assertTrue(max - min <= longest(41));
+	}
+
+	@Test
+	public void fewerShardsThanRequestedForFewSequences() throws Exception {
+		File fasta = fasta(tmp.newFile("in.fa"), 0, 2);
+		assertEquals(2, new FastaSharder(fasta, 5).split(tmp.newFolder("shards")).length);
+	}
+
+	@Test
+	public void stitchRestoresInputOrder() throws Exception {
+
+		File fasta = fasta(tmp.newFile("in.fa"), 0, 41);
+		FastaSharder sharder = new FastaSharder(fasta, 3);
+		File[] shards = sharder.split(tmp.newFolder("shards"));
+		File[] outs = new File[shards.length];
+		for (int s = 0; s < shards.length; s++)
+			outs[s] = domtblout(shards[s], new File(tmp.getRoot(), "shard"+s+".domtblout"));
+		File target = new File(tmp.getRoot(), "stitched.domtblout");
+		sharder.stitch(outs, target);
+
+		// as a single hmmscan run would have written it, without the trailer
+		String scanned = read(domtblout(fasta, new File(tmp.getRoot(), "whole.domtblout")));
+		assertEquals(scanned.substring(0, scanned.indexOf("#\n# [ok]")), read(target));
+	}
+
+	// hmmscan output of fasta: 0 to 2 hits per query
+	private static File domtblout(File fasta, File domtblout) throws IOException {
+		Writer w = new FileWriter(domtblout);
+		FastaReader reader = new FastaReader(fasta);
+		try {
+			w.write(HEADER);
+			while ( reader.next() ) {
+				int n = reader.getResidues().length() % 3;
+				for (int k = 0; k < n; k++)
+					w.write(String.format("%-20s %-10s %5d %-20s %-10s %5d 1.0e-%02d rest of line\n",
+							"fam"+k, "PF0000"+k+".1", 100, reader.getId(), "-",
+							reader.getResidues().length(), 5 + k));
+			}
+			w.write("#\n# [ok]\n");
+		}
+		finally {
+			reader.close();
+			w.close();
+		}
+		return domtblout;
+	}
+
+	// sequences of very different lengths, over several lines each
+	static File fasta(File fasta, int first, int sequences) throws IOException {
+		Writer w = new FileWriter(fasta);
+		try {
+			for (int i = first; i < first + sequences; i++) {
+				String residues = residues(i);
+				w.write(">s"+i+" protein "+i+"\n");
+				for (int j = 0; j < residues.length(); j += 60)
+					w.write(residues.substring(j, Math.min(residues.length(), j + 60))+"\n");
+			}
+		}
+		finally {
+			w.close();
+		}
+		return fasta;
+	}
+
+	static String residues(int i) {
+		int length = 10 + (i * 7919) % 500;
+		StringBuilder residues = new StringBuilder(length);
+		for (int j = 0; j < length; j++)
+			residues.append("ACDEFGHIKLMNPQRSTVWY".charAt((i + j * 3) % 20));
+		return residues.toString();
+	}
+
+	private static long longest(int sequences) {
+		long longest = 0;
+		for (int i = 0; i < sequences; i++)
+			longest = Math.max(longest, residues(i).length());
+		return longest;
+	}
+
+	private static List<String> ids(File fasta) throws IOException {
+		List<String> ids = new ArrayList<String>();
+		FastaReader reader = new FastaReader(fasta);
+		try {
+			while ( reader.next() )
+				ids.add(reader.getId());
+		}
+		finally {
+			reader.close();
+		}
+		return ids;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
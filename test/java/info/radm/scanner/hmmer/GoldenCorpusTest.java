@@ -0,0 +1,84 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class GoldenCorpusTest
+ * Parses the hmmscan and pfamscan output of the corpus (test/data/corpus)
+ * and compares the xdom with that written by the original parser (see
+ * the README there), on one thread and on the parallel parser, which
+ * splits them into chunks of a few KB.
+ */
+public class GoldenCorpusTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void hmmscan() throws Exception {
+		for (String input : new String[] { "hmmscan.domtblout", "nested.domtblout" }) {
+			check(input, "plain");
+			check(input, "m", "-m");
+			check(input, "r", "-r");
+			check(input, "m_r", "-m", "-r");
+		}
+	}
+
+	@Test
+	public void pfamscan() throws Exception {
+		check("pfamscan.out", "plain");
+		check("pfamscan.out", "m", "-m");
+		check("pfamscan.out", "r", "-r");
+		check("pfamscan.out", "cm", "-cm");
+		check("pfamscan.out", "m_r_cm", "-m", "-r", "-cm");
+	}
+
+	// parses input with the options as in parse-only mode, and compares
+	// the xdom with <input>.<name>.xdom
+	private void check(String input, String name, String... options) throws Exception {
+
+		File in = corpus(input);
+		String expected = read(corpus(input.substring(0, input.lastIndexOf('.'))+"."+name+".xdom"));
+		for (int threads : new int[] { 1, 4 }) {
+			File out = tmp.newFile();
+			HmmerParser parser = new HmmerParser(in.getPath(), out.getPath());
+			for (String option : options) {
+				if (option.equals("-m"))
+					parser.setMergeMode();
+				else if (option.equals("-r"))
+					parser.setResolveOverlapsMode();
+				else if (option.equals("-cm"))
+					parser.setClanMode();
+			}
+			parser.setThreads(threads);
+			// chunks of a few KB, so that the corpus files are split
+			parser.setMinChunk(1 << 10);
+			if (HmmerParser.determineFileFormat(in.getPath()) == HmmerParser.PFAMSCAN)
+				parser.pfamscan2xdom();
+			else
+				parser.hmmscan2xdom();
+			assertEquals(input+" "+name+" on "+threads+" thread(s)", expected, read(out));
+		}
+	}
+
+	private static File corpus(String name) throws URISyntaxException {
+		return new File(GoldenCorpusTest.class.getResource("/corpus/"+name).toURI());
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
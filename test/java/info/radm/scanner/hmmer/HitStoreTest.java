@@ -0,0 +1,150 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class HitStoreTest
+ * Output parsed again from its hit store, with other options than it
+ * was first parsed with, against parsing the text.
+ */
+public class HitStoreTest {
+
+	private static final String[] FAMILIES = { "ABC_tran", "7tm_2", "Ank", "WD40", "Pkinase", "zf-C2H2" };
+	private static final String[][] OPTIONS = { {}, { "-m" }, { "-r" }, { "-m", "-r" }, { "-acc" }, { "-ne" },
+			{ "-e", "1e-10" }, { "-ne", "-e", "1e-10" }, { "-m", "-r", "-e", "1e-25" } };
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void corpusReparsedFromItsStore() throws Exception {
+		reparse(corpus("hmmscan.domtblout"), "-m", "hmmscan", new String[][] {
+			{ "plain" }, { "m", "-m" }, { "r", "-r" }, { "m_r", "-m", "-r" } });
+		reparse(corpus("nested.domtblout"), "-r", "nested", new String[][] {
+			{ "plain" }, { "m", "-m" }, { "r", "-r" }, { "m_r", "-m", "-r" } });
+		reparse(corpus("pfamscan.out"), "-cm", "pfamscan", new String[][] {
+			{ "plain" }, { "m", "-m" }, { "r", "-r" }, { "cm", "-cm" }, { "m_r_cm", "-m", "-r", "-cm" } });
+	}
+
+	@Test
+	public void manyGroupsReparsedWithEveryOption() throws Exception {
+
+		File domtblout = domtblout(tmp.newFile("many.domtblout"));
+		File store = new File(tmp.getRoot(), "many.hits");
+		// whatever it was first parsed with
+		parse(domtblout, store, tmp.newFile(), "-e", "1e-30");
+		assertEquals(HmmerParser.HITSTORE, HmmerParser.detectFormat(store));
+		assertTrue(store.length() < domtblout.length() / 2);
+		for (String[] options : OPTIONS) {
+			String expected = read(parse(domtblout, null, tmp.newFile(), options));
+			assertTrue(expected.contains(">"));
+			for (int threads : new int[] { 1, 4 })
+				assertEquals(String.join(" ", options)+" on "+threads+" thread(s)",
+						expected, read(reparse(store, tmp.newFile(), threads, options)));
+		}
+	}
+
+	// stores input (as parsed with option first), and compares what the store
+	// gives with the options of each golden xdom <prefix>.<name>.xdom
+	private void reparse(File input, String first, String prefix, String[][] golden) throws Exception {
+		File store = new File(tmp.getRoot(), prefix+".hits");
+		parse(input, store, tmp.newFile(), first);
+		for (String[] name : golden) {
+			String[] options = new String[name.length - 1];
+			System.arraycopy(name, 1, options, 0, options.length);
+			assertEquals(prefix+" "+name[0], read(corpus(prefix+"."+name[0]+".xdom")),
+					read(reparse(store, tmp.newFile(), 1, options)));
+		}
+	}
+
+	// parses text, writing the hit store if not null
+	private static File parse(File input, File store, File xdom, String... options) throws IOException {
+		HmmerParser parser = parser(input, xdom, options);
+		if (store != null)
+			parser.setHitStore(store.getPath());
+		if (HmmerParser.detectFormat(input) == HmmerParser.PFAMSCAN)
+			parser.pfamscan2xdom();
+		else
+			parser.hmmscan2xdom();
+		return xdom;
+	}
+
+	private static File reparse(File store, File xdom, int threads, String... options) throws IOException {
+		HmmerParser parser = parser(store, xdom, options);
+		parser.setThreads(threads);
+		parser.hitstore2xdom();
+		return xdom;
+	}
+
+	private static HmmerParser parser(File input, File xdom, String... options) {
+		HmmerParser parser = new HmmerParser(input.getPath(), xdom.getPath());
+		for (int i = 0; i < options.length; i++) {
+			if (options[i].equals("-m"))
+				parser.setMergeMode();
+			else if (options[i].equals("-r"))
+				parser.setResolveOverlapsMode();
+			else if (options[i].equals("-cm"))
+				parser.setClanMode();
+			else if (options[i].equals("-acc"))
+				parser.setAccMode();
+			else if (options[i].equals("-ne"))
+				parser.setRemoveEmpties();
+			else if (options[i].equals("-e"))
+				parser.setEvalueThreshold(Double.valueOf(options[++i]));
+		}
+		return parser;
+	}
+
+	// hmmscan output of several groups of proteins, with split and
+	// overlapping hits, and groups without any hit below some thresholds
+	private static File domtblout(File domtblout) throws IOException {
+		Writer w = new FileWriter(domtblout);
+		try {
+			w.write("# target name        accession   tlen query name\n#-------------------\n");
+			for (int p = 0; p < 3000; p++) {
+				String query = String.format("sp|P%05d.%d|PROT_HUMAN", p, 1 + p % 3);
+				// at least one hit each, so that groups hold 1024 consecutive proteins
+				int length = 150 + p % 400, n = 1 + p % 6;
+				for (int k = 0; k < n; k++) {
+					int f = (p + k / 2) % FAMILIES.length;
+					int from = 1 + (k * 37 + p) % (length - 40), to = from + 20 + (p + k) % 20;
+					// the proteins of every other group only have weak hits
+					int exponent = ((p / 1024) % 2 == 1) ? 3 + k : 5 + (p * 13 + k * 7) % 40;
+					w.write(String.format("%-20s %-10s %5d %-30s %-10s %5d %9s %6.1f %5.1f %3d %3d %9s %9s %6.1f %5.1f %5d %5d %5d %5d %5d %5d %4.2f %s\n",
+							FAMILIES[f], String.format("PF%05d.%d", f, 10 + f), 120, query, "-", length,
+							"1.0e-"+exponent, 50.0, 0.1, k + 1, n, "1.0e-"+exponent, "2.5e-"+exponent, 40.0 + k, 0.1,
+							1 + k, 60 + k, from, to, from, to, 0.9, "family "+FAMILIES[f]));
+				}
+			}
+			w.write("#\n# [ok]\n");
+		}
+		finally {
+			w.close();
+		}
+		return domtblout;
+	}
+
+	private static File corpus(String name) throws URISyntaxException {
+		return new File(HitStoreTest.class.getResource("/corpus/"+name).toURI());
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,68 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * Class HmmerParserTest
+ * Overlap resolution against straightforward versions.
+ */
+public class HmmerParserTest {
+
+	@Test
+	public void resolveClanOverlaps() {
+		Random random = new Random(42);
+		for (int round = 0; round < 2000; round++) {
+			int n = 1 + random.nextInt(round < 1000 ? 8 : 200);
+			// in sequence order
+			int[] starts = new int[n];
+			for (int i = 0; i < n; i++)
+				starts[i] = 1 + random.nextInt(10 * n);
+			Arrays.sort(starts);
+			HitBuffer hits = new HitBuffer();
+			int[] clans = new int[n];
+			for (int i = 0; i < n; i++) {
+				int length = 1 + random.nextInt(50);
+				// few distinct evalues, to have ties; merged hits have -1
+				double evalue = (random.nextInt(10) == 0) ? -1 : random.nextInt(n) * 1e-5;
+				hits.add(hits.code("D"+random.nextInt(5)), starts[i], starts[i] + length, 1, length, evalue);
+				clans[i] = random.nextInt(3) - 1;
+			}
+			HitBuffer expected = hits.sibling();
+			expected.copy(hits);
+			int[] expectedClans = clans.clone();
+			HmmerParser.resolveClanOverlaps(hits, clans);
+			resolveNaively(expected, expectedClans);
+			assertEquals(expected.toDomains().toString(), hits.toDomains().toString());
+		}
+	}
+
+	// domains by evalue, then sequence order; dropped if overlapping a taken one of the clan
+	private static void resolveNaively(HitBuffer hits, int[] clans) {
+		int n = hits.size;
+		boolean[] done = new boolean[n], taken = new boolean[n];
+		for (int round = 0; round < n; round++) {
+			int dom = -1;
+			for (int i = 0; i < n; i++)
+				if (! done[i] && (dom < 0 || hits.evalue[i] < hits.evalue[dom]) )
+					dom = i;
+			done[dom] = true;
+			taken[dom] = true;
+			for (int other = 0; other < n; other++)
+				if (other != dom && taken[other] && done[other] && clans[other] == clans[dom] &&
+						hits.aliFrom[dom] <= hits.aliTo[other] && hits.aliFrom[other] <= hits.aliTo[dom])
+					taken[dom] = false;
+		}
+		int kept = 0;
+		for (int i = 0; i < n; i++)
+			if (taken[i])
+				hits.move(i, kept++);
+		hits.size = kept;
+	}
+
+}
@@ -0,0 +1,171 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import info.radm.scanner.metrics.ScanProgress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class HmmpgmdClientTest
+ * Searches with hmmpgmd, against a stub daemon (see StubHmmpgmd).
+ */
+public class HmmpgmdClientTest {
+
+	private static final int QUERIES = 12;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void hitsAreDecodedIntoDomtblout() throws Exception {
+
+		ServerSocket server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+		new StubHmmpgmd(server, null).start();
+		HmmpgmdClient client = new HmmpgmdClient(server.getLocalPort());
+		try {
+			// two hits, the one with the lower evalue (1e-21) first
+			List<String> lines = client.search("q1", residues(20), "--cut_ga");
+			assertEquals(2, lines.size());
+			for (int k = 0; k < 2; k++) {
+				String[] f = lines.get(k).split("\\s+");
+				assertEquals(StubHmmpgmd.FAMILIES[(20 + k) % 3], f[0]);
+				assertEquals(StubHmmpgmd.ACCESSIONS[(20 + k) % 3], f[1]);
+				assertEquals("120", f[2]);
+				assertEquals("q1", f[3]);
+				assertEquals("20", f[5]);
+				// one domain per hit
+				assertEquals("1", f[9]);
+				assertEquals("1", f[10]);
+				assertEquals(StubHmmpgmd.evalue(20, k), Double.parseDouble(f[12]), StubHmmpgmd.evalue(20, k) * 0.01);
+				assertEquals(""+StubHmmpgmd.from(20, k), f[17]);
+				assertEquals(""+StubHmmpgmd.to(20, k), f[18]);
+				assertEquals("stub", f[22]);
+			}
+			// no hits
+			assertEquals(0, client.search("q2", residues(21), "--cut_ga").size());
+			try {
+				client.search("q3", residues(20), "--bad");
+				fail("error status");
+			}
+			catch (IOException expected) {
+				assertEquals("hmmpgmd: Unknown option in @--hmmdb 1 --bad", expected.getMessage());
+			}
+		}
+		finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void searchIsRepeatedAfterARestart() throws Exception {
+
+		assumeTrue(new File("/bin/sh").canExecute());
+		File wd = tmp.newFolder("wd"), fasta = fasta(tmp.newFile("in.fa"));
+		new File(wd, "Pfam-A.hmm").createNewFile();
+		File hmmpgmd = new File(wd, "hmmpgmd");
+		Writer w = new FileWriter(hmmpgmd);
+		try {
+			w.write("#!/bin/sh\nexec '"+new File(System.getProperty("java.home"), "bin/java").getPath()+"' -cp '"+
+					System.getProperty("java.class.path")+"' "+StubHmmpgmd.class.getName()+" \"$@\"\n");
+		}
+		finally {
+			w.close();
+		}
+		hmmpgmd.setExecutable(true);
+
+		ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		int port = free.getLocalPort();
+		free.close();
+		HmmpgmdDaemon pgmd = new HmmpgmdDaemon(wd, new File(wd, "Pfam-A.hmm").getAbsolutePath(), port);
+		PrintStream err = System.err;
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		try {
+			pgmd.start();
+			String expected = scan(pgmd, fasta, wd, null);
+			// the master goes down in the middle of the next search
+			Files.write(new File(wd, "crash").toPath(), "seq5\n".getBytes(StandardCharsets.US_ASCII));
+			File status = new File(tmp.getRoot(), "progress");
+			ScanProgress progress = new ScanProgress(60, status);
+			System.setErr(new PrintStream(stderr, true));
+			assertEquals(expected, scan(pgmd, fasta, wd, progress));
+			progress.report();
+			Properties p = new Properties();
+			InputStream in = new FileInputStream(status);
+			try {
+				p.load(in);
+			}
+			finally {
+				in.close();
+			}
+			assertEquals(""+QUERIES, p.getProperty("queries.total"));
+			assertEquals(""+QUERIES, p.getProperty("queries.done"));
+			assertEquals(p.getProperty("residues.total"), p.getProperty("residues.done"));
+		}
+		finally {
+			System.setErr(err);
+			pgmd.stop();
+		}
+		String log = new String(stderr.toByteArray(), StandardCharsets.UTF_8);
+		assertTrue(log, log.contains("WARNING: hmmpgmd master exited - restarting."));
+		assertTrue(log, log.contains("INFO: hmmpgmd search failed"));
+		assertTrue(! new File(wd, "crash").exists() );
+	}
+
+	// the domtblout of a search of fasta, as run by a scan
+	private String scan(HmmpgmdDaemon pgmd, File fasta, File wd, ScanProgress progress) throws Exception {
+		Hmmer hmmer = new Hmmer(fasta.getPath(), new File(tmp.getRoot(), "out.xdom").getPath(), wd.getPath());
+		hmmer.setDaemon(pgmd);
+		if (progress != null)
+			hmmer.setProgress(progress);
+		assertTrue(hmmer.checkParams());
+		assertEquals(0, hmmer.doInBackground().intValue());
+		File domtblout = new File(hmmer.getHmmoutPath());
+		String scanned = new String(Files.readAllBytes(domtblout.toPath()), StandardCharsets.UTF_8);
+		domtblout.delete();
+		assertTrue(scanned.contains(" seq10 "));
+		return scanned;
+	}
+
+	private static File fasta(File fasta) throws IOException {
+		Writer w = new FileWriter(fasta);
+		try {
+			for (int i = 0; i < QUERIES; i++)
+				w.write(">seq"+i+"\n"+residues(10 + 7 * i)+"\n");
+		}
+		finally {
+			w.close();
+		}
+		return fasta;
+	}
+
+	private static String residues(int length) {
+		StringBuilder residues = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			residues.append("ACDEFGHIKLMNPQRSTVWY".charAt((i * 7) % 20));
+		return residues.toString();
+	}
+
+}
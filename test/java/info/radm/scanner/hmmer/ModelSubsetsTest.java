@@ -0,0 +1,153 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class ModelSubsetsTest
+ * Subsets of a model file, pressed by a stub hmmpress that copies the
+ * models to the pressed files and counts its runs.
+ */
+public class ModelSubsetsTest {
+
+	private static final String[][] MODELS = { { "ABC_tran", "PF00005.27" }, { "7tm_2", "PF00002.24" },
+			{ "Ank", "PF00023.30" }, { "WD40", "PF00400.32" }, { "Pkinase", "PF00069.25" } };
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File bin, dir, model;
+
+
+	@Before
+	public void setUp() throws Exception {
+		assumeTrue(new File("/bin/sh").canExecute());
+		bin = tmp.newFolder("bin");
+		File hmmpress = new File(bin, "hmmpress");
+		Files.write(hmmpress.toPath(), ("#!/bin/sh\n" +
+				"bin=$(dirname \"$0\")\n" +
+				"echo \"$1\" >> \"$bin/runs\"\n" +
+				"[ -f \"$bin/fail\" ] && exit 3\n" +
+				"for ext in h3m h3i h3f h3p; do cp \"$1\" \"$1.$ext\" || exit 1; done\n").getBytes(StandardCharsets.US_ASCII));
+		hmmpress.setExecutable(true);
+		dir = new File(tmp.getRoot(), "subsets");
+		model = models(tmp.newFile("Pfam-A.hmm"), MODELS);
+	}
+
+	@Test
+	public void familiesAreExtractedByNameOrAccession() throws Exception {
+
+		File subset = tmp.newFile("subset.hmm");
+		Set<String> families = new TreeSet<String>(Arrays.asList("Ank", "PF00005.27", "PF00069", "PF99999", "PF00400.1"));
+		assertEquals(new TreeSet<String>(Arrays.asList("Ank", "PF00005.27", "PF00069")),
+				ModelSubsets.extract(model, families, subset));
+		// the records as they are, in the order of the model file
+		assertArrayEquals(Files.readAllBytes(models(tmp.newFile(), MODELS[0], MODELS[2], MODELS[4]).toPath()),
+				Files.readAllBytes(subset.toPath()));
+	}
+
+	@Test
+	public void subsetsAreBuiltOnceAndReused() throws Exception {
+
+		ModelSubsets subsets = subsets();
+		File subset = subsets.get(model, Arrays.asList("WD40", "PF00002"));
+		assertEquals(1, runs());
+		assertArrayEquals(Files.readAllBytes(models(tmp.newFile(), MODELS[1], MODELS[3]).toPath()),
+				Files.readAllBytes(subset.toPath()));
+		for (String ext : new String[] { ".h3m", ".h3i", ".h3f", ".h3p" })
+			assertTrue(new File(subset.getPath()+ext).isFile());
+
+		// the same list in another order, in another run
+		assertEquals(subset, subsets().get(model, Arrays.asList("PF00002", "WD40", "WD40")));
+		assertEquals(1, runs());
+		// another list
+		File other = subsets.get(model, Arrays.asList("WD40"));
+		assertNotEquals(subset, other);
+		assertEquals(2, runs());
+		assertEquals(new TreeSet<String>(Arrays.asList("PF00002", "WD40")), subsets.getFound());
+
+		// none of the families: nothing to press, but remembered
+		assertNull(subsets.get(model, Arrays.asList("PF99999")));
+		assertNull(subsets().get(model, Arrays.asList("PF99999")));
+		assertEquals(2, runs());
+
+		// a new release of the models
+		models(model, MODELS[1], MODELS[3], MODELS[0]);
+		model.setLastModified(model.lastModified() + 2000);
+		File release = subsets().get(model, Arrays.asList("WD40", "PF00002"));
+		assertNotEquals(subset, release);
+		assertEquals(3, runs());
+		// no build directories left
+		for (File f : dir.listFiles())
+			assertTrue(f.getName(), ! f.getName().startsWith(".build_") );
+	}
+
+	@Test
+	public void failedPressIsRetried() throws Exception {
+
+		new File(bin, "fail").createNewFile();
+		try {
+			subsets().get(model, Arrays.asList("Ank"));
+			fail("pressed");
+		}
+		catch (IOException expected) {
+			assertEquals("hmmpress exited with 3", expected.getMessage());
+		}
+		new File(bin, "fail").delete();
+		assertTrue(subsets().get(model, Arrays.asList("Ank")).isFile());
+		assertEquals(2, runs());
+	}
+
+	@Test
+	public void familiesFromTheCommandLineOrAFile() throws Exception {
+		assertEquals(new TreeSet<String>(Arrays.asList("Ank", "PF00005")), ModelSubsets.readFamilies(" PF00005,Ank,,PF00005 "));
+		File list = tmp.newFile("families.txt");
+		Files.write(list.toPath(), "# kinases\nPkinase\n\n  PF00069.25\n".getBytes(StandardCharsets.UTF_8));
+		assertEquals(new TreeSet<String>(Arrays.asList("PF00069.25", "Pkinase")), ModelSubsets.readFamilies(list.getPath()));
+	}
+
+	private ModelSubsets subsets() throws IOException {
+		return new ModelSubsets(dir, new File(bin, "hmmpress").getPath());
+	}
+
+	private int runs() throws IOException {
+		File runs = new File(bin, "runs");
+		return runs.isFile() ? Files.readAllLines(runs.toPath()).size() : 0;
+	}
+
+	// a model file of the models, as HMMER3 text records (abbreviated)
+	private static File models(File file, String[]... models) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (String[] m : models) {
+			bytes.write(("HMMER3/f [3.3 | Nov 2019]\nNAME  "+m[0]+"\nACC   "+m[1]+"\nDESC  "+m[0]+" domain ")
+					.getBytes(StandardCharsets.US_ASCII));
+			// not UTF-8: kept as it is
+			bytes.write(0xE9);
+			bytes.write(("\nLENG  120\nHMM          A        C        D\n  COMPO   2.36553  4.52577  2.96709\n//\n")
+					.getBytes(StandardCharsets.US_ASCII));
+		}
+		Files.write(file.toPath(), bytes.toByteArray());
+		return file;
+	}
+
+}
@@ -0,0 +1,120 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import info.radm.scanner.utils.Digests;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class ResultCacheTest
+ * Entries, namespaces and eviction of the result cache.
+ */
+public class ResultCacheTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File dir, models;
+
+
+	@Before
+	public void setUp() throws Exception {
+		dir = new File(tmp.getRoot(), "cache");
+		models = tmp.newFile("Pfam-A.hmm");
+		Files.write(models.toPath(), "HMMER3/f [3.3 | Nov 2019]\n".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void entriesAreKeptPerSequence() throws Exception {
+
+		ResultCache cache = new ResultCache(dir, models, "--cut_ga", 1 << 20);
+		byte[] hits = Digests.sequence("MKVLAAGIV"), none = Digests.sequence("MKV");
+		assertNull(cache.get(hits));
+		List<String> lines = Arrays.asList("ABC_tran PF00005.27 120 q1 - 9", "Ank PF00023.30 120 q1 - 9");
+		cache.put(hits, lines);
+		cache.put(none, Collections.<String>emptyList());
+		assertEquals(lines, cache.get(hits));
+		// cached without hits is not a miss
+		assertEquals(Collections.<String>emptyList(), cache.get(none));
+		// same models and threshold, another run
+		assertEquals(lines, new ResultCache(dir, models, "--cut_ga", 1 << 20).get(hits));
+	}
+
+	@Test
+	public void otherModelsOrThresholdsMiss() throws Exception {
+
+		byte[] digest = Digests.sequence("MKVLAAGIV");
+		new ResultCache(dir, models, "--cut_ga", 1 << 20).put(digest, Arrays.asList("line"));
+		assertNull(new ResultCache(dir, models, "-E 0.01", 1 << 20).get(digest));
+		// a new release of the models
+		Files.write(models.toPath(), "HMMER3/f [3.4 | Aug 2023]\n".getBytes(StandardCharsets.US_ASCII));
+		models.setLastModified(models.lastModified() + 2000);
+		assertNull(new ResultCache(dir, models, "--cut_ga", 1 << 20).get(digest));
+	}
+
+	@Test
+	public void evictionRemovesLeastRecentlyUsed() throws Exception {
+
+		// 10 entries of 100 bytes, used in order, the first once more
+		ResultCache cache = new ResultCache(dir, models, "--cut_ga", 1000);
+		List<byte[]> digests = new ArrayList<byte[]>();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			byte[] digest = Digests.sequence("MKV"+i);
+			digests.add(digest);
+			cache.put(digest, Arrays.asList(String.format("%099d", i)));
+			entry(digest).setLastModified(now - (10 - i) * 60 * 1000L);
+		}
+		cache.evict();
+		for (byte[] digest : digests)
+			assertTrue(entry(digest).isFile());
+
+		assertNotNull(cache.get(digests.get(0)));
+		cache.put(Digests.sequence("MKV10"), Arrays.asList(String.format("%099d", 10)));
+		cache.evict();
+		// down to 90% of the limit
+		assertTrue(entry(digests.get(0)).isFile());
+		assertTrue(! entry(digests.get(1)).exists() );
+		assertTrue(! entry(digests.get(2)).exists() );
+		for (int i = 3; i < 10; i++)
+			assertEquals(Arrays.asList(String.format("%099d", i)), cache.get(digests.get(i)));
+		assertNull(cache.get(digests.get(1)));
+	}
+
+	// the file of an entry, in whatever namespace
+	private File entry(byte[] digest) throws IOException {
+		File entry = find(dir, Digests.hex(digest));
+		return (entry == null) ? new File(dir, Digests.hex(digest)) : entry;
+	}
+
+	private static File find(File dir, String name) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return null;
+		for (File f : files) {
+			if (f.getName().equals(name))
+				return f;
+			File found = f.isDirectory() ? find(f, name) : null;
+			if (found != null)
+				return found;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,244 @@
+package info.radm.scanner.hmmer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+
+/**
+ * Class StubHmmpgmd
+ * Stub hmmpgmd for the tests: answers searches in the wire format
+ * HmmpgmdClient decodes, with hits made up from the length of each query.
+ * Run as a process (main()), it takes the arguments HmmpgmdDaemon starts
+ * hmmpgmd with; the master exits on the query named in the file "crash"
+ * next to the --hmmdb, and deletes that file, so that it can be restarted.
+ */
+class StubHmmpgmd extends Thread {
+
+	static final String[] FAMILIES = { "ABC_tran", "7tm_2", "Ank" };
+	static final String[] ACCESSIONS = { "PF00005.27", "PF00002.24", "PF00023.30" };
+	static final double Z = 10.0, DOM_Z = 3.0;
+
+	private ServerSocket server;
+	private File crash;
+
+
+	/**
+	 * @param server socket to accept clients on
+	 * @param crash file naming the query to exit on, or null
+	 */
+	StubHmmpgmd(ServerSocket server, File crash) {
+		super("stub-hmmpgmd");
+		this.server = server;
+		this.crash = crash;
+		setDaemon(true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String cport = null, hmmdb = null;
+		boolean master = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--master"))
+				master = true;
+			else if (args[i].equals("--cport"))
+				cport = args[++i];
+			else if (args[i].equals("--hmmdb"))
+				hmmdb = args[++i];
+		}
+		if (! master ) {
+			// workers are not needed
+			Thread.sleep(Long.MAX_VALUE);
+			return;
+		}
+		ServerSocket server = new ServerSocket(Integer.parseInt(cport), 16, InetAddress.getLoopbackAddress());
+		StubHmmpgmd stub = new StubHmmpgmd(server, new File(new File(hmmdb).getAbsoluteFile().getParentFile(), "crash"));
+		stub.run();
+	}
+
+	public void run() {
+		while (! server.isClosed() ) {
+			try {
+				final Socket client = server.accept();
+				Thread t = new Thread("stub-hmmpgmd-client") {
+					public void run() {
+						serve(client);
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+			catch (IOException ioe) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket client) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+			DataOutputStream out = new DataOutputStream(client.getOutputStream());
+			String command;
+			while ( (command = in.readLine()) != null ) {
+				String name = null, line;
+				StringBuilder residues = new StringBuilder();
+				while ( (line = in.readLine()) != null && !line.startsWith("//") ) {
+					if ( line.startsWith(">") )
+						name = line.substring(1).split("\\s+")[0];
+					else
+						residues.append(line.trim());
+				}
+				if ( crash != null && crash.isFile() &&
+						new String(Files.readAllBytes(crash.toPath()), StandardCharsets.US_ASCII).trim().equals(name) ) {
+					crash.delete();
+					Runtime.getRuntime().halt(1);
+				}
+				byte[] message;
+				int status = 0;
+				if (! command.startsWith("@--hmmdb 1 ") || command.contains("--bad") ) {
+					status = 1;
+					message = ("Unknown option in "+command+"\n\0").getBytes(StandardCharsets.US_ASCII);
+				}
+				else
+					message = results(residues.length());
+				out.writeInt(status);
+				out.writeLong(message.length);
+				out.write(message);
+				out.flush();
+			}
+			client.close();
+		}
+		catch (IOException ioe) {
+			// client gone
+		}
+	}
+
+	/**
+	 * @return the i-Evalue of hit k of a query of length
+	 */
+	static double evalue(int length, int k) {
+		return Math.pow(10, -(1 + (length * (k + 1)) % 30));
+	}
+
+	static int from(int length, int k) {
+		return 1 + (k * 13) % Math.max(1, length - 10);
+	}
+
+	static int to(int length, int k) {
+		return Math.min(length, from(length, k) + 8 + k);
+	}
+
+	// serialized search statistics and hits, length % 3 of them
+	static byte[] results(int length) throws IOException {
+
+		int n = length % 3;
+		byte[][] hits = new byte[n][];
+		for (int k = 0; k < n; k++)
+			hits[k] = hit(length, k);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream stats = new DataOutputStream(bytes);
+		for (int i = 0; i < 3; i++)
+			stats.writeDouble(0);			// elapsed, user, sys
+		stats.writeDouble(Z);
+		stats.writeDouble(DOM_Z);
+		stats.writeByte(0);					// Z_setby
+		stats.writeByte(0);					// domZ_setby
+		for (int i = 0; i < 6; i++)
+			stats.writeLong(0);				// nmodels ... n_past_fwd
+		stats.writeLong(n);					// nhits
+		stats.writeLong(n);					// nreported
+		stats.writeLong(n);					// nincluded
+		long offset = 0;
+		for (byte[] hit : hits) {
+			stats.writeLong(offset);
+			offset += hit.length;
+		}
+		for (byte[] hit : hits)
+			stats.write(hit);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] hit(int length, int k) throws IOException {
+
+		double lnP = Math.log(evalue(length, k) / Z);
+		int from = from(length, k), to = to(length, k);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream hit = new DataOutputStream(bytes);
+		hit.writeInt(0);					// size, set below
+		hit.writeInt(0);					// window_length
+		hit.writeDouble(-lnP);				// sortkey
+		hit.writeFloat(50.0f);				// score
+		hit.writeFloat(50.5f);				// pre_score
+		hit.writeFloat(50.0f);				// sum_score
+		hit.writeDouble(lnP);
+		hit.writeDouble(lnP);				// pre_lnP
+		hit.writeDouble(lnP);				// sum_lnP
+		hit.writeFloat(1.0f);				// nexpected
+		for (int i = 0; i < 4; i++)
+			hit.writeInt(1);				// nregions ... nenvelopes
+		hit.writeInt(1);					// ndom
+		hit.writeInt(3);					// flags: IS_INCLUDED | IS_REPORTED
+		hit.writeInt(1);					// nreported
+		hit.writeInt(1);					// nincluded
+		hit.writeInt(0);					// best_domain
+		for (int i = 0; i < 3; i++)
+			hit.writeLong(0);				// seqidx, subseq_start, offset
+		hit.writeByte(3);					// accession and description present
+		cString(hit, FAMILIES[(length + k) % 3]);
+		cString(hit, ACCESSIONS[(length + k) % 3]);
+		cString(hit, "stub family");
+
+		ByteArrayOutputStream domBytes = new ByteArrayOutputStream();
+		DataOutputStream dom = new DataOutputStream(domBytes);
+		dom.writeInt(0);					// size, set below
+		dom.writeLong(from);				// ienv
+		dom.writeLong(to);					// jenv
+		dom.writeLong(from);				// iali
+		dom.writeLong(to);					// jali
+		dom.writeFloat(45.0f);				// envsc
+		dom.writeFloat(0.0f);				// domcorrection
+		dom.writeFloat(0.5f);				// dombias
+		dom.writeFloat(0.9f * (1 + to - from));	// oasc
+		dom.writeFloat(40.0f);				// bitscore
+		dom.writeDouble(lnP);
+		dom.writeInt(1);					// is_reported
+		dom.writeInt(1);					// is_included
+		dom.writeInt(2);					// scores_per_pos
+		dom.writeFloat(1.0f);
+		dom.writeFloat(2.0f);
+		dom.writeInt(0);					// alidisplay size, not read
+		dom.writeInt(0);					// N
+		dom.writeInt(1);					// hmmfrom
+		dom.writeInt(1 + to - from);		// hmmto
+		dom.writeInt(120);					// M
+		dom.writeLong(from);				// sqfrom
+		dom.writeLong(to);					// sqto
+		dom.writeLong(length);				// L
+		cString(dom, "alignment");
+		hit.write(sized(domBytes.toByteArray()));
+		return sized(bytes.toByteArray());
+	}
+
+	private static void cString(DataOutputStream out, String s) throws IOException {
+		out.write(s.getBytes(StandardCharsets.US_ASCII));
+		out.writeByte(0);
+	}
+
+	// sets the leading size of a serialized object
+	private static byte[] sized(byte[] object) {
+		int size = object.length;
+		object[0] = (byte) (size >>> 24);
+		object[1] = (byte) (size >>> 16);
+		object[2] = (byte) (size >>> 8);
+		object[3] = (byte) size;
+		return object;
+	}
+
+}
@@ -0,0 +1,125 @@
+package info.radm.scanner.hmmer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Class XdomIndexTest
+ * Looking up every protein of an indexed xdom file, and indexes that no
+ * longer match their xdom file.
+ */
+public class XdomIndexTest {
+
+	private static final int PROTEINS = 5000;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void everyProteinIsFound() throws Exception {
+
+		Map<String, String> blocks = new LinkedHashMap<String, String>();
+		File xdom = xdom(tmp.newFile("out.xdom"), blocks);
+		// listed twice: the first one is found
+		String again = ">q10\t10\n1\t5\tagain\t1.0E-9\n";
+		Files.write(xdom.toPath(), again.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		// the last protein, without a final newline
+		Files.write(xdom.toPath(), ">last\t10\n1\t5\tfam".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		assertEquals(PROTEINS + 2, XdomIndex.build(xdom));
+
+		XdomIndex index = new XdomIndex(xdom);
+		try {
+			assertEquals(PROTEINS + 2, index.size());
+			for (Map.Entry<String, String> protein : blocks.entrySet())
+				assertEquals(protein.getValue(), index.getBlock(protein.getKey()));
+			assertEquals(">last\t10\n1\t5\tfam", index.getBlock("last"));
+
+			ProteinAnnotation annotation = index.get("sp|P00043|PROT_HUMAN");
+			assertEquals(3, annotation.getDomains().size());
+			assertEquals("PF43", annotation.getDomains().get(0).getID());
+			// not there, or only as a prefix of another ID
+			assertNull(index.getBlock("missing"));
+			assertNull(index.getBlock("q1"));
+			assertNull(index.get("sp|P00043"));
+		}
+		finally {
+			index.close();
+		}
+	}
+
+	@Test
+	public void changedXdomIsNotLookedUp() throws Exception {
+
+		File xdom = xdom(tmp.newFile("out.xdom"), new LinkedHashMap<String, String>());
+		expectRefused(xdom, "no index for ");
+		XdomIndex.build(xdom);
+		new XdomIndex(xdom).close();
+		Files.write(xdom.toPath(), ">extra\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		expectRefused(xdom, "is out of date");
+
+		File binary = new File(tmp.getRoot(), "out.bxdom");
+		XdomConverter.toBinary(xdom, binary);
+		try {
+			XdomIndex.build(binary);
+			fail("indexed binary xdom");
+		}
+		catch (IOException expected) {
+			assertEquals("only uncompressed text xdom can be indexed", expected.getMessage());
+		}
+	}
+
+	private static void expectRefused(File xdom, String message) {
+		try {
+			new XdomIndex(xdom).close();
+			fail("opened the index of "+xdom);
+		}
+		catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains(message));
+		}
+	}
+
+	// proteins with IDs that share prefixes, and some with a block longer
+	// than a single read; blocks gets the lines of each protein
+	private static File xdom(File xdom, Map<String, String> blocks) throws IOException {
+		Writer w = new FileWriter(xdom);
+		try {
+			for (int p = 0; p < PROTEINS; p++) {
+				List<Domain> domains = new ArrayList<Domain>();
+				int n = (p % 100 == 0) ? 80 : p % 4;
+				for (int d = 0; d < n; d++)
+					domains.add(new Domain("PF"+(p + d) % 50, 1 + d * 30, 20 + d * 30, -1, -1, 1e-5 * (d + 1)));
+				String id = (p % 3 == 0) ? "q"+(10 + p) : String.format("sp|P%05d|PROT_HUMAN", p);
+				StringWriter block = new StringWriter();
+				new XdomWriter(block).accept(new ProteinAnnotation(id, (p % 5 == 0) ? -1 : 100 + p, domains));
+				blocks.put(id, block.toString());
+				w.write(block.toString());
+			}
+		}
+		finally {
+			w.close();
+		}
+		return xdom;
+	}
+
+}